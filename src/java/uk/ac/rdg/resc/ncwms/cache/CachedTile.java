@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+/**
+ * An array of data held in the {@link TileCache}, together with the time at
+ * which it was created (so that it can be expired).
+ * @author Jon
+ */
+final class CachedTile
+{
+    /** Approximate number of bytes used by a cache entry over and above its data */
+    static final int OVERHEAD_BYTES = 128;
+
+    final float[] data;
+    final long created;
+    /**
+     * True if a copy of this tile is known to be in the disk store.  This is
+     * set by whichever thread writes the tile to disk and read by others.
+     */
+    volatile boolean onDisk;
+
+    CachedTile(float[] data, long created, boolean onDisk)
+    {
+        this.data = data;
+        this.created = created;
+        this.onDisk = onDisk;
+    }
+
+    /** Returns the approximate number of bytes of memory used by this tile */
+    long getSizeBytes()
+    {
+        return 4L * this.data.length + OVERHEAD_BYTES;
+    }
+
+    /**
+     * Returns true if this tile was created more than the given number of
+     * milliseconds before the given time.
+     */
+    boolean isExpired(long now, long lifetimeMillis)
+    {
+        return now - this.created > lifetimeMillis;
+    }
+}
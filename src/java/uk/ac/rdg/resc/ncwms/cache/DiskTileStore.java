@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Disk store for the {@link TileCache}.  Each tile is held in its own file
+ * in a simple raw binary format that can be read back with a single read
+ * into a buffer, without the overhead of Java serialization:</p>
+ * <pre>
+ *   int    magic number ("TILE")
+ *   long   time at which the tile was created (milliseconds since the epoch)
+ *   int    number of bytes in the key
+ *   byte[] the key, in UTF-8
+ *   int    number of data values
+ *   float[] the data values
+ * </pre>
+ * <p>All values are big-endian.  The name of each file is derived from a hash
+ * of the key, and the key is checked when the file is read back.  The store
+ * keeps the total size of its files within a budget by deleting the least
+ * recently used files.  Files that cannot be read are treated as cache misses
+ * and deleted.</p>
+ * @author Jon
+ */
+final class DiskTileStore
+{
+    private static final Logger logger = LoggerFactory.getLogger(DiskTileStore.class);
+
+    private static final int MAGIC = 0x54494C45; // "TILE"
+    private static final String SUFFIX = ".tile";
+    /** The prefix and suffix of the temporary files in which tiles are written */
+    private static final String TEMP_PREFIX = "tile";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String UTF8 = "UTF-8";
+
+    private final File directory;
+    private final long maxSizeBytes;
+    private final long lifetimeMillis;
+
+    /** Maps file names to file sizes, in least-recently-used order */
+    private final LinkedHashMap<String, Long> files =
+        new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long sizeBytes = 0;
+
+    /**
+     * Creates a disk store in the given directory, picking up any tiles that
+     * were written by a previous instance and deleting any that have expired.
+     * Temporary files that a previous instance left behind (e.g. in a crash)
+     * are deleted too.  Other files in the directory are left alone.
+     * @throws IOException if the directory cannot be created
+     */
+    DiskTileStore(File directory, long maxSizeBytes, long lifetimeMillis) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create tile cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+        this.lifetimeMillis = lifetimeMillis;
+
+        File[] existing = directory.listFiles();
+        if (existing == null) existing = new File[0];
+        // Oldest files first, so that these are the first to be evicted
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long t1 = f1.lastModified();
+                long t2 = f2.lastModified();
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        long now = System.currentTimeMillis();
+        for (File file : existing)
+        {
+            if (!file.isFile()) continue;
+            String name = file.getName();
+            if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX))
+            {
+                file.delete();
+            }
+            else if (name.endsWith(SUFFIX))
+            {
+                if (now - file.lastModified() > lifetimeMillis)
+                {
+                    file.delete();
+                }
+                else
+                {
+                    this.files.put(name, file.length());
+                    this.sizeBytes += file.length();
+                }
+            }
+        }
+        this.evict();
+        logger.debug("Found {} tiles in disk store", this.files.size());
+    }
+
+    /**
+     * Reads the tile with the given key from disk, returning null if it is
+     * not present, has expired or cannot be read.
+     */
+    CachedTile get(String key)
+    {
+        String fileName = getFileName(key);
+        synchronized(this)
+        {
+            if (this.files.get(fileName) == null) return null;
+        }
+        File file = new File(this.directory, fileName);
+        try
+        {
+            CachedTile tile = read(file, key);
+            if (tile != null && !tile.isExpired(System.currentTimeMillis(), this.lifetimeMillis))
+            {
+                return tile;
+            }
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Error reading tile from " + file, ioe);
+        }
+        // The tile is not usable
+        this.remove(fileName);
+        return null;
+    }
+
+    /**
+     * Writes the given tile to disk, evicting the least recently used tiles
+     * if the store grows beyond its budget.
+     */
+    void put(String key, CachedTile tile)
+    {
+        String fileName = getFileName(key);
+        File file = new File(this.directory, fileName);
+        long length;
+        try
+        {
+            length = write(file, key, tile);
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Error writing tile to " + file, ioe);
+            return;
+        }
+        synchronized(this)
+        {
+            Long oldLength = this.files.put(fileName, length);
+            if (oldLength != null) this.sizeBytes -= oldLength;
+            this.sizeBytes += length;
+        }
+        this.evict();
+    }
+
+    /** Returns the total number of bytes in the files in this store */
+    synchronized long getSizeBytes()
+    {
+        return this.sizeBytes;
+    }
+
+    /** Deletes files until the store is within its budget */
+    private void evict()
+    {
+        List<String> toDelete = new ArrayList<String>();
+        synchronized(this)
+        {
+            Iterator<Map.Entry<String, Long>> it = this.files.entrySet().iterator();
+            while (this.sizeBytes > this.maxSizeBytes && it.hasNext())
+            {
+                Map.Entry<String, Long> entry = it.next();
+                this.sizeBytes -= entry.getValue();
+                toDelete.add(entry.getKey());
+                it.remove();
+            }
+        }
+        for (String fileName : toDelete)
+        {
+            new File(this.directory, fileName).delete();
+        }
+    }
+
+    private void remove(String fileName)
+    {
+        synchronized(this)
+        {
+            Long length = this.files.remove(fileName);
+            if (length != null) this.sizeBytes -= length;
+        }
+        new File(this.directory, fileName).delete();
+    }
+
+    /**
+     * Writes the tile to a temporary file, then renames this to the given
+     * file so that readers never see a partially-written tile.
+     * @return the length of the file in bytes
+     */
+    private long write(File file, String key, CachedTile tile) throws IOException
+    {
+        byte[] keyBytes = key.getBytes(UTF8);
+        float[] data = tile.data;
+        ByteBuffer buf = ByteBuffer.allocate(20 + keyBytes.length + 4 * data.length);
+        buf.putInt(MAGIC);
+        buf.putLong(tile.created);
+        buf.putInt(keyBytes.length);
+        buf.put(keyBytes);
+        buf.putInt(data.length);
+        buf.asFloatBuffer().put(data);
+        buf.rewind();
+
+        File tempFile = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, this.directory);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try
+        {
+            FileChannel channel = out.getChannel();
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+        finally
+        {
+            out.close();
+        }
+        // On some platforms renameTo() will not overwrite an existing file
+        if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+        {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+        }
+        return buf.capacity();
+    }
+
+    /**
+     * Reads a tile from the given file, returning null if the file does not
+     * hold the tile with the given key.
+     */
+    private static CachedTile read(File file, String key) throws IOException
+    {
+        FileInputStream in;
+        try
+        {
+            in = new FileInputStream(file);
+        }
+        catch (IOException ioe)
+        {
+            // The file has been evicted since we checked for it
+            return null;
+        }
+        ByteBuffer buf;
+        try
+        {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if (length < 20 || length > Integer.MAX_VALUE) return null;
+            buf = ByteBuffer.allocate((int)length);
+            while (buf.hasRemaining())
+            {
+                if (channel.read(buf) < 0) return null; // File was truncated
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        buf.flip();
+
+        if (buf.getInt() != MAGIC) return null;
+        long created = buf.getLong();
+        int keyLength = buf.getInt();
+        if (keyLength < 0 || keyLength > buf.remaining() - 4) return null;
+        byte[] keyBytes = new byte[keyLength];
+        buf.get(keyBytes);
+        if (!key.equals(new String(keyBytes, UTF8))) return null; // Hash collision
+        int numValues = buf.getInt();
+        if (numValues < 0 || 4L * numValues != buf.remaining()) return null;
+        float[] data = new float[numValues];
+        buf.asFloatBuffer().get(data);
+        return new CachedTile(data, created, true);
+    }
+
+    /** Returns the name of the file that holds the tile with the given key */
+    static String getFileName(String key)
+    {
+        try
+        {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest(key.getBytes(UTF8));
+            StringBuilder sb = new StringBuilder(2 * digest.length + SUFFIX.length());
+            for (byte b : digest)
+            {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.append(SUFFIX).toString();
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform is required to support MD5
+            throw new AssertionError(nsae);
+        }
+        catch (IOException ioe)
+        {
+            // Every Java platform is required to support UTF-8
+            throw new AssertionError(ioe);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+
+/**
+ * <p>Caches the last-modified times and sizes of the files in a dataset, which
+ * are part of each {@link TileCacheKey}.  This saves several filesystem calls
+ * for every tile that is looked up in the {@link TileCache}.</p>
+ *
+ * <p>Each dataset has its own FileStampCache, which is cleared whenever the
+ * dataset's metadata are reloaded.  In addition, the stamp for a file is
+ * refreshed if it is older than a maximum age, so that changes to files in
+ * datasets that are never reloaded are still detected (after a short delay).</p>
+ *
+ * @author Jon
+ */
+public final class FileStampCache
+{
+    /**
+     * The last-modified time and size of a file, read at a particular time.
+     * FileStamps are immutable.
+     */
+    public static final class FileStamp
+    {
+        private final long lastModified;
+        private final long size;
+        private final boolean usesDatasetTime;
+        private final long checked;
+
+        private FileStamp(long lastModified, long size, boolean usesDatasetTime, long checked)
+        {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.usesDatasetTime = usesDatasetTime;
+            this.checked = checked;
+        }
+
+        /**
+         * Returns the time at which the file was last modified, or zero if
+         * the file is not on the local disk.
+         */
+        public long getLastModified()
+        {
+            return this.lastModified;
+        }
+
+        /** Returns the size of the file in bytes, or zero if the file is not on the local disk */
+        public long getSize()
+        {
+            return this.size;
+        }
+
+        /**
+         * Returns true if the file is an OPeNDAP location or NcML aggregation,
+         * in which case we can't tell from the file whether the data have
+         * changed, and the last update time of the dataset must be used instead.
+         */
+        public boolean usesDatasetTime()
+        {
+            return this.usesDatasetTime;
+        }
+    }
+
+    private final long maxAgeMillis;
+    private final ConcurrentMap<String, FileStamp> stamps =
+        new ConcurrentHashMap<String, FileStamp>();
+
+    /**
+     * Creates a cache in which the stamp for each file is refreshed if it is
+     * older than the given number of milliseconds.
+     */
+    public FileStampCache(long maxAgeMillis)
+    {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Gets the stamp for the given file, reading it from the filesystem only
+     * if it is not in the cache or is out of date.
+     * @throws IllegalArgumentException if the given filepath exists on the
+     * server but does not represent a file (e.g. it is a directory)
+     */
+    public FileStamp get(String filepath)
+    {
+        FileStamp stamp = this.stamps.get(filepath);
+        if (stamp == null || System.currentTimeMillis() - stamp.checked > this.maxAgeMillis)
+        {
+            stamp = read(filepath);
+            this.stamps.put(filepath, stamp);
+        }
+        return stamp;
+    }
+
+    /** Removes all the stamps from the cache, so they will be read again */
+    public void clear()
+    {
+        this.stamps.clear();
+    }
+
+    /**
+     * Reads the stamp for the given file from the filesystem, bypassing any
+     * cache.
+     * @throws IllegalArgumentException if the given filepath exists on the
+     * server but does not represent a file (e.g. it is a directory)
+     */
+    public static FileStamp read(String filepath)
+    {
+        long now = System.currentTimeMillis();
+        boolean usesDatasetTime = WmsUtils.isOpendapLocation(filepath) ||
+            WmsUtils.isNcmlAggregation(filepath);
+        // Don't look for OPeNDAP locations on the local disk
+        if (!WmsUtils.isOpendapLocation(filepath))
+        {
+            File f = new File(filepath);
+            if (f.isFile())
+            {
+                // This is a local data file or an NcML file
+                return new FileStamp(f.lastModified(), f.length(), usesDatasetTime, now);
+            }
+            else if (f.exists())
+            {
+                throw new IllegalArgumentException(filepath +
+                    " exists but is not a valid file on this server");
+            }
+        }
+        return new FileStamp(0, 0, usesDatasetTime, now);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.ncwms.config.Cache;
+import uk.ac.rdg.resc.ncwms.config.Config;
+
+/**
+ * <p>Caches complete, encoded GetMap responses, so that repeated requests for
+ * the same image (which are common when clients such as Godiva2 pan around a
+ * tiled map) can be answered without extracting data, rendering or encoding.
+ * This sits above the {@link TileCache}, which caches only the extracted data.</p>
+ *
+ * <p>Keys are created by the caller from the GetMap parameters after
+ * normalisation, and must include the last update time of the dataset so that
+ * images are not used after the dataset has been reloaded.  Images are held in
+ * memory up to a configurable number of bytes, evicting the least-recently-used
+ * images first, and expire after the same time as tiles in the {@link TileCache}.
+ * The cache does nothing unless caching is enabled in the server's
+ * {@link Cache configuration}, so the size of the cache and whether it is
+ * enabled can be changed while the server is running.</p>
+ *
+ * @author Jon
+ */
+public class ImageCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(ImageCache.class);
+
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+    /** Approximate number of bytes used by an entry over and above its image */
+    private static final int OVERHEAD_BYTES = 256;
+
+    private static final class CachedImage
+    {
+        private final byte[] bytes;
+        private final long created;
+
+        private CachedImage(byte[] bytes, long created)
+        {
+            this.bytes = bytes;
+            this.created = created;
+        }
+
+        private long getSizeBytes(String key)
+        {
+            return this.bytes.length + 2L * key.length() + OVERHEAD_BYTES;
+        }
+    }
+
+    /** Maps keys to images in least-recently-used order */
+    private final LinkedHashMap<String, CachedImage> images =
+        new LinkedHashMap<String, CachedImage>(16, 0.75f, true);
+    /** The number of bytes used by the images in the cache */
+    private long sizeBytes = 0;
+
+    /** The Config object containing the cache configuration: will be injected by Spring */
+    private Config ncwmsConfig;
+
+    /**
+     * Gets an encoded image from the cache, returning null if there is no
+     * image matching the given key.  Callers must not modify the returned array.
+     */
+    public byte[] get(String key)
+    {
+        Cache cacheConfig = this.ncwmsConfig.getCache();
+        if (!cacheConfig.isEnabled()) return null;
+        long lifetimeMillis = cacheConfig.getElementLifetimeMinutes() * 60 * 1000L;
+        synchronized(this)
+        {
+            CachedImage image = this.images.get(key);
+            if (image == null) return null;
+            if (System.currentTimeMillis() - image.created <= lifetimeMillis)
+            {
+                logger.debug("Found in image cache: {}", key);
+                return image.bytes;
+            }
+            this.images.remove(key);
+            this.sizeBytes -= image.getSizeBytes(key);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the cache is enabled and an image of the given size
+     * could be cached.  Allows callers to avoid buffering images that
+     * would not be cached.
+     */
+    public boolean accepts(long sizeBytes)
+    {
+        Cache cacheConfig = this.ncwmsConfig.getCache();
+        return cacheConfig.isEnabled() &&
+            sizeBytes <= cacheConfig.getMaxImageCacheSizeMB() * BYTES_PER_MEGABYTE;
+    }
+
+    /**
+     * Adds an encoded image to the cache, evicting the least-recently-used
+     * images if the cache grows beyond its maximum size.  The array must not
+     * be modified after it is added to the cache.
+     */
+    public void put(String key, byte[] bytes)
+    {
+        if (!this.accepts(bytes.length)) return;
+        long maxSizeBytes = this.ncwmsConfig.getCache().getMaxImageCacheSizeMB() * BYTES_PER_MEGABYTE;
+        CachedImage image = new CachedImage(bytes, System.currentTimeMillis());
+        synchronized(this)
+        {
+            CachedImage old = this.images.put(key, image);
+            if (old != null) this.sizeBytes -= old.getSizeBytes(key);
+            this.sizeBytes += image.getSizeBytes(key);
+            Iterator<Map.Entry<String, CachedImage>> it = this.images.entrySet().iterator();
+            while (this.sizeBytes > maxSizeBytes && it.hasNext())
+            {
+                Map.Entry<String, CachedImage> entry = it.next();
+                this.sizeBytes -= entry.getValue().getSizeBytes(entry.getKey());
+                it.remove();
+            }
+        }
+        logger.debug("Image put into image cache: {}", key);
+    }
+
+    /** Called by Spring to set the Config object */
+    public void setConfig(Config config)
+    {
+        this.ncwmsConfig = config;
+    }
+}
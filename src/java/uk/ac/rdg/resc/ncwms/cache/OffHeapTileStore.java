@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Tier of the {@link TileCache} that holds tiles outside the Java heap, so
+ * that a large cache does not add to garbage-collection pause times.  Memory
+ * is allocated as direct buffers ("slabs") of up to {@link #SLAB_SIZE_BYTES},
+ * which are created lazily as the store fills and are divided into fixed-size
+ * blocks.  Each tile occupies as many blocks as it needs, which need not be
+ * contiguous, so the store never becomes fragmented.  When there are not
+ * enough free blocks for a new tile, the least-recently-used tiles are evicted
+ * and handed back to the caller so that they can be written to disk.</p>
+ *
+ * <p>Tiles are copied out of the slabs into a new array on every hit; they are
+ * not promoted into the heap.  All methods are synchronized: copies are fast
+ * compared with reading data from disk or rendering.</p>
+ * @param <K> The type of the keys of the tiles
+ * @author Jon
+ */
+final class OffHeapTileStore<K>
+{
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapTileStore.class);
+
+    /** The number of floats in a block (16KB) */
+    static final int BLOCK_FLOATS = 4096;
+    private static final int BLOCKS_PER_SLAB = 4096;
+    /** The maximum size of a slab (64MB) */
+    static final long SLAB_SIZE_BYTES = 4L * BLOCK_FLOATS * BLOCKS_PER_SLAB;
+
+    /** Records the location of a tile in the slabs */
+    private static final class Entry
+    {
+        private final int[] blocks;
+        private final int length;
+        private final long created;
+        private final boolean onDisk;
+
+        private Entry(int[] blocks, int length, long created, boolean onDisk)
+        {
+            this.blocks = blocks;
+            this.length = length;
+            this.created = created;
+            this.onDisk = onDisk;
+        }
+    }
+
+    private final long lifetimeMillis;
+    /**
+     * The maximum number of blocks in the store: reduced if we fail to
+     * allocate a slab
+     */
+    private int maxBlocks;
+
+    /** Float views of the slabs that have been allocated so far */
+    private final List<FloatBuffer> slabs = new ArrayList<FloatBuffer>();
+    /** The number of blocks in the slabs that have been allocated */
+    private int allocatedBlocks = 0;
+    /** The number of allocated blocks that have ever been handed out */
+    private int usedBlocks = 0;
+    /** Stack of blocks that have been handed out and then freed */
+    private final int[] freeBlocks;
+    private int numFreeBlocks = 0;
+
+    /** Maps keys to the locations of tiles, in least-recently-used order */
+    private final LinkedHashMap<K, Entry> entries =
+        new LinkedHashMap<K, Entry>(16, 0.75f, true);
+
+    OffHeapTileStore(long maxSizeBytes, long lifetimeMillis)
+    {
+        this.lifetimeMillis = lifetimeMillis;
+        this.maxBlocks = (int)Math.min(Integer.MAX_VALUE, maxSizeBytes / (4L * BLOCK_FLOATS));
+        this.freeBlocks = new int[this.maxBlocks];
+    }
+
+    /**
+     * Copies the tile with the given key into a new array, returning null if
+     * the tile is not in the store or has expired.
+     */
+    synchronized float[] get(K key)
+    {
+        Entry entry = this.entries.get(key);
+        if (entry == null) return null;
+        if (System.currentTimeMillis() - entry.created > this.lifetimeMillis)
+        {
+            this.entries.remove(key);
+            this.free(entry.blocks);
+            return null;
+        }
+        return this.copyOut(entry);
+    }
+
+    /**
+     * Copies the given tile into the store, evicting the least-recently-used
+     * tiles if there is not enough room.
+     * @return the tiles that were evicted and that are not already on disk,
+     * which will include the given tile if it could not be stored.
+     */
+    synchronized List<Map.Entry<K, CachedTile>> put(K key, CachedTile tile)
+    {
+        List<Map.Entry<K, CachedTile>> evicted =
+            new ArrayList<Map.Entry<K, CachedTile>>();
+        Entry old = this.entries.remove(key);
+        if (old != null) this.free(old.blocks);
+
+        int numBlocks = (tile.data.length + BLOCK_FLOATS - 1) / BLOCK_FLOATS;
+        if (numBlocks > this.maxBlocks)
+        {
+            // Don't evict everything else to make room for a tile that won't fit
+            if (!tile.onDisk) evicted.add(new AbstractMap.SimpleEntry<K, CachedTile>(key, tile));
+            return evicted;
+        }
+        int[] blocks = new int[numBlocks];
+        int n = 0;
+        Iterator<Map.Entry<K, Entry>> it = this.entries.entrySet().iterator();
+        while (n < numBlocks)
+        {
+            int block = this.allocateBlock();
+            if (block >= 0)
+            {
+                blocks[n++] = block;
+            }
+            else if (it.hasNext())
+            {
+                Map.Entry<K, Entry> eldest = it.next();
+                it.remove();
+                Entry e = eldest.getValue();
+                if (!e.onDisk)
+                {
+                    CachedTile t = new CachedTile(this.copyOut(e), e.created, false);
+                    evicted.add(new AbstractMap.SimpleEntry<K, CachedTile>(eldest.getKey(), t));
+                }
+                this.free(e.blocks);
+            }
+            else
+            {
+                // We could not allocate enough slabs to hold the tile
+                int[] partial = new int[n];
+                System.arraycopy(blocks, 0, partial, 0, n);
+                this.free(partial);
+                if (!tile.onDisk) evicted.add(new AbstractMap.SimpleEntry<K, CachedTile>(key, tile));
+                return evicted;
+            }
+        }
+
+        Entry entry = new Entry(blocks, tile.data.length, tile.created, tile.onDisk);
+        for (int i = 0; i < numBlocks; i++)
+        {
+            int offset = i * BLOCK_FLOATS;
+            FloatBuffer slab = this.getSlab(blocks[i]);
+            slab.put(tile.data, offset, Math.min(BLOCK_FLOATS, entry.length - offset));
+        }
+        this.entries.put(key, entry);
+        return evicted;
+    }
+
+    /**
+     * Removes the least-recently-used tile from the store and copies it into
+     * a new array, returning null if the store is empty.  Used to drain the
+     * store to disk one tile at a time.
+     */
+    synchronized Map.Entry<K, CachedTile> pollEldest()
+    {
+        Iterator<Map.Entry<K, Entry>> it = this.entries.entrySet().iterator();
+        if (!it.hasNext()) return null;
+        Map.Entry<K, Entry> eldest = it.next();
+        it.remove();
+        Entry e = eldest.getValue();
+        CachedTile tile = new CachedTile(this.copyOut(e), e.created, e.onDisk);
+        this.free(e.blocks);
+        return new AbstractMap.SimpleEntry<K, CachedTile>(eldest.getKey(), tile);
+    }
+
+    /** Returns the number of bytes in the blocks that hold tiles */
+    synchronized long getSizeBytes()
+    {
+        return 4L * BLOCK_FLOATS * (this.usedBlocks - this.numFreeBlocks);
+    }
+
+    private float[] copyOut(Entry entry)
+    {
+        float[] data = new float[entry.length];
+        for (int i = 0; i < entry.blocks.length; i++)
+        {
+            int offset = i * BLOCK_FLOATS;
+            FloatBuffer slab = this.getSlab(entry.blocks[i]);
+            slab.get(data, offset, Math.min(BLOCK_FLOATS, entry.length - offset));
+        }
+        return data;
+    }
+
+    /** Returns the slab holding the given block, positioned at the block */
+    private FloatBuffer getSlab(int block)
+    {
+        FloatBuffer slab = this.slabs.get(block / BLOCKS_PER_SLAB);
+        slab.position((block % BLOCKS_PER_SLAB) * BLOCK_FLOATS);
+        return slab;
+    }
+
+    /**
+     * Returns the index of a free block, allocating a new slab if necessary,
+     * or -1 if the store is full.
+     */
+    private int allocateBlock()
+    {
+        if (this.numFreeBlocks > 0) return this.freeBlocks[--this.numFreeBlocks];
+        if (this.usedBlocks == this.allocatedBlocks && this.allocatedBlocks < this.maxBlocks)
+        {
+            int slabBlocks = Math.min(BLOCKS_PER_SLAB, this.maxBlocks - this.allocatedBlocks);
+            try
+            {
+                ByteBuffer slab = ByteBuffer.allocateDirect(4 * BLOCK_FLOATS * slabBlocks)
+                    .order(ByteOrder.nativeOrder());
+                this.slabs.add(slab.asFloatBuffer());
+                this.allocatedBlocks += slabBlocks;
+            }
+            catch (OutOfMemoryError oome)
+            {
+                // Probably hit the limit on direct memory (-XX:MaxDirectMemorySize):
+                // carry on with the slabs we have
+                logger.warn("Could not allocate off-heap tile cache slab after {} bytes: {}",
+                    4L * BLOCK_FLOATS * this.allocatedBlocks, oome.getMessage());
+                this.maxBlocks = this.allocatedBlocks;
+                return -1;
+            }
+        }
+        return this.usedBlocks < this.allocatedBlocks ? this.usedBlocks++ : -1;
+    }
+
+    private void free(int[] blocks)
+    {
+        for (int block : blocks) this.freeBlocks[this.numFreeBlocks++] = block;
+    }
+}
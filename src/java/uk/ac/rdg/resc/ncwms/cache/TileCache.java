@@ -29,22 +29,21 @@
 package uk.ac.rdg.resc.ncwms.cache;
 
 import java.io.File;
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
-import net.sf.ehcache.config.Configuration;
-import net.sf.ehcache.config.DiskStoreConfiguration;
-import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.ncwms.config.Cache;
 import uk.ac.rdg.resc.ncwms.config.Config;
 
 /**
- * <p>Uses the <a href="http://ehcache.sf.net">EHCache</a> software to cache
- * arrays of data that have been extracted.  This cache reduces the load on the server
+ * <p>Caches arrays of data that have been extracted.  This cache reduces the load on the server
  * in cases where clients make the same requests for data multiple times.  This 
  * happens commonly when clients use a tiling WMS interface such as OpenLayers or
  * Google Maps.  Since the cache stores data arrays and not images, clients can
@@ -65,7 +64,9 @@ import uk.ac.rdg.resc.ncwms.config.Config;
  * <li>If we know the exact file (on the local disk) that corresponds with the
  * given cache request, we check the last modified time and size of this file.
  * If either of these has changed then the cached data will not be used.  (This
- * check is achieved by including these quantities in the {@link TileCacheKey}).  This
+ * check is achieved by including these quantities in the {@link TileCacheKey}.
+ * They are held in a {@link FileStampCache} for each dataset, so changes are
+ * noticed when the dataset is reloaded, or within a minute otherwise.)  This
  * mechanism is used when a dataset is either a single file or a glob aggregation.
  * It does not, however, work correctly for OPeNDAP datasets or NcML aggregations,
  * because we do not have access to the underlying data files in these cases.</li>
@@ -80,20 +81,43 @@ import uk.ac.rdg.resc.ncwms.config.Config;
  * is still possible but is made less likely by this mechanism.)</li>
  * </ol>
  *
- * <p>Items are never explicitly removed from the cache by the ncWMS code: ehcache
- * does the clean-up in a background thread using a least-recently-used (LRU)
- * algorithm.</p>
+ * <p>The arrays are held in memory as primitive float arrays and the size of
+ * the cache is limited by the number of bytes these arrays occupy, rather than
+ * the number of items, so a few large arrays cannot exhaust the heap.  When
+ * the memory budget is exceeded the least-recently-used arrays are evicted;
+ * if the disk store is enabled they are written to disk in a raw binary format
+ * (see {@link DiskTileStore}), which has its own budget.  Arrays that are read
+ * back from disk are promoted into memory.  All arrays in memory are written
+ * to disk when the cache is shut down, so the disk store survives restarts.</p>
+ *
+ * <p>Optionally, an off-heap tier (see {@link OffHeapTileStore}) sits between
+ * the memory store and the disk store.  This allows the cache to use most of
+ * the machine's RAM while keeping the heap (and so garbage-collection pauses)
+ * small: arrays evicted from the memory store and arrays read back from disk
+ * go to the off-heap tier, and hits in this tier are copied into a new array
+ * for each request.</p>
  *
  * @author Jon Blower
  */
 public class TileCache
 {
     private static final Logger logger = LoggerFactory.getLogger(TileCache.class);
-    
-    private static final String CACHE_NAME = "tilecache";
-    private static final Float[] EMPTY_FLOAT_ARRAY = new Float[0];
 
-    private CacheManager cacheManager;
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    /** The memory store: maps keys to tiles in least-recently-used order */
+    private final LinkedHashMap<TileCacheKey, CachedTile> memoryStore =
+        new LinkedHashMap<TileCacheKey, CachedTile>(16, 0.75f, true);
+    /** The number of bytes used by the tiles in the memory store */
+    private long memorySizeBytes = 0;
+    private long maxMemorySizeBytes;
+    private long lifetimeMillis;
+
+    /** The off-heap store, or null if the off-heap store is disabled */
+    private OffHeapTileStore<TileCacheKey> offHeapStore = null;
+
+    /** The disk store, or null if the disk store is disabled */
+    private DiskTileStore diskStore = null;
 
     /** The location of the tile cache: will be injected by Spring */
     private File cacheDirectory;
@@ -104,75 +128,193 @@ public class TileCache
     /** Creates a TileCache in the given working directory. */
     public void init()
     {
-        // Setting the location of the disk store programmatically is tedious,
-        // requiring the creation of lots of objects...
-        Configuration tileCacheConfig = new Configuration();
-        DiskStoreConfiguration diskStore = new DiskStoreConfiguration();
-        diskStore.setPath(this.cacheDirectory.getPath());
-        tileCacheConfig.addDiskStore(diskStore);
-        tileCacheConfig.addDefaultCache(new CacheConfiguration());
-        this.cacheManager = new CacheManager(tileCacheConfig);
-        
-        Cache tileCache = new Cache(
-            CACHE_NAME,                                      // Name for the cache
-            ncwmsConfig.getCache().getMaxNumItemsInMemory(), // Maximum number of elements in memory
-            MemoryStoreEvictionPolicy.LRU,                   // evict least-recently-used elements
-            ncwmsConfig.getCache().isEnableDiskStore(),      // Use the disk store?
-            "",                                              // disk store path (ignored)
-            false,                                           // elements are not eternal
-            ncwmsConfig.getCache().getElementLifetimeMinutes() * 60, // Elements will last for this number of seconds in the cache
-            0,                                               // Ignore time since last access/modification
-            ncwmsConfig.getCache().isEnableDiskStore(),      // Will persist cache to disk in between JVM restarts
-            1000,                                            // number of seconds between clearouts of disk store
-            null,                                            // no registered event listeners
-            null,                                            // no bootstrap cache loader
-            ncwmsConfig.getCache().getMaxNumItemsOnDisk()    // Maximum number of elements on disk
-        );
-        
-        this.cacheManager.addCache(tileCache);
+        Cache cacheConfig = this.ncwmsConfig.getCache();
+        this.maxMemorySizeBytes = cacheConfig.getMaxMemorySizeMB() * BYTES_PER_MEGABYTE;
+        this.lifetimeMillis = cacheConfig.getElementLifetimeMinutes() * 60 * 1000L;
+        if (cacheConfig.getMaxOffHeapSizeMB() > 0)
+        {
+            this.offHeapStore = new OffHeapTileStore<TileCacheKey>(
+                cacheConfig.getMaxOffHeapSizeMB() * BYTES_PER_MEGABYTE,
+                this.lifetimeMillis);
+        }
+        if (cacheConfig.isEnableDiskStore() && cacheConfig.getMaxDiskSizeMB() > 0)
+        {
+            try
+            {
+                this.diskStore = new DiskTileStore(this.cacheDirectory,
+                    cacheConfig.getMaxDiskSizeMB() * BYTES_PER_MEGABYTE,
+                    this.lifetimeMillis);
+            }
+            catch (IOException ioe)
+            {
+                logger.error("Could not create disk store for tile cache: " +
+                    "only the memory store will be used", ioe);
+            }
+        }
         logger.info("Tile cache started");
     }
     
     /**
-     * Shuts down the cache
+     * Shuts down the cache, writing the contents of the memory and off-heap
+     * stores to disk if the disk store is enabled.
      */
     public void shutdown()
     {
-        this.cacheManager.shutdown();
+        List<Map.Entry<TileCacheKey, CachedTile>> entries;
+        synchronized(this.memoryStore)
+        {
+            entries = new ArrayList<Map.Entry<TileCacheKey, CachedTile>>(this.memoryStore.size());
+            for (Map.Entry<TileCacheKey, CachedTile> entry : this.memoryStore.entrySet())
+            {
+                entries.add(new AbstractMap.SimpleEntry<TileCacheKey, CachedTile>(entry));
+            }
+            this.memoryStore.clear();
+            this.memorySizeBytes = 0;
+        }
+        this.writeToDisk(entries);
+        if (this.offHeapStore != null)
+        {
+            // Drain the off-heap store one tile at a time, so that we don't
+            // copy the whole store into the heap
+            Map.Entry<TileCacheKey, CachedTile> entry;
+            while ((entry = this.offHeapStore.pollEldest()) != null)
+            {
+                this.writeToDisk(Collections.singletonList(entry));
+            }
+        }
         logger.info("Tile cache shut down");
     }
     
     /**
      * Gets an array of data from this cache, returning null if there is no
-     * data matching the given key
+     * data matching the given key.  Callers must not modify the returned array.
      */
-    public List<Float> get(TileCacheKey key)
+    public float[] get(TileCacheKey key)
     {
-        Cache cache = this.cacheManager.getCache(CACHE_NAME);
-        Element el = cache.get(key);
-        if (el == null)
+        long now = System.currentTimeMillis();
+        synchronized(this.memoryStore)
         {
-            logger.debug("Not found in tile cache: {}", key);
-            return null;
+            CachedTile tile = this.memoryStore.get(key);
+            if (tile != null)
+            {
+                if (!tile.isExpired(now, this.lifetimeMillis))
+                {
+                    logger.debug("Found in tile cache");
+                    return tile.data;
+                }
+                this.memoryStore.remove(key);
+                this.memorySizeBytes -= tile.getSizeBytes();
+            }
         }
-        else
+        if (this.offHeapStore != null)
         {
-            logger.debug("Found in tile cache");
-            Float[] arr = (Float[])el.getValue();
-            return arr == null ? null : Arrays.asList(arr);
+            float[] data = this.offHeapStore.get(key);
+            if (data != null)
+            {
+                logger.debug("Found in tile cache off-heap store");
+                return data;
+            }
         }
+        if (this.diskStore != null)
+        {
+            CachedTile tile = this.diskStore.get(key.toString());
+            if (tile != null)
+            {
+                logger.debug("Found in tile cache disk store");
+                if (this.offHeapStore == null)
+                {
+                    this.putInMemory(key, tile);
+                }
+                else
+                {
+                    this.writeToDisk(this.offHeapStore.put(key, tile));
+                }
+                return tile.data;
+            }
+        }
+        logger.debug("Not found in tile cache: {}", key);
+        return null;
     }
     
     /**
-     * Adds an array of data to this cache.
+     * Adds an array of data to this cache.  The array must not be modified
+     * after it is added to the cache.
      */
-    public void put(TileCacheKey key, List<Float> data)
+    public void put(TileCacheKey key, float[] data)
     {
-        Float[] arr = data.toArray(EMPTY_FLOAT_ARRAY);
-        this.cacheManager.getCache(CACHE_NAME).put(new Element(key, arr));
+        this.putInMemory(key, new CachedTile(data, System.currentTimeMillis(), false));
         logger.debug("Data put into tile cache: {}", key);
     }
 
+    /**
+     * Adds the tile to the memory store, evicting the least-recently-used
+     * tiles to the off-heap store or to disk if the memory store grows beyond
+     * its budget.
+     */
+    private void putInMemory(TileCacheKey key, CachedTile tile)
+    {
+        List<Map.Entry<TileCacheKey, CachedTile>> evicted =
+            new ArrayList<Map.Entry<TileCacheKey, CachedTile>>();
+        if (tile.getSizeBytes() > this.maxMemorySizeBytes)
+        {
+            // Too big to hold in memory at all
+            evicted.add(new AbstractMap.SimpleEntry<TileCacheKey, CachedTile>(key, tile));
+        }
+        else
+        {
+            synchronized(this.memoryStore)
+            {
+                CachedTile old = this.memoryStore.put(key, tile);
+                if (old != null) this.memorySizeBytes -= old.getSizeBytes();
+                this.memorySizeBytes += tile.getSizeBytes();
+                Iterator<Map.Entry<TileCacheKey, CachedTile>> it =
+                    this.memoryStore.entrySet().iterator();
+                while (this.memorySizeBytes > this.maxMemorySizeBytes && it.hasNext())
+                {
+                    Map.Entry<TileCacheKey, CachedTile> entry = it.next();
+                    this.memorySizeBytes -= entry.getValue().getSizeBytes();
+                    evicted.add(new AbstractMap.SimpleEntry<TileCacheKey, CachedTile>(entry));
+                    it.remove();
+                }
+            }
+        }
+        // Copying and disk I/O happen outside the lock
+        if (this.offHeapStore == null)
+        {
+            this.writeToDisk(evicted);
+        }
+        else
+        {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<TileCacheKey, CachedTile> entry : evicted)
+            {
+                if (!entry.getValue().isExpired(now, this.lifetimeMillis))
+                {
+                    this.writeToDisk(this.offHeapStore.put(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the given tiles to the disk store (if it is enabled), unless they
+     * are already on disk or have expired.
+     */
+    private void writeToDisk(List<Map.Entry<TileCacheKey, CachedTile>> entries)
+    {
+        if (this.diskStore == null) return;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<TileCacheKey, CachedTile> entry : entries)
+        {
+            CachedTile tile = entry.getValue();
+            if (!tile.onDisk && !tile.isExpired(now, this.lifetimeMillis))
+            {
+                this.diskStore.put(entry.getKey().toString(), tile);
+                tile.onDisk = true;
+            }
+        }
+    }
+
     /** Called by Spring to set the directory for the cached tiles */
     public void setCacheDirectory(File cacheDirectory)
     {
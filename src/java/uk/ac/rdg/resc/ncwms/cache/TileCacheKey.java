@@ -28,47 +28,47 @@
 
 package uk.ac.rdg.resc.ncwms.cache;
 
-import java.io.File;
-import java.io.Serializable;
-import java.util.Arrays;
+import uk.ac.rdg.resc.ncwms.cache.FileStampCache.FileStamp;
 import uk.ac.rdg.resc.ncwms.coords.CrsHelper;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalGrid;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 import uk.ac.rdg.resc.ncwms.coords.Longitude;
-import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 
 /**
  * Key that is used to identify a particular data array (tile) in a
- * {@link TileCache}.  TileCacheKeys are immutable.
+ * {@link TileCache}.  TileCacheKeys are immutable.  They are looked up for
+ * every tile of every GetMap request, so they are cheap to create and compare:
+ * all the components are held as primitives or as Strings that are shared
+ * with the layer metadata, and the String representation (which is used only
+ * by the disk store and for logging) is created on demand.
  *
  * @see TileCache
  * @author Jon Blower
  */
-public class TileCacheKey implements Serializable
+public class TileCacheKey
 {
-    private String layerId;               // The unique identifier of this layer
-    private String crsCode;               // The CRS code used for this tile
-    private double[] bbox;                // Bounding box as [minX, minY, maxX, maxY]
-    private int width;                    // Width of tile in pixels
-    private int height;                   // Height of tile in pixels
-    private String filepath;              // Full path to the file containing the data
-    private long lastModified = 0;        // The time at which the file was last modified
+    private final String layerId;         // The unique identifier of this layer
+    private final String crsCode;         // The CRS code used for this tile
+    private final double minX;            // Bounding box
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+    private final int width;              // Width of tile in pixels
+    private final int height;             // Height of tile in pixels
+    private final String filepath;        // Full path to the file containing the data
+    private final long lastModified;      // The time at which the file was last modified
                                           // (used to check for changes to the file).  Not
                                           // used for OPeNDAP datasets.
-    private long fileSize = 0;            // The size of the file in bytes
+    private final long fileSize;          // The size of the file in bytes
                                           // (used to check for changes to the file)
                                           // Not used for OPeNDAP datasets.
-    private int tIndex;                   // The t index of this tile in the file
-    private int zIndex;                   // The z index of this tile in the file
-    private long datasetLastModified = 0; // The time (in ms since the epoch) at which
+    private final int tIndex;             // The t index of this tile in the file
+    private final int zIndex;             // The z index of this tile in the file
+    private final long datasetLastModified; // The time (in ms since the epoch) at which
                                           // the relevant Dataset was modified (not used
                                           // for local files)
     
-    // TileCacheKeys are immutable so these properties can be stored to save
-    // repeated recomputation:
-    // TODO: make transient or generate dynamically.  Improve algorithms!
-    private String str;        // String representation of this key
-    private int hashCode;      // Hash code for this key
+    private final int hashCode;           // Hash code for this key
     
     /**
      * Creates a key for the storing and locating of data arrays in a TileCache.
@@ -80,50 +80,112 @@ public class TileCacheKey implements Serializable
      * object, meaning that when the metadata for the Dataset is reloaded all
      * the Keys relevant to this Dataset become invalid.  See the Javadoc
      * comments for {@link TileCache}.
-     * @throws IllegalArgumentException if the given filepath exists on the server
-     * but does not represent a file (e.g. it is a directory)
+     * @param stamp The last-modified time and size of the file, normally
+     * taken from the dataset's {@link FileStampCache}
      */
-    public TileCacheKey(String filepath, Layer layer, HorizontalGrid grid,
-        int tIndex, int zIndex)
+    public TileCacheKey(String filepath, FileStamp stamp, Layer layer,
+        HorizontalGrid grid, int tIndex, int zIndex)
     {
         this.layerId = layer.getId();
-        this.setGrid(grid);
         this.filepath = filepath;
-        File f = new File(filepath);
-        if (f.exists())
+        this.lastModified = stamp.getLastModified();
+        this.fileSize = stamp.getSize();
+        // For OPeNDAP datasets and NcML aggregations we need
+        // to store the last-modified time of the relevant Dataset
+        this.datasetLastModified = stamp.usesDatasetTime()
+            ? layer.getDataset().getLastUpdateTime().getMillis()
+            : 0;
+        this.tIndex = tIndex;
+        this.zIndex = zIndex;
+
+        // Set the properties of this Key that relate to the horizontal grid of the layer.
+        // Some CRSs have multiple, equivalent, codes (e.g. CRS:84 and EPSG:4326).
+        // Furthermore, for CRSs with longitude axes, some apparently-different
+        // bounding boxes are functionally equivalent (e.g. 360 degrees = 0 degrees).
+        // We set the CRS and bbox to standard values to ensure that
+        // data are retrieved accurately and without unnecessary repetition.
+        this.width = grid.getWidth();
+        this.height = grid.getHeight();
+        double[] bbox = grid.getBbox();
+        if (grid.isLatLon())
         {
-            if (f.isFile())
-            {
-                // This is a local data file or an NcML file
-                this.lastModified = f.lastModified();
-                this.fileSize = f.length();
-            }
-            else
-            {
-                throw new IllegalArgumentException(filepath +
-                    " exists but is not a valid file on this server");
-            }
+            // Make sure we always use the same code for lat-lon projections
+            this.crsCode = CrsHelper.PLATE_CARREE_CRS_CODE;
+            // Constrain longitudes to range [-180,180]
+            this.minX = Longitude.constrain180(bbox[0]);
+            this.maxX = Longitude.constrain180(bbox[2]);
         }
-        if (WmsUtils.isOpendapLocation(filepath) || WmsUtils.isNcmlAggregation(filepath))
+        else
         {
-            // This is an OPeNDAP dataset or NcML aggregation, so we need
-            // to store the last-modified time of the relevant Dataset
-            this.datasetLastModified = layer.getDataset().getLastUpdateTime().getMillis();
+            this.crsCode = grid.getCrsCode();
+            this.minX = bbox[0];
+            this.maxX = bbox[2];
         }
-        this.tIndex = tIndex;
-        this.zIndex = zIndex;
-        
-        // Create a String representation of this key
-        StringBuffer buf = new StringBuffer();
+        this.minY = bbox[1];
+        this.maxY = bbox[3];
+
+        // Strings cache their own hash codes, so this involves no string
+        // traversal after the first time each String is used
+        long h = this.layerId.hashCode();
+        h = mix(h, this.crsCode.hashCode());
+        h = mix(h, this.filepath.hashCode());
+        h = mix(h, Double.doubleToLongBits(this.minX));
+        h = mix(h, Double.doubleToLongBits(this.minY));
+        h = mix(h, Double.doubleToLongBits(this.maxX));
+        h = mix(h, Double.doubleToLongBits(this.maxY));
+        h = mix(h, ((long)this.width << 32) | (this.height & 0xffffffffL));
+        h = mix(h, ((long)this.tIndex << 32) | (this.zIndex & 0xffffffffL));
+        h = mix(h, this.lastModified);
+        h = mix(h, this.fileSize);
+        h = mix(h, this.datasetLastModified);
+        this.hashCode = (int)(h ^ (h >>> 32));
+    }
+
+    /**
+     * Combines the hash so far with a new value, scrambling the bits so that
+     * keys that differ only slightly (e.g. adjacent tiles) have very
+     * different hash codes.  Uses the finalization step of MurmurHash3.
+     */
+    private static long mix(long hash, long value)
+    {
+        long h = hash * 31 + value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * Returns an integer code that is used by the {@link TileCache} to test for equality
+     * of TileCacheKeys.  Two different TileCacheKeys can theoretically generate
+     * the same hash code, although this is unlikely.  The cache uses this to reduce
+     * the search space before calling {@link #equals} to check for definite equality.
+     * (Note that just implementing equals() will not do!)
+     */
+    @Override
+    public int hashCode()
+    {
+        return this.hashCode;
+    }
+    
+    /**
+     * Returns a string representation of this key, which contains all its
+     * components.  This is created each time it is called.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder buf = new StringBuilder();
         buf.append(this.layerId);
         buf.append(",");
         buf.append(this.crsCode);
         buf.append(",{");
-        for (double bboxVal : this.bbox)
-        {
-            buf.append(bboxVal);
-            buf.append(",");
-        }
+        buf.append(this.minX).append(",");
+        buf.append(this.minY).append(",");
+        buf.append(this.maxX).append(",");
+        buf.append(this.maxY).append(",");
         buf.append("},");
         buf.append(this.width);
         buf.append(",");
@@ -140,38 +202,11 @@ public class TileCacheKey implements Serializable
         buf.append(this.zIndex);
         buf.append(",");
         buf.append(this.datasetLastModified);
-        
-        // Create and store the string representations and hash code for this
-        // key.  The key is immutable so these will not change.
-        // TODO: create the hash code in a better way
-        this.str = buf.toString();
-        this.hashCode = this.str.hashCode();
-    }
-    
-    /**
-     * Returns an integer code that is used by ehcache to test for equality
-     * of TileCacheKeys.  Two different TileCacheKeys can theoretically generate
-     * the same hash code, although this is unlikely.  Ehcache uses this to reduce
-     * the search space before calling {@link #equals} to check for definite equality.
-     * (Note that just implementing equals() will not do!)
-     */
-    @Override
-    public int hashCode()
-    {
-        return this.hashCode;
-    }
-    
-    /**
-     * @return a string representation of this key
-     */
-    @Override
-    public String toString()
-    {
-        return this.str;
+        return buf.toString();
     }
     
     /**
-     * This is called by ehcache after the hashcodes of the objects have been
+     * This is called by the {@link TileCache} after the hashcodes of the objects have been
      * compared for equality.
      */
     @Override
@@ -184,8 +219,15 @@ public class TileCacheKey implements Serializable
         
         // For speed we start with the cheap comparisons (i.e. not the string
         // comparisons) and the things that are most likely to be different.
-        return this.tIndex == other.tIndex &&
+        // The Strings are usually the same objects, so their comparisons are
+        // also cheap.
+        return this.hashCode == other.hashCode &&
+               this.tIndex == other.tIndex &&
                this.zIndex == other.zIndex &&
+               Double.doubleToLongBits(this.minX) == Double.doubleToLongBits(other.minX) &&
+               Double.doubleToLongBits(this.minY) == Double.doubleToLongBits(other.minY) &&
+               Double.doubleToLongBits(this.maxX) == Double.doubleToLongBits(other.maxX) &&
+               Double.doubleToLongBits(this.maxY) == Double.doubleToLongBits(other.maxY) &&
                this.fileSize == other.fileSize &&
                this.lastModified == other.lastModified &&
                this.datasetLastModified == other.datasetLastModified &&
@@ -193,41 +235,6 @@ public class TileCacheKey implements Serializable
                this.height == other.height &&
                this.crsCode.equals(other.crsCode) &&
                this.filepath.equals(other.filepath) &&
-               this.layerId.equals(other.layerId) &&
-               Arrays.equals(this.bbox, other.bbox);
-    }
-    
-    /**
-     * Sets the properties of this Key that relate to the horizontal grid of the layer.
-     * Some CRSs have multiple, equivalent, codes (e.g. CRS:84 and EPSG:4326).
-     * Furthermore, for CRSs with longitude axes, some apparently-different
-     * bounding boxes are functionally equivalent (e.g. 360 degrees = 0 degrees).
-     * This method sets the CRS and bbox to standard values to ensure that
-     * data are retrieved accurately and without unnecessary repetition.
-     */
-    private void setGrid(HorizontalGrid grid)
-    {
-        this.width = grid.getWidth();
-        this.height = grid.getHeight();
-        if (grid.isLatLon())
-        {
-            // Make sure we always use the same code for lat-lon projections
-            this.crsCode = CrsHelper.PLATE_CARREE_CRS_CODE;
-            // Constrain longitudes to range [-180,180]
-            this.bbox = new double[] {
-                Longitude.constrain180(grid.getBbox()[0]),
-                grid.getBbox()[1],
-                Longitude.constrain180(grid.getBbox()[2]),
-                grid.getBbox()[3]
-            };
-        }
-        else
-        {
-            this.crsCode = grid.getCrsCode();
-            // We are paranoid and create a clone so that we know for sure
-            // that the bounding box will not be altered in another class:
-            // guarantees immutability of the TileCacheKey object
-            this.bbox = (double[])grid.getBbox().clone();
-        }
+               this.layerId.equals(other.layerId);
     }
 }
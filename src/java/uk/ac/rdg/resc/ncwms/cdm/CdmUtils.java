@@ -31,10 +31,14 @@ package uk.ac.rdg.resc.ncwms.cdm;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -51,7 +55,6 @@ import ucar.nc2.dataset.CoordinateAxis1D;
 import ucar.nc2.dataset.CoordinateAxis1DTime;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.dataset.NetcdfDataset.Enhance;
-import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.dataset.VariableEnhanced;
 import ucar.nc2.dt.GridCoordSystem;
 import ucar.nc2.dt.GridDataset;
@@ -65,6 +68,7 @@ import uk.ac.rdg.resc.ncwms.coords.HorizontalCoordSys;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalPosition;
 import uk.ac.rdg.resc.ncwms.coords.LonLatPosition;
 import uk.ac.rdg.resc.ncwms.coords.PixelMap;
+import uk.ac.rdg.resc.ncwms.coords.PixelMapCache;
 import uk.ac.rdg.resc.ncwms.coords.PointList;
 import uk.ac.rdg.resc.ncwms.coords.chrono.ThreeSixtyDayChronology;
 import uk.ac.rdg.resc.ncwms.util.TimeUtils;
@@ -80,6 +84,19 @@ public final class CdmUtils
 {
     private static final Logger logger = LoggerFactory.getLogger(CdmUtils.class);
 
+    /**
+     * The maximum number of data points that will be read into memory in a
+     * single operation when reading data for several timesteps.  (This does
+     * not limit the size of a read for a single timestep.)
+     */
+    private static final long MAX_POINTS_PER_READ = 4000000;
+
+    /**
+     * Cache of PixelMaps, which is shared by all layers.  A 256x256 tile
+     * needs a PixelMap of up to about 800kB, so this holds at least 80 tiles.
+     */
+    private static final PixelMapCache PIXEL_MAP_CACHE = new PixelMapCache(64L * 1024 * 1024);
+
     /** Enforce non-instantiability */
     private CdmUtils() { throw new AssertionError(); }
 
@@ -368,43 +385,202 @@ public final class CdmUtils
      * @param scaleMissingDeferred True if the {@link NetcdfDataset} that
      * contained the GridDatatype was opened with the enhancement mode
      * {@link Enhance#ScaleMissingDefer}.
-     * @return a List of floating point numbers, one for each point in the
+     * @return an array of floating point numbers, one for each point in the
      * {@code pointList}, in the same order.  Missing values (e.g. land pixels
-     * in oceanography data} are represented as nulls.
+     * in oceanography data} are represented as NaNs.
      * @throws IOException if there was an error reading data from the data source
      */
-    public static List<Float> readPointList(GridDatatype grid,
+    public static float[] readPointList(GridDatatype grid,
             HorizontalCoordSys horizCoordSys, int tIndex, int zIndex,
             PointList pointList, DataReadingStrategy drStrategy,
             boolean scaleMissingDeferred)
             throws IOException
+    {
+        return readPointList(grid, horizCoordSys, tIndex, zIndex, pointList,
+            drStrategy, null, scaleMissingDeferred);
+    }
+
+    /**
+     * Reads a set of points at a given time and elevation from the given
+     * GridDatatype, using the given {@link DataReadingStrategySelector} to
+     * choose the strategy for reading data.  The time taken to read the data
+     * is recorded by the selector.
+     * @param grid The GridDatatype from which we will read data
+     * @param tIndex The time index, or -1 if the grid has no time axis
+     * @param zIndex The elevation index, or -1 if the grid has no elevation axis
+     * @param pointList The list of points for which we need data
+     * @param defaultStrategy The strategy to use if the selector is null or
+     * does not yet have enough information to choose a strategy
+     * @param selector The object that chooses the strategy for reading data,
+     * or null to use {@code defaultStrategy}.
+     * @param scaleMissingDeferred True if the {@link NetcdfDataset} that
+     * contained the GridDatatype was opened with the enhancement mode
+     * {@link Enhance#ScaleMissingDefer}.
+     * @return an array of floating point numbers, one for each point in the
+     * {@code pointList}, in the same order.  Missing values (e.g. land pixels
+     * in oceanography data} are represented as NaNs.
+     * @throws IOException if there was an error reading data from the data source
+     */
+    public static float[] readPointList(GridDatatype grid,
+            HorizontalCoordSys horizCoordSys, int tIndex, int zIndex,
+            PointList pointList, DataReadingStrategy defaultStrategy,
+            DataReadingStrategySelector selector, boolean scaleMissingDeferred)
+            throws IOException
+    {
+        return readPointLists(grid, horizCoordSys, Collections.singletonList(tIndex),
+            zIndex, pointList, defaultStrategy, selector, scaleMissingDeferred)[0];
+    }
+
+    /**
+     * Reads a set of points at a number of times and a given elevation from
+     * the given GridDatatype, for example to create the frames of an animation.
+     * The {@link PixelMap} is created only once and the data for each run of
+     * uniformly-spaced time indices are read using the same number of read
+     * operations as a single timestep.
+     * @param grid The GridDatatype from which we will read data
+     * @param tIndices The time indices, which may be in any order.  If the grid
+     * has no time axis this must be a single-element list with value -1.
+     * @param zIndex The elevation index, or -1 if the grid has no elevation axis
+     * @param pointList The list of points for which we need data
+     * @param defaultStrategy The strategy to use if the selector is null or
+     * does not yet have enough information to choose a strategy
+     * @param selector The object that chooses the strategy for reading data,
+     * or null to use {@code defaultStrategy}.
+     * @param scaleMissingDeferred True if the {@link NetcdfDataset} that
+     * contained the GridDatatype was opened with the enhancement mode
+     * {@link Enhance#ScaleMissingDefer}.
+     * @return an array of arrays of floating point numbers, one for each of the
+     * {@code tIndices} in the same order.  Each array contains one value for
+     * each point in the {@code pointList}, in the same order.  Missing values
+     * (e.g. land pixels in oceanography data} are represented as NaNs.  If
+     * a time index is repeated the same array may be returned for each.
+     * @throws IOException if there was an error reading data from the data source
+     */
+    public static float[][] readPointLists(GridDatatype grid,
+            HorizontalCoordSys horizCoordSys, List<Integer> tIndices, int zIndex,
+            PointList pointList, DataReadingStrategy defaultStrategy,
+            DataReadingStrategySelector selector, boolean scaleMissingDeferred)
+            throws IOException
+    {
+        return readPointLists(Collections.singletonList(grid), horizCoordSys,
+            tIndices, zIndex, pointList, defaultStrategy, selector,
+            scaleMissingDeferred)[0];
+    }
+
+    /**
+     * Reads a set of points at a number of times and a given elevation from
+     * each of the given GridDatatypes, which must share the same horizontal
+     * coordinate system (e.g. the eastward and northward components of a
+     * vector field).  The {@link PixelMap} is created only once and is used
+     * to read the data from all the grids.
+     * @param grids The GridDatatypes from which we will read data.  These must
+     * all {@link #haveSameHorizontalAxes(java.util.List) have the same
+     * horizontal axes}.
+     * @param tIndices The time indices, which may be in any order.  If the grids
+     * have no time axis this must be a single-element list with value -1.
+     * @param zIndex The elevation index, or -1 if the grids have no elevation axis
+     * @param pointList The list of points for which we need data
+     * @param defaultStrategy The strategy to use if the selector is null or
+     * does not yet have enough information to choose a strategy
+     * @param selector The object that chooses the strategy for reading data,
+     * or null to use {@code defaultStrategy}.
+     * @param scaleMissingDeferred True if the {@link NetcdfDataset} that
+     * contained the GridDatatypes was opened with the enhancement mode
+     * {@link Enhance#ScaleMissingDefer}.
+     * @return an array with one element for each of the {@code grids}, in the
+     * same order.  Each element is an array of arrays of floating point numbers
+     * as described in {@link #readPointLists(ucar.nc2.dt.GridDatatype,
+     * uk.ac.rdg.resc.ncwms.coords.HorizontalCoordSys, java.util.List, int,
+     * uk.ac.rdg.resc.ncwms.coords.PointList, DataReadingStrategy,
+     * DataReadingStrategySelector, boolean)}.
+     * @throws IOException if there was an error reading data from the data source
+     */
+    public static float[][][] readPointLists(List<GridDatatype> grids,
+            HorizontalCoordSys horizCoordSys, List<Integer> tIndices, int zIndex,
+            PointList pointList, DataReadingStrategy defaultStrategy,
+            DataReadingStrategySelector selector, boolean scaleMissingDeferred)
+            throws IOException
     {
         try
         {
             // Prevent InvalidRangeExceptions for ranges we're not going to use anyway
-            if (tIndex < 0) tIndex = 0;
             if (zIndex < 0) zIndex = 0;
-            Range tRange = new Range(tIndex, tIndex);
             Range zRange = new Range(zIndex, zIndex);
 
-            // Create an list to hold the data, filled with nulls
-            List<Float> picData = nullArrayList(pointList.size());
+            // Find the distinct time indices in ascending order
+            SortedSet<Integer> tIndexSet = new TreeSet<Integer>();
+            for (int tIndex : tIndices)
+            {
+                tIndexSet.add(tIndex < 0 ? 0 : tIndex);
+            }
+
+            // Create arrays to hold the data for each grid, filled with NaNs
+            List<Map<Integer, float[]>> picData = new ArrayList<Map<Integer, float[]>>();
+            for (int i = 0; i < grids.size(); i++)
+            {
+                Map<Integer, float[]> gridData = new HashMap<Integer, float[]>();
+                for (int tIndex : tIndexSet)
+                {
+                    float[] arr = new float[pointList.size()];
+                    Arrays.fill(arr, Float.NaN);
+                    gridData.put(tIndex, arr);
+                }
+                picData.add(gridData);
+            }
 
             long start = System.currentTimeMillis();
-            PixelMap pixelMap = new PixelMap(horizCoordSys, pointList);
-            if (pixelMap.isEmpty()) return picData;
+            PixelMap pixelMap = PIXEL_MAP_CACHE.getPixelMap(horizCoordSys, pointList);
 
             long readMetadata = System.currentTimeMillis();
-            logger.debug("Created PixelMap in {} milliseconds", (readMetadata - start));
+            logger.debug("Got PixelMap in {} milliseconds", (readMetadata - start));
 
-            // Read the data from the dataset
-            drStrategy.populatePixelArray(picData, tRange, zRange, pixelMap, grid, scaleMissingDeferred);
+            if (!pixelMap.isEmpty())
+            {
+                // Read the data from the dataset
+                DataReadingStrategy drStrategy = selector == null
+                    ? defaultStrategy
+                    : selector.select(pixelMap, defaultStrategy);
+                // Limit the number of timesteps in each read operation so that we
+                // don't read too much data into memory at once
+                long pointsPerTimestep = Math.max(1, drStrategy.getNumPointsRead(pixelMap));
+                int maxTimestepsPerRead = (int)Math.max(1, MAX_POINTS_PER_READ / pointsPerTimestep);
+                List<Range> tRanges = getTimeRanges(tIndexSet, maxTimestepsPerRead);
+                for (int i = 0; i < grids.size(); i++)
+                {
+                    for (Range tRange : tRanges)
+                    {
+                        float[][] rangeData = new float[tRange.length()][];
+                        for (int n = 0; n < rangeData.length; n++)
+                        {
+                            rangeData[n] = picData.get(i).get(tRange.element(n));
+                        }
+                        long startRead = System.nanoTime();
+                        drStrategy.populatePixelArrays(rangeData, tRange, zRange, pixelMap,
+                            grids.get(i), scaleMissingDeferred);
+                        // The selector's cost models are for single timesteps
+                        if (selector != null && rangeData.length == 1)
+                        {
+                            selector.recordReadTime(drStrategy, pixelMap, System.nanoTime() - startRead);
+                        }
+                    }
+                }
+            }
 
             long builtPic = System.currentTimeMillis();
-            logger.debug("Built picture array in {} milliseconds", (builtPic - readMetadata));
+            logger.debug("Built {} picture arrays in {} milliseconds",
+                grids.size() * tIndexSet.size(), (builtPic - readMetadata));
             logger.debug("Whole read() operation took {} milliseconds", (builtPic - start));
 
-            return picData;
+            float[][][] data = new float[grids.size()][tIndices.size()][];
+            for (int i = 0; i < data.length; i++)
+            {
+                for (int n = 0; n < tIndices.size(); n++)
+                {
+                    int tIndex = tIndices.get(n);
+                    data[i][n] = picData.get(i).get(tIndex < 0 ? 0 : tIndex);
+                }
+            }
+            return data;
         }
         catch(InvalidRangeException ire)
         {
@@ -422,6 +598,57 @@ public final class CdmUtils
         }
     }
 
+    /**
+     * Returns true if all the given GridDatatypes have the same horizontal
+     * coordinate axes, meaning that they can be read using the same
+     * {@link PixelMap}.  This is the case for the components of most vector
+     * fields that are stored in the same file.
+     */
+    public static boolean haveSameHorizontalAxes(List<GridDatatype> grids)
+    {
+        GridCoordSystem first = grids.get(0).getCoordinateSystem();
+        for (GridDatatype grid : grids)
+        {
+            GridCoordSystem coordSys = grid.getCoordinateSystem();
+            if (!coordSys.getXHorizAxis().equals(first.getXHorizAxis()) ||
+                !coordSys.getYHorizAxis().equals(first.getYHorizAxis()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits the given set of time indices into runs of uniformly-spaced
+     * indices, each of which can be read with a single (possibly strided)
+     * Range.  For example, {0, 2, 4, 5, 6, 10} becomes [0:4:2], [5:6], [10].
+     * Runs longer than {@code maxRunLength} are split.
+     * @param tIndices Time indices in ascending order, without duplicates
+     */
+    static List<Range> getTimeRanges(SortedSet<Integer> tIndices, int maxRunLength)
+        throws InvalidRangeException
+    {
+        List<Range> ranges = new ArrayList<Range>();
+        Integer[] ts = tIndices.toArray(new Integer[tIndices.size()]);
+        int first = 0;
+        while (first < ts.length)
+        {
+            // Extend the run for as long as the spacing stays the same
+            int last = first;
+            int stride = first + 1 < ts.length ? ts[first + 1] - ts[first] : 1;
+            while (last + 1 < ts.length && ts[last + 1] - ts[last] == stride
+                && last - first + 1 < maxRunLength)
+            {
+                last++;
+            }
+            if (last == first) stride = 1;
+            ranges.add(new Range(ts[first], ts[last], stride));
+            first = last + 1;
+        }
+        return ranges;
+    }
+
     /**
      * Reads a timeseries of points from the given GridDatatype at a given
      * elevation and xy location
@@ -509,18 +736,15 @@ public final class CdmUtils
 
             // Copy the data (which may include many points we don't need) to
             // the required array
-            VariableDS var = grid.getVariable();
+            // Convert scale-offset-missing if necessary
+            float[] data = DataUnpacker.forVariable(grid.getVariable(), scaleMissingDeferred)
+                .unpack(arr);
             List<Float> tsData = new ArrayList<Float>();
             for (int tIndex : tIndices)
             {
                 int tIndexOffset = tIndex - firstTIndex;
                 if (tIndexOffset < 0) tIndexOffset = 0; // This will happen if the layer has no t axis
-                float val = arr.getFloat(tIndexOffset);
-                if (scaleMissingDeferred)
-                {
-                    // Convert scale-offset-missing
-                    val = (float)var.convertScaleOffsetMissing(val);
-                }
+                float val = data[tIndexOffset];
                 // Replace missing values with nulls
                 tsData.add(Float.isNaN(val) ? null : val);
             }
@@ -534,25 +758,20 @@ public final class CdmUtils
     }
 
     /**
-     * Returns true if the given NetcdfDataset uses the {@link Enhance#ScaleMissingDefer}
-     * mode.
+     * Returns the cache of {@link PixelMap}s that is used when reading data.
      */
-    public static boolean isScaleMissingDeferred(NetcdfDataset nc)
+    public static PixelMapCache getPixelMapCache()
     {
-        return nc.getEnhanceMode().contains(Enhance.ScaleMissingDefer);
+        return PIXEL_MAP_CACHE;
     }
 
     /**
-     * Returns an ArrayList of null values of the given length
+     * Returns true if the given NetcdfDataset uses the {@link Enhance#ScaleMissingDefer}
+     * mode.
      */
-    private static ArrayList<Float> nullArrayList(int n)
+    public static boolean isScaleMissingDeferred(NetcdfDataset nc)
     {
-        ArrayList<Float> list = new ArrayList<Float>(n);
-        for (int i = 0; i < n; i++)
-        {
-            list.add((Float)null);
-        }
-        return list;
+        return nc.getEnhanceMode().contains(Enhance.ScaleMissingDefer);
     }
 
 }
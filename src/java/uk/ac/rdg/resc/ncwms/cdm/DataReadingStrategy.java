@@ -30,14 +30,11 @@ package uk.ac.rdg.resc.ncwms.cdm;
 import uk.ac.rdg.resc.ncwms.coords.PixelMap;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ucar.ma2.Array;
-import ucar.ma2.Index;
 import ucar.ma2.InvalidRangeException;
 import ucar.ma2.Range;
-import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.dt.GridDatatype;
 
 /**
@@ -48,8 +45,8 @@ import ucar.nc2.dt.GridDatatype;
  * <p>A variety of strategies are possible for reading these data points:</p>
  *
  * <h3>Strategy 1: read data points one at a time</h3>
- * <p>Read each data point individually by iterating through {@link PixelMap#getJIndices}
- *    and {@link PixelMap#getIIndices}.  This minimizes the memory footprint as the minimum
+ * <p>Read each data point individually by iterating through the rows of the
+ *    PixelMap and the i-j pairs in each row.  This minimizes the memory footprint as the minimum
  *    amount of data is read from disk.  However, in general this method is inefficient
  *    as it maximizes the overhead of the low-level data extraction code by making
  *    a large number of small data extractions.  This is the {@link #PIXEL_BY_PIXEL
@@ -76,10 +73,11 @@ import ucar.nc2.dt.GridDatatype;
  *       of the low-level data extraction code, works as follows:
  *       <ol>
  *          <li>Iterate through each row (i.e. each j index) that is represented in
- *              the PixelMap using {@link PixelMap#getJIndices}.</li>
+ *              the PixelMap using {@link PixelMap#getNumRows} and
+ *              {@link PixelMap#getRowJIndex}.</li>
  *          <li>For each j index, extract data from the minimum to the maximum i index
- *              in this row (a "scanline") using {@link PixelMap#getMinIIndexInRow} and
- *              {@link PixelMap#getMaxIIndexInRow}.  (This assumes that the data are stored with the i
+ *              in this row (a "scanline") using {@link PixelMap#getRowMinIIndex} and
+ *              {@link PixelMap#getRowMaxIIndex}.  (This assumes that the data are stored with the i
  *              dimension varying fastest, meaning that the scanline represents
  *              contiguous data in the source files.)</li>
  *       </ol>
@@ -91,6 +89,20 @@ import ucar.nc2.dt.GridDatatype;
  * amount of "wasted data" (i.e. grey squares) than in Strategy 2, and there are
  * much fewer individual read operations than in Strategy 1.</p>
  * <img src="doc-files/pixelmap_scanline.png">
+ *
+ * <h3>Strided reads</h3>
+ * <p>If the i (or j) indices in the PixelMap are uniformly spaced (see
+ * {@link PixelMap#getIStride()} and {@link PixelMap#getJStride()}) the scanline
+ * and bounding-box strategies read only every n-th data point in each direction.
+ * This greatly reduces the amount of data read when the source data are much
+ * finer than the output image (e.g. a low-resolution map of a high-resolution
+ * global dataset), particularly from OPeNDAP servers.</p>
+ *
+ * <h3>Multiple timesteps</h3>
+ * <p>Each strategy can read data for a range of timesteps (e.g. the frames of
+ * an animation) in the same number of read operations as a single timestep,
+ * using {@link #populatePixelArrays populatePixelArrays()}.  The
+ * {@link PixelMap} is the same for all the timesteps.</p>
  * @author Jon
  */
 public enum DataReadingStrategy {
@@ -103,7 +115,17 @@ public enum DataReadingStrategy {
      */
     SCANLINE {
         @Override
-        protected void doPopulatePixelArray(List<Float> picData, Range tRange, Range zRange,
+        public int getNumReadOperations(PixelMap pixelMap) {
+            return pixelMap.getNumRows();
+        }
+
+        @Override
+        public long getNumPointsRead(PixelMap pixelMap) {
+            return pixelMap.getSumRowLengths();
+        }
+
+        @Override
+        protected void doPopulatePixelArrays(float[][] picData, Range tRange, Range zRange,
             PixelMap pixelMap, GridDatatype grid, boolean scaleMissingDeferred)
             throws IOException, InvalidRangeException
         {
@@ -111,39 +133,43 @@ public enum DataReadingStrategy {
             // Cycle through the y indices, extracting a scanline of
             // data each time from minX to maxX
             logger.debug("Shape of grid: {}", Arrays.toString(grid.getShape()));
-            // Get a VariableDS for unpacking and checking for missing data
-            VariableDS var = grid.getVariable();
-            for (int j : pixelMap.getJIndices()) {
+            // Get an object for unpacking and checking for missing data
+            DataUnpacker unpacker = DataUnpacker.forVariable(grid.getVariable(), scaleMissingDeferred);
+            int iStride = pixelMap.getIStride();
+            for (int row = 0; row < pixelMap.getNumRows(); row++) {
+                int j = pixelMap.getRowJIndex(row);
                 Range yRange = new Range(j, j);
-                // Read a row of data from the source
-                int imin = pixelMap.getMinIIndexInRow(j);
-                int imax = pixelMap.getMaxIIndexInRow(j);
-                Range xRange = new Range(imin, imax);
+                // Read a row of data from the source, skipping the data
+                // points we don't need if the i indices are uniformly spaced
+                int imin = pixelMap.getRowMinIIndex(row);
+                int imax = pixelMap.getRowMaxIIndex(row);
+                Range xRange = new Range(imin, imax, iStride);
                 // Read a chunk of data - values will not be unpacked or
                 // checked for missing values yet
                 logger.debug("tRange: {}, zRange: {}, yRange: {}, xRange: {}", new Object[]{tRange, zRange, yRange, xRange});
                 GridDatatype subset = grid.makeSubset(null, null, tRange, zRange, yRange, xRange);
                 logger.debug("Subset shape = {}", Arrays.toString(subset.getShape()));
-                // Read all of the x-y data in this subset
-                Array xySlice = subset.readDataSlice(0, 0, -1, -1);
-                logger.debug("Slice shape = {}", Arrays.toString(xySlice.getShape()));
-                // We now have a 2D array in y,x order.  We don't reduce this array
-                // because it will go to zero size if there is only one point in
-                // each direction.
-                Index index = xySlice.getIndex();
+                // Read all of the t-y-x data in this subset
+                Array txySlice = subset.readDataSlice(-1, 0, -1, -1);
+                logger.debug("Slice shape = {}", Arrays.toString(txySlice.getShape()));
+                // We now have an array in t,y,x order, containing a single row
+                // for each timestep.  Apply scale-offset-missing to the whole
+                // array at once
+                float[] data = unpacker.unpack(txySlice);
+                int rowLength = xRange.length();
+                checkDataSize(data, picData.length, rowLength);
 
-                // Now copy the scanline's data to the picture array
-                for (int i : pixelMap.getIIndices(j)) {
-                    float val = xySlice.getFloat(index.set(0, i - imin));
-                    if (scaleMissingDeferred) {
-                        // The value we've read won't have had scale-offset-missing applied
-                        val = (float) var.convertScaleOffsetMissing(val);
-                    }
-                    // Now we set the value of all the image pixels associated with
-                    // this data point.
-                    if (!Float.isNaN(val)) {
-                        for (int p : pixelMap.getPixelIndices(i, j)) {
-                            picData.set(p, val);
+                // Now copy the scanline's data to the picture arrays
+                for (int ij = pixelMap.getRowStart(row); ij < pixelMap.getRowEnd(row); ij++) {
+                    int xOffset = (pixelMap.getIIndex(ij) - imin) / iStride;
+                    for (int t = 0; t < picData.length; t++) {
+                        float val = data[t * rowLength + xOffset];
+                        // Now we set the value of all the image pixels associated with
+                        // this data point.
+                        if (!Float.isNaN(val)) {
+                            for (int p = pixelMap.getPixelStart(ij); p < pixelMap.getPixelEnd(ij); p++) {
+                                picData[t][pixelMap.getPixelIndex(p)] = val;
+                            }
                         }
                     }
                 }
@@ -158,55 +184,66 @@ public enum DataReadingStrategy {
      */
     BOUNDING_BOX {
         @Override
-        protected void doPopulatePixelArray(List<Float> picData, Range tRange, Range zRange,
+        public int getNumReadOperations(PixelMap pixelMap) {
+            return 1;
+        }
+
+        @Override
+        public long getNumPointsRead(PixelMap pixelMap) {
+            return pixelMap.getBoundingBoxSize();
+        }
+
+        @Override
+        protected void doPopulatePixelArrays(float[][] picData, Range tRange, Range zRange,
             PixelMap pixelMap, GridDatatype grid, boolean scaleMissingDeferred)
             throws IOException, InvalidRangeException
         {
             logger.debug("Reading data using a bounding-box algorithm");
-            // Read the whole chunk of x-y data
-            Range xRange = new Range(pixelMap.getMinIIndex(), pixelMap.getMaxIIndex());
-            Range yRange = new Range(pixelMap.getMinJIndex(), pixelMap.getMaxJIndex());
+            // Read the whole chunk of x-y data, skipping the data points we
+            // don't need if the indices are uniformly spaced
+            int iStride = pixelMap.getIStride();
+            int jStride = pixelMap.getJStride();
+            Range xRange = new Range(pixelMap.getMinIIndex(), pixelMap.getMaxIIndex(), iStride);
+            Range yRange = new Range(pixelMap.getMinJIndex(), pixelMap.getMaxJIndex(), jStride);
             logger.debug("Shape of grid: {}", Arrays.toString(grid.getShape()));
             logger.debug("tRange: {}, zRange: {}, yRange: {}, xRange: {}", new
                 Object[] {tRange, zRange, yRange, xRange});
             long start = System.currentTimeMillis();
             GridDatatype subset = grid.makeSubset(null, null, tRange, zRange, yRange, xRange);
-            // Read all of the x-y data in this subset
-            Array xySlice = subset.readDataSlice(0, 0, -1, -1);
-            logger.debug("Shape of xySlice = {}", Arrays.toString(xySlice.getShape()));
+            // Read all of the t-y-x data in this subset
+            Array txySlice = subset.readDataSlice(-1, 0, -1, -1);
+            logger.debug("Shape of txySlice = {}", Arrays.toString(txySlice.getShape()));
             long readData = System.currentTimeMillis();
             logger.debug("Read data using bounding box algorithm in {} milliseconds", (readData - start));
 
-            // Now create the picture from the data array
-            // Get a VariableDS for unpacking and checking for missing data
-            VariableDS var = grid.getVariable();
-            Index index = xySlice.getIndex(); // 2D index in y,x order
-            for (int j : pixelMap.getJIndices())
+            // Apply scale-offset-missing to the whole array at once
+            float[] data = DataUnpacker.forVariable(grid.getVariable(), scaleMissingDeferred)
+                .unpack(txySlice);
+            // The data are in t,y,x order
+            int nx = xRange.length();
+            int nxy = nx * yRange.length();
+            checkDataSize(data, picData.length, nxy);
+
+            // Now create the pictures from the data array
+            for (int row = 0; row < pixelMap.getNumRows(); row++)
             {
-                for (int i : pixelMap.getIIndices(j))
+                int j = pixelMap.getRowJIndex(row);
+                int rowOffset = ((j - pixelMap.getMinJIndex()) / jStride) * nx;
+                for (int ij = pixelMap.getRowStart(row); ij < pixelMap.getRowEnd(row); ij++)
                 {
-                    try
+                    int i = pixelMap.getIIndex(ij);
+                    int xyOffset = rowOffset + (i - pixelMap.getMinIIndex()) / iStride;
+                    for (int t = 0; t < picData.length; t++)
                     {
-                        float val = xySlice.getFloat(index.set(j - pixelMap.getMinJIndex(),
-                            i - pixelMap.getMinIIndex()));
-                        if (scaleMissingDeferred) {
-                            // The value we've read won't have had scale-offset-missing applied
-                            val = (float)var.convertScaleOffsetMissing(val);
-                        }
+                        float val = data[t * nxy + xyOffset];
                         if (!Float.isNaN(val))
                         {
-                            for (int pixelIndex : pixelMap.getPixelIndices(i, j))
+                            for (int p = pixelMap.getPixelStart(ij); p < pixelMap.getPixelEnd(ij); p++)
                             {
-                                picData.set(pixelIndex, val);
+                                picData[t][pixelMap.getPixelIndex(p)] = val;
                             }
                         }
                     }
-                    catch(ArrayIndexOutOfBoundsException aioobe)
-                    {
-                        logger.error("Array index ({},{}) out of bounds",
-                            j - pixelMap.getMinJIndex(), i - pixelMap.getMinIIndex());
-                        throw aioobe;
-                    }
                 }
             }
         }
@@ -218,36 +255,48 @@ public enum DataReadingStrategy {
      */
     PIXEL_BY_PIXEL {
         @Override
-        protected void doPopulatePixelArray(List<Float> picData, Range tRange, Range zRange,
+        public int getNumReadOperations(PixelMap pixelMap) {
+            return pixelMap.getNumUniqueIJPairs();
+        }
+
+        @Override
+        public long getNumPointsRead(PixelMap pixelMap) {
+            return pixelMap.getNumUniqueIJPairs();
+        }
+
+        @Override
+        protected void doPopulatePixelArrays(float[][] picData, Range tRange, Range zRange,
             PixelMap pixelMap, GridDatatype grid, boolean scaleMissingDeferred)
             throws IOException, InvalidRangeException
         {
             logger.debug("Reading data using a pixel-by-pixel algorithm");
             long start = System.currentTimeMillis();
-            // Get a VariableDS for unpacking and checking for missing data
-            VariableDS var = grid.getVariable();
+            // Get an object for unpacking and checking for missing data
+            DataUnpacker unpacker = DataUnpacker.forVariable(grid.getVariable(), scaleMissingDeferred);
 
-            // Now create the picture from the data array
-            for (int j : pixelMap.getJIndices())
+            // Now create the pictures from the data array
+            for (int row = 0; row < pixelMap.getNumRows(); row++)
             {
+                int j = pixelMap.getRowJIndex(row);
                 Range yRange = new Range(j, j);
-                for (int i : pixelMap.getIIndices(j))
+                for (int ij = pixelMap.getRowStart(row); ij < pixelMap.getRowEnd(row); ij++)
                 {
+                    int i = pixelMap.getIIndex(ij);
                     Range xRange = new Range(i, i);
                     GridDatatype subset = grid.makeSubset(null, null, tRange, zRange, yRange, xRange);
-                    // Read all of the x-y data in this subset
-                    Array xySlice = subset.readDataSlice(0, 0, -1, -1);
-                    Index index = xySlice.getIndex();
-                    float val = xySlice.getFloat(index.set(0, 0));
-                    if (scaleMissingDeferred) {
-                        // The value we've read won't have had scale-offset-missing applied
-                        val = (float)var.convertScaleOffsetMissing(val);
-                    }
-                    if (!Float.isNaN(val))
+                    // Read the data point for all the timesteps in this subset
+                    Array tSlice = subset.readDataSlice(-1, 0, -1, -1);
+                    float[] data = unpacker.unpack(tSlice);
+                    checkDataSize(data, picData.length, 1);
+                    for (int t = 0; t < picData.length; t++)
                     {
-                        for (int pixelIndex : pixelMap.getPixelIndices(i, j))
+                        float val = data[t];
+                        if (!Float.isNaN(val))
                         {
-                            picData.set(pixelIndex, val);
+                            for (int p = pixelMap.getPixelStart(ij); p < pixelMap.getPixelEnd(ij); p++)
+                            {
+                                picData[t][pixelMap.getPixelIndex(p)] = val;
+                            }
                         }
                     }
                 }
@@ -259,23 +308,75 @@ public enum DataReadingStrategy {
 
     /**
      * Reads data from the given GridDatatype and populates the given pixel array.
-     * @param picData A List of the correct size, full of nulls.
+     * @param picData An array of the correct size, full of NaNs.
      * @see PixelMap
      */
-    public final void populatePixelArray(List<Float> picData, Range tRange, Range zRange,
+    public final void populatePixelArray(float[] picData, Range tRange, Range zRange,
         PixelMap pixelMap, GridDatatype grid, boolean scaleMissingDeferred) throws IOException
     {
+        this.populatePixelArrays(new float[][]{picData}, tRange, zRange, pixelMap,
+            grid, scaleMissingDeferred);
+    }
+
+    /**
+     * Reads data for a number of timesteps from the given GridDatatype and
+     * populates the given pixel arrays, making the same number of read
+     * operations as for a single timestep.
+     * @param picData Array of pixel arrays, one for each timestep in
+     * {@code tRange}.  Each pixel array must be of the correct size and full
+     * of NaNs.
+     * @param tRange The range of time indices to read.  This may be strided,
+     * in which case {@code picData[n]} will contain the data for the time
+     * index {@code tRange.element(n)}.  If the grid has no time axis this must
+     * be a range containing a single element.
+     * @see PixelMap
+     */
+    public final void populatePixelArrays(float[][] picData, Range tRange, Range zRange,
+        PixelMap pixelMap, GridDatatype grid, boolean scaleMissingDeferred) throws IOException
+    {
+        if (picData.length != tRange.length())
+        {
+            throw new IllegalArgumentException("Must have one pixel array for each timestep");
+        }
         try {
-            this.doPopulatePixelArray(picData, tRange, zRange, pixelMap, grid, scaleMissingDeferred);
+            this.doPopulatePixelArrays(picData, tRange, zRange, pixelMap, grid, scaleMissingDeferred);
         } catch (InvalidRangeException ire) {
             // This is a programming error from which we can't recover
             throw new IllegalStateException(ire);
         }
     }
 
-    protected abstract void doPopulatePixelArray(List<Float> picData, Range tRange, Range zRange,
+    protected abstract void doPopulatePixelArrays(float[][] picData, Range tRange, Range zRange,
         PixelMap pixelMap, GridDatatype grid, boolean scaleMissingDeferred)
         throws IOException, InvalidRangeException;
 
+    /**
+     * Checks that an array of data that has been read from a subset contains
+     * the expected number of points for each timestep
+     */
+    private static void checkDataSize(float[] data, int numTimesteps, int pointsPerTimestep)
+    {
+        if (data.length != numTimesteps * pointsPerTimestep)
+        {
+            // This is an internal error
+            throw new IllegalStateException("Unexpected array size (got " + data.length
+                + ", expected " + numTimesteps + " x " + pointsPerTimestep + ")");
+        }
+    }
+
+    /**
+     * Returns the number of individual calls to the low-level data extraction
+     * code that this strategy will make in order to read the data for the
+     * given PixelMap.
+     */
+    public abstract int getNumReadOperations(PixelMap pixelMap);
+
+    /**
+     * Returns the number of data points that this strategy will read from the
+     * source data in order to read the data for the given PixelMap (including
+     * points that are read but then discarded).
+     */
+    public abstract long getNumPointsRead(PixelMap pixelMap);
+
     private static final Logger logger = LoggerFactory.getLogger(DataReadingStrategy.class);
 }
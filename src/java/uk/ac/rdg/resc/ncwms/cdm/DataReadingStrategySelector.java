@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cdm;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.ncwms.coords.PixelMap;
+
+/**
+ * <p>Chooses the {@link DataReadingStrategy} that is expected to be quickest
+ * for a particular data-reading operation, based upon the read times that have
+ * been observed for previous operations.  One instance of this class is held
+ * for each dataset.</p>
+ * <p>The time taken by each strategy is modelled as
+ * {@code a * numReadOperations + b * numPointsRead}, where the numbers of read
+ * operations and points are calculated from the {@link PixelMap} (see
+ * {@link DataReadingStrategy#getNumReadOperations(PixelMap)} and
+ * {@link DataReadingStrategy#getNumPointsRead(PixelMap)}).  The coefficients
+ * a and b are fitted separately for each strategy by least squares, with
+ * older observations being given gradually less weight so that the model
+ * adapts to changes (e.g. in server load).</p>
+ * <p>Until a strategy has been observed a few times the selector falls back to
+ * the default strategy for the dataset (see
+ * {@link CdmUtils#getOptimumDataReadingStrategy(ucar.nc2.dataset.NetcdfDataset)}).
+ * Occasionally a different strategy is tried, so that the model learns about
+ * all the strategies.  We don't try strategies that would make an excessive
+ * number of individual read operations, or whose predicted cost is much larger
+ * than the best, to avoid penalizing clients too heavily.  The
+ * {@link DataReadingStrategy#PIXEL_BY_PIXEL pixel-by-pixel} strategy is only
+ * intended for debugging, so it is never tried (although it will still be
+ * used if it is the default strategy).</p>
+ * <p>Single-point reads (e.g. GetFeatureInfo) are performed with the default
+ * strategy and are not used to train the model.</p>
+ * <p>Instances of this class are thread-safe.</p>
+ * @author Jon Blower
+ */
+public final class DataReadingStrategySelector
+{
+    private static final Logger logger = LoggerFactory.getLogger(DataReadingStrategySelector.class);
+
+    /** The number of observations needed before we trust a strategy's model */
+    private static final int MIN_OBSERVATIONS = 3;
+
+    /** The probability that a different strategy will be tried */
+    private static final double EXPLORATION_PROBABILITY = 0.05;
+
+    /** We won't explore strategies that make more read operations than this */
+    private static final int MAX_EXPLORATORY_READ_OPERATIONS = 1000;
+
+    /** We won't explore strategies that are predicted to be slower than
+     * the best strategy by more than this factor */
+    private static final double MAX_EXPLORATORY_COST_FACTOR = 4.0;
+
+    /** The weight given to previous observations when a new one is added */
+    private static final double DECAY = 0.98;
+
+    private final Map<DataReadingStrategy, CostModel> models =
+        new EnumMap<DataReadingStrategy, CostModel>(DataReadingStrategy.class);
+
+    private final Random random = new Random();
+
+    public DataReadingStrategySelector()
+    {
+        for (DataReadingStrategy strategy : DataReadingStrategy.values())
+        {
+            this.models.put(strategy, new CostModel(strategy));
+        }
+    }
+
+    /**
+     * Chooses the strategy that should be used to read the data for the
+     * given PixelMap.
+     * @param pixelMap The PixelMap for which data will be read
+     * @param defaultStrategy The strategy to use if we don't yet know enough
+     * to make a decision
+     */
+    public synchronized DataReadingStrategy select(PixelMap pixelMap,
+        DataReadingStrategy defaultStrategy)
+    {
+        if (pixelMap.getNumUniqueIJPairs() <= 1) return defaultStrategy;
+
+        // Find the strategy with the lowest predicted cost
+        DataReadingStrategy best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (CostModel model : this.models.values())
+        {
+            if (model.isTrained())
+            {
+                double cost = model.predict(pixelMap);
+                if (cost < bestCost)
+                {
+                    best = model.strategy;
+                    bestCost = cost;
+                }
+            }
+        }
+        if (best == null || !this.models.get(defaultStrategy).isTrained())
+        {
+            // We must learn about the default strategy first
+            best = defaultStrategy;
+            bestCost = Double.MAX_VALUE;
+        }
+
+        if (this.random.nextDouble() < EXPLORATION_PROBABILITY)
+        {
+            DataReadingStrategy alternative = this.chooseAlternative(best, bestCost, pixelMap);
+            if (alternative != null)
+            {
+                logger.debug("Exploring strategy {} instead of {}", alternative, best);
+                return alternative;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Chooses a strategy other than the given one to try, preferring strategies
+     * that have been observed the least.  Returns null if there is no suitable
+     * alternative.
+     */
+    private DataReadingStrategy chooseAlternative(DataReadingStrategy best,
+        double bestCost, PixelMap pixelMap)
+    {
+        CostModel alternative = null;
+        for (CostModel model : this.models.values())
+        {
+            if (model.strategy == best) continue;
+            if (model.strategy == DataReadingStrategy.PIXEL_BY_PIXEL) continue;
+            if (model.strategy.getNumReadOperations(pixelMap) > MAX_EXPLORATORY_READ_OPERATIONS) continue;
+            if (model.isTrained() && bestCost < Double.MAX_VALUE &&
+                model.predict(pixelMap) > MAX_EXPLORATORY_COST_FACTOR * bestCost) continue;
+            if (alternative == null || model.numObservations < alternative.numObservations)
+            {
+                alternative = model;
+            }
+        }
+        return alternative == null ? null : alternative.strategy;
+    }
+
+    /**
+     * Records the time taken to read the data for the given PixelMap with the
+     * given strategy.
+     * @param nanos The time taken, in nanoseconds
+     */
+    public synchronized void recordReadTime(DataReadingStrategy strategy,
+        PixelMap pixelMap, long nanos)
+    {
+        if (pixelMap.getNumUniqueIJPairs() <= 1) return;
+        this.models.get(strategy).addObservation(pixelMap, nanos / 1.0e6);
+    }
+
+    /**
+     * Returns a snapshot of the cost model for each strategy, for display in
+     * the admin application.
+     */
+    public synchronized List<CostModel> getCostModels()
+    {
+        List<CostModel> list = new ArrayList<CostModel>();
+        for (CostModel model : this.models.values())
+        {
+            list.add(new CostModel(model));
+        }
+        return list;
+    }
+
+    /**
+     * Fits {@code time = a * numReadOperations + b * numPointsRead} by
+     * (exponentially-weighted) least squares for a single strategy.
+     */
+    public static final class CostModel
+    {
+        private final DataReadingStrategy strategy;
+        private long numObservations = 0;
+        // Weighted sums of products of the read operations (o), points read (p)
+        // and times in milliseconds (t)
+        private double soo = 0.0, sop = 0.0, spp = 0.0, sot = 0.0, spt = 0.0;
+        // The fitted coefficients
+        private double msPerReadOperation = 0.0;
+        private double msPerPoint = 0.0;
+
+        private CostModel(DataReadingStrategy strategy)
+        {
+            this.strategy = strategy;
+        }
+
+        /** Copy constructor */
+        private CostModel(CostModel other)
+        {
+            this.strategy = other.strategy;
+            this.numObservations = other.numObservations;
+            this.soo = other.soo;
+            this.sop = other.sop;
+            this.spp = other.spp;
+            this.sot = other.sot;
+            this.spt = other.spt;
+            this.msPerReadOperation = other.msPerReadOperation;
+            this.msPerPoint = other.msPerPoint;
+        }
+
+        private void addObservation(PixelMap pixelMap, double millis)
+        {
+            double o = this.strategy.getNumReadOperations(pixelMap);
+            double p = this.strategy.getNumPointsRead(pixelMap);
+            this.soo = DECAY * this.soo + o * o;
+            this.sop = DECAY * this.sop + o * p;
+            this.spp = DECAY * this.spp + p * p;
+            this.sot = DECAY * this.sot + o * millis;
+            this.spt = DECAY * this.spt + p * millis;
+            this.numObservations++;
+            this.fit();
+        }
+
+        /**
+         * Solves the normal equations.  A little ridge regularization avoids
+         * problems if the numbers of read operations and points are (nearly)
+         * proportional, as they are for the pixel-by-pixel strategy.
+         */
+        private void fit()
+        {
+            double ridge = 1.0e-6 * (this.soo + this.spp);
+            double aoo = this.soo + ridge;
+            double app = this.spp + ridge;
+            double det = aoo * app - this.sop * this.sop;
+            if (det <= 0.0) return;
+            double a = (app * this.sot - this.sop * this.spt) / det;
+            double b = (aoo * this.spt - this.sop * this.sot) / det;
+            // Negative costs make no sense: refit with a single coefficient
+            if (a < 0.0)
+            {
+                a = 0.0;
+                b = this.spt / app;
+            }
+            else if (b < 0.0)
+            {
+                a = this.sot / aoo;
+                b = 0.0;
+            }
+            this.msPerReadOperation = Math.max(a, 0.0);
+            this.msPerPoint = Math.max(b, 0.0);
+        }
+
+        private boolean isTrained()
+        {
+            return this.numObservations >= MIN_OBSERVATIONS;
+        }
+
+        /** Returns the predicted time to read the data, in milliseconds */
+        private double predict(PixelMap pixelMap)
+        {
+            return this.msPerReadOperation * this.strategy.getNumReadOperations(pixelMap)
+                 + this.msPerPoint * this.strategy.getNumPointsRead(pixelMap);
+        }
+
+        public DataReadingStrategy getStrategy()
+        {
+            return this.strategy;
+        }
+
+        /** Returns the number of reads that have been used to train this model */
+        public long getNumObservations()
+        {
+            return this.numObservations;
+        }
+
+        /** Returns the fitted cost of each read operation in milliseconds */
+        public double getMsPerReadOperation()
+        {
+            return this.msPerReadOperation;
+        }
+
+        /** Returns the fitted cost of reading a million data points in milliseconds */
+        public double getMsPerMillionPoints()
+        {
+            return this.msPerPoint * 1.0e6;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.ncwms.cdm;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.IndexIterator;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
+import ucar.nc2.util.Misc;
+
+/**
+ * <p>Converts whole arrays of data that have been read from a variable
+ * in a {@link NetcdfDataset} to arrays of floats, applying the variable's
+ * scale factor and offset and converting missing values to {@link Float#NaN}.
+ * This is used by the {@link DataReadingStrategy}s when reading from datasets
+ * that use {@link NetcdfDataset.Enhance#ScaleMissingDefer deferred}
+ * scale-offset-missing conversion.</p>
+ * <p>Calling {@link VariableDS#convertScaleOffsetMissing(double)} for each
+ * data value involves repeating all the missing-value checks for every point.
+ * This class reads the scale, offset, fill value, missing values and valid
+ * range from the variable once, then unpacks an array with a tight loop over
+ * its backing storage.  There are special loops for byte, short and integer
+ * data (the usual types for packed data).</p>
+ * <p>The Java-NetCDF library does not expose the values that it uses for
+ * unpacking, so we read them from the variable's attributes and check, on
+ * construction, that the results agree with the library for a set of test
+ * values.  If they don't we log a warning and fall back to calling the
+ * library for each data value.</p>
+ * <p>Instances of this class are immutable and therefore thread-safe.</p>
+ * @author Jon
+ */
+final class DataUnpacker
+{
+    private static final Logger logger = LoggerFactory.getLogger(DataUnpacker.class);
+
+    /** An unpacker that simply converts values to floats */
+    private static final DataUnpacker IDENTITY = new DataUnpacker();
+
+    /** The variable to which we defer if we can't unpack the data ourselves */
+    private final VariableDS var;
+    /** True if we have to defer to the variable for every data value */
+    private final boolean useVariable;
+
+    private final boolean unsigned;
+    private final boolean hasScaleOffset;
+    private final double scale;
+    private final double offset;
+
+    /** True if we need to check for missing values at all */
+    private final boolean checkMissing;
+    private final double validMin;
+    private final double validMax;
+    private final boolean hasFillValue;
+    private final double fillValue;
+    private final double[] missingValues;
+
+    /** Lookup table of unpacked values for byte data, created lazily */
+    private volatile float[] byteTable = null;
+
+    /**
+     * Creates an unpacker that simply converts values to floats, for data
+     * that have already been unpacked.
+     */
+    private DataUnpacker()
+    {
+        this.var = null;
+        this.useVariable = false;
+        this.unsigned = false;
+        this.hasScaleOffset = false;
+        this.scale = 1.0;
+        this.offset = 0.0;
+        this.checkMissing = false;
+        this.validMin = Double.NEGATIVE_INFINITY;
+        this.validMax = Double.POSITIVE_INFINITY;
+        this.hasFillValue = false;
+        this.fillValue = Double.NaN;
+        this.missingValues = new double[0];
+    }
+
+    private DataUnpacker(VariableDS var)
+    {
+        this.var = var;
+        this.unsigned = var.isUnsigned();
+        boolean ok = true;
+
+        this.hasScaleOffset = var.hasScaleOffset();
+        Attribute scaleAtt = findNumericAttribute(var, "scale_factor");
+        Attribute offsetAtt = findNumericAttribute(var, "add_offset");
+        this.scale = scaleAtt == null ? 1.0 : scaleAtt.getNumericValue().doubleValue();
+        this.offset = offsetAtt == null ? 0.0 : offsetAtt.getNumericValue().doubleValue();
+        if (this.hasScaleOffset && scaleAtt == null && offsetAtt == null) ok = false;
+
+        // The variable only checks for missing values if they are to be
+        // replaced with NaNs
+        this.checkMissing = var.getUseNaNs() && var.hasMissing();
+
+        // The valid range is stored by the variable in unpacked units
+        if (this.checkMissing && NetcdfDataset.getInvalidDataIsMissing() && var.hasInvalidData())
+        {
+            // The library uses +/- Double.MAX_VALUE if there is no minimum
+            // or maximum
+            this.validMin = var.getValidMin() == -Double.MAX_VALUE
+                ? Double.NEGATIVE_INFINITY : var.getValidMin();
+            this.validMax = var.getValidMax() == Double.MAX_VALUE
+                ? Double.POSITIVE_INFINITY : var.getValidMax();
+        }
+        else
+        {
+            this.validMin = Double.NEGATIVE_INFINITY;
+            this.validMax = Double.POSITIVE_INFINITY;
+        }
+
+        // The fill value and missing values are compared with the unpacked
+        // data values
+        double fill = Double.NaN;
+        this.hasFillValue = this.checkMissing && NetcdfDataset.getFillValueIsMissing()
+            && var.hasFillValue();
+        if (this.hasFillValue)
+        {
+            Attribute fillAtt = findNumericAttribute(var, "_FillValue");
+            if (fillAtt != null) fill = this.findUnpackedValue(fillAtt, 0, true);
+            if (Double.isNaN(fill)) ok = false;
+        }
+        this.fillValue = fill;
+
+        List<Double> missing = new ArrayList<Double>();
+        if (this.checkMissing && NetcdfDataset.getMissingDataIsMissing() && var.hasMissingValue())
+        {
+            Attribute missingAtt = findNumericAttribute(var, "missing_value");
+            if (missingAtt == null) ok = false;
+            else
+            {
+                for (int i = 0; i < missingAtt.getLength(); i++)
+                {
+                    double mv = this.findUnpackedValue(missingAtt, i, false);
+                    if (Double.isNaN(mv)) ok = false;
+                    else missing.add(mv);
+                }
+            }
+        }
+        this.missingValues = new double[missing.size()];
+        for (int i = 0; i < this.missingValues.length; i++)
+        {
+            this.missingValues[i] = missing.get(i);
+        }
+
+        // Check that we get the same results as the library for a set of
+        // test values, including the special values that we have found
+        if (ok)
+        {
+            List<Double> testValues = new ArrayList<Double>();
+            for (double d = -3.0; d <= 3.0; d += 1.0) testValues.add(d);
+            testValues.add(127.0);
+            testValues.add(-128.0);
+            testValues.add(255.0);
+            testValues.add(32767.0);
+            testValues.add(-32768.0);
+            testValues.add(65535.0);
+            testValues.add(Double.NaN);
+            if (this.hasFillValue) testValues.add(this.fillValue);
+            for (double mv : this.missingValues) testValues.add(mv);
+            if (this.hasScaleOffset && this.scale != 0.0)
+            {
+                // Add packed values near the edges of the valid range
+                for (double v : new double[]{this.validMin, this.validMax})
+                {
+                    if (Double.isInfinite(v)) continue;
+                    double packed = Math.rint((v - this.offset) / this.scale);
+                    testValues.add(packed - 1.0);
+                    testValues.add(packed);
+                    testValues.add(packed + 1.0);
+                }
+            }
+            for (double testValue : testValues)
+            {
+                float expected = (float)var.convertScaleOffsetMissing(testValue);
+                float actual = this.unpackDouble(testValue);
+                if (Float.compare(expected, actual) != 0)
+                {
+                    ok = false;
+                    break;
+                }
+            }
+        }
+        if (!ok)
+        {
+            logger.warn("Could not determine the scale-offset-missing parameters"
+                + " for variable {}: data will be unpacked more slowly", var.getName());
+        }
+        this.useVariable = !ok;
+    }
+
+    /**
+     * Returns an unpacker for data read from the given variable.
+     * @param var The variable from which the data are read
+     * @param scaleMissingDeferred True if the variable's scale-offset-missing
+     * conversion was deferred (i.e. the data values will need to be unpacked).
+     * If this is false the returned unpacker will simply convert values to
+     * floats.
+     */
+    public static DataUnpacker forVariable(VariableDS var, boolean scaleMissingDeferred)
+    {
+        if (!scaleMissingDeferred) return IDENTITY;
+        if (!var.hasScaleOffset() && !(var.getUseNaNs() && var.hasMissing())) return IDENTITY;
+        return new DataUnpacker(var);
+    }
+
+    /**
+     * Finds the unpacked value corresponding with the given element of a
+     * fill value or missing value attribute, i.e. the value that the variable
+     * will compare with unpacked data values.  The attribute value may need
+     * to be interpreted as unsigned and may need scale and offset applying:
+     * we try each possibility until the variable accepts one.
+     * @param fill true if this is the fill value, false if this is a missing value
+     * @return the unpacked value, or NaN if none of the candidates is accepted
+     */
+    private double findUnpackedValue(Attribute att, int i, boolean fill)
+    {
+        double signed = att.getNumericValue(i).doubleValue();
+        double unsigned = signed;
+        if (this.unsigned && signed < 0.0)
+        {
+            DataType attType = att.getDataType();
+            if (attType == DataType.BYTE) unsigned = signed + 256.0;
+            else if (attType == DataType.SHORT) unsigned = signed + 65536.0;
+            else if (attType == DataType.INT) unsigned = signed + 4294967296.0;
+        }
+        double[] candidates = {
+            this.hasScaleOffset ? unsigned * this.scale + this.offset : unsigned,
+            this.hasScaleOffset ? signed * this.scale + this.offset : signed,
+            unsigned,
+            signed
+        };
+        for (double candidate : candidates)
+        {
+            boolean accepted = fill
+                ? this.var.isFillValue(candidate)
+                : this.var.isMissingValue(candidate);
+            if (accepted) return candidate;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Finds a numeric attribute of the given variable, returning null if
+     * there is none.  The library removes some attributes from enhanced
+     * variables, so we also look in the original variable.
+     */
+    private static Attribute findNumericAttribute(VariableDS var, String name)
+    {
+        Attribute att = var.findAttribute(name);
+        if (att == null || att.isString())
+        {
+            Variable orgVar = var.getOriginalVariable();
+            att = orgVar == null ? null : orgVar.findAttribute(name);
+        }
+        return att == null || att.isString() ? null : att;
+    }
+
+    /**
+     * Unpacks all of the values in the given array, returning a new array of
+     * floats in which missing values are represented by NaNs.  Values are
+     * returned in the logical order of the array (i.e. the last dimension
+     * varies fastest), whatever the order of its backing storage.
+     * The returned array may share storage with the input array, so callers
+     * must not modify it.
+     */
+    public float[] unpack(Array arr)
+    {
+        DataType dataType = DataType.getType(arr.getElementType());
+        if (this.useVariable)
+        {
+            return this.unpackUsingVariable(arr, dataType);
+        }
+        switch (dataType)
+        {
+            case BYTE:   return this.unpack((byte[])arr.get1DJavaArray(byte.class));
+            case SHORT:  return this.unpack((short[])arr.get1DJavaArray(short.class));
+            case INT:    return this.unpack((int[])arr.get1DJavaArray(int.class));
+            case FLOAT:  return this.unpack((float[])arr.get1DJavaArray(float.class));
+            default:     return this.unpack((double[])arr.get1DJavaArray(double.class));
+        }
+    }
+
+    private float[] unpack(byte[] packed)
+    {
+        float[] table = this.getByteTable();
+        float[] data = new float[packed.length];
+        for (int i = 0; i < packed.length; i++)
+        {
+            // Maps -128..127 to 0..255
+            data[i] = table[packed[i] & 0xff];
+        }
+        return data;
+    }
+
+    private float[] unpack(short[] packed)
+    {
+        float[] data = new float[packed.length];
+        if (this.unsigned)
+        {
+            for (int i = 0; i < packed.length; i++)
+            {
+                data[i] = this.unpackDouble(packed[i] & 0xffff);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < packed.length; i++)
+            {
+                data[i] = this.unpackDouble(packed[i]);
+            }
+        }
+        return data;
+    }
+
+    private float[] unpack(int[] packed)
+    {
+        float[] data = new float[packed.length];
+        if (this.unsigned)
+        {
+            for (int i = 0; i < packed.length; i++)
+            {
+                data[i] = this.unpackDouble(packed[i] & 0xffffffffL);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < packed.length; i++)
+            {
+                data[i] = this.unpackDouble(packed[i]);
+            }
+        }
+        return data;
+    }
+
+    private float[] unpack(float[] packed)
+    {
+        // If we have nothing to do we can return the array directly
+        if (this == IDENTITY) return packed;
+        float[] data = new float[packed.length];
+        for (int i = 0; i < packed.length; i++)
+        {
+            data[i] = this.unpackDouble(packed[i]);
+        }
+        return data;
+    }
+
+    private float[] unpack(double[] packed)
+    {
+        float[] data = new float[packed.length];
+        for (int i = 0; i < packed.length; i++)
+        {
+            data[i] = this.unpackDouble(packed[i]);
+        }
+        return data;
+    }
+
+    /**
+     * Gets the lookup table of unpacked values for all 256 possible byte
+     * values, indexed by the unsigned value of the byte.
+     */
+    private float[] getByteTable()
+    {
+        float[] table = this.byteTable;
+        if (table == null)
+        {
+            // Doesn't matter if two threads do this at the same time
+            table = new float[256];
+            for (int i = 0; i < 256; i++)
+            {
+                // The packed value interpreted as signed or unsigned
+                int packed = this.unsigned ? i : (byte)i;
+                table[i] = this.unpackDouble(packed);
+            }
+            this.byteTable = table;
+        }
+        return table;
+    }
+
+    /**
+     * Applies the scale and offset to the given packed value and converts
+     * it to NaN if it is missing.  This follows the logic of
+     * {@link VariableDS#convertScaleOffsetMissing(double)}.
+     */
+    private float unpackDouble(double packed)
+    {
+        double val = this.hasScaleOffset ? packed * this.scale + this.offset : packed;
+        if (this.checkMissing && this.isMissing(val)) return Float.NaN;
+        return (float)val;
+    }
+
+    private boolean isMissing(double val)
+    {
+        if (Double.isNaN(val)) return true;
+        for (double mv : this.missingValues)
+        {
+            if (Misc.closeEnough(val, mv)) return true;
+        }
+        if (this.hasFillValue && val == this.fillValue) return true;
+        return val < this.validMin || val > this.validMax;
+    }
+
+    /**
+     * Unpacks the data by calling the variable for each value.  This is
+     * only used if we were unable to determine the unpacking parameters.
+     */
+    private float[] unpackUsingVariable(Array arr, DataType dataType)
+    {
+        float[] data = new float[(int)arr.getSize()];
+        // Iterates through the array in logical order
+        IndexIterator it = arr.getIndexIterator();
+        for (int i = 0; i < data.length; i++)
+        {
+            switch (dataType)
+            {
+                case BYTE:  data[i] = (float)this.var.convertScaleOffsetMissing(it.getByteNext());  break;
+                case SHORT: data[i] = (float)this.var.convertScaleOffsetMissing(it.getShortNext()); break;
+                case INT:   data[i] = (float)this.var.convertScaleOffsetMissing(it.getIntNext());   break;
+                default:    data[i] = (float)this.var.convertScaleOffsetMissing(it.getDoubleNext());
+            }
+        }
+        return data;
+    }
+}
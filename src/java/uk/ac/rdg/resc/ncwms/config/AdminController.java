@@ -185,6 +185,7 @@ public class AdminController extends MultiActionController
                     ds.setDisabled(disabled);
                     ds.setQueryable(request.getParameter("dataset." + ds.getId() + ".queryable") != null);
                     ds.setUpdateInterval(Integer.parseInt(request.getParameter("dataset." + ds.getId() + ".updateinterval")));
+                    ds.setCacheMaxAge(Integer.parseInt(request.getParameter("dataset." + ds.getId() + ".cachemaxage")));
                     ds.setMoreInfo(request.getParameter("dataset." + ds.getId() + ".moreinfo"));
                     ds.setCopyrightStatement(request.getParameter("dataset." + ds.getId() + ".copyright"));
                     
@@ -237,6 +238,7 @@ public class AdminController extends MultiActionController
                     ds.setDisabled(request.getParameter("dataset.new" + i + ".disabled") != null);
                     ds.setQueryable(request.getParameter("dataset.new" + i + ".queryable") != null);
                     ds.setUpdateInterval(Integer.parseInt(request.getParameter("dataset.new" + i + ".updateinterval")));
+                    ds.setCacheMaxAge(Integer.parseInt(request.getParameter("dataset.new" + i + ".cachemaxage")));
                     ds.setMoreInfo(request.getParameter("dataset.new" + i + ".moreinfo"));
                     ds.setCopyrightStatement(request.getParameter("dataset.new" + i + ".copyright"));
                     // addDataset() contains code to ensure that the dataset
@@ -249,9 +251,11 @@ public class AdminController extends MultiActionController
             // Set the properties of the cache
             config.getCache().setEnabled(request.getParameter("cache.enable") != null);
             config.getCache().setElementLifetimeMinutes(Integer.parseInt(request.getParameter("cache.elementLifetime")));
-            config.getCache().setMaxNumItemsInMemory(Integer.parseInt(request.getParameter("cache.maxNumItemsInMemory")));
+            config.getCache().setMaxMemorySizeMB(Integer.parseInt(request.getParameter("cache.maxMemorySizeMB")));
+            config.getCache().setMaxOffHeapSizeMB(Integer.parseInt(request.getParameter("cache.maxOffHeapSizeMB")));
+            config.getCache().setMaxImageCacheSizeMB(Integer.parseInt(request.getParameter("cache.maxImageCacheSizeMB")));
             config.getCache().setEnableDiskStore(request.getParameter("cache.enableDiskStore") != null);
-            config.getCache().setMaxNumItemsOnDisk(Integer.parseInt(request.getParameter("cache.maxNumItemsOnDisk")));
+            config.getCache().setMaxDiskSizeMB(Integer.parseInt(request.getParameter("cache.maxDiskSizeMB")));
             
             // Set the location of the THREDDS catalog if it has changed
             String newThreddsCatalogLocation = request.getParameter("thredds.catalog.location");
@@ -262,6 +266,7 @@ public class AdminController extends MultiActionController
             }
 
             // Save the updated config information to disk
+            this.config.setEdited();
             this.config.save();
         }
         
@@ -327,6 +332,7 @@ public class AdminController extends MultiActionController
                 var.setScaling(request.getParameter(layer.getId() + ".scaling"));
             }
             // Saves the new configuration information to disk
+            this.config.setEdited();
             this.config.save();
         }
         // This causes a client-side redirect, meaning that the user can safely
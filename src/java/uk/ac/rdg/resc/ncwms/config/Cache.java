@@ -31,6 +31,7 @@ package uk.ac.rdg.resc.ncwms.config;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.Root;
+import org.simpleframework.xml.load.Commit;
 
 /**
  * Configuration for the {@link uk.ac.rdg.resc.ncwms.cache.TileCache TileCache}.
@@ -40,6 +41,9 @@ import org.simpleframework.xml.Root;
 @Root(name="cache")
 public class Cache
 {
+    /** The size in bytes of a 256x256 tile, used to convert old settings */
+    private static final int TILE_SIZE_BYTES = 256 * 256 * 4;
+
     @Attribute(name="enabled", required=false)
     private boolean enabled = false; // Ships with cache disabled: admins have to explicitly enable
     
@@ -47,19 +51,73 @@ public class Cache
     private int elementLifetimeMinutes = 60 * 24; // default is one day
     
     /**
-     * The number of items that will be held in memory in the cache
+     * The maximum amount of memory that will be used by the data arrays in
+     * the cache, in megabytes
      */
-    @Element(name="maxNumItemsInMemory", required=false)
-    private int maxNumItemsInMemory = 200; // Gives around a 50MB memory footprint for 256*256 tiles
+    @Element(name="maxMemorySizeMB", required=false)
+    private int maxMemorySizeMB = 50; // Around 200 tiles of 256*256 pixels
+
+    /**
+     * The maximum amount of memory outside the Java heap that will be used by
+     * the cache, in megabytes.  Zero disables the off-heap store.
+     */
+    @Element(name="maxOffHeapSizeMB", required=false)
+    private int maxOffHeapSizeMB = 0;
+
+    /**
+     * The maximum amount of memory that will be used to cache complete
+     * GetMap images, in megabytes.  Zero disables the image cache.
+     */
+    @Element(name="maxImageCacheSizeMB", required=false)
+    private int maxImageCacheSizeMB = 20;
     
     @Element(name="enableDiskStore", required=false)
     private boolean enableDiskStore = true;
     
     /**
-     * The number of items that will be held on disk in the cache
+     * The maximum amount of disk space that will be used by the cache, in
+     * megabytes
      */
+    @Element(name="maxDiskSizeMB", required=false)
+    private int maxDiskSizeMB = 500; // Around 2000 tiles of 256*256 pixels
+
+    /**
+     * The number of items held in memory, from configuration files written
+     * before the size of the cache was given in megabytes.  This is converted
+     * to {@link #maxMemorySizeMB} when the configuration is read, and is
+     * then set to null so that it is not written out again.
+     */
+    @Element(name="maxNumItemsInMemory", required=false)
+    private Integer maxNumItemsInMemory = null;
+
+    /** The number of items held on disk, from old configuration files */
     @Element(name="maxNumItemsOnDisk", required=false)
-    private int maxNumItemsOnDisk = 2000; // Gives around a 500MB disk footprint for 256*256 tiles
+    private Integer maxNumItemsOnDisk = null;
+
+    /**
+     * Called when the configuration has been read.  Converts the numbers of
+     * items in old configuration files to sizes in megabytes, assuming that
+     * each item is a 256x256 tile.
+     */
+    @Commit
+    public void build()
+    {
+        if (this.maxNumItemsInMemory != null)
+        {
+            this.maxMemorySizeMB = itemsToMegabytes(this.maxNumItemsInMemory);
+            this.maxNumItemsInMemory = null;
+        }
+        if (this.maxNumItemsOnDisk != null)
+        {
+            this.maxDiskSizeMB = itemsToMegabytes(this.maxNumItemsOnDisk);
+            this.maxNumItemsOnDisk = null;
+        }
+    }
+
+    private static int itemsToMegabytes(int numItems)
+    {
+        return (int)Math.ceil((double)numItems * TILE_SIZE_BYTES / (1024 * 1024));
+    }
     
     public boolean isEnabled()
     {
@@ -81,14 +139,34 @@ public class Cache
         this.elementLifetimeMinutes = elementLifetimeMinutes;
     }
 
-    public int getMaxNumItemsInMemory()
+    public int getMaxMemorySizeMB()
+    {
+        return maxMemorySizeMB;
+    }
+
+    public void setMaxMemorySizeMB(int maxMemorySizeMB)
+    {
+        this.maxMemorySizeMB = maxMemorySizeMB;
+    }
+
+    public int getMaxOffHeapSizeMB()
+    {
+        return maxOffHeapSizeMB;
+    }
+
+    public void setMaxOffHeapSizeMB(int maxOffHeapSizeMB)
+    {
+        this.maxOffHeapSizeMB = maxOffHeapSizeMB;
+    }
+
+    public int getMaxImageCacheSizeMB()
     {
-        return maxNumItemsInMemory;
+        return maxImageCacheSizeMB;
     }
 
-    public void setMaxNumItemsInMemory(int maxNumItemsInMemory)
+    public void setMaxImageCacheSizeMB(int maxImageCacheSizeMB)
     {
-        this.maxNumItemsInMemory = maxNumItemsInMemory;
+        this.maxImageCacheSizeMB = maxImageCacheSizeMB;
     }
 
     public boolean isEnableDiskStore()
@@ -101,13 +179,13 @@ public class Cache
         this.enableDiskStore = enableDiskStore;
     }
 
-    public int getMaxNumItemsOnDisk()
+    public int getMaxDiskSizeMB()
     {
-        return maxNumItemsOnDisk;
+        return maxDiskSizeMB;
     }
 
-    public void setMaxNumItemsOnDisk(int maxNumItemsOnDisk)
+    public void setMaxDiskSizeMB(int maxDiskSizeMB)
     {
-        this.maxNumItemsOnDisk = maxNumItemsOnDisk;
+        this.maxDiskSizeMB = maxDiskSizeMB;
     }
 }
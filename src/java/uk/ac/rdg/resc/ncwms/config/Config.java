@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -60,14 +61,21 @@ import org.springframework.context.ApplicationContextAware;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.unidata.io.RandomAccessFile;
 import uk.ac.rdg.resc.ncwms.cache.TileCache;
+import uk.ac.rdg.resc.ncwms.cdm.CdmUtils;
 import uk.ac.rdg.resc.ncwms.cache.TileCacheKey;
+import uk.ac.rdg.resc.ncwms.config.datareader.DatasetPool;
+import uk.ac.rdg.resc.ncwms.config.datareader.DefaultDataReader;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalGrid;
+import uk.ac.rdg.resc.ncwms.coords.PixelMapCache;
+import uk.ac.rdg.resc.ncwms.coords.PointList;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.security.Users;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
+import uk.ac.rdg.resc.ncwms.util.SingleFlight;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.controller.AbstractServerConfig;
 import uk.ac.rdg.resc.ncwms.wms.ScalarLayer;
+import uk.ac.rdg.resc.ncwms.wms.VectorLayer;
 import uk.ac.rdg.resc.ncwms.controller.ServerConfig;
 
 /**
@@ -109,11 +117,21 @@ public class Config extends AbstractServerConfig implements ApplicationContextAw
     // Time of the last update to this configuration or any of the contained
     // metadata
     private DateTime lastUpdateTime;
+
+    // Time at which the administrator last changed this configuration
+    private volatile DateTime lastEditTime = new DateTime();
     
     private File configFile; // Location of the file from which this information has been read
 
     // Cache of recently-extracted data arrays: will be set by Spring
     private TileCache tileCache;
+
+    // Coalesce identical concurrent reads of data that are not in the tile
+    // cache, keyed by the keys of the tiles that are being read
+    private final SingleFlight<List<TileCacheKey>, float[][], IOException> scalarReads =
+        new SingleFlight<List<TileCacheKey>, float[][], IOException>();
+    private final SingleFlight<List<TileCacheKey>, float[][][], IOException> vectorReads =
+        new SingleFlight<List<TileCacheKey>, float[][][], IOException>();
     
     // Will be injected by Spring: handles authenticated OPeNDAP calls
     private NcwmsCredentialsProvider credentialsProvider;
@@ -284,6 +302,23 @@ public class Config extends AbstractServerConfig implements ApplicationContextAw
         return this.lastUpdateTime;
     }
 
+    @Override
+    public DateTime getLastEditTime()
+    {
+        return this.lastEditTime;
+    }
+
+    /**
+     * Records that the administrator has changed this configuration.  This
+     * should be called whenever the configuration is saved after an edit, so
+     * that clients don't keep using out-of-date Capabilities documents and
+     * legends.
+     */
+    public void setEdited()
+    {
+        this.lastEditTime = new DateTime();
+    }
+
     public Server getServer()
     {
         return server;
@@ -320,45 +355,326 @@ public class Config extends AbstractServerConfig implements ApplicationContextAw
      * speeding up repeat requests.</p>
      */
     @Override
-    public List<Float> readDataGrid(ScalarLayer layer, DateTime dateTime,
+    public float[] readDataGridAsArray(ScalarLayer layer, DateTime dateTime,
+        double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
+        throws InvalidDimensionValueException, IOException
+    {
+        return this.readDataGrids(layer, Collections.singletonList(dateTime),
+            elevation, grid, usageLogEntry)[0];
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation uses a {@link TileCache} to store data arrays,
+     * speeding up repeat requests.  The data for all the times that are not
+     * in the cache are read together, with a single read operation for each
+     * file if possible.</p>
+     */
+    @Override
+    public float[][] readDataGrids(ScalarLayer layer, List<DateTime> dateTimes,
         double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
         throws InvalidDimensionValueException, IOException
     {
         // We know that this Config object only returns LayerImpl objects
         LayerImpl layerImpl = (LayerImpl)layer;
-        // Find which file contains this time, and which index it is within the file
-        LayerImpl.FilenameAndTimeIndex fti = layerImpl.findAndCheckFilenameAndTimeIndex(dateTime);
         // Find the z index within the file
         int zIndex = layerImpl.findAndCheckElevationIndex(elevation);
 
-        // Create a key for searching the cache
-        TileCacheKey key = new TileCacheKey(
-            fti.filename,
-            layer,
-            grid,
-            fti.tIndexInFile,
-            zIndex
+        float[][] data = new float[dateTimes.size()][];
+        // The timesteps that we couldn't find in the cache
+        List<Integer> positionsToRead = new ArrayList<Integer>();
+        List<LayerImpl.FilenameAndTimeIndex> ftisToRead = new ArrayList<LayerImpl.FilenameAndTimeIndex>();
+        List<TileCacheKey> keysToRead = new ArrayList<TileCacheKey>();
+        for (int i = 0; i < data.length; i++)
+        {
+            // Find which file contains this time, and which index it is within the file
+            LayerImpl.FilenameAndTimeIndex fti =
+                layerImpl.findAndCheckFilenameAndTimeIndex(dateTimes.get(i));
+
+            // Create a key for searching the cache
+            TileCacheKey key = new TileCacheKey(
+                fti.filename,
+                layerImpl.getDataset().getFileStamps().get(fti.filename),
+                layer,
+                grid,
+                fti.tIndexInFile,
+                zIndex
+            );
+
+            // Search the cache.  Returns null if key is not found
+            if (this.cache.isEnabled()) data[i] = this.tileCache.get(key);
+
+            if (data[i] == null)
+            {
+                positionsToRead.add(i);
+                ftisToRead.add(fti);
+                keysToRead.add(key);
+            }
+        }
+
+        // Record whether or not we got all the data from the cache
+        usageLogEntry.setUsedCache(data.length > 0 && positionsToRead.isEmpty());
+
+        if (!positionsToRead.isEmpty())
+        {
+            // We didn't get these data from the cache, so we have to read from
+            // the source data
+            float[][] newData = this.readAndCache(layerImpl, ftisToRead,
+                keysToRead, zIndex, grid);
+            for (int i = 0; i < newData.length; i++)
+            {
+                data[positionsToRead.get(i)] = newData[i];
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Reads data for a number of timesteps of a layer from the source data
+     * and puts them in the tile cache.  If another thread is already reading
+     * the same data we wait for its result.
+     * @param keys The tile cache keys for the timesteps, one for each of
+     * the {@code ftis}
+     */
+    private float[][] readAndCache(final LayerImpl layer,
+        final List<LayerImpl.FilenameAndTimeIndex> ftis, final List<TileCacheKey> keys,
+        final int zIndex, final HorizontalGrid grid) throws IOException
+    {
+        return this.scalarReads.execute(keys,
+            new SingleFlight.Task<float[][], IOException>() {
+                @Override
+                public float[][] call() throws IOException {
+                    float[][] newData = layer.readPointLists(ftis, zIndex, grid);
+                    // Put the data in the tile cache
+                    if (cache.isEnabled()) {
+                        for (int i = 0; i < newData.length; i++) {
+                            tileCache.put(keys.get(i), newData[i]);
+                        }
+                    }
+                    return newData;
+                }
+            }
         );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation uses the {@link TileCache} for each component.
+     * If the components are variables in the same files, the data for both
+     * components are read together, using the same open dataset and the same
+     * {@link uk.ac.rdg.resc.ncwms.coords.PixelMap PixelMap}.  Timesteps for
+     * which only one component is missing from the cache are read for that
+     * component alone.</p>
+     */
+    @Override
+    public float[][][] readVectorDataGrids(VectorLayer layer, List<DateTime> dateTimes,
+        double elevation, final HorizontalGrid grid, UsageLogEntry usageLogEntry)
+        throws InvalidDimensionValueException, IOException
+    {
+        final List<LayerImpl> components = getComponentLayers(layer);
+        final int zIndex = findCommonElevationIndex(components, elevation);
+        List<LayerImpl.FilenameAndTimeIndex> ftis =
+            findCommonFilenamesAndTimeIndices(components, dateTimes);
+        if (zIndex < -1 || ftis == null)
+        {
+            // We can't read the components together
+            return super.readVectorDataGrids(layer, dateTimes, elevation, grid, usageLogEntry);
+        }
+
+        float[][][] data = new float[3][dateTimes.size()][];
+        // The timesteps for which neither component is in the cache
+        List<Integer> positionsToRead = new ArrayList<Integer>();
+        final List<LayerImpl.FilenameAndTimeIndex> ftisToRead = new ArrayList<LayerImpl.FilenameAndTimeIndex>();
+        List<TileCacheKey[]> keysToRead = new ArrayList<TileCacheKey[]>();
+        // The timesteps for which only one component is in the cache, with
+        // a list for each component that is missing
+        List<List<Integer>> componentPositionsToRead = new ArrayList<List<Integer>>();
+        List<List<LayerImpl.FilenameAndTimeIndex>> componentFtisToRead =
+            new ArrayList<List<LayerImpl.FilenameAndTimeIndex>>();
+        List<List<TileCacheKey>> componentKeysToRead = new ArrayList<List<TileCacheKey>>();
+        for (int c = 0; c < components.size(); c++)
+        {
+            componentPositionsToRead.add(new ArrayList<Integer>());
+            componentFtisToRead.add(new ArrayList<LayerImpl.FilenameAndTimeIndex>());
+            componentKeysToRead.add(new ArrayList<TileCacheKey>());
+        }
+        boolean usedCache = true;
+        for (int i = 0; i < ftis.size(); i++)
+        {
+            LayerImpl.FilenameAndTimeIndex fti = ftis.get(i);
+            TileCacheKey[] keys = new TileCacheKey[components.size()];
+            for (int c = 0; c < keys.length; c++)
+            {
+                keys[c] = new TileCacheKey(
+                    fti.filename,
+                    components.get(c).getDataset().getFileStamps().get(fti.filename),
+                    components.get(c),
+                    grid,
+                    fti.tIndexInFile,
+                    zIndex
+                );
+                if (this.cache.isEnabled()) data[c][i] = this.tileCache.get(keys[c]);
+            }
+
+            if (data[0][i] == null && data[1][i] == null)
+            {
+                positionsToRead.add(i);
+                ftisToRead.add(fti);
+                keysToRead.add(keys);
+                usedCache = false;
+            }
+            else
+            {
+                for (int c = 0; c < keys.length; c++)
+                {
+                    if (data[c][i] == null)
+                    {
+                        componentPositionsToRead.get(c).add(i);
+                        componentFtisToRead.get(c).add(fti);
+                        componentKeysToRead.get(c).add(keys[c]);
+                        usedCache = false;
+                    }
+                }
+            }
+        }
 
-        List<Float> data = null;
-        // Search the cache.  Returns null if key is not found
-        if (this.cache.isEnabled()) data = this.tileCache.get(key);
+        // Record whether or not we got all the data from the cache
+        usageLogEntry.setUsedCache(ftis.size() > 0 && usedCache);
 
-        // Record whether or not we got a hit in the cache
-        usageLogEntry.setUsedCache(data != null);
+        // Read the components that are missing on their own
+        for (int c = 0; c < components.size(); c++)
+        {
+            List<Integer> positions = componentPositionsToRead.get(c);
+            if (positions.isEmpty()) continue;
+            float[][] newData = this.readAndCache(components.get(c),
+                componentFtisToRead.get(c), componentKeysToRead.get(c), zIndex, grid);
+            for (int i = 0; i < positions.size(); i++)
+            {
+                data[c][positions.get(i)] = newData[i];
+            }
+        }
 
-        if (data == null)
+        if (!positionsToRead.isEmpty())
         {
-            // We didn't get any data from the cache, so we have to read from
-            // the source data.
-            data = layerImpl.readPointList(fti, zIndex, grid);
-            // Put the data in the tile cache
-            if (this.cache.isEnabled()) this.tileCache.put(key, data);
+            // Read both components together from the source data, unless
+            // another thread is already reading the same data
+            final List<TileCacheKey> flatKeys = new ArrayList<TileCacheKey>();
+            for (TileCacheKey[] keys : keysToRead) flatKeys.addAll(Arrays.asList(keys));
+            float[][][] newData = this.vectorReads.execute(flatKeys,
+                new SingleFlight.Task<float[][][], IOException>() {
+                    @Override
+                    public float[][][] call() throws IOException {
+                        float[][][] newData = LayerImpl.readPointLists(components, ftisToRead, zIndex, grid);
+                        if (cache.isEnabled()) {
+                            int k = 0;
+                            for (int i = 0; i < ftisToRead.size(); i++) {
+                                for (int c = 0; c < components.size(); c++) {
+                                    tileCache.put(flatKeys.get(k++), newData[c][i]);
+                                }
+                            }
+                        }
+                        return newData;
+                    }
+                }
+            );
+            for (int c = 0; c < components.size(); c++)
+            {
+                for (int i = 0; i < positionsToRead.size(); i++)
+                {
+                    data[c][positionsToRead.get(i)] = newData[c][i];
+                }
+            }
         }
 
+        data[2] = getMagnitudes(data[0], data[1]);
         return data;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>If the components are variables in the same files, this
+     * implementation reads the data for both components together, using the
+     * same open dataset and the same {@link uk.ac.rdg.resc.ncwms.coords.PixelMap
+     * PixelMap}.</p>
+     */
+    @Override
+    public float[][][] readVectorPointLists(VectorLayer layer, List<DateTime> dateTimes,
+        double elevation, PointList pointList)
+        throws InvalidDimensionValueException, IOException
+    {
+        List<LayerImpl> components = getComponentLayers(layer);
+        int zIndex = findCommonElevationIndex(components, elevation);
+        List<LayerImpl.FilenameAndTimeIndex> ftis =
+            findCommonFilenamesAndTimeIndices(components, dateTimes);
+        if (zIndex < -1 || ftis == null)
+        {
+            // We can't read the components together
+            return super.readVectorPointLists(layer, dateTimes, elevation, pointList);
+        }
+        float[][][] data = LayerImpl.readPointLists(components, ftis, zIndex, pointList);
+        return new float[][][] { data[0], data[1], getMagnitudes(data[0], data[1]) };
+    }
+
+    /**
+     * Returns the eastward and northward components of the given vector layer,
+     * or null if they can't be read together because they are not both
+     * LayerImpls from the same Dataset.
+     */
+    private static List<LayerImpl> getComponentLayers(VectorLayer layer)
+    {
+        ScalarLayer east = layer.getEastwardComponent();
+        ScalarLayer north = layer.getNorthwardComponent();
+        if (east instanceof LayerImpl && north instanceof LayerImpl &&
+            east.getDataset() == north.getDataset())
+        {
+            return Arrays.asList((LayerImpl)east, (LayerImpl)north);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index of the given elevation in the vertical axis that is
+     * shared by the given layers, or -2 if the layers are null or their
+     * indices differ.  (-1 is returned if the layers have no vertical axis.)
+     */
+    private static int findCommonElevationIndex(List<LayerImpl> layers, double elevation)
+        throws InvalidDimensionValueException
+    {
+        if (layers == null) return -2;
+        int zIndex = layers.get(0).findAndCheckElevationIndex(elevation);
+        for (LayerImpl layer : layers)
+        {
+            if (layer.findAndCheckElevationIndex(elevation) != zIndex) return -2;
+        }
+        return zIndex;
+    }
+
+    /**
+     * Finds the file and time index of each of the given times, which must be
+     * the same for all of the given layers.  Returns null if the layers are
+     * null or if any of the times is found in different files or at
+     * different indices for the different layers.
+     */
+    private static List<LayerImpl.FilenameAndTimeIndex> findCommonFilenamesAndTimeIndices(
+        List<LayerImpl> layers, List<DateTime> dateTimes) throws InvalidDimensionValueException
+    {
+        if (layers == null) return null;
+        List<LayerImpl.FilenameAndTimeIndex> ftis =
+            new ArrayList<LayerImpl.FilenameAndTimeIndex>(dateTimes.size());
+        for (DateTime dateTime : dateTimes)
+        {
+            LayerImpl.FilenameAndTimeIndex fti =
+                layers.get(0).findAndCheckFilenameAndTimeIndex(dateTime);
+            for (LayerImpl layer : layers)
+            {
+                if (!fti.equals(layer.findAndCheckFilenameAndTimeIndex(dateTime))) return null;
+            }
+            ftis.add(fti);
+        }
+        return ftis;
+    }
+
     /**
      * Gets an unmodifiable Map of dataset IDs to Dataset objects for all datasets
      * on this server.
@@ -460,6 +776,24 @@ public class Config extends AbstractServerConfig implements ApplicationContextAw
         }
     }
 
+    /**
+     * @return the pool of open datasets that is used by the default data
+     * reader, for display in the admin application
+     */
+    public DatasetPool getDatasetPool()
+    {
+        return DefaultDataReader.getDatasetPool();
+    }
+
+    /**
+     * @return the cache of PixelMaps that is shared by all layers, for
+     * display in the admin application
+     */
+    public PixelMapCache getPixelMapCache()
+    {
+        return CdmUtils.getPixelMapCache();
+    }
+
     /**
      * Called by the Spring framework to clean up this object.  Closes all
      * background threads.
@@ -467,6 +801,8 @@ public class Config extends AbstractServerConfig implements ApplicationContextAw
     public void shutdown()
     {
         this.scheduler.shutdownNow(); // Tries its best to stop ongoing threads
+        DefaultDataReader.getDatasetPool().shutdown();
+        CdmUtils.getPixelMapCache().clear();
         NetcdfDataset.shutdown();
         this.tileCache.shutdown();
         logger.info("Cleaned up Config object");
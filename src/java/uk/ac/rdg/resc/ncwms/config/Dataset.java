@@ -43,6 +43,8 @@ import org.simpleframework.xml.Root;
 import org.simpleframework.xml.load.Commit;
 import org.simpleframework.xml.load.PersistenceException;
 import org.simpleframework.xml.load.Validate;
+import uk.ac.rdg.resc.ncwms.cache.FileStampCache;
+import uk.ac.rdg.resc.ncwms.cdm.DataReadingStrategySelector;
 import uk.ac.rdg.resc.ncwms.config.datareader.DataReader;
 import uk.ac.rdg.resc.ncwms.util.Range;
 import uk.ac.rdg.resc.ncwms.util.Ranges;
@@ -91,6 +93,9 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     @Attribute(name="updateInterval", required=false)
     private int updateInterval = -1; // The update interval in minutes. -1 means "never update automatically"
 
+    @Attribute(name="cacheMaxAge", required=false)
+    private int cacheMaxAge = 0; // The max-age for HTTP caching in seconds. 0 means "always revalidate"
+
     // We don't do "private List<Variable> variable..." here because if we do,
     // the config file will contain "<variable class="java.util.ArrayList>",
     // presumably because the definition doesn't clarify what sort of List should
@@ -121,6 +126,11 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
      * null if the Layers have not yet been loaded */
     private DateTime lastUpdateTime = null;
 
+    /** The last-modified times and sizes of the files in this dataset, for
+     * the keys of the tile cache.  Cleared when the Layers are reloaded, and
+     * otherwise re-read from the filesystem at most once a minute. */
+    private final FileStampCache fileStamps = new FileStampCache(60 * 1000);
+
     /** The Layers that belong to this dataset.  This will be loaded through the
      * {@link #loadLayers()} method, which is called periodically by the
      * {@link Config} object. */
@@ -129,6 +139,10 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     /** The VectorLayers generated from the scalarLayers */
     private Map<String, VectorLayerImpl> vectorLayers;
 
+    /** Learns which strategy is quickest for reading data from this dataset */
+    private final DataReadingStrategySelector strategySelector =
+        new DataReadingStrategySelector();
+
     /**
      * Checks that the data we have read are valid.  Checks that there are no
      * duplicate variable IDs.
@@ -298,6 +312,25 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     {
         this.updateInterval = updateInterval;
     }
+
+    /**
+     * @return the number of seconds for which clients may cache images and
+     * documents from this dataset without revalidating them
+     */
+    @Override
+    public int getCacheMaxAge()
+    {
+        return cacheMaxAge;
+    }
+
+    /**
+     * Sets the number of seconds for which clients may cache images and
+     * documents from this dataset without revalidating them
+     */
+    void setCacheMaxAge(int cacheMaxAge)
+    {
+        this.cacheMaxAge = cacheMaxAge;
+    }
     
     /**
      * @return a DateTime object representing the time at which this dataset was
@@ -393,6 +426,25 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         this.moreInfo = moreInfo;
     }
 
+    /**
+     * Gets the object that chooses the {@link uk.ac.rdg.resc.ncwms.cdm.DataReadingStrategy}
+     * for reading data from this dataset.  The cost model it has learned is
+     * displayed on the dataset status page of the admin application.
+     */
+    public DataReadingStrategySelector getDataReadingStrategySelector()
+    {
+        return this.strategySelector;
+    }
+
+    /**
+     * Gets the cache of the last-modified times and sizes of the files in
+     * this dataset.
+     */
+    public FileStampCache getFileStamps()
+    {
+        return this.fileStamps;
+    }
+
     /**
      * Gets an explanation of the current progress with loading this dataset.
      * Will be displayed in the admin application when isLoading() == true.
@@ -463,6 +515,8 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
             this.state = this.lastUpdateTime == null ? State.LOADING : State.UPDATING;
 
             this.doLoadLayers();
+            // The files might have changed
+            this.fileStamps.clear();
 
             // Update the state of this dataset
             this.err = null;
@@ -531,10 +585,19 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         this.config.updateCredentialsProvider(this);
         // Read the metadata
         this.scalarLayers = dr.getAllLayers(this.getLocation());
+        String firstFilename = null;
         for (LayerImpl layer : this.scalarLayers.values())
         {
             layer.setDataset(this);
             layer.setDataReader(dr);
+            // Layers without a time axis read their data from the first file
+            // in the dataset.  We find it now, rather than expanding the
+            // location on every request.
+            if (layer.getTimeValues().isEmpty())
+            {
+                if (firstFilename == null) firstFilename = this.getFirstFilename();
+                layer.setFilename(firstFilename);
+            }
         }
         this.appendLoadingProgress("loaded layers");
         // Search for vector quantities (e.g. northward/eastward_sea_water_velocity)
@@ -546,6 +609,17 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         this.appendLoadingProgress("Finished loading metadata");
     }
 
+    /**
+     * Returns the first file in this dataset: the location itself if this is
+     * an OPeNDAP dataset, otherwise the first file that matches the location,
+     * which may be a glob expression.
+     */
+    private String getFirstFilename()
+    {
+        if (WmsUtils.isOpendapLocation(this.getLocation())) return this.getLocation();
+        return DataReader.expandGlobExpression(this.getLocation()).get(0).getPath();
+    }
+
     /**
      * Searches through the collection of Layer objects, looking for
      * pairs of quantities that represent the components of a vector, e.g.
@@ -30,6 +30,7 @@ package uk.ac.rdg.resc.ncwms.config;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,6 +42,7 @@ import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
 import uk.ac.rdg.resc.ncwms.util.Range;
 import uk.ac.rdg.resc.ncwms.wms.AbstractTimeAggregatedLayer;
+import uk.ac.rdg.resc.ncwms.wms.TimeIndex;
 
 /**
  * A concrete Layer implementation that supports  time aggregation through the
@@ -52,6 +54,8 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
 {
     private Dataset dataset;
     private DataReader dataReader;
+    // The file containing the data if this layer has no time axis
+    private String filename;
     
     /**
      * Creates a new Layer using a default bounding box (covering the whole 
@@ -85,6 +89,12 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
     {
         this.dataReader = dataReader;
     }
+
+    // Called by Dataset.loadLayers() if this layer has no time axis
+    void setFilename(String filename)
+    {
+        this.filename = filename;
+    }
     
     /**
      * Returns an approximate range of values that this layer can take.  This
@@ -147,7 +157,7 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
      * and is thus more efficient than making multiple calls to readSinglePoint().</p>
      */
     @Override
-    public List<Float> readPointList(DateTime time, double elevation, PointList pointList)
+    public float[] readPointListAsArray(DateTime time, double elevation, PointList pointList)
         throws InvalidDimensionValueException, IOException
     {
         int zIndex = this.findAndCheckElevationIndex(elevation);
@@ -156,10 +166,76 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
     }
     
     /** Reads a PointList based upon t and z indices rather than natural values */
-    List<Float> readPointList(FilenameAndTimeIndex fti, int zIndex, PointList pointList)
+    float[] readPointList(FilenameAndTimeIndex fti, int zIndex, PointList pointList)
+        throws IOException
+    {
+        return this.dataReader.readAsArray(fti.filename, this, fti.tIndexInFile, zIndex, pointList);
+    }
+
+    /**
+     * Reads a PointList for a number of timesteps, based upon t and z indices
+     * rather than natural values.  The timesteps are grouped by their
+     * containing file so that the data from each file can be read in a single
+     * operation.
+     * @return an array of data arrays, one for each element of {@code ftis},
+     * in the same order.
+     */
+    float[][] readPointLists(List<FilenameAndTimeIndex> ftis, int zIndex,
+        PointList pointList) throws IOException
+    {
+        return readPointLists(Collections.singletonList(this), ftis, zIndex, pointList)[0];
+    }
+
+    /**
+     * Reads a PointList from a number of layers for a number of timesteps,
+     * based upon t and z indices rather than natural values.  This is used to
+     * read the components of vector fields.  The layers must come from the
+     * same {@link Dataset} and each of the {@code ftis} must be valid for all
+     * the layers.  The data from each file are read in a single call to the
+     * {@link DataReader}, which can share work between the layers.
+     * @return an array with one element for each of the {@code layers}, in the
+     * same order, each of which is an array of data arrays as returned by
+     * {@link #readPointLists(java.util.List, int, uk.ac.rdg.resc.ncwms.coords.PointList)}.
+     */
+    static float[][][] readPointLists(List<LayerImpl> layers,
+        List<FilenameAndTimeIndex> ftis, int zIndex, PointList pointList)
         throws IOException
     {
-        return this.dataReader.read(fti.filename, this, fti.tIndexInFile, zIndex, pointList);
+        // Maps filenames to the positions in the ftis list of the timesteps
+        // in the file.  We preserve the insertion order so we use a LinkedHashMap.
+        Map<String, List<Integer>> files = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < ftis.size(); i++) {
+            String filename = ftis.get(i).filename;
+            List<Integer> positions = files.get(filename);
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                files.put(filename, positions);
+            }
+            positions.add(i);
+        }
+
+        // Now we read the data from each file.  All the layers share the
+        // same DataReader because they come from the same Dataset.
+        DataReader dataReader = layers.get(0).dataReader;
+        float[][][] data = new float[layers.size()][ftis.size()][];
+        for (Map.Entry<String, List<Integer>> file : files.entrySet()) {
+            List<Integer> positions = file.getValue();
+            List<Integer> tIndicesInFile = new ArrayList<Integer>(positions.size());
+            for (int pos : positions) {
+                tIndicesInFile.add(ftis.get(pos).tIndexInFile);
+            }
+            float[][][] fileData = layers.size() == 1
+                ? new float[][][] { dataReader.readAsArrays(file.getKey(),
+                    layers.get(0), tIndicesInFile, zIndex, pointList) }
+                : dataReader.readLayersAsArrays(file.getKey(), layers,
+                    tIndicesInFile, zIndex, pointList);
+            for (int l = 0; l < layers.size(); l++) {
+                for (int i = 0; i < positions.size(); i++) {
+                    data[l][positions.get(i)] = fileData[l][i];
+                }
+            }
+        }
+        return data;
     }
 
     /**
@@ -184,15 +260,14 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
         final String filename;
         final int tIndexInFile;
         if (tIndex < 0) {
-            // This layer has no time dimension.  It's possible that the dataset's
-            // location is a glob expression, so we expand it and take the first
-            // element.
-            filename = DataReader.expandGlobExpression(this.dataset.getLocation()).get(0).getPath();
+            // This layer has no time dimension, so the data are in the file
+            // that was found when the dataset was loaded
+            filename = this.filename;
             tIndexInFile = tIndex;
         } else {
-            TimestepInfo tInfo = this.timesteps.get(tIndex);
-            filename = tInfo.getFilename();
-            tIndexInFile = tInfo.getIndexInFile();
+            TimeIndex timeIndex = this.getTimeIndex();
+            filename = timeIndex.getFilename(tIndex);
+            tIndexInFile = timeIndex.getIndexInFile(tIndex);
         }
         return new FilenameAndTimeIndex(filename, tIndexInFile);
     }
@@ -210,6 +285,22 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
             this.filename = filename;
             this.tIndexInFile = tIndexInFile;
         }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this) return true;
+            if (!(obj instanceof FilenameAndTimeIndex)) return false;
+            FilenameAndTimeIndex other = (FilenameAndTimeIndex)obj;
+            return this.tIndexInFile == other.tIndexInFile &&
+                this.filename.equals(other.filename);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * this.filename.hashCode() + this.tIndexInFile;
+        }
     }
 
     @Override
@@ -217,7 +308,8 @@ public final class LayerImpl extends AbstractTimeAggregatedLayer
         throws InvalidDimensionValueException, IOException
     {
         PointList singlePoint = PointList.fromPoint(xy);
-        return this.readPointList(time, elevation, singlePoint).get(0);
+        float val = this.readPointListAsArray(time, elevation, singlePoint)[0];
+        return Float.isNaN(val) ? null : val;
     }
 
     @Override
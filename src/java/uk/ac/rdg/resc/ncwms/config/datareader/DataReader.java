@@ -42,6 +42,7 @@ import org.apache.oro.io.GlobFilenameFilter;
 import uk.ac.rdg.resc.ncwms.config.Dataset;
 import uk.ac.rdg.resc.ncwms.config.LayerImpl;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalPosition;
+import uk.ac.rdg.resc.ncwms.util.Lists;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
@@ -113,6 +114,101 @@ public abstract class DataReader
         int tIndex, int zIndex, PointList pointList)
         throws IOException;
 
+    /**
+     * <p>Reads data from a file.  Reads data for a single timestep only.
+     * This method knows
+     * nothing about aggregation: it simply reads data from the given file.
+     * Missing values (e.g. land pixels in oceanography data) will be represented
+     * by NaN.</p>
+     * <p>This default implementation simply copies the result of
+     * {@link #read(java.lang.String, uk.ac.rdg.resc.ncwms.wms.Layer, int, int,
+     * uk.ac.rdg.resc.ncwms.coords.PointList) read()} into an array.  Subclasses
+     * are encouraged to override this to avoid creating the List.</p>
+     *
+     * @param filename Location of the file, NcML aggregation or OPeNDAP URL
+     * @param layer {@link Layer} object representing the variable
+     * @param tIndex The index along the time axis (or -1 if there is no time axis)
+     * @param zIndex The index along the vertical axis (or -1 if there is no vertical axis)
+     * @param pointList The list of real-world x-y points for which we need data
+     * @return an array of floating-point data values, one for each point in
+     * the {@code pointList}, in the same order.
+     * @throws IOException if an input/output exception occurred when reading data
+     */
+    public float[] readAsArray(String filename, Layer layer,
+        int tIndex, int zIndex, PointList pointList)
+        throws IOException
+    {
+        return Lists.toDataArray(this.read(filename, layer, tIndex, zIndex, pointList));
+    }
+
+    /**
+     * <p>Reads data for a number of timesteps from a file, for example to
+     * create the frames of an animation.  This method knows nothing about
+     * aggregation: it simply reads data from the given file.  Missing values
+     * (e.g. land pixels in oceanography data) will be represented by NaN.</p>
+     * <p>This default implementation simply makes multiple calls to
+     * {@link #readAsArray(java.lang.String, uk.ac.rdg.resc.ncwms.wms.Layer, int,
+     * int, uk.ac.rdg.resc.ncwms.coords.PointList) readAsArray()}.  Subclasses
+     * are encouraged to override this with a more efficient method.</p>
+     * @param filename Location of the file, NcML aggregation or OPeNDAP URL
+     * @param layer {@link Layer} object representing the variable
+     * @param tIndices the indices along the time axis within this file (or a
+     * single-element list with value -1 if there is no time axis)
+     * @param zIndex The index along the vertical axis (or -1 if there is no vertical axis)
+     * @param pointList The list of real-world x-y points for which we need data
+     * @return an array of arrays of floating-point data values, one for each
+     * of the {@code tIndices} in the same order.  Each array contains one value
+     * for each point in the {@code pointList}, in the same order.
+     * @throws IOException if an input/output exception occurred when reading data
+     */
+    public float[][] readAsArrays(String filename, Layer layer,
+        List<Integer> tIndices, int zIndex, PointList pointList)
+        throws IOException
+    {
+        float[][] data = new float[tIndices.size()][];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = this.readAsArray(filename, layer, tIndices.get(i), zIndex, pointList);
+        }
+        return data;
+    }
+
+    /**
+     * <p>Reads data for a number of layers and timesteps from a file, for
+     * example to read the eastward and northward components of a vector field.
+     * This method knows nothing about aggregation: it simply reads data from
+     * the given file.  Missing values (e.g. land pixels in oceanography data)
+     * will be represented by NaN.</p>
+     * <p>This default implementation simply makes a call to
+     * {@link #readAsArrays(java.lang.String, uk.ac.rdg.resc.ncwms.wms.Layer,
+     * java.util.List, int, uk.ac.rdg.resc.ncwms.coords.PointList) readAsArrays()}
+     * for each layer.  Subclasses are encouraged to override this with a more
+     * efficient method.</p>
+     * @param filename Location of the file, NcML aggregation or OPeNDAP URL
+     * @param layers {@link Layer} objects representing the variables
+     * @param tIndices the indices along the time axis within this file (or a
+     * single-element list with value -1 if there is no time axis)
+     * @param zIndex The index along the vertical axis (or -1 if there is no vertical axis)
+     * @param pointList The list of real-world x-y points for which we need data
+     * @return an array with one element for each of the {@code layers} in the
+     * same order.  Each element is an array of arrays of data values as
+     * returned by {@link #readAsArrays(java.lang.String,
+     * uk.ac.rdg.resc.ncwms.wms.Layer, java.util.List, int,
+     * uk.ac.rdg.resc.ncwms.coords.PointList) readAsArrays()}.
+     * @throws IOException if an input/output exception occurred when reading data
+     */
+    public float[][][] readLayersAsArrays(String filename, List<? extends Layer> layers,
+        List<Integer> tIndices, int zIndex, PointList pointList)
+        throws IOException
+    {
+        float[][][] data = new float[layers.size()][][];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = this.readAsArrays(filename, layers.get(i), tIndices, zIndex, pointList);
+        }
+        return data;
+    }
+
     /**
      * <p>Reads a timeseries of data from a file from a single xyz point.  This
      * method knows nothing about aggregation: it simply reads data from the
@@ -123,8 +219,8 @@ public abstract class DataReader
      * "timeseries" of data will be a single data value. (TODO: make this more
      * sensible.)</p>
      * <p>This default implementation simply makes multiple calls to
-     * {@link #read(java.lang.String, uk.ac.rdg.resc.ncwms.metadata.Layer, int,
-     * int, uk.ac.rdg.resc.ncwms.datareader.PointList) read()},
+     * {@link #readAsArray(java.lang.String, uk.ac.rdg.resc.ncwms.wms.Layer, int,
+     * int, uk.ac.rdg.resc.ncwms.coords.PointList) readAsArray()},
      * which is not very efficient because the same file may be opened and closed
      * multiple times (a particular problem when reading from OPeNDAP servers).
      * Subclasses are encouraged to override this with a more efficient method.</p>
@@ -145,7 +241,8 @@ public abstract class DataReader
         PointList pointList = PointList.fromPoint(xy);
         List<Float> tsData = new ArrayList<Float>();
         for (int tIndex : tIndices) {
-            tsData.add(this.read(filename, layer, tIndex, zIndex, pointList).get(0));
+            float val = this.readAsArray(filename, layer, tIndex, zIndex, pointList)[0];
+            tsData.add(Float.isNaN(val) ? null : val);
         }
 
         return tsData;
@@ -0,0 +1,538 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config.datareader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.NetcdfDataset.Enhance;
+import ucar.nc2.dt.GridDataset;
+import uk.ac.rdg.resc.ncwms.cache.FileStampCache.FileStamp;
+import uk.ac.rdg.resc.ncwms.cdm.CdmUtils;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+
+/**
+ * <p>A bounded pool of open {@link NetcdfDataset}s (and the {@link GridDataset}s
+ * that wrap them), keyed by location.  Opening a dataset and building its
+ * coordinate systems is often more expensive than reading the data for a
+ * single map tile, so we keep recently-used datasets open between requests.</p>
+ * <p>NetcdfDatasets are not thread-safe, so each open dataset is leased to a
+ * single reader at a time through a {@link Handle}, which must be
+ * {@link Handle#release() released} when the reader has finished with it.
+ * Each distinct version of a file is represented by an entry that counts
+ * the handles that are currently leased: when the file changes (or
+ * the entry is otherwise invalidated) the idle datasets are closed immediately
+ * and the leased ones are closed as soon as they are released.</p>
+ * <p>A pooled dataset is discarded if the last-modified time or length of the
+ * underlying file, as given by the {@link FileStamp} that is passed to
+ * {@link #acquire(java.lang.String, uk.ac.rdg.resc.ncwms.cache.FileStampCache.FileStamp)
+ * acquire()}, has changed since it was opened.  The pool does not read the
+ * filesystem itself: callers usually take the stamp from the owning dataset's
+ * {@link uk.ac.rdg.resc.ncwms.cache.FileStampCache}, so reloading a dataset's
+ * metadata does not discard datasets for files that have not changed.  Only local
+ * files are pooled: OPeNDAP locations and NcML aggregations are opened afresh
+ * for every handle (NcML aggregations are cached by the Java NetCDF library
+ * itself).</p>
+ * <p>This class is thread-safe.</p>
+ * @author Jon Blower
+ */
+public final class DatasetPool
+{
+    private static final Logger logger = LoggerFactory.getLogger(DatasetPool.class);
+
+    private final Set<Enhance> enhancements;
+    private final int maxIdleDatasets;
+
+    /** The current (valid) entry for each location that has open datasets */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** Idle datasets in least-recently-used order (the eldest is first) */
+    private final LinkedList<PooledDataset> idle = new LinkedList<PooledDataset>();
+
+    /** Counters for the admin application */
+    private long numHits = 0;
+    private long numMisses = 0;
+    private long numInvalidations = 0;
+    private long totalOpenTimeMs = 0;
+    private int numLeased = 0;
+
+    private boolean shutdown = false;
+
+    /**
+     * Creates a new pool
+     * @param enhancements The enhancements that will be applied when opening
+     * datasets
+     * @param maxIdleDatasets The maximum number of idle datasets that will be
+     * kept open
+     */
+    public DatasetPool(Set<Enhance> enhancements, int maxIdleDatasets)
+    {
+        if (maxIdleDatasets < 0)
+        {
+            throw new IllegalArgumentException("maxIdleDatasets must be >= 0");
+        }
+        this.enhancements = enhancements;
+        this.maxIdleDatasets = maxIdleDatasets;
+    }
+
+    /**
+     * Leases an open dataset for the given location, opening a new one if there
+     * is no valid idle dataset in the pool.  The returned Handle must be
+     * released in a finally clause.
+     * @param location The location of the data: a local NetCDF file, an NcML
+     * aggregation file or an OPeNDAP location
+     * @param stamp The last-modified time and length of the file at the
+     * location.  Pooled datasets that were opened from a different version
+     * of the file will not be used.
+     * @throws IOException if there was an error opening the dataset
+     */
+    public Handle acquire(String location, FileStamp stamp) throws IOException
+    {
+        Entry entry = null;
+        if (isPoolable(location))
+        {
+            long lastModified = stamp.getLastModified();
+            long length = stamp.getSize();
+            List<PooledDataset> toClose = new ArrayList<PooledDataset>();
+            synchronized(this)
+            {
+                entry = this.entries.get(location);
+                if (entry != null && (entry.lastModified != lastModified ||
+                    entry.length != length))
+                {
+                    // The file has changed
+                    this.invalidate(entry, toClose);
+                    entry = null;
+                }
+                if (entry == null)
+                {
+                    entry = new Entry(location, lastModified, length);
+                    this.entries.put(location, entry);
+                }
+                PooledDataset pooled = this.takeIdle(entry);
+                if (pooled == null)
+                {
+                    this.numMisses++;
+                    // Register the dataset we are about to open, to make
+                    // sure the entry stays in the map
+                    entry.numOpen++;
+                }
+                else
+                {
+                    this.numHits++;
+                }
+                entry.refCount++;
+                this.numLeased++;
+                if (pooled != null)
+                {
+                    closeAll(toClose);
+                    return new Handle(pooled);
+                }
+            }
+            closeAll(toClose);
+        }
+        else
+        {
+            synchronized(this) { this.numLeased++; }
+        }
+
+        try
+        {
+            long start = System.currentTimeMillis();
+            NetcdfDataset nc = this.openDataset(location);
+            long openTime = System.currentTimeMillis() - start;
+            logger.debug("Opened {} in {} milliseconds", location, openTime);
+            synchronized(this) { this.totalOpenTimeMs += openTime; }
+            return new Handle(new PooledDataset(entry, nc));
+        }
+        catch (IOException ioe)
+        {
+            this.abandon(entry);
+            throw ioe;
+        }
+        catch (RuntimeException re)
+        {
+            this.abandon(entry);
+            throw re;
+        }
+    }
+
+    /**
+     * Finds and removes an idle dataset for the given entry, or returns null
+     * if there is none.  Must be called with the lock held.
+     */
+    private PooledDataset takeIdle(Entry entry)
+    {
+        // Search from the most-recently-used end
+        Iterator<PooledDataset> it = this.idle.descendingIterator();
+        while (it.hasNext())
+        {
+            PooledDataset pooled = it.next();
+            if (pooled.entry == entry)
+            {
+                it.remove();
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Undoes the bookkeeping in acquire() if a dataset could not be opened
+     */
+    private synchronized void abandon(Entry entry)
+    {
+        this.numLeased--;
+        if (entry != null)
+        {
+            entry.refCount--;
+            this.decrementNumOpen(entry);
+        }
+    }
+
+    /**
+     * Returns a leased dataset to the pool, or closes it if it cannot be
+     * pooled
+     */
+    private void release(PooledDataset pooled)
+    {
+        List<PooledDataset> toClose = new ArrayList<PooledDataset>();
+        synchronized(this)
+        {
+            this.numLeased--;
+            Entry entry = pooled.entry;
+            if (entry == null)
+            {
+                toClose.add(pooled);
+            }
+            else
+            {
+                entry.refCount--;
+                if (!entry.valid || this.shutdown)
+                {
+                    this.decrementNumOpen(entry);
+                    toClose.add(pooled);
+                }
+                else
+                {
+                    this.idle.addLast(pooled);
+                    while (this.idle.size() > this.maxIdleDatasets)
+                    {
+                        PooledDataset eldest = this.idle.removeFirst();
+                        this.decrementNumOpen(eldest.entry);
+                        toClose.add(eldest);
+                    }
+                }
+            }
+        }
+        // We close datasets outside the lock as this can involve i/o
+        closeAll(toClose);
+    }
+
+    /**
+     * Marks the given entry as invalid, removing its idle datasets from the
+     * pool and adding them to the given list for closing.  Leased datasets
+     * belonging to the entry will be closed when they are released.  Must be
+     * called with the lock held.
+     */
+    private void invalidate(Entry entry, List<PooledDataset> toClose)
+    {
+        entry.valid = false;
+        this.entries.remove(entry.location);
+        this.numInvalidations++;
+        if (entry.refCount > 0)
+        {
+            logger.debug("{} datasets for {} will be closed when released",
+                entry.refCount, entry.location);
+        }
+        Iterator<PooledDataset> it = this.idle.iterator();
+        while (it.hasNext())
+        {
+            PooledDataset pooled = it.next();
+            if (pooled.entry == entry)
+            {
+                it.remove();
+                entry.numOpen--;
+                toClose.add(pooled);
+            }
+        }
+    }
+
+    /**
+     * Records that a dataset belonging to the given entry has been (or is
+     * about to be) closed.  Must be called with the lock held.
+     */
+    private void decrementNumOpen(Entry entry)
+    {
+        entry.numOpen--;
+        if (entry.numOpen == 0 && entry.valid)
+        {
+            // Nothing is open for this location: we don't need to remember it
+            this.entries.remove(entry.location);
+        }
+    }
+
+    /**
+     * Closes all idle datasets for the given location and ensures that
+     * leased datasets for the location will be closed when they are released.
+     */
+    public void invalidate(String location)
+    {
+        List<PooledDataset> toClose = new ArrayList<PooledDataset>();
+        synchronized(this)
+        {
+            Entry entry = this.entries.get(location);
+            if (entry != null) this.invalidate(entry, toClose);
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Closes all idle datasets.  Datasets that are currently leased will be
+     * closed when they are released.
+     */
+    public void shutdown()
+    {
+        List<PooledDataset> toClose;
+        synchronized(this)
+        {
+            this.shutdown = true;
+            toClose = new ArrayList<PooledDataset>(this.idle);
+            this.idle.clear();
+            this.entries.clear();
+        }
+        closeAll(toClose);
+        logger.info("Closed {} pooled datasets", toClose.size());
+    }
+
+    /** @return the number of requests that were satisfied from the pool */
+    public synchronized long getNumHits()
+    {
+        return this.numHits;
+    }
+
+    /** @return the number of requests for poolable datasets that required
+     * the dataset to be opened */
+    public synchronized long getNumMisses()
+    {
+        return this.numMisses;
+    }
+
+    /** @return the number of pooled datasets that have been discarded because
+     * they were out of date */
+    public synchronized long getNumInvalidations()
+    {
+        return this.numInvalidations;
+    }
+
+    /** @return the total time spent opening datasets, in milliseconds */
+    public synchronized long getTotalOpenTimeMs()
+    {
+        return this.totalOpenTimeMs;
+    }
+
+    /** @return the number of datasets that are currently leased to readers */
+    public synchronized int getNumLeased()
+    {
+        return this.numLeased;
+    }
+
+    /** @return the number of idle datasets that are currently held open */
+    public synchronized int getNumIdle()
+    {
+        return this.idle.size();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("hits: %d, misses: %d, invalidations: %d, open time: %d ms, leased: %d, idle: %d",
+            this.numHits, this.numMisses, this.numInvalidations,
+            this.totalOpenTimeMs, this.numLeased, this.idle.size());
+    }
+
+    private static void closeAll(List<PooledDataset> datasets)
+    {
+        for (PooledDataset pooled : datasets) pooled.close();
+    }
+
+    /**
+     * @return true if datasets at the given location can be held in the pool
+     */
+    private static boolean isPoolable(String location)
+    {
+        return !WmsUtils.isOpendapLocation(location) &&
+               !WmsUtils.isNcmlAggregation(location);
+    }
+
+    /**
+     * Opens the NetCDF dataset at the given location, using the NetCDF library's
+     * dataset cache if {@code location} represents an NcML aggregation.  In
+     * the case of NcML we rely on the fact that server administrators
+     * ought to have set a "recheckEvery" parameter for NcML aggregations that
+     * may change with time.  It is desirable to use the dataset cache for NcML
+     * aggregations because they can be time-consuming to assemble and we don't
+     * want to do this every time a map is drawn.
+     */
+    private NetcdfDataset openDataset(String location) throws IOException
+    {
+        if (WmsUtils.isNcmlAggregation(location))
+        {
+            return NetcdfDataset.acquireDataset(
+                null, // Use the default factory
+                location,
+                this.enhancements,
+                -1, // use default buffer size
+                null, // no CancelTask
+                null // no iospMessage
+            );
+        }
+        else
+        {
+            return NetcdfDataset.openDataset(
+                location,
+                this.enhancements,
+                -1, // use default buffer size
+                null, // no CancelTask
+                null // no iospMessage
+            );
+        }
+    }
+    /**
+     * A dataset that has been leased from the pool.  Clients must call
+     * {@link #release()} when they have finished reading data.
+     */
+    public final class Handle
+    {
+        private PooledDataset pooled;
+
+        private Handle(PooledDataset pooled)
+        {
+            this.pooled = pooled;
+        }
+
+        public NetcdfDataset getNetcdfDataset()
+        {
+            return this.getPooledDataset().nc;
+        }
+
+        /**
+         * Gets the GridDataset that wraps the NetcdfDataset.  This is created
+         * on first use and retained for as long as the dataset is pooled.
+         * @throws IOException if there was an error creating the GridDataset
+         */
+        public GridDataset getGridDataset() throws IOException
+        {
+            PooledDataset p = this.getPooledDataset();
+            if (p.gd == null) p.gd = CdmUtils.getGridDataset(p.nc);
+            return p.gd;
+        }
+
+        /**
+         * Returns the dataset to the pool.  The handle cannot be used after
+         * this method has been called.  Calling this method more than once
+         * has no effect.
+         */
+        public void release()
+        {
+            if (this.pooled == null) return;
+            PooledDataset p = this.pooled;
+            this.pooled = null;
+            DatasetPool.this.release(p);
+        }
+
+        private PooledDataset getPooledDataset()
+        {
+            if (this.pooled == null)
+            {
+                throw new IllegalStateException("Handle has been released");
+            }
+            return this.pooled;
+        }
+    }
+
+    /**
+     * Represents a single version of a file.  All the datasets that are opened
+     * on the same version of the file share an Entry, which counts the number
+     * that are open and the number that are leased.
+     */
+    private static final class Entry
+    {
+        private final String location;
+        private final long lastModified;
+        private final long length;
+        private int numOpen = 0;
+        private int refCount = 0;
+        private boolean valid = true;
+
+        public Entry(String location, long lastModified, long length)
+        {
+            this.location = location;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    /**
+     * An open dataset, plus its GridDataset if this has been created.  The
+     * entry is null if the dataset is not to be pooled.
+     */
+    private static final class PooledDataset
+    {
+        private final Entry entry;
+        private final NetcdfDataset nc;
+        private GridDataset gd = null;
+
+        public PooledDataset(Entry entry, NetcdfDataset nc)
+        {
+            this.entry = entry;
+            this.nc = nc;
+        }
+
+        public void close()
+        {
+            try
+            {
+                this.nc.close();
+            }
+            catch (IOException ex)
+            {
+                logger.error("IOException closing " + this.nc.getLocation(), ex);
+            }
+        }
+    }
+}
@@ -30,6 +30,8 @@ package uk.ac.rdg.resc.ncwms.config.datareader;
 
 import uk.ac.rdg.resc.ncwms.coords.PointList;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
@@ -41,12 +43,16 @@ import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.dataset.NetcdfDataset.Enhance;
 import ucar.nc2.dt.GridDataset;
 import ucar.nc2.dt.GridDatatype;
+import uk.ac.rdg.resc.ncwms.cache.FileStampCache;
+import uk.ac.rdg.resc.ncwms.cache.FileStampCache.FileStamp;
 import uk.ac.rdg.resc.ncwms.cdm.AbstractScalarLayerBuilder;
 import uk.ac.rdg.resc.ncwms.cdm.CdmUtils;
+import uk.ac.rdg.resc.ncwms.cdm.DataReadingStrategySelector;
+import uk.ac.rdg.resc.ncwms.config.Dataset;
 import uk.ac.rdg.resc.ncwms.config.LayerImpl;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalPosition;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalGrid;
-import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+import uk.ac.rdg.resc.ncwms.util.Lists;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
 /**
@@ -68,15 +74,36 @@ public class DefaultDataReader extends DataReader
     private static final Set<Enhance> DATASET_ENHANCEMENTS =
         EnumSet.of(Enhance.ScaleMissingDefer, Enhance.CoordSystems);
 
+    /**
+     * Pool of open datasets, which saves us from opening files and building
+     * their coordinate systems for every request.  NcML aggregations are
+     * cached by the NetCDF library itself and OPeNDAP datasets are not pooled,
+     * to ensure that we are always reading the most up-to-date data.
+     */
+    private static final DatasetPool DATASET_POOL =
+        new DatasetPool(DATASET_ENHANCEMENTS, 32);
+
+    /**
+     * Reads data from a file as a List, in which missing values are
+     * represented by null.  This simply wraps the result of
+     * {@link #readAsArray readAsArray()}.
+     */
+    @Override
+    public List<Float> read(String filename, Layer layer, int tIndex, int zIndex,
+        PointList pointList) throws IOException
+    {
+        return Lists.fromDataArray(this.readAsArray(filename, layer, tIndex, zIndex, pointList));
+    }
+
     /**
      * Reads data from a NetCDF file.  Reads data for a single timestep only.
      * This method knows
      * nothing about aggregation: it simply reads data from the given file.
      * Missing values (e.g. land pixels in oceanography data) will be represented
-     * by null.
+     * by NaN.
      *
-     * <p>The actual reading of data is performed in {@link #populatePixelArray
-     * populatePixelArray()}</p>
+     * <p>The actual reading of data is performed in {@link CdmUtils#readPointList
+     * CdmUtils.readPointList()}</p>
      *
      * @param filename Location of the file, NcML aggregation or OPeNDAP URL
      * @param layer {@link Layer} object representing the variable
@@ -89,33 +116,65 @@ public class DefaultDataReader extends DataReader
      * @throws IOException if an input/output exception occurred when reading data
      */
     @Override
-    public List<Float> read(String filename, Layer layer, int tIndex, int zIndex,
+    public float[] readAsArray(String filename, Layer layer, int tIndex, int zIndex,
         PointList pointList) throws IOException
     {
-        NetcdfDataset nc = null;
+        return this.readAsArrays(filename, layer, Collections.singletonList(tIndex),
+            zIndex, pointList)[0];
+    }
+
+    /**
+     * Reads data for a number of timesteps from a NetCDF file.  The
+     * {@link uk.ac.rdg.resc.ncwms.coords.PixelMap PixelMap} is only calculated
+     * once and data for uniformly-spaced timesteps are read in the same number
+     * of operations as a single timestep.  Missing values (e.g. land pixels in
+     * oceanography data) will be represented by NaN.
+     *
+     * <p>The actual reading of data is performed in {@link CdmUtils#readPointLists
+     * CdmUtils.readPointLists()}</p>
+     *
+     * @param filename Location of the file, NcML aggregation or OPeNDAP URL
+     * @param layer {@link Layer} object representing the variable
+     * @param tIndices the indices along the time axis within this file (or a
+     * single-element list with value -1 if there is no time axis)
+     * @param zIndex The index along the vertical axis (or -1 if there is no vertical axis)
+     * @param pointList The list of real-world x-y points for which we need data.
+     * In the case of a GetMap operation this will usually be a {@link HorizontalGrid}.
+     * @return an array of arrays of floating-point data values, one for each
+     * of the {@code tIndices} in the same order.  Each array contains one value
+     * for each point in the {@code pointList}, in the same order.
+     * @throws IOException if an input/output exception occurred when reading data
+     */
+    @Override
+    public float[][] readAsArrays(String filename, Layer layer, List<Integer> tIndices,
+        int zIndex, PointList pointList) throws IOException
+    {
+        DatasetPool.Handle handle = null;
         try
         {
             long start = System.currentTimeMillis();
             
-            // Open the dataset, using the cache for NcML aggregations
-            nc = openDataset(filename);
+            // Lease an open dataset from the pool
+            handle = acquireDataset(filename, layer);
+            NetcdfDataset nc = handle.getNetcdfDataset();
             long openedDS = System.currentTimeMillis();
-            logger.debug("Opened NetcdfDataset in {} milliseconds", (openedDS - start));
+            logger.debug("Acquired NetcdfDataset in {} milliseconds", (openedDS - start));
 
             // Get a GridDataset object, since we know this is a grid
-            GridDataset gd = CdmUtils.getGridDataset(nc);
+            GridDataset gd = handle.getGridDataset();
             
             logger.debug("Getting GridDatatype with id {}", layer.getId());
             GridDatatype gridData = gd.findGridDatatype(layer.getId());
             logger.debug("filename = {}, gg = {}", filename, gridData.toString());
 
-            return CdmUtils.readPointList(
+            return CdmUtils.readPointLists(
                 gridData,           // The grid of data to read from
                 layer.getHorizontalCoordSys(),
-                tIndex,
+                tIndices,
                 zIndex,
                 pointList,
                 CdmUtils.getOptimumDataReadingStrategy(nc),
+                getDataReadingStrategySelector(layer),
                 CdmUtils.isScaleMissingDeferred(nc)
             );
 
@@ -139,18 +198,70 @@ public class DefaultDataReader extends DataReader
         }
         finally
         {
-            if (nc != null)
+            if (handle != null) handle.release();
+        }
+    }
+
+    /**
+     * Reads data for a number of layers and timesteps from a NetCDF file.  If
+     * the layers' variables share the same horizontal axes (as is usually
+     * the case for the components of a vector field), the dataset is acquired
+     * once and the same {@link uk.ac.rdg.resc.ncwms.coords.PixelMap PixelMap}
+     * is used to read all the variables.  Otherwise each layer is read
+     * separately.
+     * @param filename Location of the file, NcML aggregation or OPeNDAP URL
+     * @param layers {@link Layer} objects representing the variables
+     * @param tIndices the indices along the time axis within this file (or a
+     * single-element list with value -1 if there is no time axis)
+     * @param zIndex The index along the vertical axis (or -1 if there is no vertical axis)
+     * @param pointList The list of real-world x-y points for which we need data.
+     * @return an array with one element for each of the {@code layers} in the
+     * same order, each of which contains one array of data for each of the
+     * {@code tIndices}.
+     * @throws IOException if an input/output exception occurred when reading data
+     */
+    @Override
+    public float[][][] readLayersAsArrays(String filename, List<? extends Layer> layers,
+        List<Integer> tIndices, int zIndex, PointList pointList) throws IOException
+    {
+        DatasetPool.Handle handle = null;
+        try
+        {
+            // All the layers come from the same file so we lease the dataset
+            // using the first
+            handle = acquireDataset(filename, layers.get(0));
+            NetcdfDataset nc = handle.getNetcdfDataset();
+            GridDataset gd = handle.getGridDataset();
+
+            List<GridDatatype> grids = new ArrayList<GridDatatype>(layers.size());
+            for (Layer layer : layers)
             {
-                try
-                {
-                    nc.close();
-                }
-                catch (IOException ex)
-                {
-                    logger.error("IOException closing " + nc.getLocation(), ex);
-                }
+                grids.add(gd.findGridDatatype(layer.getId()));
+            }
+
+            if (CdmUtils.haveSameHorizontalAxes(grids))
+            {
+                return CdmUtils.readPointLists(
+                    grids,
+                    layers.get(0).getHorizontalCoordSys(),
+                    tIndices,
+                    zIndex,
+                    pointList,
+                    CdmUtils.getOptimumDataReadingStrategy(nc),
+                    getDataReadingStrategySelector(layers.get(0)),
+                    CdmUtils.isScaleMissingDeferred(nc)
+                );
             }
         }
+        finally
+        {
+            if (handle != null) handle.release();
+        }
+
+        // The variables can't share a PixelMap, so we read each layer separately
+        logger.debug("Layers in {} have different horizontal axes: reading separately",
+            filename);
+        return super.readLayersAsArrays(filename, layers, tIndices, zIndex, pointList);
     }
 
     /**
@@ -184,12 +295,12 @@ public class DefaultDataReader extends DataReader
         List<Integer> tIndices, int zIndex, HorizontalPosition xy)
         throws IOException
     {
-        NetcdfDataset nc = null;
+        DatasetPool.Handle handle = null;
         try
         {
-            // Open the dataset, using the cache for NcML aggregations
-            nc = openDataset(filename);
-            GridDataset gd = CdmUtils.getGridDataset(nc);
+            // Lease an open dataset from the pool
+            handle = acquireDataset(filename, layer);
+            GridDataset gd = handle.getGridDataset();
             GridDatatype grid = gd.findGridDatatype(layer.getId());
             
             // Read and return the data
@@ -199,23 +310,12 @@ public class DefaultDataReader extends DataReader
                 tIndices,
                 zIndex,
                 xy,
-                CdmUtils.isScaleMissingDeferred(nc)
+                CdmUtils.isScaleMissingDeferred(handle.getNetcdfDataset())
             );
         }
         finally
         {
-            if (nc != null)
-            {
-                try
-                {
-                    nc.close();
-                }
-                catch (IOException ex)
-                {
-                    logger.error("IOException closing " + nc.getLocation(), ex);
-                }
-            }
-
+            if (handle != null) handle.release();
         }
     }
     
@@ -225,7 +325,7 @@ public class DefaultDataReader extends DataReader
      * aggregation, or OPeNDAP location (i.e. one element resulting from the
      * expansion of a glob aggregation).
      * @param location Full path to the dataset. This will be passed to 
-     * {@link NetcdfDataset#openDataset}.
+     * {@link NetcdfDataset#openDataset} if it is not already open in the pool.
      * @param layers Map of Layer Ids to LayerImpl objects to populate or update
      * @throws IOException if there was an error reading from the data source
      */
@@ -235,31 +335,21 @@ public class DefaultDataReader extends DataReader
     {
         logger.debug("Finding layers in {}", location);
         
-        NetcdfDataset nc = null;
+        DatasetPool.Handle handle = null;
         try
         {
-            // Open the dataset, using the cache for NcML aggregations
-            nc = openDataset(location);
-            GridDataset gd = CdmUtils.getGridDataset(nc);
+            // We are reloading the metadata, so we check the file itself
+            // rather than a cached stamp: a pooled dataset is reused only
+            // if the file hasn't changed
+            handle = DATASET_POOL.acquire(location, FileStampCache.read(location));
+            GridDataset gd = handle.getGridDataset();
 
             LayerImplBuilder layerBuilder = new LayerImplBuilder(location);
             CdmUtils.findAndUpdateLayers(gd, layerBuilder, layers);
         }
         finally
         {
-            logger.debug("In finally clause");
-            if (nc != null)
-            {
-                try
-                {
-                    nc.close();
-                    logger.debug("NetCDF file closed");
-                }
-                catch (IOException ex)
-                {
-                    logger.error("IOException closing " + nc.getLocation(), ex);
-                }
-            }
+            if (handle != null) handle.release();
         }
     }
 
@@ -290,56 +380,48 @@ public class DefaultDataReader extends DataReader
     }
 
     /**
-     * Opens the NetCDF dataset at the given location, using the dataset
-     * cache if {@code location} represents an NcML aggregation.  We cannot
-     * use the cache for OPeNDAP or single NetCDF files because the underlying
-     * data may have changed and the NetcdfDataset cache may cache a dataset
-     * forever.  In the case of NcML we rely on the fact that server administrators
-     * ought to have set a "recheckEvery" parameter for NcML aggregations that
-     * may change with time.  It is desirable to use the dataset cache for NcML
-     * aggregations because they can be time-consuming to assemble and we don't
-     * want to do this every time a map is drawn.
+     * Leases an open dataset from the {@link #getDatasetPool() pool}, ignoring
+     * any pooled datasets that were opened from a different version of the
+     * file.  The version of the file is taken from the dataset's
+     * {@link FileStampCache} where possible, to avoid reading the filesystem
+     * for every request.
      * @param location The location of the data: a local NetCDF file, an NcML
      * aggregation file or an OPeNDAP location, {@literal i.e.} anything that can be
      * passed to NetcdfDataset.openDataset(location).
-     * @return a {@link NetcdfDataset} object for accessing the data at the
-     * given location.  The coordinate systems will have been read, but
-     * the application of scale-offset-missing is deferred.
+     * @param layer The layer from which we are going to read data
+     * @return a handle to a {@link NetcdfDataset}.  The coordinate systems will
+     * have been read, but the application of scale-offset-missing is deferred.
+     * The handle must be released when the caller has finished with it.
      * @throws IOException if there was an error reading from the data source.
      */
-    private static NetcdfDataset openDataset(String location) throws IOException
+    private static DatasetPool.Handle acquireDataset(String location, Layer layer)
+        throws IOException
     {
-        if (WmsUtils.isNcmlAggregation(location))
-        {
-            // We use the cache of NetcdfDatasets to read NcML aggregations
-            // as they can be time-consuming to put together.  If the underlying
-            // data can change we rely on the server admin setting the
-            // "recheckEvery" parameter in the aggregation file.
-            return NetcdfDataset.acquireDataset(
-                null, // Use the default factory
-                location,
-                DATASET_ENHANCEMENTS,
-                -1, // use default buffer size
-                null, // no CancelTask
-                null // no iospMessage
-            );
-        }
-        else
-        {
-            // For local single files and OPeNDAP datasets we don't use the
-            // cache, to ensure that we are always reading the most up-to-date
-            // data.  There is a small possibility that the dataset cache will
-            // have swallowed up all available file handles, in which case
-            // the server admin will need to increase the number of available
-            // handles on the server.
-            return NetcdfDataset.openDataset(
-                location,
-                DATASET_ENHANCEMENTS,
-                -1, // use default buffer size
-                null, // no CancelTask
-                null // no iospMessage
-            );
-        }
+        FileStamp stamp = layer.getDataset() instanceof Dataset
+            ? ((Dataset)layer.getDataset()).getFileStamps().get(location)
+            : FileStampCache.read(location);
+        return DATASET_POOL.acquire(location, stamp);
+    }
+
+    /**
+     * Gets the object that chooses the strategy for reading data from the
+     * layer's dataset, or null if the layer doesn't belong to a {@link Dataset}
+     * from the configuration system.
+     */
+    private static DataReadingStrategySelector getDataReadingStrategySelector(Layer layer)
+    {
+        return layer.getDataset() instanceof Dataset
+            ? ((Dataset)layer.getDataset()).getDataReadingStrategySelector()
+            : null;
+    }
+
+    /**
+     * Returns the pool of open datasets that is shared by all instances of
+     * this class.
+     */
+    public static DatasetPool getDatasetPool()
+    {
+        return DATASET_POOL;
     }
     
 }
@@ -36,6 +36,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +47,7 @@ import org.slf4j.LoggerFactory;
 import uk.ac.rdg.resc.ncwms.config.LayerImpl;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalPosition;
 import uk.ac.rdg.resc.ncwms.coords.LonLatPosition;
+import uk.ac.rdg.resc.ncwms.util.Lists;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
 /**
@@ -119,12 +121,24 @@ public class NSIDCSnowWaterDataReader extends DataReader
         layers.put(layer.getId(), layer);
     }
     
+    /**
+     * Reads data from a file as a List, in which missing values are
+     * represented by null.  This simply wraps the result of
+     * {@link #readAsArray readAsArray()}.
+     */
+    @Override
+    public List<Float> read(String filename, Layer layer, int tIndex, int zIndex,
+        PointList pointList) throws IOException
+    {
+        return Lists.fromDataArray(this.readAsArray(filename, layer, tIndex, zIndex, pointList));
+    }
+
     /**
      * Reads data from a file.  Reads data for a single timestep only.
      * This method knows
      * nothing about aggregation: it simply reads data from the given file.
      * Missing values (e.g. land pixels in oceanography data) will be represented
-     * by null.
+     * by NaN.
      *
      * @param filename Location of the file, NcML aggregation or OPeNDAP URL
      * @param layer {@link Layer} object representing the variable
@@ -136,14 +150,15 @@ public class NSIDCSnowWaterDataReader extends DataReader
      * @throws IOException if there is an error reading from the source data
      */
     @Override
-    public List<Float> read(String filename, Layer layer, int tIndex, int zIndex, PointList pointList)
+    public float[] readAsArray(String filename, Layer layer, int tIndex, int zIndex, PointList pointList)
         throws IOException
     {
         // Find the file containing the data
         logger.debug("Reading data from " + filename);
 
         // Create an array to hold the data
-        List<Float> picData = nullArrayList(pointList.size());
+        float[] picData = new float[pointList.size()];
+        Arrays.fill(picData, Float.NaN);
         
         FileInputStream fin = null;
         ByteBuffer data = null;
@@ -180,7 +195,7 @@ public class NSIDCSnowWaterDataReader extends DataReader
                 int dataIndex = latLonToIndex(lonLat.getLatitude(), lonLat.getLongitude());
                 // two bytes per pixel
                 short val = data.getShort(dataIndex * 2);
-                if (val > 0) picData.set(picIndex, (float)val);
+                if (val > 0) picData[picIndex] = val;
             }
             picIndex++;
         }
@@ -32,13 +32,17 @@ import java.io.IOException;
 import java.util.List;
 import org.joda.time.DateTime;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalGrid;
+import uk.ac.rdg.resc.ncwms.coords.HorizontalPosition;
+import uk.ac.rdg.resc.ncwms.coords.PointList;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.exceptions.LayerNotDefinedException;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
+import uk.ac.rdg.resc.ncwms.util.Lists;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Dataset;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 import uk.ac.rdg.resc.ncwms.wms.ScalarLayer;
+import uk.ac.rdg.resc.ncwms.wms.VectorLayer;
 
 /**
  * Partial implementation of the {@link ServerConfig} interface, providing
@@ -75,19 +79,147 @@ public abstract class AbstractServerConfig implements ServerConfig
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>This implementation wraps the result of {@link #readDataGridAsArray(
+     * uk.ac.rdg.resc.ncwms.wms.ScalarLayer, org.joda.time.DateTime, double,
+     * uk.ac.rdg.resc.ncwms.coords.HorizontalGrid, uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry)
+     * readDataGridAsArray()} as a List.</p>
+     */
+    @Override
+    public List<Float> readDataGrid(ScalarLayer layer, DateTime dateTime,
+        double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
+        throws InvalidDimensionValueException, IOException
+    {
+        return Lists.fromDataArray(this.readDataGridAsArray(layer, dateTime,
+            elevation, grid, usageLogEntry));
+    }
+
     /**
      * {@inheritDoc}
      * <p>This implementation simply defers to {@link
-     * ScalarLayer#readPointList(org.joda.time.DateTime, double,
-     * uk.ac.rdg.resc.ncwms.datareader.PointList) layer.readPointList()},
+     * ScalarLayer#readPointListAsArray(org.joda.time.DateTime, double,
+     * uk.ac.rdg.resc.ncwms.coords.PointList) layer.readPointListAsArray()},
      * ignoring the usage log entry.  No data are cached.</p>
      */
     @Override
-    public List<Float> readDataGrid(ScalarLayer layer, DateTime dateTime,
+    public float[] readDataGridAsArray(ScalarLayer layer, DateTime dateTime,
         double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
         throws InvalidDimensionValueException, IOException
     {
-        return layer.readPointList(dateTime, elevation, grid);
+        return layer.readPointListAsArray(dateTime, elevation, grid);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation simply calls {@link #readDataGridAsArray(
+     * uk.ac.rdg.resc.ncwms.wms.ScalarLayer, org.joda.time.DateTime, double,
+     * uk.ac.rdg.resc.ncwms.coords.HorizontalGrid, uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry)
+     * readDataGridAsArray()} for each time in turn.</p>
+     */
+    @Override
+    public float[][] readDataGrids(ScalarLayer layer, List<DateTime> dateTimes,
+        double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
+        throws InvalidDimensionValueException, IOException
+    {
+        float[][] data = new float[dateTimes.size()][];
+        boolean usedCache = true;
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = this.readDataGridAsArray(layer, dateTimes.get(i), elevation,
+                grid, usageLogEntry);
+            usedCache &= usageLogEntry.isUsedCache();
+        }
+        usageLogEntry.setUsedCache(usedCache && data.length > 0);
+        return data;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation calls {@link #readDataGrids(uk.ac.rdg.resc.ncwms.wms.ScalarLayer,
+     * java.util.List, double, uk.ac.rdg.resc.ncwms.coords.HorizontalGrid,
+     * uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry) readDataGrids()} for each
+     * component in turn.</p>
+     */
+    @Override
+    public float[][][] readVectorDataGrids(VectorLayer layer, List<DateTime> dateTimes,
+        double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
+        throws InvalidDimensionValueException, IOException
+    {
+        float[][] east = this.readDataGrids(layer.getEastwardComponent(), dateTimes,
+            elevation, grid, usageLogEntry);
+        boolean usedCache = usageLogEntry.isUsedCache();
+        float[][] north = this.readDataGrids(layer.getNorthwardComponent(), dateTimes,
+            elevation, grid, usageLogEntry);
+        usageLogEntry.setUsedCache(usedCache && usageLogEntry.isUsedCache());
+        return new float[][][] { east, north, getMagnitudes(east, north) };
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>If the point list contains a single point (e.g. for GetFeatureInfo)
+     * this implementation calls {@link ScalarLayer#readTimeseries(java.util.List,
+     * double, uk.ac.rdg.resc.ncwms.coords.HorizontalPosition) readTimeseries()}
+     * once on each component.  Otherwise it calls {@link
+     * ScalarLayer#readPointListAsArray(org.joda.time.DateTime, double,
+     * uk.ac.rdg.resc.ncwms.coords.PointList) readPointListAsArray()} on each
+     * component for each time.</p>
+     */
+    @Override
+    public float[][][] readVectorPointLists(VectorLayer layer, List<DateTime> dateTimes,
+        double elevation, PointList pointList)
+        throws InvalidDimensionValueException, IOException
+    {
+        if (pointList.size() == 1)
+        {
+            HorizontalPosition pos = pointList.getPoint(0);
+            float[][] east = toSinglePointArrays(layer.getEastwardComponent()
+                .readTimeseries(dateTimes, elevation, pos));
+            float[][] north = toSinglePointArrays(layer.getNorthwardComponent()
+                .readTimeseries(dateTimes, elevation, pos));
+            return new float[][][] { east, north, getMagnitudes(east, north) };
+        }
+        float[][] east = new float[dateTimes.size()][];
+        float[][] north = new float[dateTimes.size()][];
+        for (int i = 0; i < east.length; i++)
+        {
+            east[i] = layer.getEastwardComponent().readPointListAsArray(
+                dateTimes.get(i), elevation, pointList);
+            north[i] = layer.getNorthwardComponent().readPointListAsArray(
+                dateTimes.get(i), elevation, pointList);
+        }
+        return new float[][][] { east, north, getMagnitudes(east, north) };
+    }
+
+    /**
+     * Converts a timeseries of values at a single point, in which missing
+     * values are represented by nulls, to an array containing a single-element
+     * array for each time.
+     */
+    private static float[][] toSinglePointArrays(List<Float> timeseries)
+    {
+        float[] values = Lists.toDataArray(timeseries);
+        float[][] data = new float[values.length][];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = new float[] { values[i] };
+        }
+        return data;
+    }
+
+    /**
+     * Calculates the magnitudes of the vectors whose components are given
+     * for a number of times.
+     * @see WmsUtils#getMagnitudes(float[], float[])
+     */
+    protected static float[][] getMagnitudes(float[][] east, float[][] north)
+    {
+        float[][] magnitudes = new float[east.length][];
+        for (int i = 0; i < magnitudes.length; i++)
+        {
+            magnitudes[i] = WmsUtils.getMagnitudes(east[i], north[i]);
+        }
+        return magnitudes;
     }
 
 }
@@ -33,6 +33,7 @@ import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -314,36 +315,26 @@ class MetadataController
         }
         DateTime date = WmsUtils.iso8601ToDateTime(dayStr, layer.getChronology());
         
-        // List of date-times that fall on this day
-        List<DateTime> timesteps = new ArrayList<DateTime>();
-        // Search exhaustively through the layer's valid time values
-        // TODO: inefficient: should stop once last day has been found.
-        for (DateTime tVal : layer.getTimeValues())
-        {
-            if (onSameDay(tVal, date))
-            {
-                timesteps.add(tVal);
-            }
-        }
+        // The layer's time values are sorted, so we can find the range of
+        // date-times that fall on this day (in UTC) by binary search
+        DateTime dayStart = date.withZone(DateTimeZone.UTC).withTime(0, 0, 0, 0);
+        List<DateTime> tValues = layer.getTimeValues();
+        int start = findInsertionPoint(tValues, dayStart);
+        int end = findInsertionPoint(tValues, dayStart.plusDays(1));
+        List<DateTime> timesteps = new ArrayList<DateTime>(tValues.subList(start, end));
         log.debug("Found {} timesteps on {}", timesteps.size(), dayStr);
         
         return new ModelAndView("showTimesteps", "timesteps", timesteps);
     }
     
     /**
-     * @return true if the two given DateTimes fall on the same day.
+     * @return the index of the first DateTime in the given sorted list that is
+     * at or after the given DateTime (or the size of the list if there is none)
      */
-    private static boolean onSameDay(DateTime dt1, DateTime dt2)
+    private static int findInsertionPoint(List<DateTime> dateTimes, DateTime dt)
     {
-        // We must make sure that the DateTimes are both in UTC or the field
-        // comparisons will not do what we expect
-        dt1 = dt1.withZone(DateTimeZone.UTC);
-        dt2 = dt2.withZone(DateTimeZone.UTC);
-        boolean onSameDay = dt1.getYear() == dt2.getYear()
-                         && dt1.getMonthOfYear() == dt2.getMonthOfYear()
-                         && dt1.getDayOfMonth() == dt2.getDayOfMonth();
-        log.debug("onSameDay({}, {}) = {}", new Object[]{dt1, dt2, onSameDay});
-        return onSameDay;
+        int index = WmsUtils.findTimeIndex(dateTimes, dt);
+        return index >= 0 ? index : -(index + 1); // see docs for Collections.binarySearch()
     }
     
     /**
@@ -374,17 +365,16 @@ class MetadataController
         DateTime tValue = WmsController.getTimeValues(dr.getTimeString(), layer).get(0);
         
         // Now read the data and calculate the minimum and maximum values
-        List<Float> magnitudes;
+        float[] magnitudes;
         if (layer instanceof ScalarLayer)
         {
-            magnitudes = ((ScalarLayer)layer).readPointList(tValue, zValue, grid);
+            magnitudes = ((ScalarLayer)layer).readPointListAsArray(tValue, zValue, grid);
         }
         else if (layer instanceof VectorLayer)
         {
-            VectorLayer vecLayer = (VectorLayer)layer;
-            List<Float> east = vecLayer.getEastwardComponent().readPointList(tValue, zValue, grid);
-            List<Float> north = vecLayer.getNorthwardComponent().readPointList(tValue, zValue, grid);
-            magnitudes = WmsUtils.getMagnitudes(east, north);
+            // Reads both components together
+            magnitudes = this.serverConfig.readVectorPointLists((VectorLayer)layer,
+                Collections.singletonList(tValue), zValue, grid)[2][0];
         }
         else
         {
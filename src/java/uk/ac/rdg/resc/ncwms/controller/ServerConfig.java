@@ -34,12 +34,14 @@ import java.util.Map;
 import java.util.Set;
 import org.joda.time.DateTime;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalGrid;
+import uk.ac.rdg.resc.ncwms.coords.PointList;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.exceptions.LayerNotDefinedException;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
 import uk.ac.rdg.resc.ncwms.wms.Dataset;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 import uk.ac.rdg.resc.ncwms.wms.ScalarLayer;
+import uk.ac.rdg.resc.ncwms.wms.VectorLayer;
 
 /**
  * Top-level configuration object that contains metadata about the server itself
@@ -105,6 +107,101 @@ public interface ServerConfig
         double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
         throws InvalidDimensionValueException, IOException;
 
+    /**
+     * Reads a grid of data from the given layer, used by the GetMap operation.
+     * This is equivalent to {@link #readDataGrid(uk.ac.rdg.resc.ncwms.wms.ScalarLayer,
+     * org.joda.time.DateTime, double, uk.ac.rdg.resc.ncwms.coords.HorizontalGrid,
+     * uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry) readDataGrid()}, except
+     * that the data are returned as an array of primitive floats in which
+     * missing values are represented by {@link Float#NaN}.  Many implementations
+     * will simply call {@link ScalarLayer#readPointListAsArray(org.joda.time.DateTime,
+     * double, uk.ac.rdg.resc.ncwms.coords.PointList) layer.readPointListAsArray()}.
+     * If implementations return cached data they must indicate this by setting
+     * {@link UsageLogEntry#setUsedCache(boolean)}.  Callers must not modify
+     * the returned array.
+     * @return an array of data values, one for each point in
+     * the {@code grid}, in the same order.
+     * @throws InvalidDimensionValueException if {@code dateTime} or {@code elevation}
+     * do not represent valid values along the time and elevation axes.
+     * @throws IOException if there was an error reading from the data source
+     */
+    public float[] readDataGridAsArray(ScalarLayer layer, DateTime dateTime,
+        double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
+        throws InvalidDimensionValueException, IOException;
+
+    /**
+     * Reads grids of data from the given layer for a number of times, used
+     * by the GetMap operation to create animations.  This gives the same
+     * results as calling {@link #readDataGridAsArray(uk.ac.rdg.resc.ncwms.wms.ScalarLayer,
+     * org.joda.time.DateTime, double, uk.ac.rdg.resc.ncwms.coords.HorizontalGrid,
+     * uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry) readDataGridAsArray()}
+     * for each time in turn, but implementations may be able to read the
+     * data for many times more efficiently.  If implementations return cached
+     * data for all the times they must indicate this by setting
+     * {@link UsageLogEntry#setUsedCache(boolean)}.  Callers must not modify
+     * the returned arrays.
+     * @param dateTimes The times for which we need data.  If the layer has no
+     * time axis this should be a list containing a single null value.
+     * @return an array of data arrays, one for each of the {@code dateTimes}
+     * in the same order.  Each data array contains one value for each point
+     * in the {@code grid}, in the same order, with NaNs for missing values.
+     * @throws InvalidDimensionValueException if any of the {@code dateTimes}
+     * or {@code elevation} do not represent valid values along the time and
+     * elevation axes.
+     * @throws IOException if there was an error reading from the data source
+     */
+    public float[][] readDataGrids(ScalarLayer layer, List<DateTime> dateTimes,
+        double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
+        throws InvalidDimensionValueException, IOException;
+
+    /**
+     * Reads grids of data from both components of the given vector layer for
+     * a number of times, and calculates the magnitudes of the vectors.  This
+     * gives the same results as calling {@link #readDataGrids(uk.ac.rdg.resc.ncwms.wms.ScalarLayer,
+     * java.util.List, double, uk.ac.rdg.resc.ncwms.coords.HorizontalGrid,
+     * uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry) readDataGrids()} for each
+     * component, but implementations may be able to read both components
+     * together.  If implementations return cached data for all the times
+     * they must indicate this by setting {@link UsageLogEntry#setUsedCache(boolean)}.
+     * Callers must not modify the returned arrays.
+     * @param dateTimes The times for which we need data.  If the layer has no
+     * time axis this should be a list containing a single null value.
+     * @return an array of three elements, containing the eastward components,
+     * the northward components and the magnitudes respectively.  Each element
+     * is an array of data arrays, one for each of the {@code dateTimes} in the
+     * same order, as returned by {@link #readDataGrids(uk.ac.rdg.resc.ncwms.wms.ScalarLayer,
+     * java.util.List, double, uk.ac.rdg.resc.ncwms.coords.HorizontalGrid,
+     * uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry) readDataGrids()}.
+     * @throws InvalidDimensionValueException if any of the {@code dateTimes}
+     * or {@code elevation} do not represent valid values along the time and
+     * elevation axes.
+     * @throws IOException if there was an error reading from the data source
+     */
+    public float[][][] readVectorDataGrids(VectorLayer layer, List<DateTime> dateTimes,
+        double elevation, HorizontalGrid grid, UsageLogEntry usageLogEntry)
+        throws InvalidDimensionValueException, IOException;
+
+    /**
+     * Reads data from both components of the given vector layer at the given
+     * points for a number of times, and calculates the magnitudes of the
+     * vectors.  This is used for operations such as GetFeatureInfo and
+     * transects, whose results are not cached.
+     * @param dateTimes The times for which we need data.  If the layer has no
+     * time axis this should be a list containing a single null value.
+     * @return an array of three elements, containing the eastward components,
+     * the northward components and the magnitudes respectively.  Each element
+     * is an array of data arrays, one for each of the {@code dateTimes} in the
+     * same order.  Each data array contains one value for each point in the
+     * {@code pointList}, in the same order, with NaNs for missing values.
+     * @throws InvalidDimensionValueException if any of the {@code dateTimes}
+     * or {@code elevation} do not represent valid values along the time and
+     * elevation axes.
+     * @throws IOException if there was an error reading from the data source
+     */
+    public float[][][] readVectorPointLists(VectorLayer layer, List<DateTime> dateTimes,
+        double elevation, PointList pointList)
+        throws InvalidDimensionValueException, IOException;
+
     /**
      * Returns the {@link Dataset} with the given unique id, or null if the given
      * id doesn't match a dataset.
@@ -144,6 +241,16 @@ public interface ServerConfig
      */
     public DateTime getLastUpdateTime();
 
+    /**
+     * Returns the date/time at which the administrator last changed the
+     * configuration of this server (e.g. the titles of the server, datasets
+     * and variables), or the time at which the server started if there have
+     * been no changes since.  These changes alter the Capabilities documents
+     * and legends without changing the {@link #getLastUpdateTime() last update
+     * time} of the data, so this is part of their ETags.
+     */
+    public DateTime getLastEditTime();
+
     /**
      * Returns the web address of the organization that is providing this service.
      * @return the web address of the organization that is providing this service.
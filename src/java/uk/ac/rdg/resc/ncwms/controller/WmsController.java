@@ -31,14 +31,17 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -73,13 +76,14 @@ import org.joda.time.DateTime;
 import org.joda.time.chrono.ISOChronology;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.AbstractController;
+import uk.ac.rdg.resc.ncwms.cache.ImageCache;
 import uk.ac.rdg.resc.ncwms.coords.CrsHelper;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalPosition;
 import uk.ac.rdg.resc.ncwms.coords.LonLatPosition;
 import uk.ac.rdg.resc.ncwms.coords.HorizontalGrid;
 import uk.ac.rdg.resc.ncwms.coords.LineString;
-import uk.ac.rdg.resc.ncwms.coords.PixelMap;
 import uk.ac.rdg.resc.ncwms.coords.PointList;
+import uk.ac.rdg.resc.ncwms.coords.TransectPlan;
 import uk.ac.rdg.resc.ncwms.exceptions.CurrentUpdateSequence;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidFormatException;
@@ -95,7 +99,9 @@ import uk.ac.rdg.resc.ncwms.wms.VectorLayer;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
 import uk.ac.rdg.resc.ncwms.graphics.ImageProducer;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
+import uk.ac.rdg.resc.ncwms.util.Lists;
 import uk.ac.rdg.resc.ncwms.util.Range;
+import uk.ac.rdg.resc.ncwms.util.SingleFlight;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Dataset;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
@@ -131,6 +137,11 @@ public class WmsController extends AbstractController {
     private static final int LAYER_LIMIT = 1;
     private static final String FEATURE_INFO_XML_FORMAT = "text/xml";
     private static final String FEATURE_INFO_PNG_FORMAT = "image/png";
+    /**
+     * The time at which this class was loaded, used in ETags for resources
+     * that can change when the server is restarted
+     */
+    private static final long STARTUP_TIME = System.currentTimeMillis();
 
     // This object handles requests for non-standard metadata
     private MetadataController metadataController;
@@ -138,6 +149,11 @@ public class WmsController extends AbstractController {
     // These objects will be injected by Spring
     private ServerConfig serverConfig;
     private UsageLogger usageLogger;
+    private ImageCache imageCache = null; // Optional
+
+    // Coalesces concurrent requests for the same image
+    private final SingleFlight<String, byte[], Exception> imageRenders =
+        new SingleFlight<String, byte[], Exception>();
 
     /**
      * Called automatically by Spring after all the dependencies have been
@@ -200,9 +216,10 @@ public class WmsController extends AbstractController {
             String request = params.getMandatoryString("request");
             usageLogEntry.setWmsOperation(request);
             if (request.equals("GetCapabilities")) {
-                return getCapabilities(params, httpServletRequest, usageLogEntry);
+                return getCapabilities(params, httpServletRequest, httpServletResponse,
+                        usageLogEntry);
             } else if (request.equals("GetMap")) {
-                return getMap(params, httpServletResponse, usageLogEntry);
+                return getMap(params, httpServletRequest, httpServletResponse, usageLogEntry);
             } else if (request.equals("GetFeatureInfo")) {
                 return getFeatureInfo(params, httpServletRequest, httpServletResponse,
                         usageLogEntry);
@@ -218,7 +235,7 @@ public class WmsController extends AbstractController {
             } else if (request.equals("GetLegendGraphic")) {
                 // This is a request for an image that contains the colour scale
                 // and range for a given layer
-                return getLegendGraphic(params, httpServletResponse);
+                return getLegendGraphic(params, httpServletRequest, httpServletResponse);
             /*} else if (request.equals("GetKML")) {
                 // This is a request for a KML document that allows the selected
                 // layer(s) to be displayed in Google Earth in a manner that 
@@ -287,8 +304,8 @@ public class WmsController extends AbstractController {
      * the underlying data store
      */
     protected ModelAndView getCapabilities(RequestParams params,
-            HttpServletRequest httpServletRequest, UsageLogEntry usageLogEntry)
-            throws WmsException, IOException {
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+            UsageLogEntry usageLogEntry) throws WmsException, IOException {
         // Check the SERVICE parameter
         String service = params.getMandatoryString("service");
         if (!service.equals("WMS")) {
@@ -311,6 +328,7 @@ public class WmsController extends AbstractController {
         String datasetId = params.getString("dataset");
         Collection<? extends Dataset> datasets;
         DateTime lastUpdate;
+        int maxAge;
         if (datasetId == null || datasetId.trim().equals("")) {
             // No specific dataset has been chosen so we create a Capabilities
             // document including every dataset.
@@ -327,6 +345,12 @@ public class WmsController extends AbstractController {
             // The last update time for the Capabilities doc is the last time
             // any of the datasets were updated
             lastUpdate = this.serverConfig.getLastUpdateTime();
+            // The document can be cached for as long as all of the datasets
+            maxAge = Integer.MAX_VALUE;
+            for (Dataset ds : datasets) {
+                maxAge = Math.min(maxAge, ds.getCacheMaxAge());
+            }
+            if (datasets.isEmpty()) maxAge = 0;
         } else {
             // Look for this dataset
             Dataset ds = this.serverConfig.getDatasetById(datasetId);
@@ -340,6 +364,7 @@ public class WmsController extends AbstractController {
             // The last update time for the Capabilities doc is the last time
             // this particular dataset was updated
             lastUpdate = ds.getLastUpdateTime();
+            maxAge = ds.getCacheMaxAge();
         }
 
         // Do UPDATESEQUENCE negotiation according to WMS 1.3.0 spec (sec 7.2.3.5)
@@ -366,6 +391,28 @@ public class WmsController extends AbstractController {
             }
         }
 
+        // We take the version to be 1.3.0 if not specified
+        WmsVersion wmsVersion = versionStr == null
+                ? WmsVersion.VERSION_1_3_0
+                : new WmsVersion(versionStr);
+        boolean sendVersion1_3_0 = wmsVersion.compareTo(WmsVersion.VERSION_1_3_0) >= 0;
+
+        // See if the client already has the current document.  The document
+        // contains the URL of this server, so this is part of the ETag.  It
+        // also changes when the administrator edits the configuration.
+        String etag = null;
+        DateTime lastModified = null;
+        if (lastUpdate != null) {
+            DateTime lastEdit = this.serverConfig.getLastEditTime();
+            lastModified = getLatest(lastUpdate, lastEdit);
+            etag = createETag(STARTUP_TIME, lastEdit.getMillis(), datasetId,
+                lastUpdate.getMillis(), sendVersion1_3_0,
+                httpServletRequest.getRequestURL());
+            if (checkNotModified(httpServletRequest, httpServletResponse, etag, lastModified, maxAge)) {
+                return null;
+            }
+        }
+
         Map<String, Object> models = new HashMap<String, Object>();
         models.put("config", this.serverConfig);
         models.put("datasets", datasets);
@@ -400,11 +447,8 @@ public class WmsController extends AbstractController {
         //   version it supports that is less than the requested version.
         // * If a version lower than any of those known to the server is requested,
         //   then the server shall send the lowest version it supports.
-        // We take the version to be 1.3.0 if not specified
-        WmsVersion wmsVersion = versionStr == null
-                ? WmsVersion.VERSION_1_3_0
-                : new WmsVersion(versionStr);
-        if (wmsVersion.compareTo(WmsVersion.VERSION_1_3_0) >= 0) {
+        setCacheHeaders(httpServletResponse, etag, lastModified, lastUpdate == null ? 0 : maxAge);
+        if (sendVersion1_3_0) {
             // version is >= 1.3.0. Send 1.3.0 Capabilities
             return new ModelAndView("capabilities_xml", models);
         } else {
@@ -441,8 +485,8 @@ public class WmsController extends AbstractController {
      * @todo Separate Model and View code more cleanly
      */
     protected ModelAndView getMap(RequestParams params,
-            HttpServletResponse httpServletResponse, UsageLogEntry usageLogEntry)
-            throws WmsException, Exception {
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+            final UsageLogEntry usageLogEntry) throws WmsException, Exception {
         // Parse the URL parameters
         GetMapRequest getMapRequest = new GetMapRequest(params);
         GetMapStyleRequest styleRequest = getMapRequest.getStyleRequest();
@@ -451,16 +495,16 @@ public class WmsController extends AbstractController {
         // Get the ImageFormat object corresponding with the requested MIME type
         String mimeType = getMapRequest.getStyleRequest().getImageFormat();
         // This throws an InvalidFormatException if the MIME type is not supported
-        ImageFormat imageFormat = ImageFormat.get(mimeType);
+        final ImageFormat imageFormat = ImageFormat.get(mimeType);
 
-        GetMapDataRequest dr = getMapRequest.getDataRequest();
+        final GetMapDataRequest dr = getMapRequest.getDataRequest();
         String[] layers = dr.getLayers();
         if (layers.length > LAYER_LIMIT) {
             throw new WmsException("You may only request a maximum of " +
                 WmsController.LAYER_LIMIT + " layer(s) simultaneously from this server");
         }
         // TODO: support more than one layer (superimposition, difference, mask)
-        Layer layer = this.serverConfig.getLayerByUniqueName(layers[0]);
+        final Layer layer = this.serverConfig.getLayerByUniqueName(layers[0]);
         usageLogEntry.setLayer(layer);
 
         // Check the dimensions of the image
@@ -472,12 +516,12 @@ public class WmsController extends AbstractController {
         }
 
         // Get the grid onto which the data will be projected
-        HorizontalGrid grid = new HorizontalGrid(dr.getCrsCode(), dr.getWidth(),
+        final HorizontalGrid grid = new HorizontalGrid(dr.getCrsCode(), dr.getWidth(),
                 dr.getHeight(), dr.getBbox());
 
         // Create an object that will turn data into BufferedImages
         String[] styles = styleRequest.getStyles();
-        ImageProducer imageProducer = new ImageProducer.Builder()
+        final ImageProducer imageProducer = new ImageProducer.Builder()
             .layer(layer)
             .width(dr.getWidth())
             .height(dr.getHeight())
@@ -500,31 +544,125 @@ public class WmsController extends AbstractController {
                     " does not support partially-transparent pixels");
         }
 
-        double zValue = getElevationValue(dr.getElevationString(), layer);
+        final double zValue = getElevationValue(dr.getElevationString(), layer);
 
-        // Cycle through all the provided timesteps, extracting data for each step
-        List<String> tValueStrings = new ArrayList<String>();
-        List<DateTime> timeValues = getTimeValues(dr.getTimeString(), layer);
+        final List<DateTime> timeValues = getTimeValues(dr.getTimeString(), layer);
         if (timeValues.size() > 1 && !imageFormat.supportsMultipleFrames()) {
             throw new WmsException("The image format " + mimeType +
                     " does not support multiple frames");
         }
         usageLogEntry.setNumTimeSteps(timeValues.size());
+
+        // See if the client already has this image.  This is answered from
+        // the metadata alone, before any data are read.
+        final String imageKey = getImageKey(layer, dr, mimeType, zValue,
+            timeValues, imageProducer);
+        String etag = createETag(imageKey);
+        Dataset dataset = layer.getDataset();
+        if (checkNotModified(httpServletRequest, httpServletResponse, etag,
+                dataset.getLastUpdateTime(), dataset.getCacheMaxAge())) {
+            return null;
+        }
+
+        // See if we have already produced this image
+        if (this.imageCache != null) {
+            byte[] image = this.imageCache.get(imageKey);
+            if (image != null) {
+                usageLogEntry.setUsedCache(true);
+                setGetMapHeaders(httpServletResponse, mimeType, imageFormat, layer, etag);
+                httpServletResponse.setContentLength(image.length);
+                httpServletResponse.getOutputStream().write(image);
+                return null;
+            }
+        }
+
+        // Render the images and write to the output stream.  If the image
+        // might fit in the image cache (encoded images are usually smaller
+        // than one byte per pixel) we encode it in memory first.
+        long numPixels = (long)dr.getWidth() * dr.getHeight() * timeValues.size();
+        if (this.imageCache != null && this.imageCache.accepts(numPixels)) {
+            // If another thread is already producing the same image, we
+            // wait for its result rather than producing it again
+            byte[] image = this.imageRenders.execute(imageKey,
+                new SingleFlight.Task<byte[], Exception>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        renderMap(layer, dr, grid, zValue, timeValues,
+                            imageProducer, imageFormat, usageLogEntry, bytes);
+                        byte[] image = bytes.toByteArray();
+                        imageCache.put(imageKey, image);
+                        return image;
+                    }
+                }
+            );
+            setGetMapHeaders(httpServletResponse, mimeType, imageFormat, layer, etag);
+            httpServletResponse.setContentLength(image.length);
+            httpServletResponse.getOutputStream().write(image);
+        } else {
+            // We read the data before setting the headers, so that they are
+            // not sent with an exception report if the data can't be read
+            List<String> tValueStrings = readFrames(layer, grid, zValue,
+                timeValues, imageProducer, usageLogEntry);
+            setGetMapHeaders(httpServletResponse, mimeType, imageFormat, layer, etag);
+            writeMap(layer, dr, grid, tValueStrings, imageProducer, imageFormat,
+                httpServletResponse.getOutputStream());
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the data for a GetMap request, renders the image(s) and writes
+     * them to the given stream in the requested format.
+     */
+    private void renderMap(Layer layer, GetMapDataRequest dr, HorizontalGrid grid,
+            double zValue, List<DateTime> timeValues, ImageProducer imageProducer,
+            ImageFormat imageFormat, UsageLogEntry usageLogEntry, OutputStream out)
+            throws Exception {
+        List<String> tValueStrings = readFrames(layer, grid, zValue, timeValues,
+            imageProducer, usageLogEntry);
+        writeMap(layer, dr, grid, tValueStrings, imageProducer, imageFormat, out);
+    }
+
+    /**
+     * Reads the data for a GetMap request and adds a frame to the given
+     * ImageProducer for each time value.
+     * @return the label of each frame
+     */
+    private List<String> readFrames(Layer layer, HorizontalGrid grid,
+            double zValue, List<DateTime> timeValues, ImageProducer imageProducer,
+            UsageLogEntry usageLogEntry) throws Exception {
+        List<String> tValueStrings = new ArrayList<String>();
         long beforeExtractData = System.currentTimeMillis();
-        for (DateTime timeValue : timeValues) {
-            // A List<Float> for each component of a vector quantity, although
-            // we only use the first component for scalars.
-            List<List<Float>> picData = new ArrayList<List<Float>>(2);
-            if (layer instanceof ScalarLayer) {
-                // Note that if the layer doesn't have a time axis, timeValue==null but this
-                // will be ignored by readPointList()
-                picData.add(this.serverConfig.readDataGrid((ScalarLayer)layer, timeValue, zValue, grid, usageLogEntry));
-            } else if (layer instanceof VectorLayer) {
-                VectorLayer vecLayer = (VectorLayer)layer;
-                picData.add(this.serverConfig.readDataGrid(vecLayer.getEastwardComponent(),  timeValue, zValue, grid, usageLogEntry));
-                picData.add(this.serverConfig.readDataGrid(vecLayer.getNorthwardComponent(), timeValue, zValue, grid, usageLogEntry));
-            } else {
-                throw new IllegalStateException("Unrecognized layer type");
+        // Read the data for all the timesteps at once, so that the data for
+        // an animation can be read efficiently.  We have an array of grids
+        // for each component of a vector quantity, although we only use the
+        // first component for scalars.  The magnitudes are passed to the
+        // ImageProducer so that it doesn't have to calculate them again.
+        // Note that if the layer doesn't have a time axis, timeValues will
+        // contain a single null value but this will be ignored by readDataGrids()
+        float[][][] componentData;
+        float[][] magnitudes;
+        if (layer instanceof ScalarLayer) {
+            magnitudes = this.serverConfig.readDataGrids((ScalarLayer)layer,
+                timeValues, zValue, grid, usageLogEntry);
+            componentData = new float[][][] { magnitudes };
+        } else if (layer instanceof VectorLayer) {
+            // Reads both components together
+            float[][][] vecData = this.serverConfig.readVectorDataGrids((VectorLayer)layer,
+                timeValues, zValue, grid, usageLogEntry);
+            componentData = new float[][][] { vecData[0], vecData[1] };
+            magnitudes = vecData[2];
+        } else {
+            throw new IllegalStateException("Unrecognized layer type");
+        }
+
+        for (int t = 0; t < timeValues.size(); t++) {
+            DateTime timeValue = timeValues.get(t);
+            float[][] picData = new float[componentData.length][];
+            for (int c = 0; c < componentData.length; c++) {
+                picData[c] = componentData[c][t];
             }
 
             // Only add a label if this is part of an animation
@@ -533,29 +671,171 @@ public class WmsController extends AbstractController {
                 tValueStr = WmsUtils.dateTimeToISO8601(timeValue);
             }
             tValueStrings.add(tValueStr);
-            imageProducer.addFrame(picData, tValueStr); // the tValue is the label for the image
+            // the tValue is the label for the image
+            imageProducer.addFrame(picData, magnitudes[t], tValueStr);
         }
         long timeToExtractData = System.currentTimeMillis() - beforeExtractData;
         usageLogEntry.setTimeToExtractDataMs(timeToExtractData);
+        return tValueStrings;
+    }
 
+    /**
+     * Renders the frames that have been added to the given ImageProducer and
+     * writes them to the given stream in the requested format.
+     */
+    private static void writeMap(Layer layer, GetMapDataRequest dr,
+            HorizontalGrid grid, List<String> tValueStrings,
+            ImageProducer imageProducer, ImageFormat imageFormat, OutputStream out)
+            throws Exception {
         // We only create a legend object if the image format requires it
         BufferedImage legend = imageFormat.requiresLegend() ? imageProducer.getLegend() : null;
 
-        // Write the image to the client.
-        // First we set the HTTP headers
+        imageFormat.writeImage(imageProducer.getRenderedFrames(),
+                out, layer, tValueStrings,
+                dr.getElevationString(), grid.getBbox(), legend);
+    }
+
+    /**
+     * Sets the HTTP headers for a successful GetMap response
+     */
+    private static void setGetMapHeaders(HttpServletResponse httpServletResponse,
+            String mimeType, ImageFormat imageFormat, Layer layer, String etag) {
         httpServletResponse.setStatus(HttpServletResponse.SC_OK);
         httpServletResponse.setContentType(mimeType);
+        Dataset dataset = layer.getDataset();
+        setCacheHeaders(httpServletResponse, etag, dataset.getLastUpdateTime(),
+            dataset.getCacheMaxAge());
         // If this is a KMZ file give it a sensible filename
         if (imageFormat instanceof KmzFormat) {
             httpServletResponse.setHeader("Content-Disposition", "inline; filename=" +
                     layer.getDataset().getId() + "_" + layer.getId() + ".kmz");
         }
-        // Render the images and write to the output stream
-        imageFormat.writeImage(imageProducer.getRenderedFrames(),
-                httpServletResponse.getOutputStream(), layer, tValueStrings,
-                dr.getElevationString(), grid.getBbox(), legend);
+    }
 
-        return null;
+    /**
+     * Creates a strong ETag by hashing the string representations of the
+     * given objects (which may be null).  A 64-bit hash makes it very
+     * unlikely that two versions of the same resource share an ETag.
+     */
+    private static String createETag(Object... parts) {
+        // 64-bit FNV-1a hash
+        long hash = 0xcbf29ce484222325L;
+        for (Object part : parts) {
+            String str = String.valueOf(part);
+            for (int i = 0; i < str.length(); i++) {
+                hash = (hash ^ str.charAt(i)) * 0x100000001b3L;
+            }
+            hash = (hash ^ ';') * 0x100000001b3L;
+        }
+        return "\"" + Long.toHexString(hash) + "\"";
+    }
+
+    /**
+     * @return the later of the two given times, either of which may be null
+     */
+    private static DateTime getLatest(DateTime time1, DateTime time2) {
+        if (time1 == null) return time2;
+        if (time2 == null) return time1;
+        return time1.isAfter(time2) ? time1 : time2;
+    }
+
+    /**
+     * Sets the ETag, Last-Modified and Cache-Control headers on the response.
+     * This must only be called when the resource is about to be sent (or
+     * from {@link #checkNotModified checkNotModified()}), so that the
+     * headers are not sent with an exception report.
+     * @param etag The ETag of the resource, or null if not known
+     * @param lastModified The time at which the resource was last modified,
+     * or null if not known
+     * @param maxAge The number of seconds for which clients and caches may
+     * use the resource without checking that it is up to date
+     */
+    private static void setCacheHeaders(HttpServletResponse response,
+            String etag, DateTime lastModified, int maxAge) {
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+        }
+        if (lastModified != null) {
+            response.setDateHeader("Last-Modified", lastModified.getMillis());
+        }
+        response.setHeader("Cache-Control", maxAge > 0 ? "max-age=" + maxAge : "no-cache");
+    }
+
+    /**
+     * Checks the given ETag and last-modified time against the If-None-Match
+     * and If-Modified-Since headers of the request.  If the client's copy of
+     * the resource is up to date, sets the status of the response to
+     * 304 (Not Modified), sets the {@link #setCacheHeaders cache headers} and
+     * returns true, in which case the caller must not write anything else to
+     * the response.  Otherwise leaves the response untouched: the caller
+     * sets the cache headers when it sends the resource.
+     * @param etag The ETag of the resource, or null if not known
+     * @param lastModified The time at which the resource was last modified,
+     * or null if not known
+     * @param maxAge The number of seconds for which clients and caches may
+     * use the resource without checking that it is up to date
+     */
+    private static boolean checkNotModified(HttpServletRequest request,
+            HttpServletResponse response, String etag, DateTime lastModified,
+            int maxAge) {
+        boolean notModified = false;
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored if If-None-Match is present
+            if (etag != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if (tag.equals("*") || tag.equals(etag)) {
+                        notModified = true;
+                        break;
+                    }
+                }
+            }
+        } else if (lastModified != null) {
+            long ifModifiedSince;
+            try {
+                ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            } catch (IllegalArgumentException iae) {
+                ifModifiedSince = -1; // Unparseable date: ignore the header
+            }
+            // HTTP dates have a resolution of one second
+            notModified = ifModifiedSince >= 0 &&
+                lastModified.getMillis() / 1000 <= ifModifiedSince / 1000;
+        }
+        if (notModified) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            setCacheHeaders(response, etag, lastModified, maxAge);
+        }
+        return notModified;
+    }
+
+    /**
+     * Creates a key that identifies a GetMap image, for the {@link ImageCache}
+     * and the ETag of the response.  The key is created from the GetMap parameters
+     * after defaults have been applied and values have been parsed, so that
+     * requests that differ only in the way the parameters are written will
+     * share the same image.  The key includes the time at which the dataset
+     * was last updated, so that images are not reused after the dataset has
+     * been reloaded.
+     */
+    private static String getImageKey(Layer layer, GetMapDataRequest dr,
+            String mimeType, double zValue, List<DateTime> timeValues,
+            ImageProducer imageProducer) {
+        DateTime lastUpdate = layer.getDataset().getLastUpdateTime();
+        StringBuilder sb = new StringBuilder();
+        sb.append(layer.getName());
+        sb.append(';').append(lastUpdate == null ? "-" : String.valueOf(lastUpdate.getMillis()));
+        sb.append(';').append(dr.getCrsCode().toUpperCase(Locale.ROOT));
+        sb.append(';').append(Arrays.toString(dr.getBbox()));
+        sb.append(';').append(mimeType.toLowerCase(Locale.ROOT));
+        // The elevation string is used in the labels for some formats
+        sb.append(';').append(zValue).append(';').append(dr.getElevationString());
+        sb.append(';');
+        for (DateTime timeValue : timeValues) {
+            sb.append(timeValue == null ? "-" : String.valueOf(timeValue.getMillis())).append(',');
+        }
+        sb.append(';').append(imageProducer.getSettingsDescription());
+        return sb.toString();
     }
 
     /**
@@ -630,10 +910,15 @@ public class WmsController extends AbstractController {
         if (layer instanceof ScalarLayer) {
             tsData = ((ScalarLayer)layer).readTimeseries(tValues, zValue, lonLat);
         } else if (layer instanceof VectorLayer) {
-            VectorLayer vecLayer = (VectorLayer)layer;
-            List<Float> tsDataEast  = vecLayer.getEastwardComponent() .readTimeseries(tValues, zValue, lonLat);
-            List<Float> tsDataNorth = vecLayer.getNorthwardComponent().readTimeseries(tValues, zValue, lonLat);
-            tsData = WmsUtils.getMagnitudes(tsDataEast, tsDataNorth);
+            // Reads both components together, treating the point as a
+            // single-element PointList
+            float[][] magnitudes = this.serverConfig.readVectorPointLists((VectorLayer)layer,
+                tValues, zValue, PointList.fromPoint(lonLat))[2];
+            tsData = new ArrayList<Float>(magnitudes.length);
+            for (float[] magnitude : magnitudes) {
+                // Missing values are represented as nulls in the List
+                tsData.add(Float.isNaN(magnitude[0]) ? null : magnitude[0]);
+            }
         } else {
             throw new IllegalStateException("Unrecognized layer type");
         }
@@ -770,6 +1055,7 @@ public class WmsController extends AbstractController {
      * a given Layer
      */
     private ModelAndView getLegendGraphic(RequestParams params,
+            HttpServletRequest httpServletRequest,
             HttpServletResponse httpServletResponse) throws Exception {
         BufferedImage legend;
 
@@ -777,6 +1063,9 @@ public class WmsController extends AbstractController {
         int numColourBands = GetMapStyleRequest.getNumColourBands(params);
 
         String paletteName = params.getString("palette");
+        String etag;
+        DateTime lastModified = null;
+        int maxAge = 0;
 
         // Find out if we just want the colour bar with no supporting text
         String colorBarOnly = params.getString("colorbaronly", "false");
@@ -787,6 +1076,12 @@ public class WmsController extends AbstractController {
             int height = params.getPositiveInt("height", 200);
             // Find the requested colour palette, or use the default if not set
             ColorPalette palette = ColorPalette.get(paletteName);
+            // The colour bar depends only on the parameters and the palettes,
+            // which are loaded when the server starts
+            etag = createETag(STARTUP_TIME, palette.getName(), width, height, numColourBands);
+            if (checkNotModified(httpServletRequest, httpServletResponse, etag, null, 0)) {
+                return null;
+            }
             legend = palette.createColorBar(width, height, numColourBands);
         } else {
             // We're creating a legend with supporting text so we need to know
@@ -815,9 +1110,25 @@ public class WmsController extends AbstractController {
                     + "the scale extremes explicitly.");
             }
 
+            // The legend shows the title and units of the layer, which the
+            // administrator can change without reloading the dataset
+            Dataset dataset = layer.getDataset();
+            DateTime lastUpdate = dataset.getLastUpdateTime();
+            DateTime lastEdit = this.serverConfig.getLastEditTime();
+            lastModified = getLatest(lastUpdate, lastEdit);
+            maxAge = dataset.getCacheMaxAge();
+            etag = createETag(STARTUP_TIME, lastEdit.getMillis(), layer.getName(),
+                lastUpdate == null ? null : lastUpdate.getMillis(), palette.getName(),
+                numColourBands, logarithmic, colorScaleRange);
+            if (checkNotModified(httpServletRequest, httpServletResponse, etag,
+                    lastModified, maxAge)) {
+                return null;
+            }
+
             // Now create the legend image
             legend = palette.createLegend(numColourBands, layer, logarithmic, colorScaleRange);
         }
+        setCacheHeaders(httpServletResponse, etag, lastModified, maxAge);
         httpServletResponse.setContentType("image/png");
         ImageIO.write(legend, "png", httpServletResponse.getOutputStream());
 
@@ -978,22 +1289,25 @@ public class WmsController extends AbstractController {
         final LineString transect = new LineString(lineString, crsHelper);
         log.debug("Got {} control points", transect.getControlPoints().size());
 
-        // Find the optimal number of points to sample the layer's source grid
-        PointList pointList = getOptimalTransectPointList(layer, transect);
+        // Find the cells of the layer's source grid that are crossed by the
+        // transect, so that we sample each one once
+        TransectPlan transectPlan = TransectPlan.create(transect, layer.getHorizontalCoordSys());
+        PointList pointList = transectPlan.getPointList();
         log.debug("Using transect consisting of {} points", pointList.size());
 
         // Read the data from the data source, without using the tile cache
-        List<Float> transectData;
+        float[] transectArray;
         if (layer instanceof ScalarLayer) {
-            transectData = ((ScalarLayer)layer).readPointList(tValue, zValue, pointList);
+            transectArray = ((ScalarLayer)layer).readPointListAsArray(tValue, zValue, pointList);
         } else if (layer instanceof VectorLayer) {
-            VectorLayer vecLayer = (VectorLayer)layer;
-            List<Float> tsDataEast  = vecLayer.getEastwardComponent() .readPointList(tValue, zValue, pointList);
-            List<Float> tsDataNorth = vecLayer.getNorthwardComponent().readPointList(tValue, zValue, pointList);
-            transectData = WmsUtils.getMagnitudes(tsDataEast, tsDataNorth);
+            // Reads both components together
+            transectArray = this.serverConfig.readVectorPointLists((VectorLayer)layer,
+                Collections.singletonList(tValue), zValue, pointList)[2][0];
         } else {
             throw new IllegalStateException("Unrecognized layer type");
         }
+        // Missing values are represented as nulls in the List
+        List<Float> transectData = Lists.fromDataArray(transectArray);
         log.debug("Transect: Got {} dataValues", transectData.size());
 
         // Now output the data in the selected format
@@ -1001,7 +1315,7 @@ public class WmsController extends AbstractController {
         if (outputFormat.equals(FEATURE_INFO_PNG_FORMAT)) {
             XYSeries series = new XYSeries("data", true); // TODO: more meaningful title
             for (int i = 0; i < transectData.size(); i++) {
-                series.add(i, transectData.get(i));
+                series.add(transectPlan.getDistance(i), transectData.get(i));
             }
 
             XYSeriesCollection xySeriesColl = new XYSeriesCollection();
@@ -1009,7 +1323,7 @@ public class WmsController extends AbstractController {
 
             JFreeChart chart = ChartFactory.createXYLineChart(
                     "Transect for " + layer.getTitle(), // title
-                    "distance along transect (arbitrary units)", // TODO more meaningful x axis label
+                    "distance along transect (" + crsHelper.getUnits() + ")",
                     layer.getTitle() + " (" + layer.getUnits() + ")",
                     xySeriesColl,
                     PlotOrientation.VERTICAL,
@@ -1042,7 +1356,7 @@ public class WmsController extends AbstractController {
                     log.debug("prevCtrlPointDistance " + prevCtrlPointDistance);
                     log.debug("ctrlPointDistance " + ctrlPointDistance);
                     //determine start end end value for marker based on index of ctrl point
-                    IntervalMarker target = new IntervalMarker(transectData.size() * prevCtrlPointDistance, transectData.size() * ctrlPointDistance);
+                    IntervalMarker target = new IntervalMarker(transect.getPathLength() * prevCtrlPointDistance, transect.getPathLength() * ctrlPointDistance);
                     // TODO: printing to two d.p. not always appropriate
                     target.setLabel("[" + printTwoDecimals(transect.getControlPoints().get(i - 1).getY()) + "," + printTwoDecimals(transect.getControlPoints().get(i - 1).getX()) + "]");
                     target.setLabelFont(new Font("SansSerif", Font.ITALIC, 11));
@@ -1099,52 +1413,6 @@ public class WmsController extends AbstractController {
         return twoDForm.format(d);
     }
 
-    /**
-     * Gets a PointList that contains (near) the minimum necessary number of
-     * points to sample a layer's source grid of data.  That is to say,
-     * creating a PointList at higher resolution would not result in sampling
-     * significantly more points in the layer's source grid.
-     * @param layer The layer for which the transect will be generated
-     * @param transect The transect as specified in the request
-     * @return a PointList that contains (near) the minimum necessary number of
-     * points to sample a layer's source grid of data.
-     */
-    private static PointList getOptimalTransectPointList(Layer layer,
-            LineString transect) throws Exception {
-        // We need to work out how many points we need to include in order to
-        // completely sample the data grid (i.e. we need the resolution of the
-        // points to be higher than that of the data grid).  It's hard to work
-        // this out neatly (data grids can be irregular) but we can estimate
-        // this by creating transects at progressively higher resolution, and
-        // working out how many grid points will be sampled.
-        int numTransectPoints = 500; // a bit more than the final image width
-        int lastNumGridPointsSampled = -1;
-        PointList pointList = null;
-        while (true) {
-            // Create a transect with the required number of points, interpolating
-            // between the control points in the line string
-            List<HorizontalPosition> points = transect.getPointsOnPath(numTransectPoints);
-            // Create a PointList from the interpolated points
-            PointList testPointList = PointList.fromList(points, transect.getCrsHelper());
-            // Work out how many grid points will be sampled by this transect
-            int numGridPointsSampled =
-                new PixelMap(layer.getHorizontalCoordSys(), testPointList).getNumUniqueIJPairs();
-            log.debug("With {} transect points, we'll sample {} grid points",
-                    numTransectPoints, numGridPointsSampled);
-            // If this increase in resolution results in at least 10% more points
-            // being sampled we'll go around the loop again
-            if (numGridPointsSampled > lastNumGridPointsSampled * 1.1) {
-                // We need to increase the transect resolution and try again
-                lastNumGridPointsSampled = numGridPointsSampled;
-                numTransectPoints += 500;
-                pointList = testPointList;
-            } else {
-                // We've gained little advantage by the last resolution increase
-                return pointList;
-            }
-        }
-    }
-
     /**
      * Gets the elevation value requested by the client.
      * @param zValue the value of the ELEVATION string from the request
@@ -1306,6 +1574,14 @@ public class WmsController extends AbstractController {
         this.usageLogger = usageLogger;
     }
 
+    /**
+     * Called by Spring to inject the cache of GetMap images.  If this is not
+     * set, images will not be cached.
+     */
+    public void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
     /**
      * Represents a WMS version number.
      */
@@ -30,8 +30,11 @@ package uk.ac.rdg.resc.ncwms.coords;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.geotoolkit.referencing.CRS;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.opengis.referencing.FactoryException;
@@ -64,10 +67,24 @@ public final class CrsHelper {
      */
     public static final CrsHelper CRS_84;
 
-    /** Cache of CrsHelper objects */
+    /** Cache of CrsHelper objects.  Access is synchronized on this class. */
     private static final Map<CoordinateReferenceSystem, CrsHelper> CACHE =
             new HashMap<CoordinateReferenceSystem, CrsHelper>();
 
+    /**
+     * Cache of CrsHelper objects, keyed by {@link #normalizeCode normalized}
+     * CRS code, which saves us from calling
+     * {@link CRS#decode(java.lang.String, boolean)} on every request.  This is
+     * read on every request so it is not locked.  Only valid codes are
+     * added and there are at most {@link #MAX_CACHED_CODES} of them, so that
+     * clients can't fill it with different spellings of codes.
+     */
+    private static final ConcurrentMap<String, CrsHelper> CODE_CACHE =
+            new ConcurrentHashMap<String, CrsHelper>();
+
+    /** The maximum number of entries in the {@link #CODE_CACHE} */
+    private static final int MAX_CACHED_CODES = 1000;
+
     static {
         try {
             CRS_84 = fromCrs(DefaultGeographicCRS.WGS84);
@@ -91,15 +108,36 @@ public final class CrsHelper {
      * @throws InvalidCrsException if the CRS code is not recognized
      */
     public static CrsHelper fromCrsCode(String crsCode) throws InvalidCrsException {
+        String key = normalizeCode(crsCode);
+        CrsHelper crsHelper = CODE_CACHE.get(key);
+        if (crsHelper != null) return crsHelper;
+        // Decoding can be slow so we do it without holding any lock: two
+        // threads might decode the same code but only one result is kept
         try
         {
             // The "true" means "force longitude-first"
-            return fromCrs(CRS.decode(crsCode, true));
+            crsHelper = fromCrs(CRS.decode(crsCode, true));
         }
         catch (Exception e)
         {
             throw new InvalidCrsException(crsCode);
         }
+        if (CODE_CACHE.size() < MAX_CACHED_CODES)
+        {
+            CrsHelper existing = CODE_CACHE.putIfAbsent(key, crsHelper);
+            if (existing != null) return existing;
+        }
+        return crsHelper;
+    }
+
+    /**
+     * Normalizes the given CRS code so that codes that differ only in case
+     * or surrounding whitespace (e.g. "epsg:4326" and "EPSG:4326"), which
+     * the CRS factories treat as the same, share an entry in the
+     * {@link #CODE_CACHE}.
+     */
+    private static String normalizeCode(String crsCode) {
+        return crsCode.trim().toUpperCase(Locale.ENGLISH);
     }
 
     /**
@@ -108,7 +146,7 @@ public final class CrsHelper {
      * @throws IllegalArgumentException if the CRS code is not a 2D CRS
      * @todo could do other checks on the incoming CRS.
      */
-    public static CrsHelper fromCrs(CoordinateReferenceSystem crs)
+    public static synchronized CrsHelper fromCrs(CoordinateReferenceSystem crs)
     {
         if (crs.getCoordinateSystem().getDimension() != 2)
         {
@@ -195,6 +233,48 @@ public final class CrsHelper {
         return this.crsToLonLat(point.getX(), point.getY());
     }
 
+    /**
+     * <p>Transforms an array of x-y points in this
+     * {@link #getCoordinateReferenceSystem() CRS} to longitude-latitude, in place.
+     * The array holds the points as interleaved pairs (x0, y0, x1, y1, ...);
+     * on return it holds (lon0, lat0, lon1, lat1, ...).  Points that are not
+     * {@link #isPointValidForCrs(double, double) valid} for this CRS are set to
+     * NaN.</p>
+     * <p>This is much cheaper than calling {@link #crsToLonLat(double, double)}
+     * for each point as no objects are created per point and the whole array
+     * is passed to the underlying {@link MathTransform} in one call.  Note that,
+     * unlike the single-point methods, the longitudes are not constrained to
+     * any particular range.</p>
+     * @param xy Array of interleaved x-y pairs, which will be overwritten
+     * @param numPoints The number of points (i.e. pairs) to transform, starting
+     * at the beginning of the array
+     * @throws TransformException if the required transformation could not be performed
+     */
+    public void crsToLonLat(double[] xy, int numPoints) throws TransformException
+    {
+        CoordinateSystemAxis xAxis = this.crs.getCoordinateSystem().getAxis(0);
+        CoordinateSystemAxis yAxis = this.crs.getCoordinateSystem().getAxis(1);
+        double xMin = xAxis.getMinimumValue();
+        double xMax = xAxis.getMaximumValue();
+        double yMin = yAxis.getMinimumValue();
+        double yMax = yAxis.getMaximumValue();
+        for (int i = 0; i < 2 * numPoints; i += 2)
+        {
+            double x = xy[i];
+            double y = xy[i + 1];
+            if (!(x >= xMin && x <= xMax && y >= yMin && y <= yMax))
+            {
+                xy[i] = Double.NaN;
+                xy[i + 1] = Double.NaN;
+            }
+        }
+        // NaNs pass straight through the transform
+        if (!this.isLatLon && numPoints > 0)
+        {
+            this.crsToLonLat.transform(xy, 0, xy, 0, numPoints);
+        }
+    }
+
     /**
      * Transforms the given LatLonPoint to an x-y point in this
      * {@link #getCoordinateReferenceSystem() CRS}.
@@ -224,6 +304,17 @@ public final class CrsHelper {
         return new HorizontalPositionImpl(point[0], point[1]);
     }
 
+    /**
+     * @return the units of the horizontal axes of this crs (e.g. "m"), which
+     * are also the units of distances in this crs.  Lat-lon crss are in
+     * "degrees".
+     */
+    public String getUnits()
+    {
+        if (this.isLatLon) return "degrees";
+        return this.crs.getCoordinateSystem().getAxis(0).getUnit().toString();
+    }
+
     /**
      * @return true if this crs is lat-lon
      */
@@ -30,6 +30,9 @@ package uk.ac.rdg.resc.ncwms.coords;
 
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -79,10 +82,19 @@ final class CurvilinearGrid implements Iterable<Cell>
         of size ni*nj */
     private final float[] latitudes;
 
-    /** The longitudes of the corners of the grid cells */
-    private final ArrayFloat.D2 cornerLons;
-    /** The latitudes of the corners of the grid cells */
-    private final ArrayFloat.D2 cornerLats;
+    /** The longitudes of the corners of the grid cells, flattened to a 1D
+        array of size (ni+1)*(nj+1) */
+    private final float[] cornerLons;
+    /** The latitudes of the corners of the grid cells, flattened to a 1D
+        array of size (ni+1)*(nj+1) */
+    private final float[] cornerLats;
+
+    /** The offsets of a cell and its edge and corner neighbours in the i
+        direction, in the order used by {@link #findContainingCell} */
+    private static final int[] NEIGHBOUR_DI = {0, -1, 0, 1, 0, -1, 1, 1, -1};
+    /** The offsets of a cell and its edge and corner neighbours in the j
+        direction, in the order used by {@link #findContainingCell} */
+    private static final int[] NEIGHBOUR_DJ = {0, 0, -1, 0, 1, -1, -1, 1, 1};
     /** The lat-lon bounding box of the grid */
     private final GeographicBoundingBox latLonBbox;
 
@@ -173,12 +185,56 @@ final class CurvilinearGrid implements Iterable<Cell>
 
         // Calculate the corners of the grid cells
         logger.debug("Making longitude corners");
-        this.cornerLons = makeCorners(this.longitudes, true);
+        this.cornerLons = (float[])makeCorners(this.longitudes, true).getStorage();
         logger.debug("Making latitude corners");
-        this.cornerLats = makeCorners(this.latitudes, false);
+        this.cornerLats = (float[])makeCorners(this.latitudes, false).getStorage();
         logger.debug("Made curvilinear grid");
     }
 
+    /**
+     * Creates a CurvilinearGrid from the given coordinates of the centres and
+     * corners of its cells, which are held by reference.  This is used for
+     * testing, and allows grids with arbitrarily-shaped cells to be created.
+     * The centre longitudes must be in the range [-180,180].
+     * @param ni The number of grid cells in the i direction
+     * @param nj The number of grid cells in the j direction
+     * @param longitudes The longitudes of the cell centres, flattened to a
+     * 1D array of size ni*nj with the i direction varying fastest
+     * @param latitudes The latitudes of the cell centres, in the same order
+     * @param cornerLons The longitudes of the cell corners, flattened to a
+     * 1D array of size (ni+1)*(nj+1) with the i direction varying fastest
+     * @param cornerLats The latitudes of the cell corners, in the same order
+     */
+    CurvilinearGrid(int ni, int nj, float[] longitudes, float[] latitudes,
+        float[] cornerLons, float[] cornerLats)
+    {
+        this.ni = ni;
+        this.nj = nj;
+        this.longitudes = longitudes;
+        this.latitudes = latitudes;
+        this.cornerLons = cornerLons;
+        this.cornerLats = cornerLats;
+        double minLon = 180.0;
+        double maxLon = -180.0;
+        double minLat = 90.0;
+        double maxLat = -90.0;
+        for (int index = 0; index < ni * nj; index++)
+        {
+            if (Float.isNaN(longitudes[index]) || Float.isNaN(latitudes[index])) continue;
+            minLon = Math.min(minLon, longitudes[index]);
+            maxLon = Math.max(maxLon, longitudes[index]);
+            minLat = Math.min(minLat, latitudes[index]);
+            maxLat = Math.max(maxLat, latitudes[index]);
+        }
+        if (maxLon < minLon || maxLat < minLat)
+        {
+            throw new IllegalStateException("Invalid bounding box");
+        }
+        this.latLonBbox = new DefaultGeographicBoundingBox(
+            minLon, maxLon, minLat, maxLat
+        );
+    }
+
     /**
      * Gets the location of the midpoint of the cell at indices i, j.  The
      * {@link LonLatPosition#getLongitude() longitude coordinate} of the midpoint
@@ -200,6 +256,194 @@ final class CurvilinearGrid implements Iterable<Cell>
         return j * this.ni + i;
     }
 
+    /**
+     * Gets the index in the arrays of corner coordinates of the corner with
+     * the given indices
+     */
+    private int getCornerIndex(int cornerI, int cornerJ)
+    {
+        return cornerJ * (this.ni + 1) + cornerI;
+    }
+
+    /**
+     * Finds the cell that contains the given longitude-latitude point, out
+     * of the cell at indices i, j and its eight neighbours.  The cell itself
+     * is checked first, then the neighbours that share an edge with it, then
+     * the neighbours that share a corner.  This creates no objects.
+     * @param coords Array of length 2 into which the i and j indices of the
+     * containing cell will be written
+     * @return true if a containing cell was found; false otherwise, in which
+     * case coords is unchanged
+     */
+    boolean findContainingCell(int i, int j, double lon, double lat, int[] coords)
+    {
+        for (int n = 0; n < NEIGHBOUR_DI.length; n++)
+        {
+            int cellI = i + NEIGHBOUR_DI[n];
+            int cellJ = j + NEIGHBOUR_DJ[n];
+            if (this.cellContains(cellI, cellJ, lon, lat))
+            {
+                coords[0] = cellI;
+                coords[1] = cellJ;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p>Returns true if the boundary of the cell at indices i, j (formed by
+     * joining its corners by straight lines in longitude-latitude space)
+     * contains the given longitude-latitude point.  Returns false if i, j is
+     * not a valid cell in this grid, or if the cell is represented by NaNs.
+     * This creates no objects.</p>
+     * <p>We use the even-odd rule, counting the edges that are crossed by a
+     * ray from the point.  {@link Cell#getBoundaryPath()} uses the non-zero
+     * winding rule, but the two rules give the same result for any
+     * quadrilateral, even a twisted (self-intersecting) one: each edge turns
+     * through less than half a revolution as seen from the point, so four
+     * edges cannot wind around the point more than once.</p>
+     */
+    boolean cellContains(int i, int j, double lon, double lat)
+    {
+        if (i < 0 || j < 0 || i >= this.ni || j >= this.nj) return false;
+        double centreLon = this.longitudes[this.getIndex(i, j)];
+        if (Double.isNaN(centreLon)) return false;
+        lon = harmonizeLongitudes(centreLon, lon);
+        // The corners in the order (i,j), (i+1,j), (i+1,j+1), (i,j+1), with
+        // longitudes harmonized with the centre as in Cell.getCorners()
+        int c0 = this.getCornerIndex(i, j);
+        int c3 = c0 + this.ni + 1;
+        double lon0 = harmonizeLongitudes(centreLon, this.cornerLons[c0]);
+        double lon1 = harmonizeLongitudes(centreLon, this.cornerLons[c0 + 1]);
+        double lon2 = harmonizeLongitudes(centreLon, this.cornerLons[c3 + 1]);
+        double lon3 = harmonizeLongitudes(centreLon, this.cornerLons[c3]);
+        double lat0 = this.cornerLats[c0];
+        double lat1 = this.cornerLats[c0 + 1];
+        double lat2 = this.cornerLats[c3 + 1];
+        double lat3 = this.cornerLats[c3];
+        if (Double.isNaN(lon0 + lon1 + lon2 + lon3 + lat0 + lat1 + lat2 + lat3))
+        {
+            return false;
+        }
+        // Apply the even-odd rule to the four edges
+        return crosses(lon3, lat3, lon0, lat0, lon, lat) ^
+               crosses(lon0, lat0, lon1, lat1, lon, lat) ^
+               crosses(lon1, lat1, lon2, lat2, lon, lat) ^
+               crosses(lon2, lat2, lon3, lat3, lon, lat);
+    }
+
+    /**
+     * Returns true if a ray from the point (x, y) in the positive x direction
+     * crosses the edge from (x0, y0) to (x1, y1)
+     */
+    private static boolean crosses(double x0, double y0, double x1, double y1,
+        double x, double y)
+    {
+        return (y0 > y) != (y1 > y) &&
+               x < x0 + (y - y0) * (x1 - x0) / (y1 - y0);
+    }
+
+    /**
+     * Returns the longitudes of the centres of the cells, flattened to a 1D
+     * array of size ni*nj with the i direction varying fastest.  This is the
+     * internal array, which must not be modified.
+     */
+    float[] getCentreLongitudes()
+    {
+        return this.longitudes;
+    }
+
+    /**
+     * Returns the latitudes of the centres of the cells, flattened to a 1D
+     * array of size ni*nj with the i direction varying fastest.  This is the
+     * internal array, which must not be modified.
+     */
+    float[] getCentreLatitudes()
+    {
+        return this.latitudes;
+    }
+
+    /**
+     * Gets the longitude of the midpoint of the cell at indices i, j, in the
+     * range [-180,180].  Unlike {@link #getMidpoint(int, int)} this creates no
+     * objects.
+     */
+    double getMidpointLongitude(int i, int j)
+    {
+        return this.longitudes[this.getIndex(i, j)];
+    }
+
+    /**
+     * Gets the coordinates of the four corners of the cell at indices i, j,
+     * in the same order and with the same harmonization of longitudes as
+     * {@link Cell#getCorners()}.  This creates no objects, so is suitable for
+     * iterating over all the cells of large grids.
+     * @param lons Array of length 4 that will hold the corner longitudes
+     * @param lats Array of length 4 that will hold the corner latitudes
+     * @return false if the centre or any of the corners of the cell is
+     * represented by NaNs, in which case the contents of the arrays are undefined
+     */
+    boolean getCellCorners(int i, int j, double[] lons, double[] lats)
+    {
+        double centreLon = this.longitudes[this.getIndex(i, j)];
+        if (Double.isNaN(centreLon)) return false;
+        for (int c = 0; c < 4; c++)
+        {
+            // Corners are (i,j), (i+1,j), (i+1,j+1), (i,j+1)
+            int cornerI = (c == 1 || c == 2) ? i + 1 : i;
+            int cornerJ = c >= 2 ? j + 1 : j;
+            double lon = this.cornerLons[this.getCornerIndex(cornerI, cornerJ)];
+            double lat = this.cornerLats[this.getCornerIndex(cornerI, cornerJ)];
+            if (Double.isNaN(lon) || Double.isNaN(lat)) return false;
+            lons[c] = harmonizeLongitudes(centreLon, lon);
+            lats[c] = lat;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a checksum of the coordinates of this grid, as a hexadecimal
+     * string.  Grids with the same checksum are equal (barring a vanishingly
+     * unlikely collision), so this can be used to identify look-up tables that
+     * are stored on disk.
+     */
+    String getChecksum()
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            // We feed the coordinates to the digest through a small buffer
+            // because the grid can be very large
+            ByteBuffer buf = ByteBuffer.allocate(65536);
+            buf.putInt(this.ni).putInt(this.nj);
+            for (float[] coords : new float[][] { this.longitudes, this.latitudes })
+            {
+                for (float coord : coords)
+                {
+                    if (buf.remaining() < 4)
+                    {
+                        digest.update(buf.array(), 0, buf.position());
+                        buf.clear();
+                    }
+                    buf.putFloat(coord);
+                }
+            }
+            digest.update(buf.array(), 0, buf.position());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest())
+            {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform must support MD5
+            throw new AssertionError(nsae);
+        }
+    }
+
     /**
      * Gets the location of the four corners of the cell at indices i, j.
      * @throws ArrayIndexOutOfBoundsException if i and j combine to give a point
@@ -222,8 +466,8 @@ final class CurvilinearGrid implements Iterable<Cell>
     private LonLatPosition getCorner(int cornerI, int cornerJ)
     {
         return new LonLatPositionImpl (
-            this.cornerLons.get(cornerJ, cornerI),
-            this.cornerLats.get(cornerJ, cornerI)
+            this.cornerLons[this.getCornerIndex(cornerI, cornerJ)],
+            this.cornerLats[this.getCornerIndex(cornerI, cornerJ)]
         );
     }
 
@@ -402,6 +646,36 @@ final class CurvilinearGrid implements Iterable<Cell>
         return Math.sqrt(4*f2*g2 - term*term) / 4.0;
     }
 
+    /**
+     * Returns the area of the quadrilateral defined by the given four vertices,
+     * as {@link #getArea(java.awt.geom.Point2D, java.awt.geom.Point2D,
+     * java.awt.geom.Point2D, java.awt.geom.Point2D)} but without creating
+     * Point2D objects.
+     */
+    private static double getArea(double[] xs, double[] ys)
+    {
+        // The squares of the side lengths
+        double a2 = distanceSq(xs, ys, 0, 1);
+        double b2 = distanceSq(xs, ys, 1, 2);
+        double c2 = distanceSq(xs, ys, 2, 3);
+        double d2 = distanceSq(xs, ys, 3, 0);
+        // The squares of the diagonal lengths
+        double f2 = distanceSq(xs, ys, 0, 2);
+        double g2 = distanceSq(xs, ys, 1, 3);
+        // Calculate an intermediate term
+        double term = b2 + d2 - a2 - c2;
+        // Calculate and return the area
+        return Math.sqrt(4*f2*g2 - term*term) / 4.0;
+    }
+
+    /** Returns the square of the distance between two of the given vertices */
+    private static double distanceSq(double[] xs, double[] ys, int v1, int v2)
+    {
+        double dx = xs[v2] - xs[v1];
+        double dy = ys[v2] - ys[v1];
+        return dx * dx + dy * dy;
+    }
+
     /**
      * Gets the mean area of the cells in this grid, in square degrees.
      */
@@ -409,12 +683,21 @@ final class CurvilinearGrid implements Iterable<Cell>
     {
         double sumArea = 0.0;
         int nans = 0;
-        for (Cell cell : this)
+        // We read the corners directly rather than creating Cell objects,
+        // as the grid can be very large
+        double[] lons = new double[4];
+        double[] lats = new double[4];
+        for (int j = 0; j < this.nj; j++)
         {
-            double cellArea = cell.getArea();
-            // Cell areas can be NaN - see Javadoc for Cell.getArea()
-            if (Double.isNaN(cellArea)) nans++;
-            else sumArea += cellArea;
+            for (int i = 0; i < this.ni; i++)
+            {
+                double cellArea = this.getCellCorners(i, j, lons, lats)
+                    ? getArea(lons, lats)
+                    : Double.NaN;
+                // Cell areas can be NaN - see Javadoc for Cell.getArea()
+                if (Double.isNaN(cellArea)) nans++;
+                else sumArea += cellArea;
+            }
         }
         logger.debug("{} cells out of {} had area = NaN", nans, this.size());
         return sumArea / (this.size() - nans);
@@ -571,9 +854,8 @@ final class CurvilinearGrid implements Iterable<Cell>
          */
         public boolean contains(LonLatPosition latLonPoint)
         {
-            Path2D path = this.getBoundaryPath();
-            double lon = this.harmonizeWithCentre(latLonPoint.getLongitude());
-            return path.contains(lon, latLonPoint.getLatitude());
+            return CurvilinearGrid.this.cellContains(this.i, this.j,
+                latLonPoint.getLongitude(), latLonPoint.getLatitude());
         }
 
         /**
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+/**
+ * Finds the cell of a {@link CurvilinearGrid} that is nearest to a given
+ * longitude-latitude point.  Implementations need not be exact: the
+ * {@link TwoDCoordSys} checks the cell that is returned, and its neighbours,
+ * to find the cell that really contains the point.
+ * @see LookUpTable
+ * @see KdTree
+ * @author Jon
+ */
+interface GridCellLocator
+{
+    /**
+     * Finds the cell of the curvilinear grid that is nearest to the given
+     * longitude-latitude point, writing its indices into the given array.
+     * @param longitude The longitude of the point, in the range [-180,180]
+     * @param latitude The latitude of the point
+     * @param coords Array of length 2 into which the i and j indices of the
+     * cell will be written
+     * @return false if the point is outside the domain of the grid, in which
+     * case coords is unchanged
+     */
+    boolean getGridCoordinates(double longitude, double latitude, int[] coords);
+
+    /**
+     * Returns the approximate amount of memory used by this object, in bytes
+     */
+    long getSizeBytes();
+}
@@ -28,6 +28,10 @@
 
 package uk.ac.rdg.resc.ncwms.coords;
 
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 import ucar.nc2.constants.AxisType;
 import ucar.nc2.dataset.CoordinateAxis;
 import ucar.nc2.dataset.CoordinateAxis1D;
@@ -41,6 +45,21 @@ import ucar.unidata.geoloc.ProjectionImpl;
  */
 public abstract class HorizontalCoordSys
 {
+    /**
+     * The canonical instances of coordinate systems with one-dimensional axes.
+     * Many files (e.g. the daily files of a glob dataset) and datasets share
+     * the same grid, so we share the same object between all their layers.
+     * This saves memory and means that caches that are keyed on the coordinate
+     * system (such as the {@link PixelMapCache}) are shared between the
+     * layers.  ({@link TwoDCoordSys} objects are already shared, through
+     * the cache of look-up tables.)  Neither the keys nor the values are
+     * strongly referenced, so a coordinate system is forgotten when no layer
+     * uses it any more (e.g. after its dataset is reloaded with a new grid).
+     * Access is synchronized on the map.
+     */
+    private static final Map<OneDCoordSys, WeakReference<OneDCoordSys>> CANONICAL =
+        new WeakHashMap<OneDCoordSys, WeakReference<OneDCoordSys>>();
+
     /** Protected constructor to limit direct instantiation to subclasses */
     protected HorizontalCoordSys() {}
 
@@ -48,6 +67,8 @@ public abstract class HorizontalCoordSys
      * Creates and returns a HorizontalCoordSys from the given grid coordinate system.
      * If both horizontal axes of the coordinate system are 1D and they are
      * latitude and longitude then this will return an instance of {@link LatLonCoordSys}.
+     * Equal coordinate systems give the same object, so this may return an
+     * object that was created for a different file or dataset.
      * @param coordSys
      * @return
      */
@@ -63,9 +84,9 @@ public abstract class HorizontalCoordSys
         {
             OneDCoordAxis xAxis1D = OneDCoordAxis.create((CoordinateAxis1D)xAxis);
             OneDCoordAxis yAxis1D = OneDCoordAxis.create((CoordinateAxis1D)yAxis);
-            return isLatLon
+            return intern(isLatLon
                 ? new LatLonCoordSys(xAxis1D, yAxis1D) // A 1D lat-lon system
-                : new OneDCoordSys(xAxis1D, yAxis1D, proj); // A 1D projected system
+                : new OneDCoordSys(xAxis1D, yAxis1D, proj)); // A 1D projected system
         }
         else if (xAxis instanceof CoordinateAxis2D && yAxis instanceof CoordinateAxis2D)
         {
@@ -84,6 +105,47 @@ public abstract class HorizontalCoordSys
         }
     }
 
+    /**
+     * Returns the canonical instance of the given coordinate system, which
+     * becomes the canonical instance if there isn't one already.
+     */
+    private static OneDCoordSys intern(OneDCoordSys coordSys)
+    {
+        synchronized(CANONICAL)
+        {
+            WeakReference<OneDCoordSys> ref = CANONICAL.get(coordSys);
+            OneDCoordSys canonical = ref == null ? null : ref.get();
+            if (canonical != null) return canonical;
+            CANONICAL.put(coordSys, new WeakReference<OneDCoordSys>(coordSys));
+            return coordSys;
+        }
+    }
+
+    /**
+     * Sets the directory in which the look-up tables that are generated for
+     * curvilinear coordinate systems are stored, so that they don't have to be
+     * generated again when the server restarts.  This should be called before
+     * any datasets are loaded.  Tables that have not been used for a long time
+     * are deleted from the directory.
+     * @param dir The directory, which will be created if it does not exist
+     */
+    public static void setLookUpTableDirectory(File dir)
+    {
+        TwoDCoordSys.setLutDirectory(dir);
+    }
+
+    /**
+     * Sets the size of the largest look-up table that will be generated for
+     * a curvilinear coordinate system.  Coordinate systems that would need
+     * bigger tables use a k-d tree of the grid cells instead, which needs much
+     * less memory but is slower to search.  The default is 64MB.
+     * @param megabytes The maximum size of a look-up table, in megabytes
+     */
+    public static void setMaxLookUpTableSize(int megabytes)
+    {
+        TwoDCoordSys.setMaxLutSize(megabytes * 1024L * 1024L);
+    }
+
     /**
      * @return the nearest grid point to the given lat-lon point, or null if the
      * lat-lon point is not contained within this layer's domain. The grid point
@@ -91,6 +153,35 @@ public abstract class HorizontalCoordSys
      */
     public abstract int[] lonLatToGrid(LonLatPosition lonLatPoint);
 
+    /**
+     * Finds the nearest grid points to a number of lon-lat points.  The
+     * points are given as interleaved pairs (lon0, lat0, lon1, lat1, ...), as
+     * produced by {@link CrsHelper#crsToLonLat(double[], int)}.  Points with
+     * NaN coordinates, and points outside this layer's domain, are given
+     * indices of -1.  This default implementation calls
+     * {@link #lonLatToGrid(uk.ac.rdg.resc.ncwms.coords.LonLatPosition)} for
+     * each point; subclasses may override this with a cheaper method.
+     * @param lonLat The lon-lat points
+     * @param numPoints The number of points to convert
+     * @param iIndices Array in which the i indices of the points will be placed
+     * @param jIndices Array in which the j indices of the points will be placed
+     * @param offset The position in iIndices and jIndices of the first point
+     */
+    public void lonLatToGrid(double[] lonLat, int numPoints, int[] iIndices,
+        int[] jIndices, int offset)
+    {
+        for (int i = 0; i < numPoints; i++)
+        {
+            double lon = lonLat[2 * i];
+            double lat = lonLat[2 * i + 1];
+            int[] gridCoords = Double.isNaN(lon) || Double.isNaN(lat)
+                ? null
+                : this.lonLatToGrid(new LonLatPositionImpl(lon, lat));
+            iIndices[offset + i] = gridCoords == null ? -1 : gridCoords[0];
+            jIndices[offset + i] = gridCoords == null ? -1 : gridCoords[1];
+        }
+    }
+
     /**
      * @return the latitude and longitude of the given grid point [i,j].  Returns
      * null if gridCoords is null, or if gridCoords represents a point outside
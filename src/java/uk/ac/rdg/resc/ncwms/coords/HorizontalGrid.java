@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.ncwms.coords;
 
 import org.opengis.metadata.extent.GeographicBoundingBox;
+import org.opengis.referencing.operation.TransformException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidCrsException;
@@ -188,4 +189,33 @@ public class HorizontalGrid extends PointList
         int xi = index % this.xAxisValues.length;
         return new HorizontalPositionImpl(this.xAxisValues[xi], this.yAxisValues[yi]);
     }
+
+    /**
+     * Fills the given array with the longitudes and latitudes of a run of
+     * points in this grid, reading the x-y coordinates straight from the axis
+     * values.  The points are ordered as in {@link #getPoint(int)}.
+     */
+    @Override
+    public void getLonLatCoords(int start, int numPoints, double[] lonLat)
+        throws TransformException
+    {
+        if (start < 0 || start + numPoints > this.size())
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        int width = this.xAxisValues.length;
+        int xi = start % width;
+        int yi = start / width;
+        for (int i = 0; i < numPoints; i++)
+        {
+            lonLat[2 * i] = this.xAxisValues[xi];
+            lonLat[2 * i + 1] = this.yAxisValues[yi];
+            if (++xi == width)
+            {
+                xi = 0;
+                yi++;
+            }
+        }
+        this.crsHelper.crsToLonLat(lonLat, numPoints);
+    }
 }
@@ -28,9 +28,8 @@
 
 package uk.ac.rdg.resc.ncwms.coords;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Comparator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ucar.nc2.constants.AxisType;
@@ -48,55 +47,36 @@ class Irregular1DCoordAxis extends OneDCoordAxis
     private static final Logger logger = LoggerFactory.getLogger(Irregular1DCoordAxis.class);
     
     /**
-     * Maps axis values to their indices along the axis, sorted in ascending order
-     * of value.  This level of
+     * The axis values, sorted in ascending order.  This level of
      * elaboration is necessary because some axis values might be NaNs if they
      * are latitude values outside the range -90:90 (possible for some model data).
      * These NaNs are not stored here.
      */
-    private List<AxisValue> axisVals;
+    private final double[] sortedValues;
     
     /**
-     * Simple class mapping axis values to indices.
+     * The index along the axis of each of the values in sortedValues
      */
-    private static final class AxisValue implements Comparable<AxisValue>
-    {
-        private double value;
-        private int index;
-        
-        public AxisValue(double value, int index)
-        {
-            this.value = value;
-            this.index = index;
-        }
-        
-        /**
-         * Sorts based on the axis value, not the index
-         */
-        public int compareTo(AxisValue otherVal)
-        {
-            return Double.compare(this.value, otherVal.value);
-        }
-        
-        public boolean equals(Object obj)
-        {
-            if (this == obj) return true;
-            if (!(obj instanceof AxisValue)) return false;
-            AxisValue otherAxisVal = (AxisValue)obj;
-            return this.value == otherAxisVal.value &&
-                   this.index == otherAxisVal.index;
-        }
-    }
+    private final int[] sortedIndices;
+    
+    /** The axis values in their original order, as given to the constructor */
+    private final double[] coordValues;
+    
+    /** True if this is a longitude axis, cached because we check it on every lookup */
+    private final boolean isLongitude;
     
     /**
      * Creates a new instance of Irregular1DCoordAxis
      */
-    public Irregular1DCoordAxis(double[] coordValues, AxisType axisType)
+    public Irregular1DCoordAxis(final double[] coordValues, AxisType axisType)
     {
         super(axisType, coordValues.length);
+        this.coordValues = coordValues.clone();
+        this.isLongitude = this.isLongitude();
         
-        // Store the axis values and their indices
-        this.axisVals = new ArrayList<AxisValue>(coordValues.length);
+        // Find the indices of the axis values, leaving out NaNs
+        Integer[] order = new Integer[coordValues.length];
+        int numValues = 0;
         for (int i = 0; i < coordValues.length; i++)
         {
             // Might be NaN for a lat axis outside range -90:90
@@ -106,40 +86,60 @@ class Irregular1DCoordAxis extends OneDCoordAxis
             // these values to NaNs.
             if (!Double.isNaN(coordValues[i])) 
             {
-                this.axisVals.add(new AxisValue(coordValues[i], i));
+                order[numValues] = i;
+                numValues++;
             }
         }
-        // Now sort the axis values in ascending order
+        // Now sort the indices in ascending order of axis value.  This sort is
+        // stable, so equal values keep the order of their indices.
         // TODO: is this always OK?
-        Collections.sort(this.axisVals);
+        Arrays.sort(order, 0, numValues, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(coordValues[i1], coordValues[i2]);
+            }
+        });
         
-        // Check for wrapping in the longitude direction
-        if (this.isLongitude())
+        // Check for wrapping in the longitude direction.  If the axis wraps
+        // we add an extra point at the end.
+        boolean wraps = false;
+        if (this.isLongitude)
         {
             logger.debug("Checking for longitude axis wrapping...");
-            double lastVal = this.axisVals.get(this.axisVals.size() - 1).value;
-            double dx = lastVal - this.axisVals.get(this.axisVals.size() - 2).value;
+            double firstVal = coordValues[order[0]];
+            double lastVal = coordValues[order[numValues - 1]];
+            double dx = lastVal - coordValues[order[numValues - 2]];
             // Calculate the position of the imaginary next value along the axis
             double nextVal = lastVal + dx;
             logger.debug("lastVal = {}, nextVal = {}", lastVal, nextVal);
-            AxisValue firstVal = this.axisVals.get(0);
             
-            Longitude firstValLon = new Longitude(firstVal.value);
+            Longitude firstValLon = new Longitude(firstVal);
             Longitude lastValLon = new Longitude(lastVal);
             Longitude nextValLon = new Longitude(nextVal);
             
             // We say that the axis wraps if the imaginary next value on the axis
             // is equal to or past the first value on the axis; or if the imaginary
             // next value is closer to the first value than it is to the last value            
-            if (firstValLon.isBetween(lastVal, nextVal) ||
+            wraps = firstValLon.isBetween(lastVal, nextVal) ||
                 lastValLon.getClockwiseDistanceTo(nextVal) >
-                nextValLon.getClockwiseDistanceTo(firstVal.value))
-            {
-                logger.debug("Axis wraps, creating new point with lon = {}", (firstVal.value + 360));
-                // This axis wraps.  Create a new point with the same index as 
-                // the first value, but 360 degrees further around the scale
-                this.axisVals.add(new AxisValue(firstVal.value + 360, firstVal.index));
-            }
+                nextValLon.getClockwiseDistanceTo(firstVal);
+        }
+        
+        int numSorted = wraps ? numValues + 1 : numValues;
+        this.sortedValues = new double[numSorted];
+        this.sortedIndices = new int[numSorted];
+        for (int i = 0; i < numValues; i++)
+        {
+            this.sortedIndices[i] = order[i];
+            this.sortedValues[i] = coordValues[order[i]];
+        }
+        if (wraps)
+        {
+            logger.debug("Axis wraps, creating new point with lon = {}",
+                (this.sortedValues[0] + 360));
+            // This axis wraps.  Create a new point with the same index as 
+            // the first value, but 360 degrees further around the scale
+            this.sortedValues[numValues] = this.sortedValues[0] + 360;
+            this.sortedIndices[numValues] = this.sortedIndices[0];
         }
         
         logger.debug("Created irregular {} axis", this.getAxisType());
@@ -147,24 +147,26 @@ class Irregular1DCoordAxis extends OneDCoordAxis
     
     /**
      * Uses a binary search algorithm to find the index of the point on the axis
-     * whose value is closest to the given one.
+     * whose value is closest to the given one.  This is called for every pixel
+     * (or row or column) of an image, so creates no objects and does no logging.
      * @param coordValue The value along this coordinate axis
      * @return the index that is nearest to this point, or -1 if the point is
      * out of range for the axis
      */
     public int getIndex(double coordValue)
     {
-        logger.debug("Finding index for {} {} ...", this.getAxisType(), coordValue);
-        int index = this.findNearest(coordValue);
-        if (index < 0 && this.isLongitude() && coordValue < 0)
+        if (this.isLongitude)
         {
-            // We haven't found the point but this could be because this is a
-            // longitude axis between 0 and 360 degrees and we're looking for
-            // a point at, say, -90 degrees.  Try again.
-            index = this.findNearest(coordValue + 360);
+            // Move the longitude into the 360 degrees starting at the first
+            // value on this axis, so that we find it whichever range (e.g.
+            // -180:180 or 0:360) the axis and the longitude are expressed in
+            double distance = coordValue - this.sortedValues[0];
+            if (distance < 0.0 || distance >= 360.0)
+            {
+                coordValue -= 360.0 * Math.floor(distance / 360.0);
+            }
         }
-        logger.debug("   ...index= {}", index);
-        return index;
+        return this.findNearest(coordValue);
     }
     
     /**
@@ -172,35 +174,32 @@ class Irregular1DCoordAxis extends OneDCoordAxis
      * whose value is closest to the target
      * @param target The value to search for
      * @return the index of the element in values whose value is closest to target,
-     * or -1 if the target is out of range
+     * or -1 if the target is out of range (or NaN)
      */
     private int findNearest(double target)
     {
-        // Check that the point is within range
-        // TODO: careful of longitude axis wrapping
-        if (target < this.axisVals.get(0).value || 
-            target > this.axisVals.get(this.axisVals.size() - 1).value)
+        double[] values = this.sortedValues;
+        int high = values.length - 1;
+        // Check that the point is within range.  This is written so that
+        // NaNs are out of range.
+        if (!(target >= values[0] && target <= values[high]))
         {
             return -1;
         }
         
-        // do a binary search to find the nearest index
+        // Do a binary search to find the pair of values that bracket the target
         int low = 0;
-        int high = this.axisVals.size() - 1;
-        while (high > low + 1)
+        while (high - low > 1)
         {
-            int mid = (low + high) / 2;
-            AxisValue midVal = this.axisVals.get(mid);
-            if (midVal.value == target) return midVal.index;
-            else if (midVal.value < target) low = mid;
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= target) low = mid;
             else high = mid;
         }
         
-        // If we've got this far then high = low + 1 or high = low
-        AxisValue lowVal  = this.axisVals.get(low);
-        AxisValue highVal = this.axisVals.get(high);
-        return (Math.abs(target - lowVal.value) < 
-                Math.abs(target - highVal.value)) ? lowVal.index : highVal.index;
+        // Now high = low + 1 or high = low
+        return (target - values[low] < values[high] - target)
+            ? this.sortedIndices[low]
+            : this.sortedIndices[high];
     }
 
     /**
@@ -212,7 +211,7 @@ class Irregular1DCoordAxis extends OneDCoordAxis
      */
     public double getCoordValue(int index)
     {
-        return this.axisVals.get(index).value;
+        return this.coordValues[index];
     }
     
     public boolean equals(Object obj)
@@ -220,19 +219,19 @@ class Irregular1DCoordAxis extends OneDCoordAxis
         if (this == obj) return true;
         if (!(obj instanceof Irregular1DCoordAxis)) return false;
         Irregular1DCoordAxis otherAxis = (Irregular1DCoordAxis)obj;
-        if (this.axisVals.size() != otherAxis.axisVals.size()) return false;
-        if (this.getAxisType() != otherAxis.getAxisType()) return false;
-        
-        // Now compare all the AxisValues individually
-        for (int i = 0; i < this.axisVals.size(); i++)
-        {
-            if (!this.axisVals.get(i).equals(otherAxis.axisVals.get(i)))
-            {
-                return false;
-            }
-        }
-        // If we've got this far the axes must be equivalent
-        return true;
+        return this.getAxisType() == otherAxis.getAxisType() &&
+               Arrays.equals(this.sortedValues, otherAxis.sortedValues) &&
+               Arrays.equals(this.sortedIndices, otherAxis.sortedIndices);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hashCode = 17;
+        hashCode = 31 * hashCode + this.getAxisType().hashCode();
+        hashCode = 31 * hashCode + Arrays.hashCode(this.sortedValues);
+        hashCode = 31 * hashCode + Arrays.hashCode(this.sortedIndices);
+        return hashCode;
     }
     
 }
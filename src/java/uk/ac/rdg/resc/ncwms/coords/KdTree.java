@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+/**
+ * <p>A {@link GridCellLocator} that finds the cell of a curvilinear grid whose
+ * centre is nearest to a given point, using a k-d tree of the cell centres.
+ * This is an alternative to the {@link LookUpTable} for very large grids, or
+ * grids with a wide range of cell sizes, for which the look-up table would be
+ * too big.  The memory used is proportional to the number of cells (12 bytes
+ * per cell) and lookups take O(log n) time.</p>
+ * <p>The tree is "packed": it is held in three arrays, sorted so that the
+ * median of each range of the arrays is the splitting point of a node, and
+ * the two halves of the range are its subtrees.  Distances are measured in
+ * degrees of longitude and latitude.  Instances of this class are
+ * immutable and can be used by multiple threads.</p>
+ * @author Jon
+ */
+final class KdTree implements GridCellLocator
+{
+    /** The longitudes of the cell centres, in tree order */
+    private final float[] lons;
+    /** The latitudes of the cell centres, in tree order */
+    private final float[] lats;
+    /** The indices of the cells (j * ni + i), in tree order */
+    private final int[] cellIndices;
+
+    /** The number of cells in the i direction of the grid */
+    private final int ni;
+
+    /**
+     * The square of the largest distance between the centre of a cell and
+     * one of its corners.  If the nearest centre is further than this from
+     * a point, no cell can contain the point.
+     */
+    private final double maxRadiusSq;
+
+    /**
+     * Creates a k-d tree of the centres of the cells of the given grid.
+     */
+    public KdTree(CurvilinearGrid curvGrid)
+    {
+        this(curvGrid.getCentreLongitudes(), curvGrid.getCentreLatitudes(),
+            curvGrid.getNi(), getMaxCellRadiusSq(curvGrid));
+    }
+
+    /**
+     * Creates a k-d tree of the given points.  Points with NaN coordinates
+     * are left out.
+     * @param lons The longitudes of the points, in the range [-180,180].
+     * This array is not modified.
+     * @param lats The latitudes of the points.  This array is not modified.
+     * @param ni The number of points in the i direction of the grid, used to
+     * convert from indices in the arrays to i and j indices
+     * @param maxRadiusSq The square of the largest distance from a point at
+     * which we consider another point to be in the domain of the grid
+     */
+    KdTree(float[] lons, float[] lats, int ni, double maxRadiusSq)
+    {
+        int n = 0;
+        for (int i = 0; i < lons.length; i++)
+        {
+            if (!Float.isNaN(lons[i]) && !Float.isNaN(lats[i])) n++;
+        }
+        this.lons = new float[n];
+        this.lats = new float[n];
+        this.cellIndices = new int[n];
+        n = 0;
+        for (int i = 0; i < lons.length; i++)
+        {
+            if (!Float.isNaN(lons[i]) && !Float.isNaN(lats[i]))
+            {
+                this.lons[n] = lons[i];
+                this.lats[n] = lats[i];
+                this.cellIndices[n] = i;
+                n++;
+            }
+        }
+        this.ni = ni;
+        this.maxRadiusSq = maxRadiusSq;
+        this.build(0, n, true);
+    }
+
+    /**
+     * Finds the largest distance between the centre of a cell in the given
+     * grid and one of its corners
+     */
+    private static double getMaxCellRadiusSq(CurvilinearGrid curvGrid)
+    {
+        double maxRadiusSq = 0.0;
+        double[] cornerLons = new double[4];
+        double[] cornerLats = new double[4];
+        float[] lons = curvGrid.getCentreLongitudes();
+        float[] lats = curvGrid.getCentreLatitudes();
+        for (int j = 0; j < curvGrid.getNj(); j++)
+        {
+            for (int i = 0; i < curvGrid.getNi(); i++)
+            {
+                if (!curvGrid.getCellCorners(i, j, cornerLons, cornerLats)) continue;
+                int index = j * curvGrid.getNi() + i;
+                for (int c = 0; c < 4; c++)
+                {
+                    double dx = cornerLons[c] - lons[index];
+                    double dy = cornerLats[c] - lats[index];
+                    maxRadiusSq = Math.max(maxRadiusSq, dx * dx + dy * dy);
+                }
+            }
+        }
+        return maxRadiusSq;
+    }
+
+    /**
+     * Sorts the given range of the arrays into a k-d tree, splitting on
+     * longitude if splitLon is true, or latitude otherwise.
+     */
+    private void build(int lo, int hi, boolean splitLon)
+    {
+        while (hi - lo > 1)
+        {
+            int mid = (lo + hi) >>> 1;
+            this.select(lo, hi, mid, splitLon ? this.lons : this.lats);
+            // Recurse into the smaller half and loop over the larger half,
+            // so that the depth of the recursion is bounded
+            if (mid - lo < hi - mid - 1)
+            {
+                this.build(lo, mid, !splitLon);
+                lo = mid + 1;
+            }
+            else
+            {
+                this.build(mid + 1, hi, !splitLon);
+                hi = mid;
+            }
+            splitLon = !splitLon;
+        }
+    }
+
+    /**
+     * Rearranges the given range of the arrays so that the kth element is the
+     * one that would be there if the range were sorted by the given key, with
+     * no greater keys before it and no smaller keys after it (quickselect).
+     */
+    private void select(int lo, int hi, int k, float[] keys)
+    {
+        hi--; // Make hi inclusive
+        while (hi > lo)
+        {
+            // Use the median of three as the pivot
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < keys[lo]) this.swap(mid, lo);
+            if (keys[hi] < keys[lo]) this.swap(hi, lo);
+            if (keys[hi] < keys[mid]) this.swap(hi, mid);
+            float pivot = keys[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j)
+            {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j)
+                {
+                    this.swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else return;
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        float lon = this.lons[i];
+        this.lons[i] = this.lons[j];
+        this.lons[j] = lon;
+        float lat = this.lats[i];
+        this.lats[i] = this.lats[j];
+        this.lats[j] = lat;
+        int index = this.cellIndices[i];
+        this.cellIndices[i] = this.cellIndices[j];
+        this.cellIndices[j] = index;
+    }
+
+    /**
+     * Finds the point that is nearest to the given point.
+     * @return the index of the nearest point in the arrays that were passed
+     * to the constructor, or -1 if the tree is empty
+     */
+    int findNearest(double lon, double lat)
+    {
+        int nearest = this.search(0, this.lons.length, true, lon, lat, -1,
+            Double.POSITIVE_INFINITY);
+        return nearest < 0 ? -1 : this.cellIndices[nearest];
+    }
+
+    @Override
+    public boolean getGridCoordinates(double longitude, double latitude, int[] coords)
+    {
+        if (Double.isNaN(longitude) || Double.isNaN(latitude)) return false;
+        // We only search within the maximum radius of a cell: this makes
+        // searches for points that are far outside the grid cheap
+        int nearest = this.search(0, this.lons.length, true, longitude, latitude,
+            -1, this.maxRadiusSq);
+        double distanceSq = nearest < 0
+            ? this.maxRadiusSq
+            : this.distanceSq(nearest, longitude, latitude);
+        // The nearest cell might be on the other side of the anti-meridian
+        double distanceToSeam = 180.0 - Math.abs(longitude);
+        if (distanceToSeam * distanceToSeam <= distanceSq)
+        {
+            double shiftedLon = longitude < 0.0 ? longitude + 360.0 : longitude - 360.0;
+            int shiftedNearest = this.search(0, this.lons.length, true, shiftedLon,
+                latitude, -1, distanceSq);
+            if (shiftedNearest >= 0 && (nearest < 0
+                || this.distanceSq(shiftedNearest, shiftedLon, latitude) < distanceSq))
+            {
+                nearest = shiftedNearest;
+            }
+        }
+        if (nearest < 0) return false;
+        int cellIndex = this.cellIndices[nearest];
+        coords[0] = cellIndex % this.ni;
+        coords[1] = cellIndex / this.ni;
+        return true;
+    }
+
+    /**
+     * Searches the given range of the tree for a point that is nearer to
+     * the given point than the current best.  This creates no objects.
+     * @param best The position in the tree of the nearest point found so
+     * far, or -1 if none has been found
+     * @param maxDistanceSq The square of the largest distance at which a point
+     * will be found, if none has been found so far
+     * @return the position in the tree of the nearest point, or -1 if
+     * there is no point within the maximum distance
+     */
+    private int search(int lo, int hi, boolean splitLon, double lon, double lat,
+        int best, double maxDistanceSq)
+    {
+        if (lo >= hi) return best;
+        int mid = (lo + hi) >>> 1;
+        double dLon = lon - this.lons[mid];
+        double dLat = lat - this.lats[mid];
+        double distanceSq = dLon * dLon + dLat * dLat;
+        if (best < 0 ? distanceSq <= maxDistanceSq : distanceSq < this.distanceSq(best, lon, lat))
+        {
+            best = mid;
+        }
+        double diff = splitLon ? dLon : dLat;
+        // Search the half that contains the point first, then the other
+        // half if it could contain a nearer point
+        if (diff < 0.0)
+        {
+            best = this.search(lo, mid, !splitLon, lon, lat, best, maxDistanceSq);
+            if (diff * diff <= this.getSearchRadiusSq(best, lon, lat, maxDistanceSq))
+            {
+                best = this.search(mid + 1, hi, !splitLon, lon, lat, best, maxDistanceSq);
+            }
+        }
+        else
+        {
+            best = this.search(mid + 1, hi, !splitLon, lon, lat, best, maxDistanceSq);
+            if (diff * diff <= this.getSearchRadiusSq(best, lon, lat, maxDistanceSq))
+            {
+                best = this.search(lo, mid, !splitLon, lon, lat, best, maxDistanceSq);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the square of the distance within which a nearer point than
+     * the current best could be found
+     */
+    private double getSearchRadiusSq(int best, double lon, double lat, double maxDistanceSq)
+    {
+        return best < 0 ? maxDistanceSq : this.distanceSq(best, lon, lat);
+    }
+
+    /**
+     * Returns the square of the distance between the point at the given
+     * position in the tree and the given point
+     */
+    private double distanceSq(int pos, double lon, double lat)
+    {
+        double dLon = lon - this.lons[pos];
+        double dLat = lat - this.lats[pos];
+        return dLon * dLon + dLat * dLat;
+    }
+
+    @Override
+    public long getSizeBytes()
+    {
+        return 12L * this.lons.length;
+    }
+}
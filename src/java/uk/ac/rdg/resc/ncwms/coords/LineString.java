@@ -203,6 +203,13 @@ public final class LineString {
         throw new AssertionError(); // Shouldn't get here.
     }
 
+    /**
+     * Returns the length of the path, in units of the CRS
+     */
+    public double getPathLength() {
+        return this.pathLength;
+    }
+
     public CrsHelper getCrsHelper()
     {
         return this.crsHelper;
@@ -28,72 +28,104 @@
 
 package uk.ac.rdg.resc.ncwms.coords;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
-import java.awt.geom.Path2D;
-import java.awt.geom.Point2D;
-import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.DirectColorModel;
-import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import uk.ac.rdg.resc.ncwms.coords.CurvilinearGrid.Cell;
 
 /**
- * An object that provides an approximate means for mapping from longitude-latitude
- * coordinates to i and j index coordinates in a curvilinear grid.
+ * <p>An object that provides an approximate means for mapping from longitude-latitude
+ * coordinates to i and j index coordinates in a curvilinear grid.</p>
+ * <p>The look-up table is a regular lon-lat grid of points, each of which holds
+ * the i and j indices of the cell of the curvilinear grid that contains it.  We
+ * build it by rasterizing the boundary of every cell onto this grid.  This is done
+ * in parallel, splitting the table into bands of latitude.  Look-up tables can
+ * be {@link #save(java.io.File) saved} to disk and {@link #load(java.io.File)
+ * loaded} again by memory-mapping, which is much quicker than building them.</p>
  * @todo Some duplication of {@link HorizontalGrid}?  There's a difference in
  * how the "tick marks" along the axes are set up: see how the Regular1DCoordAxes
  * are created.
  * @author Jon
  */
-final class LookUpTable
+final class LookUpTable implements GridCellLocator
 {
     private static final Logger logger = LoggerFactory.getLogger(LookUpTable.class);
 
+    /** Identifies look-up table files.  Change this if the file format changes. */
+    private static final int MAGIC_NUMBER = 0x4c555431; // "LUT1"
+
+    /** The length of the header of a look-up table file in bytes */
+    private static final int HEADER_LENGTH = 48;
+
+    /**
+     * The prefix and suffix of the temporary files in which look-up tables
+     * are written before they are renamed
+     */
+    static final String TEMP_PREFIX = "lut";
+    static final String TEMP_SUFFIX = ".tmp";
+
     // The contents of the look-up table: i.e. the i and j indices of each
     // lon-lat point in the LUT.  These are flattened from a 2D to a 1D array.
-    // We store these as shorts to save disk space.  The LUT would need to be
-    // extremely large before we would have to worry about overflows.
-    // Each array has the size nLon * nLat
-    private DataBuffer iIndices;
-    private DataBuffer jIndices;
+    // We store these as (unsigned) shorts to save memory and disk space.  The LUT
+    // would need to be extremely large before we would have to worry about
+    // overflows.  Each buffer has the size nLon * nLat, and is either held
+    // on the heap or mapped from a file.
+    private final ShortBuffer iIndices;
+    private final ShortBuffer jIndices;
 
     private final int nLon;
     private final int nLat;
 
     // Converts from lat-lon coordinates to index space in the LUT.
-    private final AffineTransform transform = new AffineTransform();
-
-    /**
-     * A {@link DirectColorModel} that holds data as unsigned shorts, ignoring
-     * the red and alpha components.  (int value = green &lt;&lt; 8 | blue)
-     */
-    private static final ColorModel COLOR_MODEL = new DirectColorModel(
-        16,           // Store the data as unsigned shorts
-        0x00000000,
-        0x0000ff00,
-        0x000000ff,
-        0x00000000
-    );
+    private final double lonMin;
+    private final double latMin;
+    private final double lonStride;
+    private final double latStride;
 
     /** This value in the look-up table means "missing value" */
     private static final int MISSING_VALUE = 65535;
 
     /** This is the maximum index that can be stored in the LUT */
-    private static final int MAX_INDEX = 65534;
+    static final int MAX_INDEX = 65534;
 
     /**
-     * Creates an empty look-up table (with all indices set to -1).
+     * Creates a look-up table for the given curvilinear grid.
      * @param curvGrid The CurvilinearGrid which this LUT will approximate
      * @param minResolution The minimum resolution of the LUT in degrees
      */
     public LookUpTable(CurvilinearGrid curvGrid, double minResolution)
     {
+        this(curvGrid, minResolution, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a look-up table for the given curvilinear grid, using up to the
+     * given number of threads.
+     */
+    LookUpTable(CurvilinearGrid curvGrid, double minResolution, int maxThreads)
+    {
+        if (curvGrid.getNi() - 1 > MAX_INDEX || curvGrid.getNj() - 1 > MAX_INDEX)
+        {
+            // Very unlikely to happen!
+            throw new IllegalStateException("Can't store indices greater than " + MAX_INDEX);
+        }
+
         GeographicBoundingBox bbox = curvGrid.getBoundingBox();
         
         double lonDiff = bbox.getEastBoundLongitude() - bbox.getWestBoundLongitude();
@@ -101,8 +133,8 @@ final class LookUpTable
 
         // Now calculate the number of points in the LUT along the longitude
         // and latitude directions
-        this.nLon = (int)Math.ceil(lonDiff / minResolution);
-        this.nLat = (int)Math.ceil(latDiff / minResolution);
+        this.nLon = getNumPoints(lonDiff, minResolution);
+        this.nLat = getNumPoints(latDiff, minResolution);
         if (this.nLon <= 0 || this.nLat <= 0)
         {
             String msg = String.format("nLon (=%d) and nLat (=%d) must be positive and > 0", this.nLon, this.nLat);
@@ -111,89 +143,348 @@ final class LookUpTable
 
         // This ensures that the highest value of longitude (corresponding
         // with nLon - 1) is getLonMax()
-        double lonStride = lonDiff / (this.nLon - 1);
-        double latStride = latDiff / (this.nLat - 1);
-
-        // Create the transform.  We scale by the inverse of the stride length
-        this.transform.scale(1.0/lonStride, 1.0/latStride);
-        // Then we translate by the minimum coordinate values
-        this.transform.translate(-bbox.getWestBoundLongitude(), -bbox.getSouthBoundLatitude());
+        this.lonStride = lonDiff / (this.nLon - 1);
+        this.latStride = latDiff / (this.nLat - 1);
+        this.lonMin = bbox.getWestBoundLongitude();
+        this.latMin = bbox.getSouthBoundLatitude();
 
         // Populate the look-up tables
-        this.makeLuts(curvGrid);
+        short[] iData = new short[this.nLon * this.nLat];
+        short[] jData = new short[this.nLon * this.nLat];
+        this.makeLuts(curvGrid, iData, jData, maxThreads);
+        this.iIndices = ShortBuffer.wrap(iData);
+        this.jIndices = ShortBuffer.wrap(jData);
+    }
+
+    /**
+     * Returns the number of points needed along an axis of the given length
+     * (in degrees) at the given resolution
+     */
+    private static int getNumPoints(double length, double minResolution)
+    {
+        return (int)Math.ceil(length / minResolution);
+    }
+
+    /**
+     * Returns the amount of memory that would be used by a look-up table
+     * for the given grid at the given resolution, in bytes, without
+     * generating the table.
+     */
+    public static long getSizeBytes(CurvilinearGrid curvGrid, double minResolution)
+    {
+        GeographicBoundingBox bbox = curvGrid.getBoundingBox();
+        long nLon = getNumPoints(bbox.getEastBoundLongitude() - bbox.getWestBoundLongitude(), minResolution);
+        long nLat = getNumPoints(bbox.getNorthBoundLatitude() - bbox.getSouthBoundLatitude(), minResolution);
+        return 4 * nLon * nLat;
+    }
+
+    /** Creates a look-up table with the given contents */
+    private LookUpTable(int nLon, int nLat, double lonMin, double latMin,
+        double lonStride, double latStride, ShortBuffer iIndices, ShortBuffer jIndices)
+    {
+        this.nLon = nLon;
+        this.nLat = nLat;
+        this.lonMin = lonMin;
+        this.latMin = latMin;
+        this.lonStride = lonStride;
+        this.latStride = latStride;
+        this.iIndices = iIndices;
+        this.jIndices = jIndices;
+    }
+
+    /**
+     * <p>Generates the data for the look-up tables, painting the i and j indices
+     * of each cell of the curvilinear grid into the given arrays.  Each thread
+     * paints a band of rows, visiting the cells in the same order as a single
+     * thread would, so the result does not depend on the number of threads.</p>
+     * <p>So that each band only visits the cells that overlap it, the cells
+     * are first sorted into bands.  This is also done in parallel, by splitting
+     * the cells into chunks: each thread produces a list of cells for each band
+     * from its chunk, and the lists for each band are painted in chunk order.</p>
+     */
+    private void makeLuts(final CurvilinearGrid curvGrid, final short[] iData,
+        final short[] jData, int maxThreads)
+    {
+        long start = System.currentTimeMillis();
+        Arrays.fill(iData, (short)MISSING_VALUE);
+        Arrays.fill(jData, (short)MISSING_VALUE);
+        final int numCells = curvGrid.getNi() * curvGrid.getNj();
+        final int numThreads = Math.min(maxThreads, this.nLat);
+        if (numThreads <= 1)
+        {
+            CellPainter painter = new CellPainter(curvGrid, iData, jData);
+            for (int cell = 0; cell < numCells; cell++)
+            {
+                painter.paint(cell, 0, this.nLat);
+            }
+        }
+        else
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            try
+            {
+                // Sort the cells into bands, with a list of cells for
+                // each band from each chunk
+                final IntList[][] bandCells = new IntList[numThreads][];
+                List<Runnable> tasks = new ArrayList<Runnable>(numThreads);
+                for (int chunk = 0; chunk < numThreads; chunk++)
+                {
+                    final int c = chunk;
+                    final int firstCell = (int)((long)numCells * chunk / numThreads);
+                    final int lastCell = (int)((long)numCells * (chunk + 1) / numThreads);
+                    tasks.add(new Runnable() {
+                        @Override public void run() {
+                            bandCells[c] = findBandCells(curvGrid, firstCell, lastCell, numThreads);
+                        }
+                    });
+                }
+                runAll(executor, tasks);
+
+                // Now paint each band
+                tasks.clear();
+                for (int band = 0; band < numThreads; band++)
+                {
+                    final int b = band;
+                    final int firstRow = this.getFirstRow(band, numThreads);
+                    final int lastRow = this.getFirstRow(band + 1, numThreads);
+                    tasks.add(new Runnable() {
+                        @Override public void run() {
+                            CellPainter painter = new CellPainter(curvGrid, iData, jData);
+                            for (IntList[] chunkCells : bandCells)
+                            {
+                                IntList cells = chunkCells[b];
+                                for (int k = 0; k < cells.size(); k++)
+                                {
+                                    painter.paint(cells.get(k), firstRow, lastRow);
+                                }
+                            }
+                        }
+                    });
+                }
+                runAll(executor, tasks);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while generating look-up table", ie);
+            }
+            catch (ExecutionException ee)
+            {
+                // The tasks throw no checked exceptions
+                throw new IllegalStateException(ee.getCause());
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+        logger.debug("Generated look-up table of size {},{} using {} threads in {} ms",
+            new Object[]{this.nLon, this.nLat, numThreads, System.currentTimeMillis() - start});
+    }
+
+    /** Runs the given tasks with the given executor and waits for them all */
+    private static void runAll(ExecutorService executor, List<Runnable> tasks)
+        throws InterruptedException, ExecutionException
+    {
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+        for (Runnable task : tasks) futures.add(executor.submit(task));
+        for (Future<?> future : futures) future.get();
+    }
+
+    /**
+     * Returns the first row of the given band, when the look-up table is
+     * split into the given number of bands.  This is also the row after the
+     * last row of the previous band.
+     */
+    private int getFirstRow(int band, int numBands)
+    {
+        return (int)((long)this.nLat * band / numBands);
+    }
+
+    /**
+     * Finds the bands of rows that are overlapped by each of the cells
+     * from firstCell (inclusive) to lastCell (exclusive), in the order in
+     * which the cells are numbered.
+     * @return an array containing a list of cells for each band
+     */
+    private IntList[] findBandCells(CurvilinearGrid curvGrid, int firstCell,
+        int lastCell, int numBands)
+    {
+        IntList[] bandCells = new IntList[numBands];
+        for (int band = 0; band < numBands; band++) bandCells[band] = new IntList();
+        double[] lons = new double[4];
+        double[] lats = new double[4];
+        int[] rows = new int[2];
+        int ni = curvGrid.getNi();
+        for (int cell = firstCell; cell < lastCell; cell++)
+        {
+            // Cells with NaN coordinates can't be plotted
+            if (!curvGrid.getCellCorners(cell % ni, cell / ni, lons, lats)) continue;
+            if (!this.findRows(lats, 0, this.nLat, rows, null)) continue;
+            // Find the band containing the first row, then add the cell to
+            // each band until we pass the last row
+            int band = (int)((long)rows[0] * numBands / this.nLat);
+            while (this.getFirstRow(band, numBands) > rows[0]) band--;
+            while (this.getFirstRow(band + 1, numBands) <= rows[0]) band++;
+            for (; band < numBands && this.getFirstRow(band, numBands) < rows[1]; band++)
+            {
+                bandCells[band].add(cell);
+            }
+        }
+        return bandCells;
+    }
+
+    /**
+     * Finds the rows of the look-up table that are covered by a cell with the
+     * given corner latitudes, within the range from firstRow (inclusive) to
+     * lastRow (exclusive).
+     * @param rows Array of length 2 into which the first row (inclusive) and
+     * the last row (exclusive) will be written
+     * @param ys Array of length 4 into which the corner latitudes will be
+     * written in the index space of this look-up table, or null
+     * @return false if the cell covers no rows in the range
+     */
+    private boolean findRows(double[] lats, int firstRow, int lastRow, int[] rows, double[] ys)
+    {
+        double yMin = Double.POSITIVE_INFINITY;
+        double yMax = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < 4; c++)
+        {
+            double y = (lats[c] - this.latMin) / this.latStride;
+            if (ys != null) ys[c] = y;
+            yMin = Math.min(yMin, y);
+            yMax = Math.max(yMax, y);
+        }
+        rows[0] = Math.max(firstRow, (int)Math.ceil(yMin));
+        rows[1] = Math.min(lastRow, (int)Math.ceil(yMax));
+        return rows[0] < rows[1];
     }
 
     /**
-     * Generates the data for the look-up tables
+     * Paints cells of a curvilinear grid into the look-up table, holding the
+     * working arrays so that no objects are created per cell.  Instances
+     * must only be used by a single thread.
      */
-    private void makeLuts(CurvilinearGrid curvGrid)
+    private final class CellPainter
     {
-        // Create BufferedImages on which we will paint the i and j indices of
-        // cells
-        BufferedImage iIm = this.createBufferedImage();
-        BufferedImage jIm = this.createBufferedImage();
-
-        // Get graphics contexts onto which we'll paint
-        Graphics2D ig2d = iIm.createGraphics();
-        Graphics2D jg2d = jIm.createGraphics();
-
-        // Apply a transform so that we can paint in lat-lon coordinates
-        ig2d.setTransform(this.transform);
-        jg2d.setTransform(this.transform);
-
-        // Populate the BufferedImages using the information from the curvilinear grid
-        // Iterate over all the cells in the grid, painting the i and j indices of the
-        // cell onto the BufferedImage
-        for (Cell cell : curvGrid)
+        private final CurvilinearGrid curvGrid;
+        private final short[] iData;
+        private final short[] jData;
+        private final double[] lons = new double[4];
+        private final double[] lats = new double[4];
+        private final double[] xs = new double[4];
+        private final double[] ys = new double[4];
+        private final double[] crossings = new double[4];
+        private final int[] rows = new int[2];
+
+        public CellPainter(CurvilinearGrid curvGrid, short[] iData, short[] jData)
+        {
+            this.curvGrid = curvGrid;
+            this.iData = iData;
+            this.jData = jData;
+        }
+
+        /**
+         * Paints the given cell (numbered with the i index varying fastest)
+         * into the rows from firstRow (inclusive) to lastRow (exclusive)
+         */
+        public void paint(int cell, int firstRow, int lastRow)
         {
-            // Get a Path representing the boundary of the cell
-            Path2D path = cell.getBoundaryPath();
-            // Paint the path onto the BufferedImages as polygons
-            // Use the i and j indices of the cell as the colours
-            if (cell.getI() > MAX_INDEX || cell.getJ() > MAX_INDEX)
+            int i = cell % this.curvGrid.getNi();
+            int j = cell / this.curvGrid.getNi();
+            // Cells with NaN coordinates can't be plotted
+            if (!this.curvGrid.getCellCorners(i, j, this.lons, this.lats)) return;
+            if (!findRows(this.lats, firstRow, lastRow, this.rows, this.ys)) return;
+
+            for (int c = 0; c < 4; c++)
             {
-                // Very unlikely to happen!
-                throw new IllegalStateException("Can't store indices greater than " + MAX_INDEX);
+                this.xs[c] = (this.lons[c] - lonMin) / lonStride;
             }
-            ig2d.setPaint(new Color(cell.getI()));
-            jg2d.setPaint(new Color(cell.getJ()));
-            ig2d.fill(path);
-            jg2d.fill(path);
+            fillPolygon(this.xs, this.ys, this.rows[0], this.rows[1],
+                this.crossings, this.iData, this.jData, i, j);
 
             // We paint a second copy of the cell, shifted by 360 degrees, to handle
             // the anti-meridian
-            double shiftLon = cell.getCentre().getLongitude() > 0.0
+            double shiftLon = this.curvGrid.getMidpointLongitude(i, j) > 0.0
                 ? -360.0
                 : 360.0;
-            path.transform(AffineTransform.getTranslateInstance(shiftLon, 0.0));
-            ig2d.fill(path);
-            jg2d.fill(path);
+            double shiftX = shiftLon / lonStride;
+            for (int c = 0; c < 4; c++) this.xs[c] += shiftX;
+            fillPolygon(this.xs, this.ys, this.rows[0], this.rows[1],
+                this.crossings, this.iData, this.jData, i, j);
+        }
+    }
+
+    /** A growable list of ints */
+    private static final class IntList
+    {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        public void add(int value)
+        {
+            if (this.size == this.values.length)
+            {
+                this.values = Arrays.copyOf(this.values, 2 * this.size);
+            }
+            this.values[this.size++] = value;
+        }
+
+        public int get(int index)
+        {
+            return this.values[index];
         }
 
-        // We only need to store the data buffers, not the whole BufferedImages
-        this.iIndices = iIm.getRaster().getDataBuffer();
-        this.jIndices = jIm.getRaster().getDataBuffer();
+        public int size()
+        {
+            return this.size;
+        }
     }
 
     /**
-     * Creates and returns a new {@link BufferedImage} that stores pixel data
-     * as unsigned shorts.  Initializes all pixel values to {@link #MISSING_VALUE}.
-     * @return
+     * Sets all the points of the look-up table that lie within the given
+     * quadrilateral (in index space) to the given i and j indices, using a
+     * scanline algorithm with the even-odd rule.  A point is inside if it lies
+     * in the half-open interval between a pair of edge crossings.
      */
-    private BufferedImage createBufferedImage()
+    void fillPolygon(double[] xs, double[] ys, int rowMin, int rowMax,
+        double[] crossings, short[] iData, short[] jData, int i, int j)
     {
-        WritableRaster raster = COLOR_MODEL.createCompatibleWritableRaster(this.nLon, this.nLat);
-        BufferedImage im = new BufferedImage(COLOR_MODEL, raster, true, null);
-        for (int y = 0; y < im.getHeight(); y++)
+        for (int row = rowMin; row < rowMax; row++)
         {
-            for (int x = 0; x < im.getWidth(); x++)
+            // Find where the edges of the polygon cross this row
+            int numCrossings = 0;
+            for (int c = 0; c < 4; c++)
+            {
+                int d = (c + 1) % 4;
+                double y0 = ys[c];
+                double y1 = ys[d];
+                if ((y0 <= row && row < y1) || (y1 <= row && row < y0))
+                {
+                    double x = xs[c] + (row - y0) * (xs[d] - xs[c]) / (y1 - y0);
+                    // Insertion sort
+                    int k = numCrossings;
+                    while (k > 0 && crossings[k - 1] > x)
+                    {
+                        crossings[k] = crossings[k - 1];
+                        k--;
+                    }
+                    crossings[k] = x;
+                    numCrossings++;
+                }
+            }
+            int rowStart = row * this.nLon;
+            for (int k = 0; k + 1 < numCrossings; k += 2)
             {
-                im.setRGB(x, y, MISSING_VALUE);
+                int colMin = Math.max(0, (int)Math.ceil(crossings[k]));
+                int colMax = Math.min(this.nLon, (int)Math.ceil(crossings[k + 1]));
+                for (int col = colMin; col < colMax; col++)
+                {
+                    iData[rowStart + col] = (short)i;
+                    jData[rowStart + col] = (short)j;
+                }
             }
         }
-        logger.debug("Created BufferedImage of size {},{}, data buffer type {}",
-            new Object[]{im.getWidth(), im.getHeight(), im.getRaster().getDataBuffer().getClass()});
-        return im;
     }
 
     /**
@@ -208,31 +499,55 @@ final class LookUpTable
      * null if the given longitude-latitude point is not in the domain of this LUT.
      */
     public int[] getGridCoordinates(double longitude, double latitude)
+    {
+        int[] coords = new int[2];
+        return this.getGridCoordinates(longitude, latitude, coords) ? coords : null;
+    }
+
+    /**
+     * Finds the nearest coordinates in the original CurvilinearGrid to the
+     * given longitude-latitude point, writing them into the given array
+     * rather than creating a new one.
+     * @param coords Array of length 2 into which the i and j coordinates in
+     * the grid will be written
+     * @return false if the given longitude-latitude point is not in the domain
+     * of this LUT, in which case coords is unchanged
+     */
+    @Override
+    public boolean getGridCoordinates(double longitude, double latitude, int[] coords)
     {
         // Convert from longitude-latitude to index space in this LUT
-        Point2D indexPoint =
-            this.transform.transform(new Point2D.Double(longitude, latitude), null);
-        int iLon = (int)Math.round(indexPoint.getX());
-        int iLat = (int)Math.round(indexPoint.getY());
+        double x = (longitude - this.lonMin) / this.lonStride;
+        double y = (latitude - this.latMin) / this.latStride;
+        if (Double.isNaN(x) || Double.isNaN(y)) return false;
+        long iLon = Math.round(x);
+        long iLat = Math.round(y);
 
         if (iLon < 0 || iLat < 0 || iLon >= this.nLon || iLat >= this.nLat)
         {
-            return null;
+            return false;
         }
 
         // Find the index within the LUT
-        int index = iLon + (iLat * this.nLon);
+        int index = (int)iLon + ((int)iLat * this.nLon);
         // Extract the i and j indices of the nearest grid point
-        int iIndex = this.iIndices.getElem(index);
-        int jIndex = this.jIndices.getElem(index);
+        int iIndex = this.iIndices.get(index) & 0xffff;
+        int jIndex = this.jIndices.get(index) & 0xffff;
 
         // Check for missing values
-        if (iIndex < 0 || iIndex > MAX_INDEX ||
-            jIndex < 0 || jIndex > MAX_INDEX)
+        if (iIndex > MAX_INDEX || jIndex > MAX_INDEX)
         {
-            return null;
+            return false;
         }
-        return new int[] {iIndex, jIndex};
+        coords[0] = iIndex;
+        coords[1] = jIndex;
+        return true;
+    }
+
+    @Override
+    public long getSizeBytes()
+    {
+        return 4L * this.nLon * this.nLat;
     }
 
     /**
@@ -252,13 +567,101 @@ final class LookUpTable
     }
 
     /**
-     * Gets an affine transform that converts from lat-lon coordinates to the
-     * indices in the lat-lon grid used by this look-up table.
-     * @return
+     * Writes this look-up table to the given file.  The file is written under
+     * a unique temporary name in the same directory and then renamed, so that
+     * other processes never see a partially-written file and threads or
+     * processes that save the same table at the same time don't overwrite
+     * each other's temporary files.
+     * @throws IOException if the file could not be written
      */
-    public AffineTransform getTransform()
+    public void save(File file) throws IOException
     {
-        return this.transform;
+        File tempFile = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX,
+            file.getAbsoluteFile().getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tempFile), 65536));
+        try
+        {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(this.nLon);
+            out.writeInt(this.nLat);
+            out.writeDouble(this.lonMin);
+            out.writeDouble(this.latMin);
+            out.writeDouble(this.lonStride);
+            out.writeDouble(this.latStride);
+            // Pad the header
+            out.write(new byte[HEADER_LENGTH - out.size()]);
+            int n = this.nLon * this.nLat;
+            for (int i = 0; i < n; i++) out.writeShort(this.iIndices.get(i));
+            for (int i = 0; i < n; i++) out.writeShort(this.jIndices.get(i));
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!tempFile.renameTo(file))
+        {
+            // On some platforms we can't rename over an existing file
+            file.delete();
+            if (!tempFile.renameTo(file))
+            {
+                tempFile.delete();
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Loads a look-up table that was written by {@link #save(java.io.File)}.
+     * The contents of the table are memory-mapped rather than read into the
+     * heap, so this is quick even for large tables.  The mapped pages are
+     * read in straight away (this is called while a dataset is being
+     * loaded), so that the first requests don't have to wait for them.
+     * @throws IOException if the file could not be read or is not a valid
+     * look-up table file
+     */
+    public static LookUpTable load(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining())
+            {
+                if (channel.read(header) < 0) throw new IOException(file + " is truncated");
+            }
+            header.flip();
+            if (header.getInt() != MAGIC_NUMBER)
+            {
+                throw new IOException(file + " is not a look-up table file");
+            }
+            int nLon = header.getInt();
+            int nLat = header.getInt();
+            double lonMin = header.getDouble();
+            double latMin = header.getDouble();
+            double lonStride = header.getDouble();
+            double latStride = header.getDouble();
+            long n = (long)nLon * nLat;
+            if (nLon <= 0 || nLat <= 0 || channel.size() != HEADER_LENGTH + 4 * n)
+            {
+                throw new IOException(file + " has the wrong size");
+            }
+            // The mapping remains valid after the channel is closed
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                HEADER_LENGTH, 4 * n);
+            buf.load();
+            buf.limit((int)(2 * n));
+            ShortBuffer iIndices = buf.slice().asShortBuffer();
+            buf.limit((int)(4 * n)).position((int)(2 * n));
+            ShortBuffer jIndices = buf.slice().asShortBuffer();
+            return new LookUpTable(nLon, nLat, lonMin, latMin, lonStride,
+                latStride, iIndices, jIndices);
+        }
+        finally
+        {
+            raf.close();
+        }
     }
 
 }
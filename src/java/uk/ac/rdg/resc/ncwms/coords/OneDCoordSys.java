@@ -28,9 +28,15 @@
 
 package uk.ac.rdg.resc.ncwms.coords;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import ucar.unidata.geoloc.LatLonPoint;
 import ucar.unidata.geoloc.ProjectionImpl;
 import ucar.unidata.geoloc.ProjectionPoint;
+import ucar.unidata.util.Parameter;
 
 /**
  * A {@link HorizontalCoordSys} that consists of two orthogonal 1D axes.
@@ -43,11 +49,68 @@ public class OneDCoordSys extends HorizontalCoordSys
     private final OneDCoordAxis yAxis;
     private final ProjectionImpl proj;
 
+    /**
+     * Lat-lon points at which we sample the projection, in degrees.  They are
+     * well away from the poles and from each other.
+     */
+    private static final double[][] PROBE_LAT_LONS = {
+        { 10.0, 20.0 }, { -35.0, -65.0 }, { 50.0, 130.0 }
+    };
+
+    /**
+     * The parameters of the projection.  ProjectionImpl.equals() doesn't look
+     * at all of them (e.g. it ignores the false easting and northing of most
+     * projections) so we compare these instead.
+     */
+    private final List<Parameter> projParams;
+
+    /**
+     * The projection coordinates of the {@link #PROBE_LAT_LONS}.  Some
+     * properties of a projection (e.g. the radius of the earth) aren't in
+     * the parameter list, but they do change where points are projected.
+     */
+    private final double[] projSamples;
+
+    /** The maximum number of spare copies of the projection that we keep */
+    private static final int MAX_SPARE_PROJS =
+        2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * ProjectionImpls are not thread-safe (thanks to Marcos Hermida of
+     * Meteogalicia for pointing this out!), so rather than synchronizing on
+     * the projection for every point, each call borrows a copy from this
+     * pool, or makes a new copy if there isn't one.  The pool belongs to this
+     * object rather than to the server's threads (as thread-local copies
+     * would), so the copies are freed along with this object.
+     */
+    private final BlockingQueue<ProjectionImpl> spareProjs =
+        new ArrayBlockingQueue<ProjectionImpl>(MAX_SPARE_PROJS);
+
     OneDCoordSys(OneDCoordAxis xAxis, OneDCoordAxis yAxis, ProjectionImpl proj)
     {
         this.xAxis = xAxis;
         this.yAxis = yAxis;
         this.proj = proj;
+        if (proj == null)
+        {
+            this.projParams = null;
+            this.projSamples = null;
+        }
+        else
+        {
+            synchronized(proj)
+            {
+                this.projParams = new ArrayList<Parameter>(proj.getProjectionParameters());
+                this.projSamples = new double[2 * PROBE_LAT_LONS.length];
+                for (int i = 0; i < PROBE_LAT_LONS.length; i++)
+                {
+                    ProjectionPoint point = proj.latLonToProj(
+                        PROBE_LAT_LONS[i][0], PROBE_LAT_LONS[i][1]);
+                    this.projSamples[2 * i] = point.getX();
+                    this.projSamples[2 * i + 1] = point.getY();
+                }
+            }
+        }
     }
 
     /**
@@ -65,11 +128,15 @@ public class OneDCoordSys extends HorizontalCoordSys
                 this.getYIndex(lonLatPoint.getLatitude())
             };
         }
-        // ProjectionImpls are not thread-safe.  Thanks to Marcos
-        // Hermida of Meteogalicia for pointing this out!
+        ProjectionImpl projCopy = this.borrowProj();
         ProjectionPoint point;
-        synchronized(this.proj) {
-            point = this.proj.latLonToProj(lonLatPoint.getLatitude(), lonLatPoint.getLongitude());
+        try
+        {
+            point = projCopy.latLonToProj(lonLatPoint.getLatitude(), lonLatPoint.getLongitude());
+        }
+        finally
+        {
+            this.returnProj(projCopy);
         }
         int iIndex = this.xAxis.getIndex(point.getX());
         int jIndex = this.yAxis.getIndex(point.getY());
@@ -77,6 +144,62 @@ public class OneDCoordSys extends HorizontalCoordSys
         return new int[] { iIndex, jIndex };
     }
 
+    /**
+     * Finds the nearest grid points to a number of lon-lat points, projecting
+     * them all in one call to the projection's array method.  No objects are
+     * created per point.
+     */
+    @Override
+    public final void lonLatToGrid(double[] lonLat, int numPoints, int[] iIndices,
+        int[] jIndices, int offset)
+    {
+        double[][] xy;
+        if (this.proj == null)
+        {
+            xy = null;
+        }
+        else
+        {
+            // The array method wants the coordinates in separate arrays
+            // and projects them into the "to" arrays
+            double[][] latsLons = new double[2][numPoints];
+            for (int i = 0; i < numPoints; i++)
+            {
+                latsLons[0][i] = lonLat[2 * i + 1];
+                latsLons[1][i] = lonLat[2 * i];
+            }
+            ProjectionImpl projCopy = this.borrowProj();
+            try
+            {
+                xy = projCopy.latLonToProj(latsLons, new double[2][numPoints], 0, 1);
+            }
+            finally
+            {
+                this.returnProj(projCopy);
+            }
+        }
+        for (int i = 0; i < numPoints; i++)
+        {
+            double x = xy == null ? lonLat[2 * i] : xy[0][i];
+            double y = xy == null ? lonLat[2 * i + 1] : xy[1][i];
+            int iIndex = -1;
+            int jIndex = -1;
+            // Points that are invalid in the source CRS are NaN
+            if (!Double.isNaN(x) && !Double.isNaN(y))
+            {
+                iIndex = this.xAxis.getIndex(x);
+                jIndex = this.yAxis.getIndex(y);
+                if (iIndex < 0 || jIndex < 0)
+                {
+                    iIndex = -1;
+                    jIndex = -1;
+                }
+            }
+            iIndices[offset + i] = iIndex;
+            jIndices[offset + i] = jIndex;
+        }
+    }
+
     @Override
     public final LonLatPosition gridToLonLat(int i, int j) {
         // Check that the indices are within range
@@ -92,11 +215,42 @@ public class OneDCoordSys extends HorizontalCoordSys
                 this.yAxis.getCoordValue(j)
             );
         }
-        LatLonPoint llp = this.proj.projToLatLon(
-            this.xAxis.getCoordValue(i),
-            this.yAxis.getCoordValue(j)
-        );
-        return new LonLatPositionImpl(llp.getLongitude(), llp.getLatitude());
+        ProjectionImpl projCopy = this.borrowProj();
+        try
+        {
+            LatLonPoint llp = projCopy.projToLatLon(
+                this.xAxis.getCoordValue(i),
+                this.yAxis.getCoordValue(j)
+            );
+            return new LonLatPositionImpl(llp.getLongitude(), llp.getLatitude());
+        }
+        finally
+        {
+            this.returnProj(projCopy);
+        }
+    }
+
+    /**
+     * Returns a copy of the projection that no other thread is using, which
+     * must be given back with {@link #returnProj(ProjectionImpl)}.
+     */
+    private ProjectionImpl borrowProj()
+    {
+        ProjectionImpl projCopy = this.spareProjs.poll();
+        if (projCopy != null) return projCopy;
+        synchronized(this.proj)
+        {
+            return this.proj.constructCopy();
+        }
+    }
+
+    /**
+     * Gives back a copy of the projection from {@link #borrowProj()}.  The
+     * copy is discarded if we already have enough spare copies.
+     */
+    private void returnProj(ProjectionImpl projCopy)
+    {
+        this.spareProjs.offer(projCopy);
     }
 
     /**
@@ -116,4 +270,40 @@ public class OneDCoordSys extends HorizontalCoordSys
     {
         return this.yAxis.getIndex(yCoord);
     }
+
+    /**
+     * Two coordinate systems are equal if they are of the same class and
+     * have equal axes and projections.  Projections are equal if they have the
+     * same class name and parameters and project a few sample points to
+     * exactly the same place.
+     * @see HorizontalCoordSys#fromCoordSys(ucar.nc2.dt.GridCoordSystem)
+     */
+    @Override
+    public final boolean equals(Object obj)
+    {
+        if (this == obj) return true;
+        if (obj == null || obj.getClass() != this.getClass()) return false;
+        OneDCoordSys other = (OneDCoordSys)obj;
+        return this.xAxis.equals(other.xAxis) &&
+               this.yAxis.equals(other.yAxis) &&
+               (this.proj == null ? other.proj == null : other.proj != null &&
+                   this.proj.getClassName().equals(other.proj.getClassName()) &&
+                   this.projParams.equals(other.projParams) &&
+                   Arrays.equals(this.projSamples, other.projSamples));
+    }
+
+    @Override
+    public final int hashCode()
+    {
+        int hashCode = 17;
+        hashCode = 31 * hashCode + this.xAxis.hashCode();
+        hashCode = 31 * hashCode + this.yAxis.hashCode();
+        if (this.proj != null)
+        {
+            hashCode = 31 * hashCode + this.proj.getClassName().hashCode();
+            hashCode = 31 * hashCode + this.projParams.hashCode();
+            hashCode = 31 * hashCode + Arrays.hashCode(this.projSamples);
+        }
+        return hashCode;
+    }
 }
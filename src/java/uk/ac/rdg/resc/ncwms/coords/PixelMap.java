@@ -28,10 +28,7 @@
 
 package uk.ac.rdg.resc.ncwms.coords;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
 import org.opengis.referencing.operation.TransformException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +51,34 @@ import uk.ac.rdg.resc.ncwms.cdm.DataReadingStrategy;
  * <p>(A more efficient algorithm is used for the special case in which both the
  * requested CRS and the CRS of the data are lat-lon.)</p>
  *
+ * <p>If the i (or j) indices in the PixelMap are uniformly spaced, the
+ * {@link #getIStride() stride} between them is recorded, so that the
+ * {@link DataReadingStrategy}s can read only every n-th data point.  When both
+ * CRSs are lat-lon and the source data are coarsely sampled (e.g. for a map
+ * of the whole globe at low resolution), the indices are snapped onto a uniform
+ * lattice to make this possible: this moves the data point used for each
+ * pixel by less than half a pixel.</p>
+ *
+ * <p>The mappings are held in primitive arrays in "compressed sparse row"
+ * form, sorted in order of increasing j and then i index.  Clients iterate
+ * through the map as follows:</p>
+ *
+ * <pre>
+ * for (int row = 0; row &lt; pixelMap.getNumRows(); row++)
+ * {
+ *     int j = pixelMap.getRowJIndex(row);
+ *     for (int ij = pixelMap.getRowStart(row); ij &lt; pixelMap.getRowEnd(row); ij++)
+ *     {
+ *         int i = pixelMap.getIIndex(ij);
+ *         for (int p = pixelMap.getPixelStart(ij); p &lt; pixelMap.getPixelEnd(ij); p++)
+ *         {
+ *             int pixelIndex = pixelMap.getPixelIndex(p);
+ *             // The point (i,j) in the source data maps to pixelIndex
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
  * <p>The resulting PixelMap is then used by {@link DataReadingStrategy}s to work out what
  * data to read from the source data files.  A variety of strategies are possible
  * for reading these data points, each of which may be optimal in a certain
@@ -69,6 +94,12 @@ public final class PixelMap
 {
     private static final Logger logger = LoggerFactory.getLogger(PixelMap.class);
 
+    /**
+     * The number of points that are transformed to lon-lat in each call to
+     * {@link PointList#getLonLatCoords(int, int, double[])}
+     */
+    private static final int TRANSFORM_CHUNK_SIZE = 4096;
+
     // These define the bounding box (in terms of axis indices) of the data
     // to extract from the source files
     private int minIIndex = Integer.MAX_VALUE;
@@ -76,131 +107,457 @@ public final class PixelMap
     private int maxIIndex = -1;
     private int maxJIndex = -1;
 
-    // Maps j indices to row information
-    private final Map<Integer, Row> pixelMap = new HashMap<Integer, Row>();
-
-    // Number of unique i-j pairs
-    private int numUniqueIJPairs = 0;
+    // The j index of each row, in ascending order
+    private int[] rowJIndices;
+    // rowStarts[row] is the position in iIndices of the first i-j pair in the
+    // row.  There is an extra element at the end, equal to the number of pairs.
+    private int[] rowStarts;
+    // The i index of each unique i-j pair, in ascending order within each row
+    private int[] iIndices;
+    // pixelStarts[ij] is the position in pixelIndices of the first pixel that
+    // maps to the i-j pair.  There is an extra element at the end, equal to
+    // the number of pixels.
+    private int[] pixelStarts;
+    // The indices of the pixels in the final image, grouped by i-j pair
+    private int[] pixelIndices;
+
+    // The spacings between the i and j indices (calculated after the map is built)
+    private int iStride = 1;
+    private int jStride = 1;
 
     public PixelMap(HorizontalCoordSys horizCoordSys, PointList pointList) throws TransformException
     {
         long start = System.currentTimeMillis();
+        // The i and j indices of each point in the point list (-1 if there is
+        // no data for the point)
+        int[] pointIIndices = new int[pointList.size()];
+        int[] pointJIndices = new int[pointList.size()];
+        Arrays.fill(pointIIndices, -1);
+        Arrays.fill(pointJIndices, -1);
         if (pointList instanceof HorizontalGrid)
         {
-            this.initFromGrid(horizCoordSys, (HorizontalGrid)pointList);
+            initFromGrid(horizCoordSys, (HorizontalGrid)pointList, pointIIndices, pointJIndices);
         }
         else
         {
-            this.initFromPointList(horizCoordSys, pointList);
+            initFromPointList(horizCoordSys, pointList, pointIIndices, pointJIndices);
         }
+        this.build(pointIIndices, pointJIndices);
+        this.calculateStrides();
         logger.debug("Built pixel map in {} ms", System.currentTimeMillis() - start);
     }
 
-    private void initFromPointList(HorizontalCoordSys horizCoordSys, PointList pointList) throws TransformException
+    /**
+     * Creates a PixelMap directly from the i and j indices of each pixel.
+     * Negative indices mean that there is no data for the pixel.
+     */
+    PixelMap(int[] pointIIndices, int[] pointJIndices)
+    {
+        this.build(pointIIndices, pointJIndices);
+        this.calculateStrides();
+    }
+
+    private static void initFromPointList(HorizontalCoordSys horizCoordSys,
+        PointList pointList, int[] pointIIndices, int[] pointJIndices) throws TransformException
     {
         logger.debug("Using generic method based on iterating over the PointList");
-        CrsHelper crsHelper = pointList.getCrsHelper();
-        int pixelIndex = 0;
-        for (HorizontalPosition point : pointList.asList())
+        // We transform the points to lon-lat in chunks, reusing the same
+        // buffer, so that we don't create any objects per point
+        int size = pointList.size();
+        double[] lonLat = new double[2 * Math.min(size, TRANSFORM_CHUNK_SIZE)];
+        for (int start = 0; start < size; start += TRANSFORM_CHUNK_SIZE)
         {
-            // Check that this point is valid in the target CRS
-            if (crsHelper.isPointValidForCrs(point))
-            {
-                // Translate this point in the target grid to lat-lon
-                LonLatPosition lonLat = crsHelper.crsToLonLat(point);
-                // Now find the nearest index in the grid: gridCoords will be
-                // null if latLon is outside the grid's domain
-                int[] gridCoords = horizCoordSys.lonLatToGrid(lonLat);
-                if (gridCoords != null)
-                {
-                    this.put(gridCoords[0], gridCoords[1], pixelIndex);
-                }
-            }
-            pixelIndex++;
+            int numPoints = Math.min(size - start, TRANSFORM_CHUNK_SIZE);
+            // Points that are invalid in the target CRS come back as NaNs
+            pointList.getLonLatCoords(start, numPoints, lonLat);
+            // Now find the nearest indices in the grid: these will be -1
+            // for points outside the grid's domain
+            horizCoordSys.lonLatToGrid(lonLat, numPoints, pointIIndices, pointJIndices, start);
         }
     }
 
     /**
-     * Generates a PixelMap for the given Layer.  Data read from the Layer will
-     * be projected onto the given HorizontalGrid
+     * Finds the i and j indices in the source data of each pixel in the given
+     * HorizontalGrid
      *
      * @throws Exception if the necessary transformations could not be performed
      */
-    private void initFromGrid(HorizontalCoordSys horizCoordSys, HorizontalGrid grid) throws TransformException
+    private static void initFromGrid(HorizontalCoordSys horizCoordSys, HorizontalGrid grid,
+        int[] pointIIndices, int[] pointJIndices) throws TransformException
     {
         // Cycle through each pixel in the picture and work out which
         // i and j index in the source data it corresponds to
 
-        // We can gain efficiency if the target grid is a lat-lon grid and
-        // the data exist on a lat-long grid by minimizing the number of
-        // calls to axis.getIndex().
-        if (grid.isLatLon() && horizCoordSys instanceof LatLonCoordSys)
+        // We can gain efficiency if the data exist on a lat-long grid and
+        // the target grid is separable (i.e. longitude depends only on x and
+        // latitude only on y, as in a lat-lon or Mercator grid) by finding the
+        // indices once per column and once per row.
+        double[][] lonLats = horizCoordSys instanceof LatLonCoordSys
+            ? getSeparableLonLats(grid)
+            : null;
+        if (lonLats != null)
         {
-            logger.debug("Using optimized method for lat-lon coordinates with 1D axes");
+            logger.debug("Using optimized method for separable grids over lat-lon 1D axes");
             LatLonCoordSys latLonGrid = (LatLonCoordSys)horizCoordSys;
             int pixelIndex = 0;
-            // Calculate the indices along the x axis.
-            int[] xIndices = new int[grid.getXAxisValues().length];
-            for (int i = 0; i < grid.getXAxisValues().length; i++)
+            // Calculate the indices along the x axis, using -1 for points
+            // that are invalid in the grid's CRS
+            double[] lons = lonLats[0];
+            int[] xIndices = new int[lons.length];
+            for (int i = 0; i < lons.length; i++)
             {
-                xIndices[i] = latLonGrid.getLonIndex(grid.getXAxisValues()[i]);
+                xIndices[i] = Double.isNaN(lons[i])
+                    ? -1
+                    : latLonGrid.getLonIndex(lons[i]);
             }
-            for (double lat : grid.getYAxisValues())
+            // Calculate the indices along the y axis, using -1 for latitudes
+            // outside the valid range
+            double[] lats = lonLats[1];
+            int[] yIndices = new int[lats.length];
+            for (int j = 0; j < lats.length; j++)
             {
-                if (lat >= -90.0 && lat <= 90.0)
-                {
-                    int yIndex = latLonGrid.getLatIndex(lat);
-                    for (int xIndex : xIndices)
-                    {
-                        this.put(xIndex, yIndex, pixelIndex);
-                        pixelIndex++;
-                    }
-                }
-                else
+                double lat = lats[j];
+                yIndices[j] = lat >= -90.0 && lat <= 90.0
+                    ? latLonGrid.getLatIndex(lat)
+                    : -1;
+            }
+            // Allow the data to be read with strides if we are undersampling
+            snapToLattice(xIndices);
+            snapToLattice(yIndices);
+            for (int yIndex : yIndices)
+            {
+                if (yIndex >= 0)
                 {
-                    // We still need to increment the pixel index
-                    pixelIndex += xIndices.length;
+                    System.arraycopy(xIndices, 0, pointIIndices, pixelIndex, xIndices.length);
+                    Arrays.fill(pointJIndices, pixelIndex, pixelIndex + xIndices.length, yIndex);
                 }
+                // If yIndex < 0 the pixels keep their indices of -1
+                pixelIndex += xIndices.length;
             }
         }
         else
         {
             // We can't do better than the generic initialization method
             // based upon iterating through each point in the grid.
-            this.initFromPointList(horizCoordSys, (PointList)grid);
+            initFromPointList(horizCoordSys, grid, pointIIndices, pointJIndices);
         }
     }
 
     /**
-     * Adds a new pixel index to this map.  Does nothing if either x or y is
-     * negative.
-     * @param i The i index of the point in the source data
-     * @param j The j index of the point in the source data
-     * @param pixel The index of the corresponding point in the picture
+     * Transforms points from the CRS of a grid to longitude-latitude, in the
+     * same way as {@link CrsHelper#crsToLonLat(double[], int)}.  This allows
+     * the test for separable grids to be checked without a real CRS.
      */
-    private void put(int i, int j, int pixel)
+    interface LonLatTransform
     {
-        // If either of the indices are negative there is no data for this
-        // pixel index
-        if (i < 0 || j < 0) return;
+        public void crsToLonLat(double[] xy, int numPoints) throws TransformException;
+    }
 
-        // Modify the bounding box if necessary
-        if (i < this.minIIndex) this.minIIndex = i;
-        if (i > this.maxIIndex) this.maxIIndex = i;
-        if (j < this.minJIndex) this.minJIndex = j;
-        if (j > this.maxJIndex) this.maxJIndex = j;
+    /**
+     * Finds the longitude of each column and the latitude of each row of
+     * the given grid, if the grid's CRS is separable.
+     * @see #getSeparableLonLats(double[], double[], uk.ac.rdg.resc.ncwms.coords.PixelMap.LonLatTransform)
+     */
+    private static double[][] getSeparableLonLats(HorizontalGrid grid) throws TransformException
+    {
+        if (grid.isLatLon())
+        {
+            // No transformation needed
+            return new double[][] { grid.getXAxisValues(), grid.getYAxisValues() };
+        }
+        final CrsHelper crsHelper = grid.getCrsHelper();
+        return getSeparableLonLats(grid.getXAxisValues(), grid.getYAxisValues(),
+            new LonLatTransform() {
+                @Override
+                public void crsToLonLat(double[] xy, int numPoints) throws TransformException {
+                    crsHelper.crsToLonLat(xy, numPoints);
+                }
+            });
+    }
 
-        // Get the information for this row (i.e. this y index),
-        // creating a new row if necessary
-        Row row = this.pixelMap.get(j);
-        if (row == null)
+    /**
+     * <p>Finds the longitude of each column and the latitude of each row of
+     * a grid, if the grid's CRS is separable, {@literal i.e.} if the
+     * longitude of each point depends only on its x coordinate and the latitude
+     * only on its y coordinate.  This is true of lat-lon grids and of cylindrical
+     * projections such as Mercator.</p>
+     * <p>Rather than relying on a list of known projections we test the
+     * transformation itself.  The longitudes are taken from the first row and
+     * the latitudes from the first column.  We then check that the first, middle
+     * and last rows and columns, and both diagonals, agree with these.  The
+     * diagonals ensure that every row and every column is checked somewhere away
+     * from the edges and the middle.  This takes O(width + height) transformations
+     * rather than the O(width * height) needed to transform every pixel.  A grid
+     * that is wrongly thought to be separable would give wrong data for every
+     * pixel, so any disagreement (including a point that is valid in a row or
+     * column that was found to be invalid) means that the grid is treated as
+     * non-separable.</p>
+     * @return a two-element array containing the longitudes of the columns
+     * and the latitudes of the rows, or null if the grid is not separable
+     * (or if we can't tell).  Columns and rows that are outside the valid
+     * range of the CRS are given NaN coordinates.
+     */
+    static double[][] getSeparableLonLats(double[] xValues, double[] yValues,
+        LonLatTransform transform) throws TransformException
+    {
+        int width = xValues.length;
+        int height = yValues.length;
+        if (width == 0 || height == 0) return null;
+        int n = Math.max(width, height);
+
+        // Build the list of points to sample, starting with the first row
+        // and the first column
+        int numSamples = 3 * width + 3 * height + 2 * n;
+        int[] is = new int[numSamples];
+        int[] js = new int[numSamples];
+        int k = 0;
+        for (int j : new int[] { 0, height / 2, height - 1 })
+        {
+            for (int i = 0; i < width; i++, k++)
+            {
+                is[k] = i;
+                js[k] = j;
+            }
+        }
+        int firstColumn = k;
+        for (int i : new int[] { 0, width / 2, width - 1 })
+        {
+            for (int j = 0; j < height; j++, k++)
+            {
+                is[k] = i;
+                js[k] = j;
+            }
+        }
+        for (int d = 0; d < n; d++, k += 2)
         {
-            row = new Row();
-            this.pixelMap.put(j, row);
+            is[k] = is[k + 1] = n == 1 ? 0 : (int)((long)d * (width - 1) / (n - 1));
+            js[k] = n == 1 ? 0 : (int)((long)d * (height - 1) / (n - 1));
+            js[k + 1] = height - 1 - js[k];
         }
 
-        // Add the pixel to this row
-        row.put(i, pixel);
+        double[] xy = new double[2 * numSamples];
+        for (k = 0; k < numSamples; k++)
+        {
+            xy[2 * k] = xValues[is[k]];
+            xy[2 * k + 1] = yValues[js[k]];
+        }
+        transform.crsToLonLat(xy, numSamples);
+
+        double[] lons = new double[width];
+        for (int i = 0; i < width; i++) lons[i] = xy[2 * i];
+        double[] lats = new double[height];
+        for (int j = 0; j < height; j++) lats[j] = xy[2 * (firstColumn + j) + 1];
+
+        for (k = 0; k < numSamples; k++)
+        {
+            double lon = xy[2 * k];
+            double lat = xy[2 * k + 1];
+            double expectedLon = lons[is[k]];
+            double expectedLat = lats[js[k]];
+            if (Double.isNaN(expectedLon) || Double.isNaN(expectedLat))
+            {
+                // The row or column is invalid, so the point must be too
+                if (!Double.isNaN(lon) || !Double.isNaN(lat)) return null;
+            }
+            else if (!nearlyEqual(lon, expectedLon) || !nearlyEqual(lat, expectedLat))
+            {
+                return null;
+            }
+        }
+        return new double[][] { lons, lats };
+    }
+
+    /**
+     * @return true if the given coordinates (in degrees) are both NaN or
+     * differ by a negligible amount
+     */
+    private static boolean nearlyEqual(double d1, double d2)
+    {
+        if (Double.isNaN(d1) || Double.isNaN(d2))
+        {
+            return Double.isNaN(d1) && Double.isNaN(d2);
+        }
+        return Math.abs(d1 - d2) < 1e-6;
+    }
+
+    /**
+     * <p>Moves the given axis indices onto a uniformly-spaced lattice if the
+     * spacing between distinct indices is always at least two, {@literal i.e.}
+     * if we are undersampling the source data.  The lattice spacing is the
+     * smallest spacing between distinct indices, so each index moves by at most
+     * half the distance to its neighbours.  The relative order of the indices is
+     * preserved and negative (missing) indices are left unchanged.</p>
+     * <p>For example, the indices [3, 6, 8, 11, 13] are snapped to
+     * [3, 7, 9, 11, 13], which can be read with the range (3:13:2).</p>
+     */
+    static void snapToLattice(int[] indices)
+    {
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        int min = -1;
+        int max = -1;
+        int minSpacing = Integer.MAX_VALUE;
+        for (int index : sorted)
+        {
+            if (index < 0) continue;
+            if (min < 0) min = index;
+            else if (index != max) minSpacing = Math.min(minSpacing, index - max);
+            max = index;
+        }
+        // Nothing to do if there are fewer than two distinct indices or if
+        // adjacent data points are used
+        if (minSpacing == Integer.MAX_VALUE || minSpacing < 2) return;
+        for (int i = 0; i < indices.length; i++)
+        {
+            if (indices[i] < 0) continue;
+            int snapped = min + (int)Math.round((indices[i] - min) / (double)minSpacing) * minSpacing;
+            // Don't go off the end of the axis
+            if (snapped > max) snapped -= minSpacing;
+            indices[i] = snapped;
+        }
+    }
+
+    /**
+     * Builds the compressed arrays from the i and j indices of each pixel,
+     * ignoring pixels with negative indices.  The pixels are sorted by j and
+     * then by i index using two stable counting sorts, which take time
+     * proportional to the number of pixels plus the size of the bounding box's
+     * sides.
+     */
+    private void build(int[] pointIIndices, int[] pointJIndices)
+    {
+        // Find the pixels that have data, and the bounding box
+        int[] pixels = new int[pointIIndices.length];
+        int numPixels = 0;
+        for (int p = 0; p < pointIIndices.length; p++)
+        {
+            int i = pointIIndices[p];
+            int j = pointJIndices[p];
+            // If either of the indices are negative there is no data for this
+            // pixel index
+            if (i < 0 || j < 0) continue;
+            if (i < this.minIIndex) this.minIIndex = i;
+            if (i > this.maxIIndex) this.maxIIndex = i;
+            if (j < this.minJIndex) this.minJIndex = j;
+            if (j > this.maxJIndex) this.maxJIndex = j;
+            pixels[numPixels++] = p;
+        }
+
+        // Sort by i, then by j: the second sort is stable so the pixels end up
+        // ordered by j, then i, then pixel index
+        if (numPixels > 0)
+        {
+            pixels = countingSort(pixels, numPixels, pointIIndices, this.minIIndex, this.maxIIndex);
+            pixels = countingSort(pixels, numPixels, pointJIndices, this.minJIndex, this.maxJIndex);
+        }
+
+        // Now compress the runs of equal j and i indices.  We size the
+        // arrays for the worst case and trim them afterwards.
+        int maxRows = numPixels == 0 ? 0 : Math.min(numPixels, this.maxJIndex - this.minJIndex + 1);
+        int[] rowJs = new int[maxRows];
+        int[] rowSts = new int[maxRows + 1];
+        int[] is = new int[numPixels];
+        int[] pixelSts = new int[numPixels + 1];
+        this.pixelIndices = new int[numPixels];
+        int numRows = 0;
+        int numPairs = 0;
+        int prevI = -1;
+        int prevJ = -1;
+        for (int n = 0; n < numPixels; n++)
+        {
+            int p = pixels[n];
+            int i = pointIIndices[p];
+            int j = pointJIndices[p];
+            if (j != prevJ)
+            {
+                // We have a new row
+                rowJs[numRows] = j;
+                rowSts[numRows] = numPairs;
+                numRows++;
+                prevJ = j;
+                prevI = -1;
+            }
+            if (i != prevI)
+            {
+                // We have a new unique i-j pair
+                is[numPairs] = i;
+                pixelSts[numPairs] = n;
+                numPairs++;
+                prevI = i;
+            }
+            this.pixelIndices[n] = p;
+        }
+        rowSts[numRows] = numPairs;
+        pixelSts[numPairs] = numPixels;
+
+        this.rowJIndices = Arrays.copyOf(rowJs, numRows);
+        this.rowStarts = Arrays.copyOf(rowSts, numRows + 1);
+        this.iIndices = Arrays.copyOf(is, numPairs);
+        this.pixelStarts = Arrays.copyOf(pixelSts, numPairs + 1);
+    }
+
+    /**
+     * Sorts the first {@code n} elements of the given array of pixels by
+     * the value of their key, which lies between {@code min} and {@code max}
+     * inclusive.  The sort is stable.
+     * @return a new array containing the sorted pixels
+     */
+    private static int[] countingSort(int[] pixels, int n, int[] keys, int min, int max)
+    {
+        // Find the position of the first pixel with each key
+        int[] starts = new int[max - min + 2];
+        for (int k = 0; k < n; k++)
+        {
+            starts[keys[pixels[k]] - min + 1]++;
+        }
+        for (int key = 1; key < starts.length; key++)
+        {
+            starts[key] += starts[key - 1];
+        }
+        int[] sorted = new int[n];
+        for (int k = 0; k < n; k++)
+        {
+            int p = pixels[k];
+            sorted[starts[keys[p] - min]++] = p;
+        }
+        return sorted;
+    }
+
+    /**
+     * Calculates the strides with which the i and j indices can be read,
+     * which is the greatest common divisor of the offsets of the indices from
+     * the minimum index.
+     */
+    private void calculateStrides()
+    {
+        if (this.isEmpty()) return;
+        int jGcd = 0;
+        for (int j : this.rowJIndices)
+        {
+            jGcd = gcd(jGcd, j - this.minJIndex);
+            if (jGcd == 1) break;
+        }
+        int iGcd = 0;
+        for (int i : this.iIndices)
+        {
+            iGcd = gcd(iGcd, i - this.minIIndex);
+            if (iGcd == 1) break;
+        }
+        // The gcd will be zero if there is only a single index
+        this.iStride = Math.max(iGcd, 1);
+        this.jStride = Math.max(jGcd, 1);
+        logger.debug("iStride = {}, jStride = {}", this.iStride, this.jStride);
+    }
+
+    private static int gcd(int a, int b)
+    {
+        while (b != 0)
+        {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
     }
 
     /**
@@ -211,81 +568,123 @@ public final class PixelMap
      */
     public boolean isEmpty()
     {
-        return this.pixelMap.size() == 0;
+        return this.rowJIndices.length == 0;
     }
 
     /**
-     * Gets the j indices of all rows in this pixel map
-     * @return the Set of all j indices in this pixel map
+     * Gets the number of rows ({@literal i.e.} distinct j indices) in this
+     * pixel map.  Rows are numbered from zero in order of increasing j index.
+     * @return the number of rows in this pixel map
      */
-    public Set<Integer> getJIndices()
+    public int getNumRows()
     {
-        return this.pixelMap.keySet();
+        return this.rowJIndices.length;
     }
 
     /**
-     * Gets the i indices of all the data points in the given row that
-     * are needed to make the final image.
-     * @return the Set of all I indices in the given row
-     * @throws IllegalArgumentException if there is no row with the given y index
+     * Gets the j index of the given row
+     * @param row The number of the row, between 0 and {@link #getNumRows()} - 1
+     * @return the j index of the given row
      */
-    public Set<Integer> getIIndices(int j)
+    public int getRowJIndex(int row)
     {
-        return this.getRow(j).getIIndices().keySet();
+        return this.rowJIndices[row];
     }
 
     /**
-     * Gets the set of all pixel indices, representing individual elements in the
-     * final data array, that correspond with the given grid point in the source data.  A single
-     * value from the source data might map to several elements in the final data array,
-     * especially if we are "zoomed in".
-     * @return a Set of all data array indices that correspond with the given i and
-     * j index
-     * @throws IllegalArgumentException if there is no row with the given j index
-     * or if the given i index is not found in the row
+     * Gets the position of the first i-j pair in the given row.  The i-j
+     * pairs in the row are numbered from {@code getRowStart(row)} to
+     * {@link #getRowEnd(int) getRowEnd(row)} - 1, in order of increasing i index.
+     * @param row The number of the row, between 0 and {@link #getNumRows()} - 1
+     * @return the position of the first i-j pair in the given row
      */
-    public Set<Integer> getPixelIndices(int i, int j)
+    public int getRowStart(int row)
     {
-        Map<Integer, Set<Integer>> row = this.getRow(j).getIIndices();
-        if (!row.containsKey(i))
-        {
-            throw new IllegalArgumentException("The i index " + i +
-                " was not found in the row with j index " + j);
-        }
-        return row.get(i);
+        return this.rowStarts[row];
     }
 
     /**
-     * Gets the minimum i index in the row with the given j index
-     * @return the minimum i index in the row with the given j index
-     * @throws IllegalArgumentException if there is no row with the given y index
+     * Gets the position after the last i-j pair in the given row.
+     * @param row The number of the row, between 0 and {@link #getNumRows()} - 1
+     * @return the position after the last i-j pair in the given row
+     * @see #getRowStart(int)
      */
-    public int getMinIIndexInRow(int j)
+    public int getRowEnd(int row)
     {
-        return this.getRow(j).getMinIIndex();
+        return this.rowStarts[row + 1];
     }
 
     /**
-     * Gets the maximum i index in the row with the given j index
-     * @return the maximum i index in the row with the given j index
-     * @throws IllegalArgumentException if there is no row with the given y index
+     * Gets the minimum i index in the given row
+     * @param row The number of the row, between 0 and {@link #getNumRows()} - 1
+     * @return the minimum i index in the given row
      */
-    public int getMaxIIndexInRow(int j)
+    public int getRowMinIIndex(int row)
     {
-        return this.getRow(j).getMaxIIndex();
+        return this.iIndices[this.rowStarts[row]];
     }
 
     /**
-     * @return the row with the given j index
-     * @throws IllegalArgumentException if there is no row with the given y index
+     * Gets the maximum i index in the given row
+     * @param row The number of the row, between 0 and {@link #getNumRows()} - 1
+     * @return the maximum i index in the given row
      */
-    private Row getRow(int j)
+    public int getRowMaxIIndex(int row)
     {
-        if (!this.pixelMap.containsKey(j))
-        {
-            throw new IllegalArgumentException("There is no row with j index " + j);
-        }
-        return this.pixelMap.get(j);
+        return this.iIndices[this.rowStarts[row + 1] - 1];
+    }
+
+    /**
+     * Gets the i index of the given i-j pair
+     * @param ijPair The position of the i-j pair, between 0 and
+     * {@link #getNumUniqueIJPairs()} - 1
+     * @return the i index of the given i-j pair
+     */
+    public int getIIndex(int ijPair)
+    {
+        return this.iIndices[ijPair];
+    }
+
+    /**
+     * Gets the position of the first pixel that corresponds with the given
+     * i-j pair in the source data.  A single value from the source data might
+     * map to several pixels in the final data array, especially if we are
+     * "zoomed in".  These pixels are numbered from {@code getPixelStart(ijPair)}
+     * to {@link #getPixelEnd(int) getPixelEnd(ijPair)} - 1, and their indices
+     * in the final data array are found using {@link #getPixelIndex(int)}.
+     * @param ijPair The position of the i-j pair, between 0 and
+     * {@link #getNumUniqueIJPairs()} - 1
+     * @return the position of the first pixel that corresponds with the given
+     * i-j pair
+     */
+    public int getPixelStart(int ijPair)
+    {
+        return this.pixelStarts[ijPair];
+    }
+
+    /**
+     * Gets the position after the last pixel that corresponds with the given
+     * i-j pair in the source data.
+     * @param ijPair The position of the i-j pair, between 0 and
+     * {@link #getNumUniqueIJPairs()} - 1
+     * @return the position after the last pixel that corresponds with the
+     * given i-j pair
+     * @see #getPixelStart(int)
+     */
+    public int getPixelEnd(int ijPair)
+    {
+        return this.pixelStarts[ijPair + 1];
+    }
+
+    /**
+     * Gets the index in the final data array of the given pixel
+     * @param pixel The position of the pixel, as found through
+     * {@link #getPixelStart(int)}
+     * @return the index in the final data array of the given pixel
+     */
+    public int getPixelIndex(int pixel)
+    {
+        return this.pixelIndices[pixel];
     }
 
     /**
@@ -325,91 +724,81 @@ public final class PixelMap
     }
 
     /**
-     * Contains information about a particular row in the data
+     * Gets the spacing between the i indices in this pixel map: every i index
+     * is equal to {@link #getMinIIndex()} plus a multiple of this stride (and
+     * so is every i index within a row equal to {@link #getRowMinIIndex(int)}
+     * plus a multiple of this stride).
+     * @return the spacing between the i indices, which is 1 if the indices
+     * are not uniformly spaced.
      */
-    private class Row
+    public int getIStride()
     {
-        // Maps i Indices to a set of pixel indices
-        //             i        pixels
-        private Map<Integer, Set<Integer>> iIndices = new HashMap<Integer, Set<Integer>>();
-        // Min and max x Indices in this row
-        private int minIIndex = Integer.MAX_VALUE;
-        private int maxIIndex = -1;
-
-        /**
-         * Adds a mapping of an i index to a pixel index
-         */
-        public void put(int i, int pixel)
-        {
-            if (i < this.minIIndex) this.minIIndex = i;
-            if (i > this.maxIIndex) this.maxIIndex = i;
-
-            Set<Integer> pixelIndices = this.iIndices.get(i);
-            if (pixelIndices == null)
-            {
-                pixelIndices = new HashSet<Integer>();
-                this.iIndices.put(i, pixelIndices);
-                // We have a new unique x-y pair
-                PixelMap.this.numUniqueIJPairs++;
-            }
-            // Add the pixel index to the set
-            pixelIndices.add(pixel);
-        }
-
-        public Map<Integer, Set<Integer>> getIIndices()
-        {
-            return this.iIndices;
-        }
-
-        public int getMinIIndex()
-        {
-            return this.minIIndex;
-        }
+        return this.iStride;
+    }
 
-        public int getMaxIIndex()
-        {
-            return this.maxIIndex;
-        }
+    /**
+     * Gets the spacing between the j indices in this pixel map: every j index
+     * is equal to {@link #getMinJIndex()} plus a multiple of this stride.
+     * @return the spacing between the j indices, which is 1 if the indices
+     * are not uniformly spaced.
+     */
+    public int getJStride()
+    {
+        return this.jStride;
     }
 
     /**
      * Gets the number of unique i-j pairs in this pixel map. When combined
      * with the size of the resulting image we can quantify the under- or
      * oversampling.  This is the number of data points that will be extracted
-     * by the {@link PixelByPixelDataReader}.
+     * by the {@link DataReadingStrategy#PIXEL_BY_PIXEL pixel-by-pixel} strategy.
      * @return the number of unique i-j pairs in this pixel map.
      */
     public int getNumUniqueIJPairs()
     {
-        return numUniqueIJPairs;
+        return this.iIndices.length;
     }
 
     /**
-     * Gets the sum of the lengths of each row of data points,
-     * {@literal i.e.} sum(imax - imin + 1).  This is the number of data points that will
-     * be extracted by the data reader.
+     * Gets the sum of the lengths of each (strided) row of data points,
+     * {@literal i.e.} sum((imax - imin) / iStride + 1).  This is the number of
+     * data points that will be extracted by the
+     * {@link DataReadingStrategy#SCANLINE scanline} strategy.
      * @return the sum of the lengths of each row of data points
      */
     public int getSumRowLengths()
     {
         int sumRowLengths = 0;
-        for (Row row : this.pixelMap.values())
+        for (int row = 0; row < this.getNumRows(); row++)
         {
-            sumRowLengths += (row.getMaxIIndex() - row.getMinIIndex() + 1);
+            sumRowLengths += (this.getRowMaxIIndex(row) - this.getRowMinIIndex(row)) / this.iStride + 1;
         }
         return sumRowLengths;
     }
 
     /**
-     * Gets the size of the i-j bounding box that encompasses all data.  This is
-     * the number of data points that will be extracted by the
-     * {@link BoundingBoxDataReader}.
+     * Gets the approximate memory footprint of this PixelMap, which is
+     * dominated by the arrays of indices.
+     * @return the approximate size of this PixelMap in bytes
+     */
+    public long getSizeBytes()
+    {
+        // Allow 16 bytes for the header of each array and 100 for the object
+        int numInts = this.rowJIndices.length + this.rowStarts.length +
+            this.iIndices.length + this.pixelStarts.length + this.pixelIndices.length;
+        return 4L * numInts + 5 * 16 + 100;
+    }
+
+    /**
+     * Gets the size of the (strided) i-j bounding box that encompasses all data.
+     * This is the number of data points that will be extracted by the
+     * {@link DataReadingStrategy#BOUNDING_BOX bounding-box} strategy.
      * @return the size of the i-j bounding box that encompasses all data.
      */
     public int getBoundingBoxSize()
     {
-        return (this.maxIIndex - this.minIIndex + 1) *
-               (this.maxJIndex - this.minJIndex + 1);
+        return ((this.maxIIndex - this.minIIndex) / this.iStride + 1) *
+               ((this.maxJIndex - this.minJIndex) / this.jStride + 1);
     }
 
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import org.opengis.referencing.operation.TransformException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A bounded cache of {@link PixelMap}s, keyed by the identity of the
+ * {@link HorizontalCoordSys} and the definition of the target
+ * {@link HorizontalGrid} (CRS code, bounding box, width and height).  The same
+ * map tile is usually requested for many timesteps, elevations and variables,
+ * and building a PixelMap requires a coordinate transformation and a call to
+ * {@link HorizontalCoordSys#lonLatToGrid(LonLatPosition) lonLatToGrid()} for
+ * every pixel, so we keep recently-used PixelMaps between requests.
+ * PixelMaps are immutable so a cached instance can be shared between
+ * threads.</p>
+ * <p>The cache is bounded by the approximate memory footprint of the
+ * PixelMaps it holds: the least-recently-used PixelMaps are discarded when the
+ * footprint exceeds the limit.  PointLists that are not HorizontalGrids (e.g.
+ * transects) are not cached.  Layers share cached PixelMaps whenever they
+ * share the same HorizontalCoordSys object.</p>
+ * <p>The keys hold the HorizontalCoordSys weakly, so the cache doesn't keep
+ * coordinate systems (which may have large look-up tables) alive after their
+ * datasets have been reloaded.  The PixelMaps of coordinate systems that have
+ * been garbage-collected are discarded the next time the cache is used.</p>
+ * <p>This class is thread-safe.</p>
+ * @author Jon Blower
+ */
+public final class PixelMapCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(PixelMapCache.class);
+
+    private final long maxSizeBytes;
+
+    /** Cached PixelMaps in least-recently-used order (the eldest is first) */
+    private final LinkedHashMap<Key, PixelMap> pixelMaps =
+        new LinkedHashMap<Key, PixelMap>(16, 0.75f, true);
+
+    /** The total footprint of the cached PixelMaps */
+    private long sizeBytes = 0;
+
+    /** Keys whose coordinate systems have been garbage-collected */
+    private final ReferenceQueue<HorizontalCoordSys> staleKeys =
+        new ReferenceQueue<HorizontalCoordSys>();
+
+    /** Counters for the admin application */
+    private long numHits = 0;
+    private long numMisses = 0;
+    private long totalBuildTimeMs = 0;
+
+    /**
+     * Creates a new cache
+     * @param maxSizeBytes The maximum total footprint of the cached PixelMaps,
+     * in bytes.  Zero disables the cache.
+     */
+    public PixelMapCache(long maxSizeBytes)
+    {
+        if (maxSizeBytes < 0)
+        {
+            throw new IllegalArgumentException("maxSizeBytes must be >= 0");
+        }
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Returns a PixelMap for the given coordinate system and points, creating
+     * it if it is not in the cache.
+     * @throws TransformException if the PixelMap had to be created and the
+     * necessary transformations could not be performed
+     */
+    public PixelMap getPixelMap(HorizontalCoordSys horizCoordSys, PointList pointList)
+        throws TransformException
+    {
+        if (!(pointList instanceof HorizontalGrid) || this.maxSizeBytes == 0)
+        {
+            return new PixelMap(horizCoordSys, pointList);
+        }
+
+        Key key = new Key(horizCoordSys, (HorizontalGrid)pointList, this.staleKeys);
+        synchronized(this)
+        {
+            this.expungeStaleEntries();
+            PixelMap pixelMap = this.pixelMaps.get(key);
+            if (pixelMap != null)
+            {
+                this.numHits++;
+                return pixelMap;
+            }
+            this.numMisses++;
+        }
+
+        // Build the PixelMap outside the lock so that we don't hold up other
+        // threads.  Occasionally two threads will build the same PixelMap,
+        // in which case the first is replaced.
+        long start = System.currentTimeMillis();
+        PixelMap pixelMap = new PixelMap(horizCoordSys, pointList);
+        long buildTimeMs = System.currentTimeMillis() - start;
+        long size = pixelMap.getSizeBytes();
+
+        synchronized(this)
+        {
+            this.totalBuildTimeMs += buildTimeMs;
+            if (size > this.maxSizeBytes)
+            {
+                logger.debug("PixelMap of {} bytes is too large to cache", size);
+                return pixelMap;
+            }
+            PixelMap old = this.pixelMaps.put(key, pixelMap);
+            if (old != null) this.sizeBytes -= old.getSizeBytes();
+            this.sizeBytes += size;
+            // Discard the least-recently-used PixelMaps until we are within the limit
+            Iterator<PixelMap> it = this.pixelMaps.values().iterator();
+            while (this.sizeBytes > this.maxSizeBytes && it.hasNext())
+            {
+                PixelMap eldest = it.next();
+                if (eldest == pixelMap) break;
+                this.sizeBytes -= eldest.getSizeBytes();
+                it.remove();
+            }
+        }
+        return pixelMap;
+    }
+
+    /**
+     * Removes the PixelMaps of coordinate systems that have been
+     * garbage-collected.  Must be called with the lock on this object held.
+     */
+    private void expungeStaleEntries()
+    {
+        Reference<? extends HorizontalCoordSys> staleKey;
+        while ((staleKey = this.staleKeys.poll()) != null)
+        {
+            PixelMap pixelMap = this.pixelMaps.remove(staleKey);
+            if (pixelMap != null) this.sizeBytes -= pixelMap.getSizeBytes();
+        }
+    }
+
+    /** Removes all the PixelMaps from this cache */
+    public synchronized void clear()
+    {
+        this.pixelMaps.clear();
+        this.sizeBytes = 0;
+    }
+
+    /** @return the number of requests that were satisfied from the cache */
+    public synchronized long getNumHits()
+    {
+        return this.numHits;
+    }
+
+    /** @return the number of requests for cacheable PixelMaps that required
+     * the PixelMap to be built */
+    public synchronized long getNumMisses()
+    {
+        return this.numMisses;
+    }
+
+    /** @return the total time spent building cacheable PixelMaps, in milliseconds */
+    public synchronized long getTotalBuildTimeMs()
+    {
+        return this.totalBuildTimeMs;
+    }
+
+    /** @return the number of PixelMaps that are currently cached */
+    public synchronized int getNumPixelMaps()
+    {
+        this.expungeStaleEntries();
+        return this.pixelMaps.size();
+    }
+
+    /** @return the approximate total memory footprint of the cached PixelMaps,
+     * in bytes */
+    public synchronized long getSizeBytes()
+    {
+        this.expungeStaleEntries();
+        return this.sizeBytes;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("hits: %d, misses: %d, build time: %d ms, cached: %d, size: %d/%d kB",
+            this.numHits, this.numMisses, this.totalBuildTimeMs, this.pixelMaps.size(),
+            this.sizeBytes / 1024, this.maxSizeBytes / 1024);
+    }
+
+    /**
+     * Identifies a PixelMap by the identity of the coordinate system and the
+     * definition of the target grid.  The coordinate system is the referent
+     * of this weak reference.  Once it has been garbage-collected the key is
+     * equal only to itself.
+     */
+    private static final class Key extends WeakReference<HorizontalCoordSys>
+    {
+        private final String crsCode;
+        private final double[] bbox;
+        private final int width;
+        private final int height;
+        private final int hashCode;
+
+        public Key(HorizontalCoordSys horizCoordSys, HorizontalGrid grid,
+            ReferenceQueue<HorizontalCoordSys> queue)
+        {
+            super(horizCoordSys, queue);
+            this.crsCode = grid.getCrsCode();
+            // Clone the bounding box to make sure that the key is immutable
+            this.bbox = grid.getBbox().clone();
+            this.width = grid.getWidth();
+            this.height = grid.getHeight();
+            int hash = System.identityHashCode(horizCoordSys);
+            hash = 31 * hash + this.crsCode.hashCode();
+            hash = 31 * hash + Arrays.hashCode(this.bbox);
+            hash = 31 * hash + this.width;
+            hash = 31 * hash + this.height;
+            this.hashCode = hash;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            HorizontalCoordSys horizCoordSys = this.get();
+            return horizCoordSys != null &&
+                   horizCoordSys == other.get() &&
+                   this.width == other.width &&
+                   this.height == other.height &&
+                   this.crsCode.equals(other.crsCode) &&
+                   Arrays.equals(this.bbox, other.bbox);
+        }
+    }
+}
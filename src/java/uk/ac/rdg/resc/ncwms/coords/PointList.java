@@ -30,6 +30,7 @@ package uk.ac.rdg.resc.ncwms.coords;
 
 import java.util.AbstractList;
 import java.util.List;
+import org.opengis.referencing.operation.TransformException;
 
 /**
  * <p>A list of {@link HorizontalPosition}s in a certain coordinate reference system.
@@ -74,6 +75,35 @@ public abstract class PointList
      */
     public abstract int size();
 
+    /**
+     * Fills the given array with the longitudes and latitudes of a run of
+     * points in this list, as interleaved pairs (lon0, lat0, lon1, lat1, ...).
+     * Points that are not
+     * valid in this list's CRS are given NaN coordinates.  This default
+     * implementation gathers the x-y coordinates from {@link #getPoint(int)}
+     * and transforms them in one call to
+     * {@link CrsHelper#crsToLonLat(double[], int)}; subclasses may override
+     * this method to avoid creating a HorizontalPosition per point.
+     * @param start The index of the first point
+     * @param numPoints The number of points
+     * @param lonLat Array to hold the coordinates of the points, which must
+     * have at least {@code 2 * numPoints} elements
+     * @throws TransformException if the required transformation could not be performed
+     * @throws IndexOutOfBoundsException if the run extends beyond the end of
+     * this list
+     */
+    public void getLonLatCoords(int start, int numPoints, double[] lonLat)
+        throws TransformException
+    {
+        for (int i = 0; i < numPoints; i++)
+        {
+            HorizontalPosition point = this.getPoint(start + i);
+            lonLat[2 * i] = point.getX();
+            lonLat[2 * i + 1] = point.getY();
+        }
+        this.getCrsHelper().crsToLonLat(lonLat, numPoints);
+    }
+
     /**
      * Creates a PointList from the given List of ProjectionPoints with their
      * coordinate reference system
@@ -172,4 +172,17 @@ class Regular1DCoordAxis extends OneDCoordAxis
                this.size == otherAxis.size &&
                this.getAxisType() == otherAxis.getAxisType();
     }
+
+    @Override
+    public int hashCode()
+    {
+        int hashCode = 17;
+        long startBits = Double.doubleToLongBits(this.start);
+        long strideBits = Double.doubleToLongBits(this.stride);
+        hashCode = 31 * hashCode + (int)(startBits ^ (startBits >>> 32));
+        hashCode = 31 * hashCode + (int)(strideBits ^ (strideBits >>> 32));
+        hashCode = 31 * hashCode + this.size;
+        hashCode = 31 * hashCode + this.getAxisType().hashCode();
+        return hashCode;
+    }
 }
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * <p>The cells of a layer's source grid that are crossed by a {@link LineString},
+ * in the order in which they are crossed.  Each run of the path through a
+ * single cell is represented by one point (the midpoint of the run) so reading
+ * data for the {@link #getPointList() point list} samples each cell on the path
+ * once, and only once.  Runs of the path that are outside the grid are also given a
+ * point, so that gaps in the data appear in the transect.  (A cell is sampled
+ * more than once only if the path leaves it and comes back.)</p>
+ * <p>The plan is made in a single walk along the path, finding the points
+ * at which the path crosses from one cell to another.  The path is straight in
+ * the CRS of the line string but not necessarily in the space of the grid, so
+ * rather than calculating the crossings analytically we sample the path at
+ * regular intervals and then bisect each interval whose ends are in different
+ * cells, until each crossing has been found to within a small fraction of
+ * the length of the path.  An interval whose ends are in the same cell may
+ * still leave the cell and come back, if the cells are smaller than the
+ * interval, so we also bisect intervals that are longer than the local size
+ * of the cells.  We estimate this from the lengths of the runs through the
+ * last few cells.</p>
+ * @author Jon
+ */
+public final class TransectPlan
+{
+    /**
+     * The number of intervals in which we initially sample the path.  Cells
+     * that are crossed between samples are found by bisection.
+     */
+    private static final int NUM_STEPS = 500;
+
+    /**
+     * The precision with which we find the crossings between cells, as a
+     * fraction of the length of the path.  Cells that are crossed for less
+     * than this distance may be missed.
+     */
+    private static final double TOLERANCE = 1.0e-5;
+
+    private final PointList pointList;
+    private final double[] distances;
+
+    /**
+     * Finds the cells of the given coordinate system's grid that are crossed
+     * by the given line string.
+     * @throws TransformException if the points on the line string could not
+     * be transformed to longitude-latitude coordinates
+     */
+    public static TransectPlan create(LineString lineString, final HorizontalCoordSys horizCoordSys)
+        throws TransformException
+    {
+        final CrsHelper crsHelper = lineString.getCrsHelper();
+        Walker walker = new Walker(lineString.getControlPoints())
+        {
+            @Override
+            void findCells(double[] xy, int numPoints, int[] iIndices, int[] jIndices)
+                throws TransformException
+            {
+                crsHelper.crsToLonLat(xy, numPoints);
+                horizCoordSys.lonLatToGrid(xy, numPoints, iIndices, jIndices, 0);
+            }
+        };
+        walker.walk();
+        return new TransectPlan(PointList.fromList(walker.getPoints(), crsHelper),
+            walker.getDistances());
+    }
+
+    private TransectPlan(PointList pointList, double[] distances)
+    {
+        this.pointList = pointList;
+        this.distances = distances;
+    }
+
+    /**
+     * Returns one point in each run of the path through a cell, in the
+     * order in which the cells are crossed.
+     */
+    public PointList getPointList()
+    {
+        return this.pointList;
+    }
+
+    /** Returns the number of points in this plan */
+    public int size()
+    {
+        return this.distances.length;
+    }
+
+    /**
+     * Returns the distance along the path of the point with the given index
+     * in the {@link #getPointList() point list}, in units of the line string's
+     * CRS.
+     */
+    public double getDistance(int index)
+    {
+        return this.distances[index];
+    }
+
+    /**
+     * Walks along a path made of straight segments, finding the runs of the
+     * path through each cell of a grid.  Subclasses define the grid by
+     * finding the cells that contain points.
+     */
+    abstract static class Walker
+    {
+        private final List<HorizontalPosition> controlPoints;
+        /** The distance along the path of each control point */
+        private final double[] controlPointDistances;
+        private final double tolerance;
+
+        private final List<HorizontalPosition> points = new ArrayList<HorizontalPosition>();
+        private final List<Double> distances = new ArrayList<Double>();
+
+        /** The cell of the current run of the path, -1 if outside the grid */
+        private int runI = -1;
+        private int runJ = -1;
+        /** The distance along the path at which the current run started */
+        private double runStart = 0.0;
+
+        /**
+         * The lengths of the last two runs through cells of the grid, from
+         * which we estimate the size of the cells near the current position
+         */
+        private double lastRunLength = 0.0;
+        private double prevRunLength = 0.0;
+
+        /** Workspace for finding the cell of a single point */
+        private final double[] xy = new double[2];
+        private final int[] iIndex = new int[1];
+        private final int[] jIndex = new int[1];
+
+        Walker(List<HorizontalPosition> controlPoints)
+        {
+            this.controlPoints = controlPoints;
+            this.controlPointDistances = new double[controlPoints.size()];
+            for (int i = 1; i < controlPoints.size(); i++)
+            {
+                HorizontalPosition p1 = controlPoints.get(i - 1);
+                HorizontalPosition p2 = controlPoints.get(i);
+                double dx = p2.getX() - p1.getX();
+                double dy = p2.getY() - p1.getY();
+                this.controlPointDistances[i] = this.controlPointDistances[i - 1]
+                    + Math.sqrt(dx * dx + dy * dy);
+            }
+            this.tolerance = this.getPathLength() * TOLERANCE;
+        }
+
+        /**
+         * Finds the cells of the grid that contain the given points, which
+         * are given as interleaved x-y pairs in the CRS of the path.  The
+         * contents of the xy array may be overwritten.  Points outside the
+         * grid are given indices of -1.
+         */
+        abstract void findCells(double[] xy, int numPoints, int[] iIndices, int[] jIndices)
+            throws TransformException;
+
+        private double getPathLength()
+        {
+            return this.controlPointDistances[this.controlPointDistances.length - 1];
+        }
+
+        /** Walks along the whole path */
+        void walk() throws TransformException
+        {
+            // Sample each segment of the path at roughly regular intervals,
+            // making sure that we include every control point
+            double pathLength = this.getPathLength();
+            int numSegments = this.controlPoints.size() - 1;
+            int[] numSteps = new int[numSegments];
+            int numSamples = 1;
+            for (int seg = 0; seg < numSegments; seg++)
+            {
+                double segLength = this.controlPointDistances[seg + 1]
+                    - this.controlPointDistances[seg];
+                numSteps[seg] = pathLength == 0.0
+                    ? 1
+                    : Math.max(1, (int)Math.ceil(NUM_STEPS * segLength / pathLength));
+                numSamples += numSteps[seg];
+            }
+            double[] sampleDistances = new double[numSamples];
+            int[] sampleSegments = new int[numSamples];
+            double[] sampleXY = new double[2 * numSamples];
+            int n = 0;
+            for (int seg = 0; seg < numSegments; seg++)
+            {
+                double segStart = this.controlPointDistances[seg];
+                double segLength = this.controlPointDistances[seg + 1] - segStart;
+                for (int step = 0; step < numSteps[seg]; step++)
+                {
+                    sampleDistances[n] = segStart + segLength * step / numSteps[seg];
+                    sampleSegments[n] = seg;
+                    n++;
+                }
+            }
+            sampleDistances[n] = pathLength;
+            sampleSegments[n] = numSegments - 1;
+            for (int i = 0; i < numSamples; i++)
+            {
+                this.getPosition(sampleSegments[i], sampleDistances[i], sampleXY, 2 * i);
+            }
+
+            // Find the cells of all the samples in one go
+            int[] iIndices = new int[numSamples];
+            int[] jIndices = new int[numSamples];
+            this.findCells(sampleXY, numSamples, iIndices, jIndices);
+            normalize(iIndices, jIndices);
+
+            // Until we have crossed some cells we estimate their size from
+            // the number of cells that the samples are in
+            int numChanges = 0;
+            for (int i = 1; i < numSamples; i++)
+            {
+                if (iIndices[i] != iIndices[i - 1] || jIndices[i] != jIndices[i - 1]) numChanges++;
+            }
+            this.lastRunLength = pathLength / (numChanges + 1);
+            this.prevRunLength = this.lastRunLength;
+
+            // Now find the crossings between the samples
+            this.runI = iIndices[0];
+            this.runJ = jIndices[0];
+            this.runStart = 0.0;
+            for (int i = 1; i < numSamples; i++)
+            {
+                // Samples are in the same segment as the sample before them,
+                // or at its end
+                this.findCrossings(sampleSegments[i - 1],
+                    sampleDistances[i - 1], iIndices[i - 1], jIndices[i - 1],
+                    sampleDistances[i], iIndices[i], jIndices[i]);
+            }
+            this.endRun(pathLength);
+        }
+
+        /**
+         * Finds the crossings between cells between the two given points on
+         * the same segment of the path, by bisection.  If the points are in
+         * the same cell we look between them only if they are further apart
+         * than the size of the cells nearby.
+         */
+        private void findCrossings(int seg, double sA, int iA, int jA,
+            double sB, int iB, int jB) throws TransformException
+        {
+            boolean sameCell = iA == iB && jA == jB;
+            if (sameCell && sB - sA <= this.getLocalCellSize()) return;
+            if (sB - sA <= this.tolerance)
+            {
+                if (!sameCell)
+                {
+                    this.endRun(0.5 * (sA + sB));
+                    this.runI = iB;
+                    this.runJ = jB;
+                }
+                return;
+            }
+            double sM = 0.5 * (sA + sB);
+            this.getPosition(seg, sM, this.xy, 0);
+            this.findCells(this.xy, 1, this.iIndex, this.jIndex);
+            normalize(this.iIndex, this.jIndex);
+            int iM = this.iIndex[0];
+            int jM = this.jIndex[0];
+            this.findCrossings(seg, sA, iA, jA, sM, iM, jM);
+            this.findCrossings(seg, sM, iM, jM, sB, iB, jB);
+        }
+
+        /**
+         * Ends the current run of the path through a cell at the given
+         * distance along the path, adding its midpoint to the list of points.
+         */
+        private void endRun(double s)
+        {
+            if (this.runI >= 0)
+            {
+                this.prevRunLength = this.lastRunLength;
+                this.lastRunLength = s - this.runStart;
+            }
+            double midpoint = 0.5 * (this.runStart + s);
+            int seg = this.getSegment(midpoint);
+            this.getPosition(seg, midpoint, this.xy, 0);
+            this.points.add(new HorizontalPositionImpl(this.xy[0], this.xy[1]));
+            this.distances.add(midpoint);
+            this.runStart = s;
+        }
+
+        /**
+         * Returns an estimate of the size of the cells near the current
+         * position.  We use the longer of the last two runs so that a run
+         * that only clips the corner of a cell doesn't make us sample the
+         * following cells much more finely than we need to.
+         */
+        private double getLocalCellSize()
+        {
+            return Math.max(this.lastRunLength, this.prevRunLength);
+        }
+
+        /** Returns the index of the segment that contains the given distance */
+        private int getSegment(double s)
+        {
+            for (int seg = 1; seg < this.controlPointDistances.length - 1; seg++)
+            {
+                if (this.controlPointDistances[seg] > s) return seg - 1;
+            }
+            return this.controlPointDistances.length - 2;
+        }
+
+        /**
+         * Calculates the position of the point at the given distance along the
+         * path, which is on the given segment, writing its x and y coordinates
+         * into the given array at the given offset.
+         */
+        private void getPosition(int seg, double s, double[] xy, int offset)
+        {
+            HorizontalPosition p1 = this.controlPoints.get(seg);
+            HorizontalPosition p2 = this.controlPoints.get(seg + 1);
+            double segStart = this.controlPointDistances[seg];
+            double segLength = this.controlPointDistances[seg + 1] - segStart;
+            double frac = segLength == 0.0 ? 0.0 : (s - segStart) / segLength;
+            xy[offset] = p1.getX() + frac * (p2.getX() - p1.getX());
+            xy[offset + 1] = p1.getY() + frac * (p2.getY() - p1.getY());
+        }
+
+        /** Gives all points outside the grid the same indices */
+        private static void normalize(int[] iIndices, int[] jIndices)
+        {
+            for (int i = 0; i < iIndices.length; i++)
+            {
+                if (iIndices[i] < 0 || jIndices[i] < 0)
+                {
+                    iIndices[i] = -1;
+                    jIndices[i] = -1;
+                }
+            }
+        }
+
+        /** Returns one point in each run of the path through a cell */
+        List<HorizontalPosition> getPoints()
+        {
+            return Collections.unmodifiableList(this.points);
+        }
+
+        /** Returns the distance along the path of each point */
+        double[] getDistances()
+        {
+            double[] arr = new double[this.distances.size()];
+            for (int i = 0; i < arr.length; i++) arr[i] = this.distances.get(i);
+            return arr;
+        }
+    }
+}
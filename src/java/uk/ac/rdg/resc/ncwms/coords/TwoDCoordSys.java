@@ -28,12 +28,17 @@
 
 package uk.ac.rdg.resc.ncwms.coords;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ucar.nc2.dt.GridCoordSystem;
-import uk.ac.rdg.resc.ncwms.coords.CurvilinearGrid.Cell;
 
 /**
  * A HorizontalCoordSys that is created from a "curvilinear" coordinate system,
@@ -44,7 +49,9 @@ import uk.ac.rdg.resc.ncwms.coords.CurvilinearGrid.Cell;
  * Therefore we pre-calculate a {@link LookUpTable "look-up table"} of
  * the nearest i-j indices to a set of lat-lon points. Coordinate
  * conversions using such a look-up table are not precise but may suffice for
- * many applications.
+ * many applications.  For very large grids, whose look-up tables would
+ * take up more than {@link #setMaxLutSize(long) a certain amount of memory},
+ * we use a {@link KdTree k-d tree} of the cell centres instead.
  * @todo reduce the number of objects: fold in LookUpTable and BufferedImageLutGenerator
  * @author Jon Blower
  */
@@ -53,56 +60,236 @@ final class TwoDCoordSys extends HorizontalCoordSys
     private static final Logger logger = LoggerFactory.getLogger(TwoDCoordSys.class);
 
     /**
-     * In-memory cache of TwoDCoordSys objects to save expensive re-generation of same object
+     * In-memory cache of TwoDCoordSys objects to save expensive re-generation of same object.
+     * We store Futures so that each object is generated only once, by the
+     * first thread that needs it, without blocking threads that need other
+     * objects.
      * @todo The CurvilinearGrid objects can be very big.  Really we only need to key
      * on the arrays of lon and lat: all other quantities can be calculated from
      * these.  This means that we could make other large objects available for
      * garbage collection.
      */
-    private static final Map<CurvilinearGrid, TwoDCoordSys> CACHE = new HashMap<CurvilinearGrid, TwoDCoordSys>();
+    private static final ConcurrentMap<CurvilinearGrid, Future<TwoDCoordSys>> CACHE =
+        new ConcurrentHashMap<CurvilinearGrid, Future<TwoDCoordSys>>();
+
+    /**
+     * Directory in which look-up tables are stored between runs, or null
+     * if they are not to be stored
+     */
+    private static volatile File lutDirectory = null;
+
+    /**
+     * The largest look-up table that we will generate, in bytes.  For grids
+     * that need bigger tables we use a k-d tree instead.
+     */
+    private static volatile long maxLutSizeBytes = 64L * 1024 * 1024;
+
+    /** The suffix of the files in which look-up tables are stored */
+    private static final String LUT_SUFFIX = ".lut";
+
+    /**
+     * Look-up table files that have not been used for this long are deleted
+     * when the server starts.  Files are marked as used when they are loaded.
+     */
+    static final long MAX_UNUSED_LUT_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Temporary files that are this old are left over from a process that
+     * crashed while saving a look-up table, and are deleted when the server
+     * starts.  (Younger ones might be being written by another process.)
+     */
+    static final long MAX_TEMP_FILE_AGE_MILLIS = 24L * 60 * 60 * 1000;
 
     private final CurvilinearGrid curvGrid;
-    private final LookUpTable lut;
+    private final GridCellLocator locator;
 
     /**
      * The passed-in coordSys must have 2D horizontal coordinate axes.
      */
     public static TwoDCoordSys generate(GridCoordSystem coordSys)
     {
-        CurvilinearGrid curvGrid = new CurvilinearGrid(coordSys);
+        final CurvilinearGrid curvGrid = new CurvilinearGrid(coordSys);
+
+        Future<TwoDCoordSys> future = CACHE.get(curvGrid);
+        if (future == null)
+        {
+            FutureTask<TwoDCoordSys> task = new FutureTask<TwoDCoordSys>(
+                new Callable<TwoDCoordSys>() {
+                    @Override public TwoDCoordSys call() {
+                        return new TwoDCoordSys(curvGrid, getCellLocator(curvGrid));
+                    }
+                }
+            );
+            future = CACHE.putIfAbsent(curvGrid, task);
+            if (future == null)
+            {
+                // We are the first thread to need this object, so we generate it
+                future = task;
+                task.run();
+            }
+        }
+        else
+        {
+            logger.debug("Look-up table found in cache");
+        }
+
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for look-up table", ie);
+        }
+        catch (ExecutionException ee)
+        {
+            // Allow another thread to try again
+            CACHE.remove(curvGrid, future);
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Loads the look-up table for the given grid from the
+     * {@link #setLutDirectory(java.io.File) look-up table directory},
+     * or generates it (and saves it in the directory) if it isn't there.
+     * If the look-up table would be too big, generates a k-d tree instead.
+     * This is called when the metadata of a dataset are loaded, so the tables
+     * are ready before the first request.
+     */
+    private static GridCellLocator getCellLocator(CurvilinearGrid curvGrid)
+    {
+        File dir = lutDirectory;
+        File lutFile = dir == null ? null : new File(dir, curvGrid.getChecksum() + LUT_SUFFIX);
+        if (lutFile != null && lutFile.exists())
+        {
+            try
+            {
+                LookUpTable lut = LookUpTable.load(lutFile);
+                // Mark the file as used, so that it isn't deleted as unused
+                lutFile.setLastModified(System.currentTimeMillis());
+                logger.debug("Loaded look-up table from {}", lutFile);
+                return lut;
+            }
+            catch (IOException ioe)
+            {
+                logger.warn("Error loading look-up table from " + lutFile
+                    + ", regenerating", ioe);
+            }
+        }
 
         // We calculate the required resolution of the look-up tables.  We
         // want this to be around 3 times the resolution of the grid.
         double minLutResolution = Math.sqrt(curvGrid.getMeanCellArea()) / 3.0;
         logger.debug("minLutResolution = {}", minLutResolution);
+        long lutSizeBytes = LookUpTable.getSizeBytes(curvGrid, minLutResolution);
+        long start = System.currentTimeMillis();
+        if (lutSizeBytes > maxLutSizeBytes
+            || curvGrid.getNi() > LookUpTable.MAX_INDEX + 1
+            || curvGrid.getNj() > LookUpTable.MAX_INDEX + 1)
+        {
+            logger.debug("Look-up table would need {} bytes: generating k-d tree",
+                lutSizeBytes);
+            KdTree kdTree = new KdTree(curvGrid);
+            logger.debug("Generated k-d tree of {} bytes in {} ms",
+                kdTree.getSizeBytes(), System.currentTimeMillis() - start);
+            return kdTree;
+        }
+
+        logger.debug("Need to generate new look-up table");
+        LookUpTable lut = new LookUpTable(curvGrid, minLutResolution);
+        logger.debug("Generated new look-up table of {} bytes in {} ms",
+            lut.getSizeBytes(), System.currentTimeMillis() - start);
 
-        synchronized(CACHE)
+        if (lutFile != null)
         {
-            TwoDCoordSys lutCoordSys = CACHE.get(curvGrid);
-            if (lutCoordSys == null)
+            try
             {
-                logger.debug("Need to generate new look-up table");
-                // Create a look-up table for this coord sys
-                LookUpTable lut = new LookUpTable(curvGrid, minLutResolution);
-                logger.debug("Generated new look-up table");
-                // Create the TwoDCoordSys
-                lutCoordSys = new TwoDCoordSys(curvGrid, lut);
-                // Now put this in the cache
-                CACHE.put(curvGrid, lutCoordSys);
+                lut.save(lutFile);
+                logger.debug("Saved look-up table to {}", lutFile);
             }
-            else
+            catch (IOException ioe)
             {
-                logger.debug("Look-up table found in cache");
+                // Not fatal: we'll just have to generate the table again next time
+                logger.warn("Error saving look-up table to " + lutFile, ioe);
             }
-            return lutCoordSys;
         }
+        return lut;
+    }
+
+    /**
+     * Sets the directory in which look-up tables are stored between runs of
+     * the server.  The directory will be created if it does not exist.  If this
+     * is not called, look-up tables are not stored.  Look-up tables in the
+     * directory that have not been used for {@link #MAX_UNUSED_LUT_AGE_MILLIS}
+     * (e.g. those for grids that are no longer served) are deleted.
+     * @see HorizontalCoordSys#setLookUpTableDirectory(java.io.File)
+     */
+    static void setLutDirectory(File dir)
+    {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+        {
+            logger.warn("Could not create look-up table directory {}", dir);
+            return;
+        }
+        if (dir != null)
+        {
+            int numDeleted = deleteOldFiles(dir, System.currentTimeMillis());
+            logger.debug("Deleted {} old files from {}", numDeleted, dir);
+        }
+        lutDirectory = dir;
+        logger.info("Look-up tables will be stored in {}", dir);
+    }
+
+    /**
+     * Deletes the look-up tables in the given directory that have not been
+     * used for {@link #MAX_UNUSED_LUT_AGE_MILLIS} and the temporary files that
+     * are older than {@link #MAX_TEMP_FILE_AGE_MILLIS}.  Other files are left
+     * alone.
+     * @return the number of files that were deleted
+     */
+    static int deleteOldFiles(File dir, long now)
+    {
+        File[] files = dir.listFiles();
+        if (files == null) return 0;
+        int numDeleted = 0;
+        for (File file : files)
+        {
+            String name = file.getName();
+            long age = now - file.lastModified();
+            boolean isOldLut = name.endsWith(LUT_SUFFIX) && age > MAX_UNUSED_LUT_AGE_MILLIS;
+            boolean isOldTempFile = name.startsWith(LookUpTable.TEMP_PREFIX)
+                && name.endsWith(LookUpTable.TEMP_SUFFIX) && age > MAX_TEMP_FILE_AGE_MILLIS;
+            if (file.isFile() && (isOldLut || isOldTempFile) && file.delete())
+            {
+                numDeleted++;
+            }
+        }
+        return numDeleted;
+    }
+
+    /**
+     * Sets the size of the largest look-up table that will be generated, in
+     * bytes.  Grids that would need bigger look-up tables use k-d trees
+     * instead, which are slower to search but take up much less memory.
+     * @see HorizontalCoordSys#setMaxLookUpTableSize(int)
+     */
+    static void setMaxLutSize(long bytes)
+    {
+        if (bytes < 0) throw new IllegalArgumentException("Size must not be negative");
+        maxLutSizeBytes = bytes;
+        logger.info("Maximum look-up table size set to {} bytes", bytes);
     }
 
     /** Private constructor to prevent direct instantiation */
-    private TwoDCoordSys(CurvilinearGrid curvGrid, LookUpTable lut)
+    private TwoDCoordSys(CurvilinearGrid curvGrid, GridCellLocator locator)
     {
         this.curvGrid = curvGrid;
-        this.lut = lut;
+        this.locator = locator;
     }
 
     /**
@@ -113,31 +300,47 @@ final class TwoDCoordSys extends HorizontalCoordSys
     @Override
     public int[] lonLatToGrid(LonLatPosition lonLatPoint)
     {
-        int[] lutCoords =
-            this.lut.getGridCoordinates(lonLatPoint.getLongitude(), lonLatPoint.getLatitude());
-        // Return null if the latLonPoint does not match a valid grid point
-        if (lutCoords == null) return null;
-        // Check that this cell really contains this point, if not, check
-        // the neighbours
-        Cell cell = this.curvGrid.getCell(lutCoords[0], lutCoords[1]);
-        if (cell.contains(lonLatPoint)) return lutCoords;
-        for (Cell neighbour : cell.getEdgeNeighbours())
-        {
-            if (neighbour.contains(lonLatPoint))
-            {
-                return new int[]{ neighbour.getI(), neighbour.getJ() };
-            }
-        }
-        for (Cell neighbour : cell.getCornerNeighbours())
+        int[] coords = new int[2];
+        return this.lonLatToGrid(lonLatPoint.getLongitude(), lonLatPoint.getLatitude(), coords)
+            ? coords
+            : null;
+    }
+
+    /**
+     * Finds the nearest grid points to a number of lon-lat points without
+     * creating any objects per point.
+     */
+    @Override
+    public void lonLatToGrid(double[] lonLat, int numPoints, int[] iIndices,
+        int[] jIndices, int offset)
+    {
+        int[] coords = new int[2];
+        for (int i = 0; i < numPoints; i++)
         {
-            if (neighbour.contains(lonLatPoint))
-            {
-                return new int[]{ neighbour.getI(), neighbour.getJ() };
-            }
+            boolean found = this.lonLatToGrid(lonLat[2 * i], lonLat[2 * i + 1], coords);
+            iIndices[offset + i] = found ? coords[0] : -1;
+            jIndices[offset + i] = found ? coords[1] : -1;
         }
-        // If we get this far something probably went wrong with the LUT
-        //logger.debug("Point is not contained by cell or its neighbours");
-        return lutCoords;
+    }
+
+    /**
+     * Finds the nearest grid point to the given lon-lat point, writing its
+     * [i,j] indices into the given array.
+     * @return false if the point is not contained within this layer's domain
+     * (or is NaN), in which case coords is unchanged
+     */
+    private boolean lonLatToGrid(double longitude, double latitude, int[] coords)
+    {
+        // The locator covers longitudes in the range [-180,180]
+        longitude = Longitude.constrain180(longitude);
+        // Return false if the point does not match a valid grid point
+        if (!this.locator.getGridCoordinates(longitude, latitude, coords)) return false;
+        // Check that this cell really contains this point, if not, check
+        // the neighbours.  If none of them contains the point (the nearest
+        // cell centre is not always in the containing cell) we return the
+        // locator's answer.
+        this.curvGrid.findContainingCell(coords[0], coords[1], longitude, latitude, coords);
+        return true;
     }
 
     /**
@@ -43,6 +43,7 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.rdg.resc.ncwms.exceptions.StyleNotDefinedException;
+import uk.ac.rdg.resc.ncwms.util.Lists;
 import uk.ac.rdg.resc.ncwms.util.Range;
 import uk.ac.rdg.resc.ncwms.util.Ranges;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
@@ -89,10 +90,13 @@ public final class ImageProducer
     private List<BufferedImage> renderedFrames = new ArrayList<BufferedImage>();
     // If we need to cache the frame data and associated labels (we do this if
     // we have to auto-scale the image) this is where we put them.
-    // The inner List<Float> is the data for a single vector component
-    // The middle List contains the two vector components
-    // The outer List contains data for each animation frame
-    private List<List<List<Float>>> frameData; // YUCK!!!
+    // Each float[][] contains the data for a single animation frame: the
+    // outer array contains one or two vector components, the inner arrays
+    // contain the data for each component, with NaNs for missing values
+    private List<float[][]> frameData;
+    // The magnitudes of the data in each frame (the same as the data for
+    // scalar quantities)
+    private List<float[]> frameMagnitudes;
     private List<String> labels;
 
     /** Prevents direct instantiation */
@@ -121,9 +125,51 @@ public final class ImageProducer
     
     /**
      * Adds a frame of data to this ImageProducer.  If the data cannot yet be rendered
-     * into a BufferedImage, the data and label are stored.
+     * into a BufferedImage, the data and label are stored.  Missing values
+     * are represented by nulls.
+     * @see #addFrame(float[][], java.lang.String)
      */
     public void addFrame(List<List<Float>> data, String label)
+    {
+        float[][] arrays = new float[data.size()][];
+        for (int i = 0; i < arrays.length; i++)
+        {
+            arrays[i] = Lists.toDataArray(data.get(i));
+        }
+        this.addFrame(arrays, label);
+    }
+
+    /**
+     * Adds a frame of data to this ImageProducer.  If the data cannot yet be rendered
+     * into a BufferedImage, the data and label are stored.  Missing values
+     * are represented by NaNs.  The arrays are not copied, so they must not be
+     * modified after this method is called.
+     * @param data Array containing one or two arrays of data (the latter
+     * in the case of vector components)
+     * @param label The label to superimpose on the image, or null
+     */
+    public void addFrame(float[][] data, String label)
+    {
+        // We get the magnitude of the input data (takes care of the case
+        // in which the data are two components of a vector)
+        float[] magnitudes = data.length == 1
+            ? data[0]
+            : WmsUtils.getMagnitudes(data[0], data[1]);
+        this.addFrame(data, magnitudes, label);
+    }
+
+    /**
+     * Adds a frame of data to this ImageProducer, whose magnitudes have
+     * already been calculated by the caller (for example when reading the
+     * components of a vector field).  The arrays are not copied, so they must
+     * not be modified after this method is called.
+     * @param data Array containing one or two arrays of data (the latter
+     * in the case of vector components)
+     * @param magnitudes The magnitudes of the data: for scalar quantities this
+     * is the same as {@code data[0]}.
+     * @param label The label to superimpose on the image, or null
+     */
+    public void addFrame(float[][] data, float[] magnitudes, String label)
     {
         logger.debug("Adding frame with label {}", label);
         if (this.scaleRange.isEmpty())
@@ -131,16 +177,18 @@ public final class ImageProducer
             logger.debug("Auto-scaling, so caching frame");
             if (this.frameData == null)
             {
-                this.frameData = new ArrayList<List<List<Float>>>();
+                this.frameData = new ArrayList<float[][]>();
+                this.frameMagnitudes = new ArrayList<float[]>();
                 this.labels = new ArrayList<String>();
             }
             this.frameData.add(data);
+            this.frameMagnitudes.add(magnitudes);
             this.labels.add(label);
         }
         else
         {
             logger.debug("Scale is set, so rendering image");
-            this.renderedFrames.add(this.createImage(data, label));
+            this.renderedFrames.add(this.createImage(data, magnitudes, label));
         }
     }
     
@@ -149,18 +197,13 @@ public final class ImageProducer
      * Adds the label if one has been set.  The scale must be set before
      * calling this method.
      */
-    private BufferedImage createImage(List<List<Float>> data, String label)
+    private BufferedImage createImage(float[][] data, float[] magnitudes, String label)
     {
         // Create the pixel array for the frame
         byte[] pixels = new byte[this.picWidth * this.picHeight];
-        // We get the magnitude of the input data (takes care of the case
-        // in which the data are two components of a vector)
-        List<Float> magnitudes = data.size() == 1
-            ? data.get(0)
-            : WmsUtils.getMagnitudes(data.get(0), data.get(1));
         for (int i = 0; i < pixels.length; i++)
         {
-            pixels[i] = (byte)this.getColourIndex(magnitudes.get(i));
+            pixels[i] = (byte)this.getColourIndex(magnitudes[i]);
         }
         
         // Create a ColorModel for the image
@@ -195,18 +238,18 @@ public final class ImageProducer
             g.setColor(Color.BLACK);
 
             logger.debug("Drawing vectors, length = {} pixels", this.arrowLength);
-            List<Float> east = data.get(0);
-            List<Float> north = data.get(1);
+            float[] east = data[0];
+            float[] north = data[1];
             for (int i = 0; i < this.picWidth; i += Math.ceil(this.arrowLength * 1.2))
             {
                 for (int j = 0; j < this.picHeight; j += Math.ceil(this.arrowLength * 1.2))
                 {
                     int dataIndex = j * this.picWidth + i;
-                    Float eastVal = east.get(dataIndex);
-                    Float northVal = north.get(dataIndex);
-                    if (eastVal != null && northVal != null)
+                    float eastVal = east[dataIndex];
+                    float northVal = north[dataIndex];
+                    if (!Float.isNaN(eastVal) && !Float.isNaN(northVal))
                     {
-                        double angle = Math.atan2(northVal.doubleValue(), eastVal.doubleValue());
+                        double angle = Math.atan2(northVal, eastVal);
                         // Calculate the end point of the arrow
                         double iEnd = i + this.arrowLength * Math.cos(angle);
                         // Screen coordinates go down, but north is up, hence the minus sign
@@ -229,22 +272,24 @@ public final class ImageProducer
     }
     
     /**
-     * @return the colour index that corresponds to the given value
+     * @return the colour index that corresponds to the given value (NaN
+     * represents a missing value)
      */
-    private int getColourIndex(Float value)
+    private int getColourIndex(float value)
     {
-        if (value == null)
+        if (Float.isNaN(value))
         {
             return this.numColourBands; // represents a background pixel
         }
-        else if (!this.scaleRange.contains(value))
+        // The scale range has been set by this point so is not empty
+        float scaleMin = this.scaleRange.getMinimum().floatValue();
+        float scaleMax = this.scaleRange.getMaximum().floatValue();
+        if (value < scaleMin || value > scaleMax)
         {
             return this.numColourBands + 1; // represents an out-of-range pixel
         }
         else
         {
-            float scaleMin = this.scaleRange.getMinimum().floatValue();
-            float scaleMax = this.scaleRange.getMaximum().floatValue();
             double min = this.logarithmic ? Math.log(scaleMin) : scaleMin;
             double max = this.logarithmic ? Math.log(scaleMax) : scaleMax;
             double val = this.logarithmic ? Math.log(value) : value;
@@ -278,7 +323,8 @@ public final class ImageProducer
             for (int i = 0; i < this.frameData.size(); i++)
             {
                 logger.debug("    ... rendering frame {}", i);
-                this.renderedFrames.add(this.createImage(this.frameData.get(i), this.labels.get(i)));
+                this.renderedFrames.add(this.createImage(this.frameData.get(i),
+                    this.frameMagnitudes.get(i), this.labels.get(i)));
             }
         }
         return this.renderedFrames;
@@ -297,10 +343,10 @@ public final class ImageProducer
             Float scaleMax = null;
             logger.debug("Setting the scale automatically");
             // We have a cache of image data, which we use to generate the colour scale
-            for (List<List<Float>> data : this.frameData)
+            for (float[][] data : this.frameData)
             {
                 // We only use the first component if this is a vector quantity
-                Range<Float> range = Ranges.findMinMax(data.get(0));
+                Range<Float> range = Ranges.findMinMax(data[0]);
                 // TODO: could move this logic to the Range/Ranges class
                 if (!range.isEmpty())
                 {
@@ -323,6 +369,27 @@ public final class ImageProducer
         return opacity;
     }
 
+    /**
+     * Returns a string that describes all the settings of this ImageProducer
+     * that affect the appearance of the images it produces, after the defaults
+     * for the layer have been applied.  ImageProducers with the same description
+     * will produce identical images from the same data, so this can be used
+     * as part of a key for caching images.
+     */
+    public String getSettingsDescription()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(this.style).append('/').append(this.colorPalette.getName());
+        sb.append(';').append(this.picWidth).append('x').append(this.picHeight);
+        sb.append(";transparent=").append(this.transparent);
+        sb.append(";opacity=").append(this.opacity);
+        sb.append(";bands=").append(this.numColourBands);
+        sb.append(";log=").append(this.logarithmic);
+        sb.append(";bgcolor=").append(Integer.toHexString(this.bgColor.getRGB()));
+        sb.append(";range=").append(this.scaleRange.isEmpty() ? "auto" : this.scaleRange.toString());
+        return sb.toString();
+    }
+
     /**
      * Builds an ImageProducer
      */
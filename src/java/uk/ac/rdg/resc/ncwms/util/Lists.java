@@ -72,4 +72,48 @@ public class Lists
         };
     }
 
+    /**
+     * Creates and returns an unmodifiable List that wraps the given array of
+     * data values, in which missing values are represented by NaNs.  In the
+     * returned List, missing values are represented by nulls.  Changes to the
+     * array will be reflected in the List.
+     * @param arr The array to wrap as a List
+     * @return an unmodifiable List that wraps the array
+     * @throws NullPointerException if the array is null
+     * @see #toDataArray(java.util.List)
+     */
+    public static List<Float> fromDataArray(final float[] arr)
+    {
+        if (arr == null) throw new NullPointerException("array cannot be null");
+        return new AbstractList<Float>()
+        {
+            @Override public Float get(int index) {
+                float val = arr[index];
+                return Float.isNaN(val) ? null : val;
+            }
+            @Override public int size() { return arr.length; }
+        };
+    }
+
+    /**
+     * Copies the given List of data values, in which missing values are
+     * represented by nulls, into a new array in which missing values are
+     * represented by NaNs.
+     * @param list The List to copy
+     * @return a new array containing the values from the List
+     * @throws NullPointerException if the list is null
+     * @see #fromDataArray(float[])
+     */
+    public static float[] toDataArray(List<Float> list)
+    {
+        float[] arr = new float[list.size()];
+        int i = 0;
+        for (Float val : list)
+        {
+            arr[i] = val == null ? Float.NaN : val.floatValue();
+            i++;
+        }
+        return arr;
+    }
+
 }
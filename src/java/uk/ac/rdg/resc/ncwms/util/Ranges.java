@@ -80,6 +80,30 @@ public final class Ranges
         return new SimpleRange<T>(minCandidate, maxCandidate);
     }
 
+    /**
+     * Creates a Range whose minimum is the lowest value in the passed array
+     * and whose maximum is the highest value in the passed array.  NaNs (which
+     * represent missing data) are ignored; if the array is empty or consists
+     * entirely of NaNs the returned Range will be empty.
+     * @param arr An array of values, in any order.
+     * @return a Range whose minimum is the lowest value in the passed array
+     * and whose maximum is the highest value in the passed array.
+     * @throws NullPointerException if the array is null
+     */
+    public static Range<Float> findMinMax(float[] arr)
+    {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        boolean found = false;
+        for (float val : arr) {
+            if (Float.isNaN(val)) continue;
+            if (val < min) min = val;
+            if (val > max) max = val;
+            found = true;
+        }
+        return found ? newRange(min, max) : Ranges.<Float>emptyRange();
+    }
+
     public static <T extends Object & Comparable<? super T>> Range<T> newRange(T min, T max)
     {
         return new SimpleRange<T>(min, max);
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>Coalesces identical concurrent operations, so that when many threads ask
+ * for the same thing at once (for example, when many clients request the
+ * latest timestep of a popular layer just after it has been updated) the work
+ * is done only once.  The first thread to {@link #execute execute} a task
+ * with a given key does the work; threads that execute a task with an equal
+ * key while the first is still running wait for its result instead of
+ * running their own task.  If the task fails, all the waiting threads receive
+ * the same exception.</p>
+ *
+ * <p>Results are not retained once the task has finished: this is not a cache,
+ * and is intended to sit in front of one.  Since the same result object is
+ * returned to several threads, results must not be modified.</p>
+ *
+ * @param <K> The type of the keys that identify tasks.  Keys must have
+ * suitable equals() and hashCode() methods.
+ * @param <V> The type of the results of the tasks
+ * @param <E> The type of checked exception that the tasks can throw
+ * @author Jon
+ */
+public final class SingleFlight<K, V, E extends Exception>
+{
+    /** A task whose result can be shared between threads */
+    public interface Task<V, E extends Exception>
+    {
+        public V call() throws E;
+    }
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight =
+        new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Runs the given task, or waits for the result of a task with an equal key
+     * that is already running in another thread.
+     * @throws E if the task (whichever thread ran it) threw an exception of
+     * this type.  Unchecked exceptions and errors are also propagated.
+     */
+    public V execute(K key, final Task<V, E> task) throws E
+    {
+        FutureTask<V> future = new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                return task.call();
+            }
+        });
+        FutureTask<V> existing = this.inFlight.putIfAbsent(key, future);
+        if (existing == null)
+        {
+            try
+            {
+                future.run();
+            }
+            finally
+            {
+                this.inFlight.remove(key, future);
+            }
+        }
+        else
+        {
+            future = existing;
+        }
+        return getResult(future);
+    }
+
+    /** Returns the number of tasks that are currently running */
+    public int getNumInFlight()
+    {
+        return this.inFlight.size();
+    }
+
+    /**
+     * Waits for the result of the given task.  We don't respond to interruption
+     * while waiting, since the thread that is running the task will not stop.
+     */
+    @SuppressWarnings("unchecked")
+    private V getResult(FutureTask<V> future) throws E
+    {
+        boolean interrupted = false;
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return future.get();
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException ee)
+                {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+                    if (cause instanceof Error) throw (Error)cause;
+                    // The task can only throw checked exceptions of type E
+                    throw (E)cause;
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -273,26 +273,35 @@ public class WmsUtils
     public static List<Float> getMagnitudes(List<Float> eastData, List<Float> northData)
     {
         if (eastData == null || northData == null) throw new NullPointerException();
-        if (eastData.size() != northData.size())
+        return Lists.fromDataArray(getMagnitudes(Lists.toDataArray(eastData),
+            Lists.toDataArray(northData)));
+    }
+
+    /**
+     * Calculates the magnitude of the vector components given in the provided
+     * arrays.  The two arrays must be of the same length.  For any element in the
+     * component arrays, if either east or north is NaN (representing missing
+     * data), the magnitude will also be NaN.
+     * @return an array of the magnitudes calculated from the components.
+     */
+    public static float[] getMagnitudes(float[] eastData, float[] northData)
+    {
+        if (eastData == null || northData == null) throw new NullPointerException();
+        if (eastData.length != northData.length)
         {
             throw new IllegalArgumentException("east and north data components must be the same length");
         }
-        List<Float> mag = new ArrayList<Float>(eastData.size());
-        for (int i = 0; i < eastData.size(); i++)
+        float[] mag = new float[eastData.length];
+        for (int i = 0; i < mag.length; i++)
         {
-            Float east = eastData.get(i);
-            Float north = northData.get(i);
-            Float val = null;
-            if (east != null && north != null)
-            {
-                val = (float)Math.sqrt(east * east + north * north);
-            }
-            mag.add(val);
+            float east = eastData[i];
+            float north = northData[i];
+            // NaNs propagate through this calculation
+            mag[i] = (float)Math.sqrt(east * east + north * north);
         }
-        if (mag.size() != eastData.size()) throw new AssertionError();
         return mag;
     }
-    
+
     /**
      * @return true if the given location represents an OPeNDAP dataset.
      * This method simply checks to see if the location string starts with "http://",
@@ -325,15 +334,15 @@ public class WmsUtils
     {
         if (layer instanceof ScalarLayer)
         {
-            List<Float> dataSample = readDataSample((ScalarLayer)layer);
+            float[] dataSample = readDataSample((ScalarLayer)layer);
             return Ranges.findMinMax(dataSample);
         }
         else if (layer instanceof VectorLayer)
         {
             VectorLayer vecLayer = (VectorLayer)layer;
-            List<Float> eastDataSample = readDataSample(vecLayer.getEastwardComponent());
-            List<Float> northDataSample = readDataSample(vecLayer.getEastwardComponent());
-            List<Float> magnitudes = WmsUtils.getMagnitudes(eastDataSample, northDataSample);
+            float[] eastDataSample = readDataSample(vecLayer.getEastwardComponent());
+            float[] northDataSample = readDataSample(vecLayer.getNorthwardComponent());
+            float[] magnitudes = WmsUtils.getMagnitudes(eastDataSample, northDataSample);
             return Ranges.findMinMax(magnitudes);
         }
         else
@@ -342,11 +351,11 @@ public class WmsUtils
         }
     }
 
-    private static List<Float> readDataSample(ScalarLayer layer) throws IOException
+    private static float[] readDataSample(ScalarLayer layer) throws IOException
     {
         try {
             // Read a low-resolution grid of data covering the entire spatial extent
-            return layer.readPointList(
+            return layer.readPointListAsArray(
                 layer.getDefaultTimeValue(),
                 layer.getDefaultElevationValue(),
                 new HorizontalGrid(100, 100, layer.getGeographicBoundingBox())
@@ -41,6 +41,7 @@ import uk.ac.rdg.resc.ncwms.coords.HorizontalPosition;
 import uk.ac.rdg.resc.ncwms.coords.PointList;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
+import uk.ac.rdg.resc.ncwms.util.Lists;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 
 /**
@@ -303,23 +304,42 @@ public abstract class AbstractScalarLayer implements ScalarLayer
     }
 
     /**
-     * <p>Simple but naive implementation of
+     * <p>Implementation of
      * {@link Layer#readPointList(org.joda.time.DateTime, double,
      * uk.ac.rdg.resc.ncwms.datareader.PointList) Layer.readPointList()} that
+     * wraps the result of {@link #readPointListAsArray(org.joda.time.DateTime,
+     * double, uk.ac.rdg.resc.ncwms.coords.PointList) readPointListAsArray()}
+     * as a List.</p>
+     * @return an unmodifiable List of data values
+     */
+    @Override
+    public List<Float> readPointList(DateTime time, double elevation, PointList pointList)
+            throws InvalidDimensionValueException, IOException
+    {
+        return Lists.fromDataArray(this.readPointListAsArray(time, elevation, pointList));
+    }
+
+    /**
+     * <p>Simple but naive implementation of
+     * {@link ScalarLayer#readPointListAsArray(org.joda.time.DateTime, double,
+     * uk.ac.rdg.resc.ncwms.coords.PointList) ScalarLayer.readPointListAsArray()} that
      * makes repeated calls to
      * {@link Layer#readSinglePoint(org.joda.time.DateTime, double,
      * uk.ac.rdg.resc.ncwms.coordsys.HorizontalPosition) Layer.readSinglePoint()}.
      * This implementation is not expected to be maximally efficient and subclasses
      * are encouraged to override this.</p>
-     * @return a List of data values
+     * @return an array of data values
      */
     @Override
-    public List<Float> readPointList(DateTime time, double elevation, PointList pointList)
+    public float[] readPointListAsArray(DateTime time, double elevation, PointList pointList)
             throws InvalidDimensionValueException, IOException
     {
-        List<Float> vals = new ArrayList<Float>(pointList.size());
+        float[] vals = new float[pointList.size()];
+        int i = 0;
         for (HorizontalPosition xy : pointList.asList()) {
-            vals.add(this.readSinglePoint(time, elevation, xy));
+            Float val = this.readSinglePoint(time, elevation, xy);
+            vals[i] = val == null ? Float.NaN : val.floatValue();
+            i++;
         }
         return vals;
     }
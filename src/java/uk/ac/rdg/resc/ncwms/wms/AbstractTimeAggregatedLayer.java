@@ -29,10 +29,11 @@
 package uk.ac.rdg.resc.ncwms.wms;
 
 import java.util.AbstractList;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.RandomAccess;
 import org.joda.time.Chronology;
 import org.joda.time.DateTime;
+import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 
 /**
@@ -46,22 +47,33 @@ import uk.ac.rdg.resc.ncwms.util.WmsUtils;
  */
 public abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
 {
-    /** These are sorted into ascending order of time */
-    protected final List<TimestepInfo> timesteps = new ArrayList<TimestepInfo>();
+    /** The index of the timesteps, as of the last call to {@link #getTimeIndex()} */
+    private volatile TimeIndex timeIndex = TimeIndex.EMPTY;
 
     /**
-     * A view of the {@link #timesteps} as an unmodifiable List of DateTimes,
-     * for the {@link #getTimeValues()} method.
+     * Holds the timesteps that have been added since the {@link #timeIndex}
+     * was built, or null if there are none.  All the timesteps are sorted in one
+     * go when the index is next needed, which is much quicker than keeping
+     * them in order as they are added.  Changes are synchronized on this object.
      */
-    private final List<DateTime> dateTimes = 
-        new AbstractList<DateTime>() {
-            @Override public DateTime get(int index) {
-                return timesteps.get(index).getDateTime();
-            }
-            @Override public int size() {
-                return timesteps.size();
-            }
-        };
+    private volatile TimeIndex.Builder pendingTimesteps = null;
+
+    /**
+     * A view of the {@link #getTimeIndex() time index} as an unmodifiable List
+     * of DateTimes, for the {@link #getTimeValues()} method.  This is
+     * RandomAccess so that binary searches of the list are efficient.
+     */
+    private final List<DateTime> dateTimes = new TimeValues();
+
+    private final class TimeValues extends AbstractList<DateTime> implements RandomAccess
+    {
+        @Override public DateTime get(int index) {
+            return getTimeIndex().getDateTime(index);
+        }
+        @Override public int size() {
+            return getTimeIndex().size();
+        }
+    }
     
     /**
      * Creates an AbstractTimeAggregatedLayer with a bounding box that covers
@@ -84,15 +96,14 @@ public abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
     @Override
     public Chronology getChronology()
     {
-        if (this.timesteps.isEmpty()) return null;
-        return this.timesteps.get(0).timestep.getChronology();
+        return this.getTimeIndex().getChronology();
     }
 
     /**
      * <p>Returns the list of time instants that are valid for this layer, in
      * chronological order, or an empty list if this Layer does not have a time axis.</p>
      * <p>Note that this implementation returns an unmodifiable <i>view</i> on
-     * the internal list of TimestepInfo objects, therefore if
+     * the {@link #getTimeIndex() time index}, therefore if
      * {@link #addTimestepInfo(org.joda.time.DateTime, java.lang.String, int) addTimestepInfo()}
      * is called when iterating over the List returned by this method, undefined
      * behaviour might result.  However, this Layer will usually be constructed
@@ -108,10 +119,30 @@ public abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
     }
 
     /**
-     * Adds a new TimestepInfo to this layer.  If a TimestepInfo object
-     * already exists for this timestep, the TimestepInfo object with the lower
-     * indexInFile value is chosen (this is most likely to be the result of a
-     * shorter forecast lead time and therefore more accurate).
+     * Returns the index of this layer's timesteps, which records the file
+     * that holds each timestep.
+     */
+    protected final TimeIndex getTimeIndex()
+    {
+        if (this.pendingTimesteps != null)
+        {
+            synchronized (this)
+            {
+                if (this.pendingTimesteps != null)
+                {
+                    this.timeIndex = this.pendingTimesteps.build();
+                    this.pendingTimesteps = null;
+                }
+            }
+        }
+        return this.timeIndex;
+    }
+
+    /**
+     * Adds a new timestep to this layer.  If this timestep has already been
+     * added, the one with the lower indexInFile value is chosen (this is most
+     * likely to be the result of a shorter forecast lead time and therefore
+     * more accurate).
      * @param timestep The real date/time of this timestep
      * @param filename The filename containing this timestep
      * @param indexInFile The index of this timestep in the file
@@ -119,108 +150,40 @@ public abstract class AbstractTimeAggregatedLayer extends AbstractScalarLayer
      * is null.
      * @throws IllegalArgumentException if {@code indexInFile} is less than zero
      */
-    public void addTimestepInfo(DateTime dt, String filename, int indexInFile)
+    public synchronized void addTimestepInfo(DateTime dt, String filename, int indexInFile)
     {
-        TimestepInfo tInfo = new TimestepInfo(dt, filename, indexInFile);
-        // Find the insertion point in the List of timesteps
-        int index = WmsUtils.findTimeIndex(this.getTimeValues(), dt);
-        if (index >= 0)
-        {
-            // We already have a timestep for this time
-            TimestepInfo existingTStep = this.timesteps.get(index);
-            if (tInfo.getIndexInFile() < existingTStep.getIndexInFile())
-            {
-                // The new info probably has a shorter forecast time and so we
-                // replace the existing version with this one
-                existingTStep = tInfo;
-            }
-        }
-        else
-        {
-            // We need to insert the TimestepInfo object into the list at the
-            // correct location to ensure that the list is sorted in ascending
-            // order of time.
-            int insertionPoint = -(index + 1); // see docs for Collections.binarySearch()
-            this.timesteps.add(insertionPoint, tInfo);
-        }
+        TimeIndex.Builder builder = this.pendingTimesteps;
+        if (builder == null) builder = new TimeIndex.Builder(this.timeIndex);
+        builder.add(dt, filename, indexInFile);
+        this.pendingTimesteps = builder;
     }
 
     /**
-     * Simple class that holds information about which files in an aggregation
-     * hold which timesteps for a variable.  Instances of this class are
-     * immutable.
+     * Gets the index of the past or present timestep that is closest to the
+     * current time, using a binary search of the time index.
      */
-    protected static class TimestepInfo
+    @Override
+    protected int getCurrentTimeIndex()
     {
-        private DateTime timestep;
-        private String filename;
-        private int indexInFile;
-
-        /**
-         * Creates a new TimestepInfo object
-         * @param timestep The real date/time of this timestep
-         * @param filename The filename containing this timestep
-         * @param indexInFile The index of this timestep in the file
-         * @throws NullPointerException if {@code timestep} or {@code filename}
-         * is null.
-         * @throws IllegalArgumentException if {@code indexInFile} is less than zero
-         */
-        public TimestepInfo(DateTime timestep, String filename, int indexInFile)
-        {
-            if (timestep == null || filename == null)
-            {
-                throw new NullPointerException();
-            }
-            if (indexInFile < 0)
-            {
-                throw new IllegalArgumentException("indexInFile must be >= 0");
-            }
-            this.timestep = timestep;
-            this.filename = filename;
-            this.indexInFile = indexInFile;
-        }
-
-        public String getFilename()
-        {
-            return this.filename;
-        }
-
-        public int getIndexInFile()
-        {
-            return this.indexInFile;
-        }
-
-        /**
-         * @return the date-time that this timestep represents
-         */
-        public DateTime getDateTime()
-        {
-            return this.timestep;
-        }
-
-        /**
-         * Compares all fields for equality, using only the millisecond value
-         * to compare the timesteps.
-         */
-        @Override
-        public boolean equals(Object obj)
-        {
-            if (this == obj) return true;
-            if (!(obj instanceof TimestepInfo)) return false;
-            TimestepInfo otherTstep = (TimestepInfo)obj;
-            return this.timestep.isEqual(otherTstep.timestep) && // Compares based on millisecond value only
-                   this.indexInFile == otherTstep.indexInFile &&
-                   this.filename.equals(otherTstep.filename);
-        }
-
-        @Override
-        public int hashCode() {
-            int hash = 3;
-            hash = 41 * hash + this.timestep.hashCode();
-            hash = 41 * hash + this.filename.hashCode();
-            hash = 41 * hash + this.indexInFile;
-            return hash;
-        }
+        TimeIndex index = this.getTimeIndex();
+        if (index.size() == 0) return -1; // no time axis
+        // If all the timesteps are in the future we take the earliest
+        return Math.max(0, index.floorIndex(System.currentTimeMillis()));
     }
 
+    /**
+     * Searches the time index for the specified date-time, returning its
+     * index, or throwing an {@link InvalidDimensionValueException}
+     * if the specified date-time is not a valid timestep for this layer.  If
+     * this layer does not have a time axis, this will return -1.
+     */
+    @Override
+    public int findAndCheckTimeIndex(DateTime target) throws InvalidDimensionValueException
+    {
+        TimeIndex index = this.getTimeIndex();
+        if (index.size() == 0) return -1;
+        int tIndex = index.findIndex(target.getMillis());
+        if (tIndex >= 0) return tIndex;
+        throw new InvalidDimensionValueException("time", WmsUtils.dateTimeToISO8601(target));
+    }
 }
@@ -71,6 +71,15 @@ public interface Dataset
      */
     public DateTime getLastUpdateTime();
 
+    /**
+     * Returns the number of seconds for which clients and intermediate caches
+     * may reuse images and documents from this dataset without checking with
+     * the server that they are up to date.  This is used for the max-age
+     * directive of the HTTP Cache-Control header.  Zero means that clients
+     * must always check.
+     */
+    public int getCacheMaxAge();
+
     /**
      * Gets the {@link Layer} with the given {@link Layer#getId() id}.  The id
      * is unique within the dataset, not necessarily on the whole server.
@@ -104,6 +104,27 @@ public interface ScalarLayer extends Layer
     public List<Float> readPointList(DateTime time, double elevation, PointList pointList)
         throws InvalidDimensionValueException, IOException;
 
+    /**
+     * <p>Reads data at a number of horizontal locations at a single time and
+     * elevation, returning the data as an array of primitive floats.  This is
+     * equivalent to {@link #readPointList(org.joda.time.DateTime, double,
+     * uk.ac.rdg.resc.ncwms.coords.PointList) readPointList()}, except that
+     * missing values (e.g. land pixels in oceanography data, or points outside
+     * the domain of this Layer) are represented by {@link Float#NaN}.  This
+     * avoids the creation of a Float object for every point and so this is the
+     * preferred method for reading large grids of data.</p>
+     * @return an array of data values, one for each point in
+     * the {@code pointList}, in the same order.
+     * @throws NullPointerException if {@code pointList} is null or if this
+     * layer has a time axis and {@code time} is null.
+     * @throws InvalidDimensionValueException if {@code elevation} is not a valid
+     * elevation in this Layer, or if {@code time} is not a valid time in this
+     * Layer.
+     * @throws IOException if there was an error reading from the data source
+     */
+    public float[] readPointListAsArray(DateTime time, double elevation, PointList pointList)
+        throws InvalidDimensionValueException, IOException;
+
     /**
      * <p>Reads a timeseries of data at a single xyz point from this Layer.
      * Missing values (e.g. land pixels in oceanography data will be represented
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2009 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.wms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+
+/**
+ * <p>An immutable index of the timesteps of a time-aggregated layer, recording
+ * which file holds each timestep and its index within the file.  The
+ * timesteps are held as a sorted array of millisecond instants, and the files
+ * as indices into a table of filenames, so the index takes up only 16 bytes
+ * per timestep and can be searched without creating any objects.</p>
+ * <p>Instances are created through a {@link Builder}, which sorts the timesteps
+ * in one go, so building an index of n timesteps takes O(n log n) time
+ * (or O(n) if they are added in order).</p>
+ * @author Jon
+ */
+public final class TimeIndex
+{
+    /** An index with no timesteps */
+    static final TimeIndex EMPTY = new TimeIndex(null, new long[0], new String[0],
+        new int[0], new int[0]);
+
+    /** The Chronology of the timesteps, or null if there are none */
+    private final Chronology chronology;
+    /** The timesteps in milliseconds since the epoch, in ascending order */
+    private final long[] millis;
+    /** The distinct filenames */
+    private final String[] filenames;
+    /** The index in the {@link #filenames} of the file holding each timestep */
+    private final int[] fileIds;
+    /** The index of each timestep within its file */
+    private final int[] indicesInFile;
+
+    private TimeIndex(Chronology chronology, long[] millis, String[] filenames,
+        int[] fileIds, int[] indicesInFile)
+    {
+        this.chronology = chronology;
+        this.millis = millis;
+        this.filenames = filenames;
+        this.fileIds = fileIds;
+        this.indicesInFile = indicesInFile;
+    }
+
+    /** Returns the number of timesteps in this index */
+    public int size()
+    {
+        return this.millis.length;
+    }
+
+    /**
+     * Returns the Chronology used to interpret the timesteps, or null if
+     * there are no timesteps
+     */
+    public Chronology getChronology()
+    {
+        return this.chronology;
+    }
+
+    /** Returns the timestep with the given index, in milliseconds since the epoch */
+    public long getMillis(int index)
+    {
+        return this.millis[index];
+    }
+
+    /** Returns the timestep with the given index as a new DateTime */
+    public DateTime getDateTime(int index)
+    {
+        return new DateTime(this.millis[index], this.chronology);
+    }
+
+    /** Returns the name of the file that holds the timestep with the given index */
+    public String getFilename(int index)
+    {
+        return this.filenames[this.fileIds[index]];
+    }
+
+    /** Returns the index within its file of the timestep with the given index */
+    public int getIndexInFile(int index)
+    {
+        return this.indicesInFile[index];
+    }
+
+    /**
+     * Searches for the given instant using binary search.
+     * @return the index of the timestep, if it is in this index; otherwise,
+     * <tt>(-(<i>insertion point</i>) - 1)</tt>, as for
+     * {@link Arrays#binarySearch(long[], long)}
+     */
+    public int findIndex(long instant)
+    {
+        return Arrays.binarySearch(this.millis, instant);
+    }
+
+    /**
+     * Returns the index of the latest timestep at or before the given
+     * instant, or -1 if all timesteps are after it
+     */
+    public int floorIndex(long instant)
+    {
+        int index = this.findIndex(instant);
+        return index >= 0 ? index : -(index + 1) - 1;
+    }
+
+    /**
+     * Returns the index of the earliest timestep at or after the given
+     * instant, or {@link #size()} if all timesteps are before it
+     */
+    public int ceilingIndex(long instant)
+    {
+        int index = this.findIndex(instant);
+        return index >= 0 ? index : -(index + 1);
+    }
+
+    /**
+     * Accumulates timesteps for a {@link TimeIndex}.  Timesteps can be added
+     * in any order.  If the same timestep is added more than once, the one
+     * with the lowest index in its file is kept (this is most likely to be the
+     * result of a shorter forecast lead time and therefore more accurate); if
+     * these are also the same, the one that was added first is kept.  Instances
+     * of this class are not thread-safe.
+     */
+    static final class Builder
+    {
+        private Chronology chronology = null;
+        private long[] millis = new long[16];
+        private int[] fileIds = new int[16];
+        private int[] indicesInFile = new int[16];
+        private int size = 0;
+        private final List<String> filenames = new ArrayList<String>();
+        private final Map<String, Integer> fileIdsByName = new HashMap<String, Integer>();
+
+        /** Creates a Builder that contains the timesteps of the given index */
+        Builder(TimeIndex index)
+        {
+            for (int i = 0; i < index.size(); i++)
+            {
+                this.add(index.millis[i], index.chronology, index.getFilename(i),
+                    index.indicesInFile[i]);
+            }
+        }
+
+        /**
+         * Adds a timestep
+         * @throws NullPointerException if {@code dt} or {@code filename}
+         * is null.
+         * @throws IllegalArgumentException if {@code indexInFile} is less than zero
+         */
+        void add(DateTime dt, String filename, int indexInFile)
+        {
+            if (dt == null) throw new NullPointerException();
+            this.add(dt.getMillis(), dt.getChronology(), filename, indexInFile);
+        }
+
+        private void add(long instant, Chronology chron, String filename, int indexInFile)
+        {
+            if (filename == null) throw new NullPointerException();
+            if (indexInFile < 0)
+            {
+                throw new IllegalArgumentException("indexInFile must be >= 0");
+            }
+            if (this.chronology == null) this.chronology = chron;
+            Integer fileId = this.fileIdsByName.get(filename);
+            if (fileId == null)
+            {
+                fileId = this.filenames.size();
+                this.filenames.add(filename);
+                this.fileIdsByName.put(filename, fileId);
+            }
+            if (this.size == this.millis.length)
+            {
+                int newLength = 2 * this.size;
+                this.millis = Arrays.copyOf(this.millis, newLength);
+                this.fileIds = Arrays.copyOf(this.fileIds, newLength);
+                this.indicesInFile = Arrays.copyOf(this.indicesInFile, newLength);
+            }
+            this.millis[this.size] = instant;
+            this.fileIds[this.size] = fileId;
+            this.indicesInFile[this.size] = indexInFile;
+            this.size++;
+        }
+
+        /** Creates a TimeIndex from the timesteps that have been added */
+        TimeIndex build()
+        {
+            if (this.size == 0) return EMPTY;
+            // Find the order of the timesteps, skipping the sort if (as usual)
+            // they were added in order
+            int[] order = new int[this.size];
+            boolean sorted = true;
+            for (int i = 0; i < this.size; i++)
+            {
+                order[i] = i;
+                if (i > 0 && this.compare(i - 1, i) >= 0) sorted = false;
+            }
+            if (!sorted) this.sort(order, new int[this.size], 0, this.size);
+
+            // Copy the timesteps in order, dropping duplicates.  The sort
+            // puts the one that we want to keep first.
+            long[] sortedMillis = new long[this.size];
+            int[] sortedFileIds = new int[this.size];
+            int[] sortedIndicesInFile = new int[this.size];
+            int n = 0;
+            for (int i = 0; i < this.size; i++)
+            {
+                int pos = order[i];
+                if (n > 0 && sortedMillis[n - 1] == this.millis[pos]) continue;
+                sortedMillis[n] = this.millis[pos];
+                sortedFileIds[n] = this.fileIds[pos];
+                sortedIndicesInFile[n] = this.indicesInFile[pos];
+                n++;
+            }
+            return new TimeIndex(
+                this.chronology,
+                Arrays.copyOf(sortedMillis, n),
+                this.filenames.toArray(new String[this.filenames.size()]),
+                Arrays.copyOf(sortedFileIds, n),
+                Arrays.copyOf(sortedIndicesInFile, n)
+            );
+        }
+
+        /**
+         * Compares the timesteps at the given positions by time, then by index
+         * in file.  Timesteps that are otherwise the same are ordered by the
+         * order in which they were added.
+         */
+        private int compare(int pos1, int pos2)
+        {
+            if (this.millis[pos1] != this.millis[pos2])
+            {
+                return this.millis[pos1] < this.millis[pos2] ? -1 : 1;
+            }
+            if (this.indicesInFile[pos1] != this.indicesInFile[pos2])
+            {
+                return this.indicesInFile[pos1] < this.indicesInFile[pos2] ? -1 : 1;
+            }
+            return pos1 < pos2 ? -1 : (pos1 == pos2 ? 0 : 1);
+        }
+
+        /** Sorts the given range of positions by merge sort */
+        private void sort(int[] order, int[] work, int lo, int hi)
+        {
+            if (hi - lo < 2) return;
+            int mid = (lo + hi) >>> 1;
+            this.sort(order, work, lo, mid);
+            this.sort(order, work, mid, hi);
+            if (this.compare(order[mid - 1], order[mid]) <= 0) return; // Already in order
+            System.arraycopy(order, lo, work, lo, hi - lo);
+            int i = lo;
+            int j = mid;
+            for (int k = lo; k < hi; k++)
+            {
+                if (j >= hi || (i < mid && this.compare(work[i], work[j]) <= 0))
+                {
+                    order[k] = work[i++];
+                }
+                else
+                {
+                    order[k] = work[j++];
+                }
+            }
+        }
+    }
+}
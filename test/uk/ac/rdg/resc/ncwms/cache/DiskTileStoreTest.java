@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the raw file format and size budget of the {@link DiskTileStore}.
+ * @author Jon
+ */
+public final class DiskTileStoreTest
+{
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private static File createTempDir() throws IOException
+    {
+        File dir = File.createTempFile("tilecache", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static void deleteDir(File dir)
+    {
+        for (File file : dir.listFiles()) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testRoundTripAndReopen() throws Exception
+    {
+        File dir = createTempDir();
+        try
+        {
+            float[] data = {1.5f, Float.NaN, -3.0f, Float.MAX_VALUE};
+            long created = System.currentTimeMillis();
+            DiskTileStore store = new DiskTileStore(dir, 1024 * 1024, HOUR);
+            store.put("key1", new CachedTile(data, created, false));
+            assertNull(store.get("key2"));
+
+            // A new store picks up the tiles written by the previous one
+            store = new DiskTileStore(dir, 1024 * 1024, HOUR);
+            CachedTile tile = store.get("key1");
+            assertNotNull(tile);
+            assertEquals(created, tile.created);
+            assertTrue(tile.onDisk);
+            assertArrayEquals(data, tile.data, 0.0f);
+        }
+        finally
+        {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testEvictionAndExpiry() throws Exception
+    {
+        File dir = createTempDir();
+        try
+        {
+            long now = System.currentTimeMillis();
+            float[] data = new float[1000];
+            // Room for two tiles of 4000 bytes plus their headers
+            DiskTileStore store = new DiskTileStore(dir, 9000, HOUR);
+            store.put("a", new CachedTile(data, now, false));
+            store.put("b", new CachedTile(data, now, false));
+            assertNotNull(store.get("a")); // "b" is now the least recently used
+            store.put("c", new CachedTile(data, now, false));
+            assertNull(store.get("b"));
+            assertNotNull(store.get("a"));
+            assertNotNull(store.get("c"));
+            assertTrue(store.getSizeBytes() <= 9000);
+            assertEquals(2, dir.listFiles().length);
+
+            store.put("d", new CachedTile(data, now - 2 * HOUR, false));
+            assertNull(store.get("d"));
+        }
+        finally
+        {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testOnlyOwnFilesAreDeleted() throws Exception
+    {
+        File dir = createTempDir();
+        try
+        {
+            // A temporary file left behind by a crash and a file that
+            // belongs to something else
+            File tempFile = File.createTempFile("tile", ".tmp", dir);
+            File otherFile = new File(dir, "ehcache.data");
+            assertTrue(otherFile.createNewFile());
+            new DiskTileStore(dir, 1024 * 1024, HOUR);
+            assertFalse(tempFile.exists());
+            assertTrue(otherFile.exists());
+        }
+        finally
+        {
+            deleteDir(dir);
+        }
+    }
+}
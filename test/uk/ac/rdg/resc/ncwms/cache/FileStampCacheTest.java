@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.Test;
+import uk.ac.rdg.resc.ncwms.cache.FileStampCache.FileStamp;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link FileStampCache}.
+ * @author Jon
+ */
+public final class FileStampCacheTest
+{
+    @Test
+    public void testStampsAreCachedUntilCleared() throws Exception
+    {
+        File file = File.createTempFile("stamp", ".nc");
+        file.deleteOnExit();
+        try
+        {
+            FileStampCache cache = new FileStampCache(60 * 60 * 1000L);
+            FileStamp stamp = cache.get(file.getPath());
+            assertEquals(0, stamp.getSize());
+            assertFalse(stamp.usesDatasetTime());
+
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[10]);
+            out.close();
+            // The change isn't seen until the cache is cleared
+            assertSame(stamp, cache.get(file.getPath()));
+            cache.clear();
+            stamp = cache.get(file.getPath());
+            assertEquals(10, stamp.getSize());
+            assertEquals(file.lastModified(), stamp.getLastModified());
+
+            // With a negative maximum age the file is always re-read
+            cache = new FileStampCache(-1);
+            assertNotSame(cache.get(file.getPath()), cache.get(file.getPath()));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRemoteAndInvalidLocations()
+    {
+        FileStampCache cache = new FileStampCache(60 * 60 * 1000L);
+        FileStamp stamp = cache.get("http://example.com/thredds/dodsC/data.nc");
+        assertTrue(stamp.usesDatasetTime());
+        assertEquals(0, stamp.getLastModified());
+        assertEquals(0, stamp.getSize());
+
+        try
+        {
+            cache.get(System.getProperty("java.io.tmpdir"));
+            fail("Directories are not valid files");
+        }
+        catch (IllegalArgumentException iae)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the block allocation and eviction of the {@link OffHeapTileStore}.
+ * @author Jon
+ */
+public final class OffHeapTileStoreTest
+{
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final int BLOCK_BYTES = 4 * OffHeapTileStore.BLOCK_FLOATS;
+
+    private static float[] createData(int length, float start)
+    {
+        float[] data = new float[length];
+        for (int i = 0; i < length; i++) data[i] = start + i;
+        return data;
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        OffHeapTileStore<String> store = new OffHeapTileStore<String>(10 * BLOCK_BYTES, HOUR);
+        // Spans three blocks, the last one partially filled
+        float[] data = createData(2 * OffHeapTileStore.BLOCK_FLOATS + 7, 0.5f);
+        data[3] = Float.NaN;
+        long now = System.currentTimeMillis();
+        assertTrue(store.put("a", new CachedTile(data, now, false)).isEmpty());
+        assertTrue(store.put("b", new CachedTile(createData(10, 1.0f), now, false)).isEmpty());
+        assertEquals(4L * BLOCK_BYTES, store.getSizeBytes());
+        assertArrayEquals(data, store.get("a"), 0.0f);
+        assertArrayEquals(createData(10, 1.0f), store.get("b"), 0.0f);
+        assertNull(store.get("c"));
+    }
+
+    @Test
+    public void testEviction()
+    {
+        OffHeapTileStore<String> store = new OffHeapTileStore<String>(4 * BLOCK_BYTES, HOUR);
+        int length = 2 * OffHeapTileStore.BLOCK_FLOATS;
+        long now = System.currentTimeMillis();
+        store.put("a", new CachedTile(createData(length, 0.0f), now, false));
+        store.put("b", new CachedTile(createData(length, 1.0f), now, true));
+        store.put("c", new CachedTile(createData(length, 2.0f), now, false));
+        assertNotNull(store.get("b"));
+        assertNotNull(store.get("c"));
+
+        // "a" is evicted and returned so it can be written to disk
+        assertNull(store.get("a"));
+        List<Map.Entry<String, CachedTile>> evicted =
+            store.put("d", new CachedTile(createData(length, 3.0f), now, false));
+        // "b" is evicted next but is already on disk, so is not returned
+        assertTrue(evicted.isEmpty());
+        assertNull(store.get("b"));
+        assertArrayEquals(createData(length, 2.0f), store.get("c"), 0.0f);
+
+        // A tile that is too big is returned without evicting anything
+        evicted = store.put("e", new CachedTile(createData(5 * length, 0.0f), now, false));
+        assertEquals(1, evicted.size());
+        assertEquals("e", evicted.get(0).getKey());
+        assertNotNull(store.get("c"));
+        assertNotNull(store.get("d"));
+
+        // Expired tiles are not returned
+        store.put("f", new CachedTile(createData(10, 0.0f), now - 2 * HOUR, false));
+        assertNull(store.get("f"));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cdm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.junit.Test;
+import ucar.ma2.InvalidRangeException;
+import ucar.ma2.Range;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the grouping of time indices into ranges in {@link CdmUtils}.
+ * @author Jon
+ */
+public final class CdmUtilsTest
+{
+    private static List<Range> getTimeRanges(int maxRunLength, Integer... tIndices)
+        throws InvalidRangeException
+    {
+        SortedSet<Integer> set = new TreeSet<Integer>(Arrays.asList(tIndices));
+        return CdmUtils.getTimeRanges(set, maxRunLength);
+    }
+
+    private static void assertRange(Range range, int first, int last, int stride)
+    {
+        assertEquals(first, range.first());
+        assertEquals(last, range.last());
+        assertEquals(stride, range.stride());
+    }
+
+    @Test
+    public void testSingleTimeIndex() throws InvalidRangeException
+    {
+        List<Range> ranges = getTimeRanges(100, 7);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 7, 7, 1);
+    }
+
+    @Test
+    public void testUniformTimeIndices() throws InvalidRangeException
+    {
+        List<Range> ranges = getTimeRanges(100, 3, 6, 9, 12);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 3, 12, 3);
+    }
+
+    @Test
+    public void testIrregularTimeIndices() throws InvalidRangeException
+    {
+        List<Range> ranges = getTimeRanges(100, 0, 2, 4, 5, 6, 10);
+        assertEquals(3, ranges.size());
+        assertRange(ranges.get(0), 0, 4, 2);
+        assertRange(ranges.get(1), 5, 6, 1);
+        assertRange(ranges.get(2), 10, 10, 1);
+    }
+
+    @Test
+    public void testMaxRunLength() throws InvalidRangeException
+    {
+        List<Range> ranges = getTimeRanges(2, 0, 1, 2, 3, 4);
+        assertEquals(3, ranges.size());
+        assertRange(ranges.get(0), 0, 1, 1);
+        assertRange(ranges.get(1), 2, 3, 1);
+        assertRange(ranges.get(2), 4, 4, 1);
+    }
+}
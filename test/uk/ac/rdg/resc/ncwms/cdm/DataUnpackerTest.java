@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cdm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.EnumSet;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.IndexIterator;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.NetcdfDataset.Enhance;
+import ucar.nc2.dataset.VariableDS;
+import ucar.nc2.ncml.NcMLReader;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link DataUnpacker} gives the same results as the Java-NetCDF
+ * library's own scale-offset-missing conversion.
+ * @author Jon
+ */
+public final class DataUnpackerTest
+{
+    private static File file;
+    private static NetcdfDataset nc;
+
+    @BeforeClass
+    public static void createFile() throws Exception
+    {
+        file = File.createTempFile("DataUnpackerTest", ".nc");
+        NetcdfFileWriteable w = NetcdfFileWriteable.createNew(file.getPath(), false);
+        Dimension nb = w.addDimension("nb", 256);
+        Dimension ns = w.addDimension("ns", 65536);
+
+        // Signed shorts with a fill value and a valid range
+        w.addVariable("s", DataType.SHORT, new Dimension[]{ns});
+        w.addVariableAttribute("s", "scale_factor", 0.01f);
+        w.addVariableAttribute("s", "add_offset", 273.15f);
+        w.addVariableAttribute("s", "_FillValue", (short)-32767);
+        w.addVariableAttribute("s", "valid_range", Array.factory(new short[]{-30000, 30000}));
+
+        // Unsigned shorts with a missing value
+        w.addVariable("us", DataType.SHORT, new Dimension[]{ns});
+        w.addVariableAttribute("us", "_Unsigned", "true");
+        w.addVariableAttribute("us", "scale_factor", 0.5);
+        w.addVariableAttribute("us", "missing_value", (short)-1);
+
+        // Unsigned bytes with two missing values and no offset
+        w.addVariable("ub", DataType.BYTE, new Dimension[]{nb});
+        w.addVariableAttribute("ub", "_Unsigned", "true");
+        w.addVariableAttribute("ub", "scale_factor", 0.1f);
+        w.addVariableAttribute("ub", "missing_value", Array.factory(new byte[]{(byte)254, (byte)255}));
+
+        // Integers with a valid minimum
+        w.addVariable("i", DataType.INT, new Dimension[]{ns});
+        w.addVariableAttribute("i", "scale_factor", 2.0);
+        w.addVariableAttribute("i", "add_offset", -5.0);
+        w.addVariableAttribute("i", "valid_min", 0);
+
+        // Unpacked floats with a missing value
+        w.addVariable("f", DataType.FLOAT, new Dimension[]{ns});
+        w.addVariableAttribute("f", "missing_value", -999.0f);
+
+        w.create();
+        short[] shorts = new short[65536];
+        int[] ints = new int[65536];
+        float[] floats = new float[65536];
+        for (int i = 0; i < shorts.length; i++)
+        {
+            shorts[i] = (short)i;
+            ints[i] = i - 32768;
+            floats[i] = i % 2 == 0 ? -999.0f : i * 0.25f;
+        }
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte)i;
+        w.write("s", Array.factory(shorts));
+        w.write("us", Array.factory(shorts));
+        w.write("ub", Array.factory(bytes));
+        w.write("i", Array.factory(ints));
+        w.write("f", Array.factory(floats));
+        w.close();
+
+        nc = NetcdfDataset.openDataset(file.getPath(),
+            EnumSet.of(Enhance.ScaleMissingDefer), -1, null, null);
+    }
+
+    @AfterClass
+    public static void deleteFile() throws IOException
+    {
+        if (nc != null) nc.close();
+        if (file != null) file.delete();
+    }
+
+    @Test
+    public void testShorts() throws IOException
+    {
+        checkUnpacking("s");
+    }
+
+    @Test
+    public void testUnsignedShorts() throws IOException
+    {
+        checkUnpacking("us");
+    }
+
+    @Test
+    public void testUnsignedBytes() throws IOException
+    {
+        checkUnpacking("ub");
+    }
+
+    @Test
+    public void testInts() throws IOException
+    {
+        checkUnpacking("i");
+    }
+
+    @Test
+    public void testFloats() throws IOException
+    {
+        checkUnpacking("f");
+    }
+
+    /** Checks the case in which the packed data must be read in non-storage order */
+    @Test
+    public void testFlippedArray() throws IOException
+    {
+        VariableDS var = (VariableDS)nc.findVariable("s");
+        Array arr = var.read().flip(0);
+        checkUnpacking(var, arr);
+    }
+
+    /**
+     * Checks a variable from an NcML document, whose scale-offset-missing
+     * attributes are not available to the DataUnpacker.
+     */
+    @Test
+    public void testNcmlVariable() throws IOException
+    {
+        String ncml = "<netcdf xmlns='http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2'>"
+            + "<dimension name='x' length='5'/>"
+            + "<variable name='v' shape='x' type='short'>"
+            + "<attribute name='scale_factor' type='float' value='0.5'/>"
+            + "<attribute name='add_offset' type='float' value='10'/>"
+            + "<attribute name='_FillValue' type='short' value='-1'/>"
+            + "<values>0 1 -1 7 -2</values></variable></netcdf>";
+        NetcdfDataset ncmlDataset = NetcdfDataset.wrap(
+            NcMLReader.readNcML(new StringReader(ncml), null),
+            EnumSet.of(Enhance.ScaleMissingDefer));
+        VariableDS var = (VariableDS)ncmlDataset.findVariable("v");
+        checkUnpacking(var, var.read());
+    }
+
+    @Test
+    public void testNotDeferred() throws IOException
+    {
+        float[] data = {1.0f, Float.NaN, 3.0f};
+        float[] unpacked = DataUnpacker.forVariable((VariableDS)nc.findVariable("s"), false)
+            .unpack(Array.factory(data));
+        assertSameValues(data, unpacked);
+    }
+
+    private static void checkUnpacking(String varName) throws IOException
+    {
+        VariableDS var = (VariableDS)nc.findVariable(varName);
+        checkUnpacking(var, var.read());
+    }
+
+    private static void checkUnpacking(VariableDS var, Array arr)
+    {
+        float[] expected = new float[(int)arr.getSize()];
+        IndexIterator it = arr.getIndexIterator();
+        Class<?> type = arr.getElementType();
+        for (int i = 0; i < expected.length; i++)
+        {
+            if (type == byte.class) expected[i] = (float)var.convertScaleOffsetMissing(it.getByteNext());
+            else if (type == short.class) expected[i] = (float)var.convertScaleOffsetMissing(it.getShortNext());
+            else if (type == int.class) expected[i] = (float)var.convertScaleOffsetMissing(it.getIntNext());
+            else expected[i] = (float)var.convertScaleOffsetMissing(it.getDoubleNext());
+        }
+        float[] actual = DataUnpacker.forVariable(var, true).unpack(arr);
+        assertSameValues(expected, actual);
+    }
+
+    /** Checks that the arrays are identical, treating all NaNs as equal */
+    private static void assertSameValues(float[] expected, float[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals("Value at index " + i, Float.floatToIntBits(expected[i]),
+                Float.floatToIntBits(actual[i]));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import java.awt.geom.Path2D;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the point-in-cell test of the {@link CurvilinearGrid}, which is
+ * compared with a {@link Path2D} (using the non-zero winding rule) through
+ * the corners of each cell, as in {@link CurvilinearGrid.Cell#getBoundaryPath()}.
+ * @author Jon
+ */
+public final class CurvilinearGridTest
+{
+    /**
+     * Creates a grid containing a single cell with the given centre, whose
+     * corners are given in the order (i,j), (i+1,j), (i+1,j+1), (i,j+1).
+     */
+    private static CurvilinearGrid makeCell(double centreLon, double centreLat,
+        double[] lons, double[] lats)
+    {
+        // The corner arrays are indexed with i varying fastest, so the
+        // last two corners are swapped
+        int[] order = {0, 1, 3, 2};
+        float[] cornerLons = new float[4];
+        float[] cornerLats = new float[4];
+        for (int c = 0; c < 4; c++)
+        {
+            cornerLons[order[c]] = (float)lons[c];
+            cornerLats[order[c]] = (float)lats[c];
+        }
+        return new CurvilinearGrid(1, 1, new float[] {(float)centreLon},
+            new float[] {(float)centreLat}, cornerLons, cornerLats);
+    }
+
+    /**
+     * Checks that the cell contains the same points as its boundary path
+     * for a grid of points around the cell, and returns the number of
+     * points that are inside
+     */
+    private static int checkAgainstPath(CurvilinearGrid grid, double minLon,
+        double maxLon, double minLat, double maxLat)
+    {
+        double[] lons = new double[4];
+        double[] lats = new double[4];
+        assertTrue(grid.getCellCorners(0, 0, lons, lats));
+        Path2D path = new Path2D.Double(Path2D.WIND_NON_ZERO);
+        path.moveTo(lons[0], lats[0]);
+        for (int c = 1; c < 4; c++) path.lineTo(lons[c], lats[c]);
+        path.closePath();
+        double centreLon = grid.getMidpointLongitude(0, 0);
+        int numInside = 0;
+        // The odd spacing avoids points that lie exactly on edges
+        for (double lat = minLat; lat <= maxLat; lat += 0.0731)
+        {
+            for (double lon = minLon; lon <= maxLon; lon += 0.0637)
+            {
+                double harmonized = lon;
+                while (harmonized - centreLon > 180.0) harmonized -= 360.0;
+                while (harmonized - centreLon < -180.0) harmonized += 360.0;
+                boolean expected = path.contains(harmonized, lat);
+                assertEquals("lon " + lon + ", lat " + lat, expected,
+                    grid.cellContains(0, 0, lon, lat));
+                if (expected) numInside++;
+            }
+        }
+        return numInside;
+    }
+
+    @Test
+    public void testConvexCell()
+    {
+        CurvilinearGrid grid = makeCell(1.0, 1.0,
+            new double[] {0.0, 2.0, 2.3, -0.1}, new double[] {0.0, 0.2, 2.0, 1.8});
+        assertTrue(checkAgainstPath(grid, -1.0, 3.0, -1.0, 3.0) > 0);
+        assertTrue(grid.cellContains(0, 0, 1.0, 1.0));
+        assertFalse(grid.cellContains(0, 0, 2.5, 1.0));
+    }
+
+    @Test
+    public void testConcaveCell()
+    {
+        // An arrowhead with its notch at (1.5, 2)
+        CurvilinearGrid grid = makeCell(2.5, 2.0,
+            new double[] {0.0, 4.0, 0.0, 1.5}, new double[] {0.0, 2.0, 4.0, 2.0});
+        assertTrue(checkAgainstPath(grid, -1.0, 5.0, -1.0, 5.0) > 0);
+        assertTrue(grid.cellContains(0, 0, 2.5, 2.0));
+        // In the notch
+        assertFalse(grid.cellContains(0, 0, 1.0, 2.0));
+    }
+
+    @Test
+    public void testTwistedCell()
+    {
+        // A "bow tie", whose edges cross at (1, 1)
+        CurvilinearGrid grid = makeCell(1.0, 1.0,
+            new double[] {0.0, 2.0, 2.0, 0.0}, new double[] {0.0, 2.0, 0.0, 2.0});
+        assertTrue(checkAgainstPath(grid, -1.0, 3.0, -1.0, 3.0) > 0);
+        // The two lobes are inside
+        assertTrue(grid.cellContains(0, 0, 0.3, 1.0));
+        assertTrue(grid.cellContains(0, 0, 1.7, 1.0));
+        assertFalse(grid.cellContains(0, 0, 1.0, 0.3));
+    }
+
+    @Test
+    public void testCellCrossingTheDateline()
+    {
+        CurvilinearGrid grid = makeCell(180.0, 1.0,
+            new double[] {179.0, -179.0, -179.0, 179.0}, new double[] {0.0, 0.0, 2.0, 2.0});
+        assertTrue(checkAgainstPath(grid, 178.0, 182.0, -1.0, 3.0) > 0);
+        assertTrue(grid.cellContains(0, 0, 179.5, 1.0));
+        assertTrue(grid.cellContains(0, 0, -179.5, 1.0));
+        assertFalse(grid.cellContains(0, 0, 178.5, 1.0));
+        assertFalse(grid.cellContains(0, 0, -178.5, 1.0));
+    }
+
+    @Test
+    public void testFindContainingCell()
+    {
+        CurvilinearGrid grid = LookUpTableTest.makeRegularGrid(3, 3, 0.0, 0.0, 1.0);
+        int[] coords = new int[2];
+        // The point is in a corner neighbour of the cell at (1,1)
+        assertTrue(grid.findContainingCell(1, 1, 2.5, 0.5, coords));
+        assertEquals(2, coords[0]);
+        assertEquals(0, coords[1]);
+        // Too far from the cell at (0,0)
+        assertFalse(grid.findContainingCell(0, 0, 2.5, 2.5, coords));
+    }
+}
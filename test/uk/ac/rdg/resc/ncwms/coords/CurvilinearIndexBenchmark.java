@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.dt.GridDatatype;
+import ucar.nc2.dt.grid.GridDataset;
+
+/**
+ * <p>Benchmark comparing the two ways of finding the grid cells of a
+ * {@link CurvilinearGrid} that contain longitude-latitude points: the
+ * {@link LookUpTable} and the {@link KdTree}.  This reports the memory used by
+ * each, the time taken to build it and the throughput of lookups (including
+ * the refinement with {@link CurvilinearGrid#findContainingCell}).  This is
+ * not a unit test: run it by hand with</p>
+ * <pre>java uk.ac.rdg.resc.ncwms.coords.CurvilinearIndexBenchmark [ni nj]</pre>
+ * <p>with the ncWMS classes and libraries on the classpath.  It creates a
+ * synthetic, rotated and distorted, curvilinear grid in a temporary NetCDF
+ * file.</p>
+ * @author Jon
+ */
+public final class CurvilinearIndexBenchmark
+{
+    private static final int NUM_LOOKUPS = 2000000;
+    private static final int NUM_RUNS = 3;
+
+    public static void main(String[] args) throws Exception
+    {
+        int ni = args.length > 0 ? Integer.parseInt(args[0]) : 1440;
+        int nj = args.length > 1 ? Integer.parseInt(args[1]) : 960;
+
+        File file = File.createTempFile("curvilinear", ".nc");
+        file.deleteOnExit();
+        createGrid(file, ni, nj);
+        GridDataset gd = GridDataset.open(file.getPath());
+        CurvilinearGrid curvGrid;
+        try
+        {
+            GridDatatype grid = gd.getGrids().get(0);
+            curvGrid = new CurvilinearGrid(grid.getCoordinateSystem());
+        }
+        finally
+        {
+            gd.close();
+        }
+        System.out.printf("Grid of %d x %d cells%n", ni, nj);
+
+        // Build each locator a few times to get a stable build time
+        double minResolution = Math.sqrt(curvGrid.getMeanCellArea()) / 3.0;
+        LookUpTable lut = null;
+        KdTree kdTree = null;
+        long lutBuildNanos = Long.MAX_VALUE;
+        long kdTreeBuildNanos = Long.MAX_VALUE;
+        for (int run = 0; run < NUM_RUNS; run++)
+        {
+            long start = System.nanoTime();
+            lut = new LookUpTable(curvGrid, minResolution);
+            lutBuildNanos = Math.min(lutBuildNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            kdTree = new KdTree(curvGrid);
+            kdTreeBuildNanos = Math.min(kdTreeBuildNanos, System.nanoTime() - start);
+        }
+
+        // Random points within the bounding box of the grid
+        Random random = new Random(42);
+        double[] lons = new double[NUM_LOOKUPS];
+        double[] lats = new double[NUM_LOOKUPS];
+        for (int i = 0; i < NUM_LOOKUPS; i++)
+        {
+            lons[i] = -120.0 + 240.0 * random.nextDouble();
+            lats[i] = -60.0 + 120.0 * random.nextDouble();
+        }
+
+        int[] lutResults = new int[NUM_LOOKUPS];
+        int[] kdTreeResults = new int[NUM_LOOKUPS];
+        long lutNanos = Long.MAX_VALUE;
+        long kdTreeNanos = Long.MAX_VALUE;
+        for (int run = 0; run < NUM_RUNS; run++)
+        {
+            lutNanos = Math.min(lutNanos, lookUp(curvGrid, lut, lons, lats, lutResults));
+            kdTreeNanos = Math.min(kdTreeNanos, lookUp(curvGrid, kdTree, lons, lats, kdTreeResults));
+        }
+
+        // Count the points for which the locators give different cells,
+        // and check which of them is right
+        int numDifferent = 0;
+        int lutWrong = 0;
+        int kdTreeWrong = 0;
+        for (int i = 0; i < NUM_LOOKUPS; i++)
+        {
+            if (lutResults[i] == kdTreeResults[i]) continue;
+            numDifferent++;
+            if (!contains(curvGrid, lutResults[i], lons[i], lats[i])) lutWrong++;
+            if (!contains(curvGrid, kdTreeResults[i], lons[i], lats[i])) kdTreeWrong++;
+        }
+
+        System.out.printf("%-12s %12s %12s %14s%n", "", "Size (MB)", "Build (ms)", "Lookup (ns)");
+        print("LookUpTable", lut, lutBuildNanos, lutNanos);
+        print("KdTree", kdTree, kdTreeBuildNanos, kdTreeNanos);
+        System.out.printf("%d of %d points gave different cells (not containing the point:"
+            + " LookUpTable %d, KdTree %d)%n", numDifferent, NUM_LOOKUPS, lutWrong, kdTreeWrong);
+    }
+
+    /**
+     * Finds the cells containing all the given points, returning the time
+     * taken in nanoseconds.  The results are the flat indices of the cells,
+     * or -1 for points outside the grid.
+     */
+    private static long lookUp(CurvilinearGrid curvGrid, GridCellLocator locator,
+        double[] lons, double[] lats, int[] results)
+    {
+        int[] coords = new int[2];
+        long start = System.nanoTime();
+        for (int i = 0; i < lons.length; i++)
+        {
+            if (locator.getGridCoordinates(lons[i], lats[i], coords))
+            {
+                curvGrid.findContainingCell(coords[0], coords[1], lons[i], lats[i], coords);
+                results[i] = coords[1] * curvGrid.getNi() + coords[0];
+            }
+            else
+            {
+                results[i] = -1;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static boolean contains(CurvilinearGrid curvGrid, int index, double lon, double lat)
+    {
+        return index >= 0 && curvGrid.cellContains(index % curvGrid.getNi(),
+            index / curvGrid.getNi(), lon, lat);
+    }
+
+    private static void print(String name, GridCellLocator locator, long buildNanos,
+        long lookUpNanos)
+    {
+        System.out.printf("%-12s %12.1f %12.1f %14.1f%n", name,
+            locator.getSizeBytes() / (1024.0 * 1024.0), buildNanos / 1.0e6,
+            (double)lookUpNanos / NUM_LOOKUPS);
+    }
+
+    /** Writes a rotated and distorted curvilinear grid to the given file */
+    private static void createGrid(File file, int ni, int nj) throws Exception
+    {
+        NetcdfFileWriteable nc = NetcdfFileWriteable.createNew(file.getPath(), false);
+        try
+        {
+            Dimension yDim = nc.addDimension("y", nj);
+            Dimension xDim = nc.addDimension("x", ni);
+            List<Dimension> dims = Arrays.asList(yDim, xDim);
+            nc.addVariable("lon", DataType.FLOAT, dims)
+                .addAttribute(new Attribute("units", "degrees_east"));
+            nc.addVariable("lat", DataType.FLOAT, dims)
+                .addAttribute(new Attribute("units", "degrees_north"));
+            nc.addVariable("data", DataType.FLOAT, dims)
+                .addAttribute(new Attribute("coordinates", "lon lat"));
+            nc.create();
+
+            ArrayFloat.D2 lon = new ArrayFloat.D2(nj, ni);
+            ArrayFloat.D2 lat = new ArrayFloat.D2(nj, ni);
+            double angle = Math.toRadians(20.0);
+            for (int j = 0; j < nj; j++)
+            {
+                for (int i = 0; i < ni; i++)
+                {
+                    double x = -170.0 + i * 340.0 / ni;
+                    double y = -60.0 + j * 120.0 / nj;
+                    lon.set(j, i, (float)(0.5 * (x * Math.cos(angle) - y * Math.sin(angle))
+                        + 10.0 * Math.sin(j * 12.0 / nj)));
+                    lat.set(j, i, (float)(0.2 * x * Math.sin(angle) + 0.6 * y * Math.cos(angle)));
+                }
+            }
+            nc.write("lon", lon);
+            nc.write("lat", lat);
+        }
+        finally
+        {
+            nc.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.nc2.constants.AxisType;
+
+/**
+ * <p>Microbenchmark comparing {@link Irregular1DCoordAxis#getIndex(double)}
+ * with the previous implementation, which kept a list of boxed axis values
+ * and logged on every lookup.  This is not a unit test: run it by hand with</p>
+ * <pre>java uk.ac.rdg.resc.ncwms.coords.Irregular1DCoordAxisBenchmark</pre>
+ * <p>with the ncWMS classes and libraries on the classpath.  It also checks
+ * that both implementations give the same indices.</p>
+ * @author Jon
+ */
+public final class Irregular1DCoordAxisBenchmark
+{
+    private static final int AXIS_SIZE = 2000;
+    private static final int NUM_LOOKUPS = 5000000;
+    private static final int NUM_RUNS = 5;
+
+    public static void main(String[] args)
+    {
+        // A global longitude axis with irregular spacing
+        Random random = new Random(42);
+        double[] lons = new double[AXIS_SIZE];
+        for (int i = 0; i < lons.length; i++)
+        {
+            lons[i] = (i + 0.8 * random.nextDouble()) * 360.0 / AXIS_SIZE;
+        }
+        double[] targets = new double[NUM_LOOKUPS];
+        for (int i = 0; i < targets.length; i++)
+        {
+            targets[i] = -180.0 + 360.0 * random.nextDouble();
+        }
+
+        Irregular1DCoordAxis axis = new Irregular1DCoordAxis(lons, AxisType.Lon);
+        LegacyAxis legacyAxis = new LegacyAxis(lons);
+
+        // The previous implementation missed points just below the first
+        // value of a wrapping axis, so we only compare where it found a point
+        int numExtra = 0;
+        for (int i = 0; i < targets.length; i++)
+        {
+            int legacyIndex = legacyAxis.getIndex(targets[i]);
+            int index = axis.getIndex(targets[i]);
+            if (legacyIndex < 0 && index >= 0)
+            {
+                numExtra++;
+            }
+            else if (index != legacyIndex)
+            {
+                throw new AssertionError("Indices differ for " + targets[i]);
+            }
+        }
+        System.out.printf("Indices agree (current finds %d points that legacy missed)%n", numExtra);
+
+        for (int run = 0; run < NUM_RUNS; run++)
+        {
+            long checksum = 0;
+            long start = System.nanoTime();
+            for (double target : targets) checksum += legacyAxis.getIndex(target);
+            long legacyNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (double target : targets) checksum -= axis.getIndex(target);
+            long nanos = System.nanoTime() - start;
+            System.out.printf("Run %d: legacy %.1f ns/lookup, current %.1f ns/lookup (checksum %d)%n",
+                run, (double)legacyNanos / NUM_LOOKUPS, (double)nanos / NUM_LOOKUPS, checksum);
+        }
+    }
+
+    /**
+     * The previous implementation of the lookup, for longitude axes
+     */
+    private static final class LegacyAxis
+    {
+        private static final Logger logger = LoggerFactory.getLogger(LegacyAxis.class);
+
+        private final List<AxisValue> axisVals = new ArrayList<AxisValue>();
+
+        private static final class AxisValue implements Comparable<AxisValue>
+        {
+            private final double value;
+            private final int index;
+
+            AxisValue(double value, int index)
+            {
+                this.value = value;
+                this.index = index;
+            }
+
+            public int compareTo(AxisValue otherVal)
+            {
+                return Double.compare(this.value, otherVal.value);
+            }
+        }
+
+        LegacyAxis(double[] coordValues)
+        {
+            for (int i = 0; i < coordValues.length; i++)
+            {
+                this.axisVals.add(new AxisValue(coordValues[i], i));
+            }
+            Collections.sort(this.axisVals);
+            // The benchmark axis always wraps
+            AxisValue firstVal = this.axisVals.get(0);
+            this.axisVals.add(new AxisValue(firstVal.value + 360, firstVal.index));
+        }
+
+        int getIndex(double coordValue)
+        {
+            logger.debug("Finding index for {} ...", coordValue);
+            int index = this.findNearest(coordValue);
+            if (index < 0 && coordValue < 0)
+            {
+                index = this.findNearest(coordValue + 360);
+            }
+            logger.debug("   ...index= {}", index);
+            return index;
+        }
+
+        private int findNearest(double target)
+        {
+            if (target < this.axisVals.get(0).value ||
+                target > this.axisVals.get(this.axisVals.size() - 1).value)
+            {
+                return -1;
+            }
+            int low = 0;
+            int high = this.axisVals.size() - 1;
+            while (high > low + 1)
+            {
+                int mid = (low + high) / 2;
+                AxisValue midVal = this.axisVals.get(mid);
+                if (midVal.value == target) return midVal.index;
+                else if (midVal.value < target) low = mid;
+                else high = mid;
+            }
+            AxisValue lowVal  = this.axisVals.get(low);
+            AxisValue highVal = this.axisVals.get(high);
+            return (Math.abs(target - lowVal.value) <
+                    Math.abs(target - highVal.value)) ? lowVal.index : highVal.index;
+        }
+    }
+}
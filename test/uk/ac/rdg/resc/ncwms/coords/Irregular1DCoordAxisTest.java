@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import org.junit.Test;
+import ucar.nc2.constants.AxisType;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the nearest-neighbour lookup in {@link Irregular1DCoordAxis}.
+ * @author Jon
+ */
+public final class Irregular1DCoordAxisTest
+{
+    @Test
+    public void testNearestIndex()
+    {
+        Irregular1DCoordAxis axis = new Irregular1DCoordAxis(
+            new double[]{0.0, 1.0, 3.0, 7.0, 15.0}, AxisType.GeoX);
+        assertEquals(0, axis.getIndex(0.0));
+        assertEquals(0, axis.getIndex(0.4));
+        assertEquals(1, axis.getIndex(1.9));
+        assertEquals(2, axis.getIndex(2.1));
+        assertEquals(3, axis.getIndex(7.0));
+        assertEquals(4, axis.getIndex(15.0));
+        assertEquals(-1, axis.getIndex(-0.1));
+        assertEquals(-1, axis.getIndex(15.1));
+        assertEquals(-1, axis.getIndex(Double.NaN));
+    }
+
+    @Test
+    public void testDescendingAxisWithNaNs()
+    {
+        // NaNs are ignored but don't affect the indices of the other points
+        Irregular1DCoordAxis axis = new Irregular1DCoordAxis(
+            new double[]{Double.NaN, 80.0, 60.0, 50.0, Double.NaN}, AxisType.Lat);
+        assertEquals(1, axis.getIndex(75.0));
+        assertEquals(2, axis.getIndex(62.0));
+        assertEquals(3, axis.getIndex(50.0));
+        assertEquals(-1, axis.getIndex(85.0));
+        assertEquals(60.0, axis.getCoordValue(2), 0.0);
+    }
+
+    @Test
+    public void testLongitudeWrapping()
+    {
+        // A global axis from 0 to 350 degrees that wraps
+        double[] lons = new double[36];
+        for (int i = 0; i < lons.length; i++) lons[i] = i * 10.0;
+        lons[1] = 11.0; // Make the axis irregular
+        Irregular1DCoordAxis axis = new Irregular1DCoordAxis(lons, AxisType.Lon);
+        assertEquals(35, axis.getIndex(-10.0));
+        assertEquals(35, axis.getIndex(351.0));
+        assertEquals(0, axis.getIndex(356.0));
+        assertEquals(0, axis.getIndex(-4.0));
+        assertEquals(1, axis.getIndex(371.0));
+        assertEquals(18, axis.getIndex(-180.0));
+    }
+
+    @Test
+    public void testRegionalLongitudeAxis()
+    {
+        // This axis does not wrap
+        Irregular1DCoordAxis axis = new Irregular1DCoordAxis(
+            new double[]{100.0, 110.0, 125.0, 150.0}, AxisType.Lon);
+        assertEquals(1, axis.getIndex(-250.0));
+        assertEquals(3, axis.getIndex(150.0));
+        assertEquals(-1, axis.getIndex(151.0));
+        assertEquals(-1, axis.getIndex(-100.0));
+    }
+
+    @Test
+    public void testEqualsAndHashCode()
+    {
+        // Axes from different files must be equal so that coordinate
+        // systems can be shared
+        double[] values = {0.0, 1.0, 3.0, 7.0};
+        Irregular1DCoordAxis axis1 = new Irregular1DCoordAxis(values, AxisType.GeoX);
+        Irregular1DCoordAxis axis2 = new Irregular1DCoordAxis(values.clone(), AxisType.GeoX);
+        assertEquals(axis1, axis2);
+        assertEquals(axis1.hashCode(), axis2.hashCode());
+        assertFalse(axis1.equals(new Irregular1DCoordAxis(values, AxisType.GeoY)));
+        assertFalse(axis1.equals(new Irregular1DCoordAxis(
+            new double[]{0.0, 1.0, 3.0, 8.0}, AxisType.GeoX)));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the nearest-neighbour search in {@link KdTree}.
+ * @author Jon
+ */
+public final class KdTreeTest
+{
+    @Test
+    public void testNearestAgainstBruteForce()
+    {
+        Random random = new Random(7);
+        int n = 5000;
+        float[] lons = new float[n];
+        float[] lats = new float[n];
+        for (int i = 0; i < n; i++)
+        {
+            lons[i] = (float)(-180.0 + 360.0 * random.nextDouble());
+            lats[i] = (float)(-90.0 + 180.0 * random.nextDouble());
+        }
+        KdTree kdTree = new KdTree(lons, lats, 100, Double.MAX_VALUE);
+        for (int k = 0; k < 2000; k++)
+        {
+            double lon = -180.0 + 360.0 * random.nextDouble();
+            double lat = -90.0 + 180.0 * random.nextDouble();
+            double bestDistanceSq = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++)
+            {
+                double dx = lon - lons[i];
+                double dy = lat - lats[i];
+                bestDistanceSq = Math.min(bestDistanceSq, dx * dx + dy * dy);
+            }
+            // Compare distances rather than indices in case of ties
+            int nearest = kdTree.findNearest(lon, lat);
+            double dx = lon - lons[nearest];
+            double dy = lat - lats[nearest];
+            assertEquals(bestDistanceSq, dx * dx + dy * dy, 0.0);
+        }
+    }
+
+    @Test
+    public void testGridCoordinates()
+    {
+        // A 4x3 grid with cell centres every 10 degrees; the middle
+        // cell is missing
+        float[] lons = new float[12];
+        float[] lats = new float[12];
+        for (int j = 0; j < 3; j++)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                lons[j * 4 + i] = i * 10.0f;
+                lats[j * 4 + i] = j * 10.0f;
+            }
+        }
+        lons[5] = Float.NaN;
+        KdTree kdTree = new KdTree(lons, lats, 4, 50.0);
+        int[] coords = new int[2];
+        assertTrue(kdTree.getGridCoordinates(21.0, 18.0, coords));
+        assertArrayEquals(new int[]{2, 2}, coords);
+        // The nearest cell to this point is missing, so we find its neighbour
+        assertTrue(kdTree.getGridCoordinates(14.0, 10.0, coords));
+        assertArrayEquals(new int[]{2, 1}, coords);
+        // Points more than the maximum radius from any centre are outside
+        // the grid, and coords are unchanged
+        assertFalse(kdTree.getGridCoordinates(-8.0, 0.0, coords));
+        assertFalse(kdTree.getGridCoordinates(Double.NaN, 0.0, coords));
+        assertArrayEquals(new int[]{2, 1}, coords);
+        assertEquals(-1, new KdTree(new float[0], new float[0], 1, 1.0).findNearest(0.0, 0.0));
+    }
+
+    @Test
+    public void testAntiMeridian()
+    {
+        // Two cells either side of the anti-meridian
+        float[] lons = {179.0f, -178.0f};
+        float[] lats = {0.0f, 0.0f};
+        KdTree kdTree = new KdTree(lons, lats, 2, 4.0);
+        int[] coords = new int[2];
+        assertTrue(kdTree.getGridCoordinates(-179.9, 0.0, coords));
+        assertArrayEquals(new int[]{0, 0}, coords);
+        assertTrue(kdTree.getGridCoordinates(179.9, 0.0, coords));
+        assertArrayEquals(new int[]{0, 0}, coords);
+        assertTrue(kdTree.getGridCoordinates(-178.5, 0.0, coords));
+        assertArrayEquals(new int[]{1, 0}, coords);
+    }
+}
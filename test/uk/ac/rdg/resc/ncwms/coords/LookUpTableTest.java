@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link LookUpTable}: painting cells into the table, and saving
+ * and loading tables.
+ * @author Jon
+ */
+public final class LookUpTableTest
+{
+    /** The value of a point in the table that has not been painted */
+    private static final short MISSING = (short)65535;
+
+    /**
+     * Creates a regular grid of ni by nj cells of the given size, whose
+     * south-west corner is at the given point.
+     */
+    static CurvilinearGrid makeRegularGrid(int ni, int nj, double lon0, double lat0, double size)
+    {
+        float[] lons = new float[ni * nj];
+        float[] lats = new float[ni * nj];
+        for (int j = 0; j < nj; j++)
+        {
+            for (int i = 0; i < ni; i++)
+            {
+                lons[j * ni + i] = (float)(lon0 + (i + 0.5) * size);
+                lats[j * ni + i] = (float)(lat0 + (j + 0.5) * size);
+            }
+        }
+        float[] cornerLons = new float[(ni + 1) * (nj + 1)];
+        float[] cornerLats = new float[(ni + 1) * (nj + 1)];
+        for (int j = 0; j <= nj; j++)
+        {
+            for (int i = 0; i <= ni; i++)
+            {
+                cornerLons[j * (ni + 1) + i] = (float)(lon0 + i * size);
+                cornerLats[j * (ni + 1) + i] = (float)(lat0 + j * size);
+            }
+        }
+        return new CurvilinearGrid(ni, nj, lons, lats, cornerLons, cornerLats);
+    }
+
+    @Test
+    public void testCellCentresMapToTheirCells()
+    {
+        CurvilinearGrid grid = makeRegularGrid(4, 3, -20.0, -15.0, 10.0);
+        LookUpTable lut = new LookUpTable(grid, 1.0);
+        for (int j = 0; j < 3; j++)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                int[] coords = lut.getGridCoordinates(-15.0 + 10.0 * i, -10.0 + 10.0 * j);
+                assertNotNull(coords);
+                assertEquals(i, coords[0]);
+                assertEquals(j, coords[1]);
+            }
+        }
+        // Outside the table
+        assertNull(lut.getGridCoordinates(40.0, 0.0));
+    }
+
+    @Test
+    public void testResultDoesNotDependOnNumberOfThreads() throws Exception
+    {
+        // Overlapping cells, so that the order in which they are painted matters
+        CurvilinearGrid grid = makeRegularGrid(9, 7, -10.0, 20.0, 1.5);
+        float[] cornerLons = new float[10 * 8];
+        float[] cornerLats = new float[10 * 8];
+        for (int j = 0; j <= 7; j++)
+        {
+            for (int i = 0; i <= 9; i++)
+            {
+                // Shear the grid and stretch alternate rows of corners
+                cornerLons[j * 10 + i] = (float)(-10.0 + 1.5 * i + 0.4 * j);
+                cornerLats[j * 10 + i] = (float)(20.0 + 1.5 * j + (j % 2 == 0 ? 0.9 : -0.9));
+            }
+        }
+        CurvilinearGrid sheared = new CurvilinearGrid(9, 7, grid.getCentreLongitudes(),
+            grid.getCentreLatitudes(), cornerLons, cornerLats);
+        LookUpTable single = new LookUpTable(sheared, 0.05, 1);
+        File singleFile = File.createTempFile("lut", ".dat");
+        singleFile.deleteOnExit();
+        single.save(singleFile);
+        for (int numThreads : new int[] {2, 3, 8})
+        {
+            LookUpTable multi = new LookUpTable(sheared, 0.05, numThreads);
+            File multiFile = File.createTempFile("lut", ".dat");
+            multiFile.deleteOnExit();
+            multi.save(multiFile);
+            assertTrue("Different tables with " + numThreads + " threads",
+                Arrays.equals(readFile(singleFile), readFile(multiFile)));
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        byte[] bytes = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(bytes);
+        }
+        finally
+        {
+            in.close();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception
+    {
+        CurvilinearGrid grid = makeRegularGrid(7, 5, 100.0, 30.0, 2.5);
+        LookUpTable lut = new LookUpTable(grid, 0.3);
+        File file = File.createTempFile("lut", ".dat");
+        file.deleteOnExit();
+        lut.save(file);
+        LookUpTable loaded = LookUpTable.load(file);
+        assertEquals(lut.getNumLonPoints(), loaded.getNumLonPoints());
+        assertEquals(lut.getNumLatPoints(), loaded.getNumLatPoints());
+        assertEquals(lut.getSizeBytes(), loaded.getSizeBytes());
+        int[] expected = new int[2];
+        int[] actual = new int[2];
+        for (double lat = 29.0; lat <= 44.0; lat += 0.17)
+        {
+            for (double lon = 99.0; lon <= 119.0; lon += 0.17)
+            {
+                boolean found = lut.getGridCoordinates(lon, lat, expected);
+                assertEquals(found, loaded.getGridCoordinates(lon, lat, actual));
+                if (found)
+                {
+                    assertEquals(expected[0], actual[0]);
+                    assertEquals(expected[1], actual[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSaveLeavesNoTemporaryFiles() throws Exception
+    {
+        File dir = createTempDir();
+        try
+        {
+            LookUpTable lut = new LookUpTable(makeRegularGrid(3, 3, 0.0, 0.0, 1.0), 0.5);
+            File file = new File(dir, "abc.lut");
+            lut.save(file);
+            // Saving again replaces the file
+            lut.save(file);
+            assertEquals(Arrays.asList("abc.lut"), Arrays.asList(dir.list()));
+        }
+        finally
+        {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testDeleteOldFiles() throws Exception
+    {
+        File dir = createTempDir();
+        try
+        {
+            long now = System.currentTimeMillis();
+            File usedLut = createFile(dir, "used.lut", now);
+            File unusedLut = createFile(dir, "unused.lut",
+                now - TwoDCoordSys.MAX_UNUSED_LUT_AGE_MILLIS - 1000);
+            File newTempFile = createFile(dir, "lut123.tmp", now);
+            File oldTempFile = createFile(dir, "lut456.tmp",
+                now - TwoDCoordSys.MAX_TEMP_FILE_AGE_MILLIS - 1000);
+            File otherFile = createFile(dir, "readme.txt", 0L);
+            assertEquals(2, TwoDCoordSys.deleteOldFiles(dir, now));
+            assertTrue(usedLut.exists());
+            assertFalse(unusedLut.exists());
+            assertTrue(newTempFile.exists());
+            assertFalse(oldTempFile.exists());
+            assertTrue(otherFile.exists());
+        }
+        finally
+        {
+            deleteDir(dir);
+        }
+    }
+
+    private static File createTempDir() throws IOException
+    {
+        File dir = File.createTempFile("luts", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static void deleteDir(File dir)
+    {
+        for (File file : dir.listFiles()) file.delete();
+        dir.delete();
+    }
+
+    private static File createFile(File dir, String name, long lastModified) throws IOException
+    {
+        File file = new File(dir, name);
+        assertTrue(file.createNewFile());
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+
+    @Test
+    public void testLoadRejectsInvalidFiles() throws Exception
+    {
+        File file = File.createTempFile("lut", ".dat");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[100]);
+        out.close();
+        try
+        {
+            LookUpTable.load(file);
+            fail("Expected an IOException");
+        }
+        catch (IOException ioe)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFillConvexPolygon()
+    {
+        LookUpTable lut = new LookUpTable(makeRegularGrid(4, 3, -20.0, -15.0, 10.0), 1.0);
+        int nLon = lut.getNumLonPoints();
+        short[] iData = newTable(lut);
+        short[] jData = newTable(lut);
+        // A rectangle covering rows 2-3 and columns 2-4
+        lut.fillPolygon(new double[] {1.5, 4.5, 4.5, 1.5}, new double[] {1.5, 1.5, 3.5, 3.5},
+            0, lut.getNumLatPoints(), new double[4], iData, jData, 7, 9);
+        for (int row = 0; row < lut.getNumLatPoints(); row++)
+        {
+            for (int col = 0; col < nLon; col++)
+            {
+                boolean inside = row >= 2 && row <= 3 && col >= 2 && col <= 4;
+                assertEquals(inside ? 7 : MISSING, iData[row * nLon + col]);
+                assertEquals(inside ? 9 : MISSING, jData[row * nLon + col]);
+            }
+        }
+    }
+
+    @Test
+    public void testFillConcavePolygon()
+    {
+        LookUpTable lut = new LookUpTable(makeRegularGrid(4, 3, -20.0, -15.0, 10.0), 1.0);
+        int nLon = lut.getNumLonPoints();
+        short[] iData = newTable(lut);
+        short[] jData = newTable(lut);
+        // An arrowhead with its notch at (4,4)
+        lut.fillPolygon(new double[] {0, 8, 0, 4}, new double[] {0, 4, 8, 4},
+            0, lut.getNumLatPoints(), new double[4], iData, jData, 1, 2);
+        // The columns that are painted in each row, from the minimum
+        // (inclusive) to the maximum (exclusive)
+        int[][] expected = {{0, 0}, {1, 2}, {2, 4}, {3, 6}, {4, 8}, {3, 6}, {2, 4}, {1, 2}, {0, 0}};
+        for (int row = 0; row < expected.length; row++)
+        {
+            for (int col = 0; col < 10; col++)
+            {
+                boolean inside = col >= expected[row][0] && col < expected[row][1];
+                assertEquals("row " + row + ", col " + col,
+                    inside ? 1 : MISSING, iData[row * nLon + col]);
+            }
+        }
+    }
+
+    private static short[] newTable(LookUpTable lut)
+    {
+        short[] data = new short[lut.getNumLonPoints() * lut.getNumLatPoints()];
+        Arrays.fill(data, MISSING);
+        return data;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import ucar.nc2.constants.AxisType;
+import ucar.unidata.geoloc.ProjectionImpl;
+import ucar.unidata.geoloc.projection.LambertConformal;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the equality of {@link OneDCoordSys} objects, which decides whether
+ * coordinate systems are shared between layers.
+ * @author Jon
+ */
+public final class OneDCoordSysTest
+{
+    private static OneDCoordSys makeCoordSys(ProjectionImpl proj)
+    {
+        return new OneDCoordSys(
+            new Regular1DCoordAxis(-1000.0, 10.0, 201, AxisType.GeoX),
+            new Regular1DCoordAxis(-500.0, 10.0, 101, AxisType.GeoY),
+            proj);
+    }
+
+    @Test
+    public void testEqualProjections()
+    {
+        OneDCoordSys cs1 = makeCoordSys(new LambertConformal(40.0, -100.0, 30.0, 60.0, 0.0, 0.0, 6371.229));
+        OneDCoordSys cs2 = makeCoordSys(new LambertConformal(40.0, -100.0, 30.0, 60.0, 0.0, 0.0, 6371.229));
+        assertEquals(cs1, cs2);
+        assertEquals(cs1.hashCode(), cs2.hashCode());
+    }
+
+    @Test
+    public void testDifferentFalseEasting()
+    {
+        // ProjectionImpl.equals() says these projections are equal
+        OneDCoordSys cs1 = makeCoordSys(new LambertConformal(40.0, -100.0, 30.0, 60.0, 0.0, 0.0, 6371.229));
+        OneDCoordSys cs2 = makeCoordSys(new LambertConformal(40.0, -100.0, 30.0, 60.0, 500.0, 0.0, 6371.229));
+        assertFalse(cs1.equals(cs2));
+        assertFalse(cs2.equals(cs1));
+    }
+
+    @Test
+    public void testDifferentEarthRadius()
+    {
+        // The radius is not in the projection parameters
+        OneDCoordSys cs1 = makeCoordSys(new LambertConformal(40.0, -100.0, 30.0, 60.0, 0.0, 0.0, 6371.229));
+        OneDCoordSys cs2 = makeCoordSys(new LambertConformal(40.0, -100.0, 30.0, 60.0, 0.0, 0.0, 6378.137));
+        assertFalse(cs1.equals(cs2));
+    }
+
+    @Test
+    public void testConcurrentRoundTrips() throws Exception
+    {
+        // Threads share the coordinate system's copies of the projection
+        final OneDCoordSys cs = makeCoordSys(new LambertConformal(40.0, -100.0, 30.0, 60.0));
+        final AtomicInteger numErrors = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 201; i += 5)
+                    {
+                        for (int j = 0; j < 101; j += 5)
+                        {
+                            int[] ij = cs.lonLatToGrid(cs.gridToLonLat(i, j));
+                            if (ij == null || ij[0] != i || ij[1] != j) numErrors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(0, numErrors.get());
+    }
+
+    @Test
+    public void testLatLonAndProjected()
+    {
+        OneDCoordSys latLon = new LatLonCoordSys(
+            new Regular1DCoordAxis(-180.0, 1.0, 360, AxisType.Lon),
+            new Regular1DCoordAxis(-90.0, 1.0, 181, AxisType.Lat));
+        OneDCoordSys projected = new OneDCoordSys(
+            new Regular1DCoordAxis(-180.0, 1.0, 360, AxisType.Lon),
+            new Regular1DCoordAxis(-90.0, 1.0, 181, AxisType.Lat),
+            new LambertConformal(40.0, -100.0, 30.0, 60.0));
+        assertFalse(latLon.equals(projected));
+        assertFalse(projected.equals(latLon));
+    }
+}
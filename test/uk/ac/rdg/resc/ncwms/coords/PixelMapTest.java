@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the snapping of axis indices onto a uniform lattice in
+ * {@link PixelMap}, of the compressed storage of the mappings and of the
+ * test for separable grids.
+ * @author Jon
+ */
+public final class PixelMapTest
+{
+    /** Earth radius in metres, for the projections below */
+    private static final double R = 6371007.0;
+
+    /** Spherical Mercator, which is separable */
+    private static final PixelMap.LonLatTransform MERCATOR = new PixelMap.LonLatTransform() {
+        @Override
+        public void crsToLonLat(double[] xy, int numPoints) {
+            for (int k = 0; k < numPoints; k++) {
+                xy[2 * k] = Math.toDegrees(xy[2 * k] / R);
+                xy[2 * k + 1] = Math.toDegrees(Math.atan(Math.sinh(xy[2 * k + 1] / R)));
+            }
+        }
+    };
+
+    /** North polar stereographic on a sphere, which is not separable */
+    private static final PixelMap.LonLatTransform POLAR_STEREOGRAPHIC = new PixelMap.LonLatTransform() {
+        @Override
+        public void crsToLonLat(double[] xy, int numPoints) {
+            for (int k = 0; k < numPoints; k++) {
+                double x = xy[2 * k];
+                double y = xy[2 * k + 1];
+                double rho = Math.sqrt(x * x + y * y);
+                xy[2 * k] = Math.toDegrees(Math.atan2(x, -y));
+                xy[2 * k + 1] = 90.0 - Math.toDegrees(2.0 * Math.atan(rho / (2.0 * R)));
+            }
+        }
+    };
+
+    /** A lat-lon grid rotated by 30 degrees, which is not separable */
+    private static final PixelMap.LonLatTransform ROTATED = new PixelMap.LonLatTransform() {
+        @Override
+        public void crsToLonLat(double[] xy, int numPoints) {
+            double cos = Math.cos(Math.toRadians(30.0));
+            double sin = Math.sin(Math.toRadians(30.0));
+            for (int k = 0; k < numPoints; k++) {
+                double x = xy[2 * k];
+                double y = xy[2 * k + 1];
+                xy[2 * k] = x * cos - y * sin;
+                xy[2 * k + 1] = x * sin + y * cos;
+            }
+        }
+    };
+
+    private static double[] axis(double start, double spacing, int n)
+    {
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) values[i] = start + i * spacing;
+        return values;
+    }
+
+    @Test
+    public void testMercatorIsSeparable() throws Exception
+    {
+        double[] xValues = axis(-2.0e7, 1.0e5, 400);
+        double[] yValues = axis(-1.5e7, 1.0e5, 300);
+        double[][] lonLats = PixelMap.getSeparableLonLats(xValues, yValues, MERCATOR);
+        assertNotNull(lonLats);
+        assertEquals(400, lonLats[0].length);
+        assertEquals(300, lonLats[1].length);
+        assertEquals(Math.toDegrees(-2.0e7 / R), lonLats[0][0], 1e-9);
+        assertEquals(0.0, lonLats[1][150], 1e-9);
+    }
+
+    @Test
+    public void testPolarStereographicIsNotSeparable() throws Exception
+    {
+        double[] xValues = axis(-3.0e6, 1.0e5, 61);
+        double[] yValues = axis(-3.0e6, 1.0e5, 61);
+        assertNull(PixelMap.getSeparableLonLats(xValues, yValues, POLAR_STEREOGRAPHIC));
+    }
+
+    @Test
+    public void testRotatedGridIsNotSeparable() throws Exception
+    {
+        double[] xValues = axis(-10.0, 0.5, 40);
+        double[] yValues = axis(40.0, 0.5, 30);
+        assertNull(PixelMap.getSeparableLonLats(xValues, yValues, ROTATED));
+    }
+
+    @Test
+    public void testLocalDistortionIsDetected() throws Exception
+    {
+        // Separable except at a single point that is not in the first,
+        // middle or last row or column
+        PixelMap.LonLatTransform distorted = new PixelMap.LonLatTransform() {
+            @Override
+            public void crsToLonLat(double[] xy, int numPoints) {
+                for (int k = 0; k < numPoints; k++) {
+                    if (xy[2 * k] == 2.0 && xy[2 * k + 1] == 2.0) xy[2 * k + 1] += 0.01;
+                }
+            }
+        };
+        double[] values = axis(0.0, 1.0, 9);
+        assertNotNull(PixelMap.getSeparableLonLats(values, values, MERCATOR));
+        assertNull(PixelMap.getSeparableLonLats(values, values, distorted));
+    }
+
+    @Test
+    public void testSnapUndersampledIndices()
+    {
+        int[] indices = {3, 6, 8, 11, 13};
+        PixelMap.snapToLattice(indices);
+        assertArrayEquals(new int[]{3, 7, 9, 11, 13}, indices);
+    }
+
+    @Test
+    public void testSnapPreservesMissingAndOrder()
+    {
+        int[] indices = {-1, 12, 10, 7, 4, -1};
+        PixelMap.snapToLattice(indices);
+        // Spacing is 2, so indices must be 4 plus a multiple of 2, and not
+        // greater than the original maximum
+        assertArrayEquals(new int[]{-1, 12, 10, 8, 4, -1}, indices);
+    }
+
+    @Test
+    public void testAdjacentIndicesAreUnchanged()
+    {
+        int[] indices = {0, 1, 3, 5, 6};
+        PixelMap.snapToLattice(indices);
+        assertArrayEquals(new int[]{0, 1, 3, 5, 6}, indices);
+    }
+
+    @Test
+    public void testSingleIndexIsUnchanged()
+    {
+        int[] indices = {5, 5, -1};
+        PixelMap.snapToLattice(indices);
+        assertArrayEquals(new int[]{5, 5, -1}, indices);
+    }
+
+    @Test
+    public void testRowsAndPairsAreSorted()
+    {
+        // Pixels 0-5 map to (i,j) pairs; pixel 3 has no data
+        int[] is = {7, 3, 5, -1, 3, 7};
+        int[] js = {4, 4, 2,  2, 4, 2};
+        PixelMap pixelMap = new PixelMap(is, js);
+        assertFalse(pixelMap.isEmpty());
+        assertEquals(2, pixelMap.getNumRows());
+        assertEquals(4, pixelMap.getNumUniqueIJPairs());
+
+        // The first row is j = 2, containing pixels 2 (i = 5) and 5 (i = 7)
+        assertEquals(2, pixelMap.getRowJIndex(0));
+        assertEquals(5, pixelMap.getRowMinIIndex(0));
+        assertEquals(7, pixelMap.getRowMaxIIndex(0));
+        assertEquals(0, pixelMap.getRowStart(0));
+        assertEquals(2, pixelMap.getRowEnd(0));
+        assertEquals(5, pixelMap.getIIndex(0));
+        assertEquals(7, pixelMap.getIIndex(1));
+
+        // The second row is j = 4: pixels 1 and 4 map to i = 3, pixel 0 to i = 7
+        assertEquals(4, pixelMap.getRowJIndex(1));
+        assertEquals(2, pixelMap.getRowStart(1));
+        assertEquals(4, pixelMap.getRowEnd(1));
+        assertEquals(3, pixelMap.getIIndex(2));
+        assertEquals(2, pixelMap.getPixelEnd(2) - pixelMap.getPixelStart(2));
+        assertEquals(1, pixelMap.getPixelIndex(pixelMap.getPixelStart(2)));
+        assertEquals(4, pixelMap.getPixelIndex(pixelMap.getPixelStart(2) + 1));
+        assertEquals(7, pixelMap.getIIndex(3));
+        assertEquals(0, pixelMap.getPixelIndex(pixelMap.getPixelStart(3)));
+        assertEquals(5, pixelMap.getPixelEnd(3));
+
+        // Bounding box and strides
+        assertEquals(3, pixelMap.getMinIIndex());
+        assertEquals(7, pixelMap.getMaxIIndex());
+        assertEquals(2, pixelMap.getMinJIndex());
+        assertEquals(4, pixelMap.getMaxJIndex());
+        assertEquals(2, pixelMap.getIStride());
+        assertEquals(2, pixelMap.getJStride());
+        assertEquals(3 + 2, pixelMap.getSumRowLengths());
+        assertEquals(3 * 2, pixelMap.getBoundingBoxSize());
+    }
+
+    @Test
+    public void testEmptyPixelMap()
+    {
+        PixelMap pixelMap = new PixelMap(new int[]{-1, 3}, new int[]{2, -1});
+        assertTrue(pixelMap.isEmpty());
+        assertEquals(0, pixelMap.getNumRows());
+        assertEquals(0, pixelMap.getNumUniqueIJPairs());
+    }
+}
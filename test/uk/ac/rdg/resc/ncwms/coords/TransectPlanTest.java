@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.coords;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the walk along a path in {@link TransectPlan}, using a grid of
+ * unit cells from (0,0) to (10,10).
+ * @author Jon
+ */
+public final class TransectPlanTest
+{
+    private static TransectPlan.Walker walk(HorizontalPosition... controlPoints)
+        throws Exception
+    {
+        TransectPlan.Walker walker = new TransectPlan.Walker(Arrays.asList(controlPoints))
+        {
+            @Override
+            void findCells(double[] xy, int numPoints, int[] iIndices, int[] jIndices)
+            {
+                for (int i = 0; i < numPoints; i++)
+                {
+                    double x = xy[2 * i];
+                    double y = xy[2 * i + 1];
+                    boolean inside = x >= 0.0 && x < 10.0 && y >= 0.0 && y < 10.0;
+                    iIndices[i] = inside ? (int)Math.floor(x) : -1;
+                    jIndices[i] = inside ? (int)Math.floor(y) : -1;
+                }
+            }
+        };
+        walker.walk();
+        return walker;
+    }
+
+    private static HorizontalPosition pos(double x, double y)
+    {
+        return new HorizontalPositionImpl(x, y);
+    }
+
+    @Test
+    public void testHorizontalPath() throws Exception
+    {
+        // Crosses ten cells, with one point in the middle of each
+        TransectPlan.Walker walker = walk(pos(0.0, 0.5), pos(10.0, 0.5));
+        List<HorizontalPosition> points = walker.getPoints();
+        double[] distances = walker.getDistances();
+        // The end point is outside the grid
+        assertEquals(11, points.size());
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(i + 0.5, points.get(i).getX(), 1.0e-3);
+            assertEquals(0.5, points.get(i).getY(), 1.0e-3);
+            assertEquals(i + 0.5, distances[i], 1.0e-3);
+        }
+        assertEquals(10.0, distances[10], 1.0e-3);
+    }
+
+    @Test
+    public void testPathWithGaps() throws Exception
+    {
+        // Starts outside the grid, crosses it diagonally through
+        // (0,0),(1,1),...,(9,9) and the cells either side, then turns
+        // back into the last cell
+        TransectPlan.Walker walker = walk(pos(-1.0, -0.9), pos(11.0, 11.1), pos(9.5, 9.4));
+        List<HorizontalPosition> points = walker.getPoints();
+        double[] distances = walker.getDistances();
+        // Outside, then alternating (k,k) and (k,k+1) apart from the last
+        // cell, then outside again, then (9,9) again
+        assertEquals(1 + 19 + 1 + 1, points.size());
+        assertTrue(points.get(0).getX() < 0.0);
+        assertTrue(points.get(20).getX() > 10.0);
+        assertEquals(9.0, Math.floor(points.get(21).getX()), 0.0);
+        assertEquals(9.0, Math.floor(points.get(21).getY()), 0.0);
+        for (int i = 1; i < 20; i++)
+        {
+            HorizontalPosition p = points.get(i);
+            assertEquals((i - 1) / 2, (int)Math.floor(p.getX()));
+            assertEquals(i / 2, (int)Math.floor(p.getY()));
+            assertTrue(distances[i] > distances[i - 1]);
+        }
+    }
+
+    @Test
+    public void testFineGrid() throws Exception
+    {
+        // A path that is long compared with the sampling interval still
+        // finds every cell
+        TransectPlan.Walker walker = new TransectPlan.Walker(Arrays.asList(pos(0.0, 0.5), pos(1.0, 0.5)))
+        {
+            @Override
+            void findCells(double[] xy, int numPoints, int[] iIndices, int[] jIndices)
+            {
+                for (int i = 0; i < numPoints; i++)
+                {
+                    // 5000 cells in the x direction
+                    iIndices[i] = (int)Math.floor(xy[2 * i] * 5000.0);
+                    jIndices[i] = 0;
+                }
+            }
+        };
+        walker.walk();
+        // The last cell contains only the end point, which is shorter
+        // than the tolerance
+        assertTrue(walker.getPoints().size() >= 5000);
+        assertTrue(walker.getPoints().size() <= 5001);
+        assertEquals(0.5 / 5000.0, walker.getDistances()[0], 1.0e-6);
+    }
+
+    @Test
+    public void testLeaveAndReturnBetweenSamples() throws Exception
+    {
+        // The path is sampled every 0.002 units, in the centres of cells
+        // that are 0.001 wide.  Cell 301 is four cells wide and the path
+        // leaves it for cell 9999 and comes back between two samples.
+        TransectPlan.Walker walker = new TransectPlan.Walker(Arrays.asList(pos(0.0, 0.5), pos(1.0, 0.5)))
+        {
+            @Override
+            void findCells(double[] xy, int numPoints, int[] iIndices, int[] jIndices)
+            {
+                for (int i = 0; i < numPoints; i++)
+                {
+                    double x = xy[2 * i];
+                    int cell = (int)Math.floor((x + 0.0005) * 1000.0);
+                    if (x >= 0.3026 && x < 0.3032) cell = 9999;
+                    else if (x >= 0.3005 && x < 0.3045) cell = 301;
+                    iIndices[i] = cell;
+                    jIndices[i] = 0;
+                }
+            }
+        };
+        walker.walk();
+        int numInExcursion = 0;
+        int numInCell301 = 0;
+        for (HorizontalPosition p : walker.getPoints())
+        {
+            double x = p.getX();
+            if (x >= 0.3026 && x < 0.3032) numInExcursion++;
+            else if (x >= 0.3005 && x < 0.3045) numInCell301++;
+        }
+        assertEquals(1, numInExcursion);
+        assertEquals(2, numInCell301);
+    }
+}
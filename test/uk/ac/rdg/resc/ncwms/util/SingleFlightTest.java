@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.util;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link SingleFlight} class.
+ * @author Jon
+ */
+public final class SingleFlightTest
+{
+    private static final int NUM_FOLLOWERS = 4;
+
+    @Test
+    public void testConcurrentCallersShareOneExecution() throws Exception
+    {
+        final SingleFlight<String, Object, IOException> flight =
+            new SingleFlight<String, Object, IOException>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch joining = new CountDownLatch(NUM_FOLLOWERS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger numCalls = new AtomicInteger();
+        final Object result = new Object();
+        final SingleFlight.Task<Object, IOException> task =
+            new SingleFlight.Task<Object, IOException>() {
+                @Override
+                public Object call() throws IOException {
+                    numCalls.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ie) {
+                        throw new IOException("interrupted");
+                    }
+                    return result;
+                }
+            };
+
+        final Object[] results = new Object[NUM_FOLLOWERS + 1];
+        Thread[] threads = new Thread[NUM_FOLLOWERS + 1];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    if (index > 0) joining.countDown();
+                    try {
+                        results[index] = flight.execute("key", task);
+                    } catch (IOException ioe) {
+                        results[index] = ioe;
+                    }
+                }
+            };
+            threads[i].start();
+            // Make sure the first thread is running the task before the
+            // others start
+            if (i == 0) started.await();
+        }
+        // Wait until all the followers are waiting for the first thread's
+        // result, which they do without running the task
+        joining.await();
+        for (int i = 1; i < threads.length; i++) awaitWaiting(threads[i]);
+        assertEquals(1, flight.getNumInFlight());
+        release.countDown();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(1, numCalls.get());
+        for (Object r : results) assertSame(result, r);
+        assertEquals(0, flight.getNumInFlight());
+    }
+
+    /**
+     * Waits until the given thread is waiting (e.g. for the result of a
+     * task that is being run by another thread)
+     */
+    private static void awaitWaiting(Thread thread) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (thread.getState() != Thread.State.WAITING)
+        {
+            assertTrue("Thread did not start waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testFailuresArePropagated() throws Exception
+    {
+        SingleFlight<String, Object, IOException> flight =
+            new SingleFlight<String, Object, IOException>();
+        try
+        {
+            flight.execute("key", new SingleFlight.Task<Object, IOException>() {
+                @Override
+                public Object call() throws IOException {
+                    throw new IOException("failed");
+                }
+            });
+            fail("Expected an IOException");
+        }
+        catch (IOException ioe)
+        {
+            assertEquals("failed", ioe.getMessage());
+        }
+        try
+        {
+            flight.execute("key", new SingleFlight.Task<Object, IOException>() {
+                @Override
+                public Object call() {
+                    throw new IllegalStateException("bad state");
+                }
+            });
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException ise)
+        {
+            assertEquals("bad state", ise.getMessage());
+        }
+        // A failed task is not remembered, so the next call runs again
+        assertEquals(0, flight.getNumInFlight());
+        assertEquals("ok", flight.execute("key", new SingleFlight.Task<Object, IOException>() {
+            @Override
+            public Object call() {
+                return "ok";
+            }
+        }));
+    }
+}
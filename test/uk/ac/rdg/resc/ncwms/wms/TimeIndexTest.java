@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.wms;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the building and searching of a {@link TimeIndex}.
+ * @author Jon
+ */
+public final class TimeIndexTest
+{
+    private static DateTime day(int day)
+    {
+        return new DateTime(2010, 1, day, 0, 0, 0, 0, DateTimeZone.UTC);
+    }
+
+    @Test
+    public void testUnorderedAndDuplicateTimesteps()
+    {
+        TimeIndex.Builder builder = new TimeIndex.Builder(TimeIndex.EMPTY);
+        // Two forecast runs: the second overlaps the first, and has shorter
+        // lead times for the overlapping days
+        builder.add(day(3), "run1.nc", 2);
+        builder.add(day(1), "run1.nc", 0);
+        builder.add(day(2), "run1.nc", 1);
+        builder.add(day(4), "run2.nc", 1);
+        builder.add(day(3), "run2.nc", 0);
+        // A duplicate with the same index in file: the first one is kept
+        builder.add(day(4), "run3.nc", 1);
+        TimeIndex index = builder.build();
+
+        assertEquals(4, index.size());
+        for (int i = 0; i < 4; i++)
+        {
+            assertEquals(day(i + 1).getMillis(), index.getMillis(i));
+        }
+        assertEquals("run1.nc", index.getFilename(1));
+        assertEquals(1, index.getIndexInFile(1));
+        assertEquals("run2.nc", index.getFilename(2));
+        assertEquals(0, index.getIndexInFile(2));
+        assertEquals("run2.nc", index.getFilename(3));
+        assertEquals(1, index.getIndexInFile(3));
+        assertTrue(index.getDateTime(2).isEqual(day(3)));
+        assertEquals(day(3).getChronology(), index.getChronology());
+    }
+
+    @Test
+    public void testSearches()
+    {
+        TimeIndex.Builder builder = new TimeIndex.Builder(TimeIndex.EMPTY);
+        for (int i = 1; i <= 3; i++) builder.add(day(2 * i), "file.nc", i - 1);
+        TimeIndex index = builder.build();
+        // The days are 2, 4 and 6
+        assertEquals(1, index.findIndex(day(4).getMillis()));
+        assertEquals(-2, index.findIndex(day(3).getMillis()));
+        assertEquals(-1, index.floorIndex(day(1).getMillis()));
+        assertEquals(0, index.floorIndex(day(3).getMillis()));
+        assertEquals(2, index.floorIndex(day(7).getMillis()));
+        assertEquals(0, index.ceilingIndex(day(1).getMillis()));
+        assertEquals(1, index.ceilingIndex(day(4).getMillis()));
+        assertEquals(3, index.ceilingIndex(day(7).getMillis()));
+
+        // Adding to an existing index
+        builder = new TimeIndex.Builder(index);
+        builder.add(day(5), "other.nc", 0);
+        index = builder.build();
+        assertEquals(4, index.size());
+        assertEquals("other.nc", index.getFilename(2));
+        assertEquals("file.nc", index.getFilename(3));
+        assertEquals(2, index.getIndexInFile(3));
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        TimeIndex index = new TimeIndex.Builder(TimeIndex.EMPTY).build();
+        assertEquals(0, index.size());
+        assertNull(index.getChronology());
+        assertEquals(-1, index.findIndex(0L));
+    }
+}
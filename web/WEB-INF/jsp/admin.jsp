@@ -42,7 +42,7 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
         
         <h2>Datasets</h2>
         <table border="1">
-        <tr><th>Edit variables</th><th>Unique ID</th><th>Title</th><th>Location</th><th>State</th><th>Last update</th><th>Auto refresh frequency</th><th>Force refresh?</th><th>Disabled?</th><th>Queryable?</th><th>Remove?</th><th>Data reading class</th><th>Link to more info</th><th>Copyright statement</th></tr>
+        <tr><th>Edit variables</th><th>Unique ID</th><th>Title</th><th>Location</th><th>State</th><th>Last update</th><th>Auto refresh frequency</th><th>Browser cache lifetime (seconds)</th><th>Force refresh?</th><th>Disabled?</th><th>Queryable?</th><th>Remove?</th><th>Data reading class</th><th>Link to more info</th><th>Copyright statement</th></tr>
 
             <c:forEach var="datasetEntry" items="${config.allDatasets}">
                 <c:set var="dataset" value="${datasetEntry.value}"/>
@@ -56,14 +56,8 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                     <td><input type="text" name="dataset.${dataset.id}.title" value="${dataset.title}"/></td>
                     <td><input type="text" name="dataset.${dataset.id}.location" value="${dataset.location}"/></td>
                     <td>
-                        <c:choose>
-                            <c:when test="${dataset.error or dataset.loading}">
-                                <a target="_blank" href="datasetStatus.jsp?dataset=${dataset.id}">${dataset.state}</a>
-                            </c:when>
-                            <c:otherwise>
-                                ${dataset.state}
-                            </c:otherwise>
-                        </c:choose>
+                        <%-- The status page also shows the data reading statistics --%>
+                        <a target="_blank" href="datasetStatus.jsp?dataset=${dataset.id}">${dataset.state}</a>
                     </td>
                     <td>
                         <c:choose>
@@ -83,6 +77,7 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                             <option value="1440"<c:if test="${dataset.updateInterval == 1440}"> selected="selected"</c:if>>Daily</option>
                         </select>
                     </td>
+                    <td><input type="text" name="dataset.${dataset.id}.cachemaxage" value="${dataset.cacheMaxAge}" size="6"/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.refresh"/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.disabled"<c:if test="${dataset.disabled}"> checked="checked"</c:if>/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.queryable"<c:if test="${dataset.queryable}"> checked="checked"</c:if>/></td>
@@ -113,6 +108,7 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                             <option value="1440">Daily</option>
                         </select>
                     </td>
+                    <td><input type="text" name="dataset.new${i}.cachemaxage" value="0" size="6"/></td>
                     <td>N/A</td>
                     <td><input type="checkbox" name="dataset.new${i}.disabled"/></td>
                     <td><input type="checkbox" name="dataset.new${i}.queryable" checked="checked"/></td>
@@ -144,13 +140,29 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                 <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
             </tr>
             <tr>
-                <c:set var="memoryFootprintMB" value="${256*256*4*config.cache.maxNumItemsInMemory / (1024*1024)}"/>
-                <th>Maximum number of items to hold in memory</th>
-                <td><input type="text" name="cache.maxNumItemsInMemory" value="${config.cache.maxNumItemsInMemory}"/></td>
-                <td>If each item in the cache is a 256x256 array of 4-byte floating point data then 
-                    this value gives a memory footprint for the cache of <b>${memoryFootprintMB} megabytes</b>.
+                <th>Maximum memory to use for the cache (megabytes)</th>
+                <td><input type="text" name="cache.maxMemorySizeMB" value="${config.cache.maxMemorySizeMB}"/></td>
+                <td>The least recently used data arrays will be removed from memory when the
+                    cache grows beyond this size.  Each 256x256 tile of data uses a quarter of a megabyte.
                 <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
             </tr>
+            <tr>
+                <th>Maximum off-heap memory to use for the cache (megabytes)</th>
+                <td><input type="text" name="cache.maxOffHeapSizeMB" value="${config.cache.maxOffHeapSizeMB}"/></td>
+                <td>Data arrays that are evicted from memory will be held outside the Java heap, up to
+                    this size, before overflowing to disk.  This allows a large cache without increasing
+                    garbage collection times.  Set to zero to disable.  The Java virtual machine may need to be
+                    started with a larger <tt>-XX:MaxDirectMemorySize</tt>.
+                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+            </tr>
+            <tr>
+                <th>Maximum memory to use for caching images (megabytes)</th>
+                <td><input type="text" name="cache.maxImageCacheSizeMB" value="${config.cache.maxImageCacheSizeMB}"/></td>
+                <td>Complete images produced by GetMap requests will be held in memory, up to
+                    this size, so that repeated requests for the same image do not need to be
+                    rendered again.  Set to zero to disable.
+                <font color="red">This can be changed while the server is running.</font></td>
+            </tr>
             <tr>
                 <th>Enable disk store?</th>
                 <td><input type="checkbox" name="cache.enableDiskStore"<c:if test="${config.cache.enableDiskStore}"> checked="checked"</c:if>/></td>
@@ -161,14 +173,17 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                 <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
             </tr>
             <tr>
-                <c:set var="diskFootprintMB" value="${256*256*4*config.cache.maxNumItemsOnDisk / (1024*1024)}"/>
-                <th>Maximum number of items to hold on disk</th>
-                <td><input type="text" name="cache.maxNumItemsOnDisk" value="${config.cache.maxNumItemsOnDisk}"/></td>
-                <td>If each item in the cache is a 256x256 array of 4-byte floating point data then 
-                    this value gives a disk footprint for the cache of <b>${diskFootprintMB} megabytes</b>.
+                <th>Maximum disk space to use for the cache (megabytes)</th>
+                <td><input type="text" name="cache.maxDiskSizeMB" value="${config.cache.maxDiskSizeMB}"/></td>
+                <td>The least recently used data arrays will be deleted from disk when the
+                    disk store grows beyond this size.
                 <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
             </tr>
         </table>
+        <p>Recently-used data files are also kept open between requests, to save re-reading
+        their metadata.  Pool of open files: ${config.datasetPool}.</p>
+        <p>The mappings from map pixels to grid points (PixelMaps) are cached between requests
+        for the same map tile.  PixelMap cache: ${config.pixelMapCache}.</p>
         
         <h2>Server settings</h2>
         <table border="1">
@@ -1,6 +1,7 @@
 <%@page contentType="text/html"%>
 <%@page pageEncoding="UTF-8"%>
 <%@taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
+<%@taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt"%>
 <%
 response.setHeader("Cache-Control","no-cache"); //HTTP 1.1
 response.setHeader("Pragma","no-cache"); //HTTP 1.0
@@ -29,6 +30,29 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
             </c:forEach>
         </p>
 
+        <h2>Data reading strategies</h2>
+        <p>The time taken to read data with each strategy is modelled as
+        (cost per read operation &times; number of read operations) +
+        (cost per million points &times; number of points read / 10<sup>6</sup>).
+        The quickest strategy is chosen for each request, once it has been observed
+        a few times.</p>
+        <table border="1">
+            <tr>
+                <th>Strategy</th>
+                <th>Number of observations</th>
+                <th>Cost per read operation (ms)</th>
+                <th>Cost per million points (ms)</th>
+            </tr>
+            <c:forEach var="model" items="${dataset.dataReadingStrategySelector.costModels}">
+            <tr>
+                <td>${model.strategy}</td>
+                <td>${model.numObservations}</td>
+                <td><fmt:formatNumber value="${model.msPerReadOperation}" maxFractionDigits="4"/></td>
+                <td><fmt:formatNumber value="${model.msPerMillionPoints}" maxFractionDigits="2"/></td>
+            </tr>
+            </c:forEach>
+        </table>
+
         <h2>Error report</h2>
 
         <c:set var="err" value="${dataset.exception}"/>